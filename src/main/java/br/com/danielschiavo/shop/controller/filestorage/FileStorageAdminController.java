@@ -0,0 +1,104 @@
+package br.com.danielschiavo.shop.controller.filestorage;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import br.com.danielschiavo.shop.service.filestorage.CacheArquivosService;
+import br.com.danielschiavo.shop.service.filestorage.CatalogoArquivosService;
+import br.com.danielschiavo.shop.service.filestorage.ConsistenciaCatalogoDTO;
+import br.com.danielschiavo.shop.service.filestorage.DurabilidadeArquivosService;
+import br.com.danielschiavo.shop.service.filestorage.EstatisticasCacheDTO;
+import br.com.danielschiavo.shop.service.filestorage.EstatisticasDurabilidadeDTO;
+import br.com.danielschiavo.shop.service.filestorage.EstatisticasMigracaoDTO;
+import br.com.danielschiavo.shop.service.filestorage.EstatisticasOtimizacaoDTO;
+import br.com.danielschiavo.shop.service.filestorage.ListagemArquivosService;
+import br.com.danielschiavo.shop.service.filestorage.ListagemArquivosService.IndiceEmConstrucaoException;
+import br.com.danielschiavo.shop.service.filestorage.MigracaoLayoutService;
+import br.com.danielschiavo.shop.service.filestorage.OtimizacaoImagemService;
+import br.com.danielschiavo.shop.service.filestorage.PaginaArquivosDTO;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+
+@RestController
+@SecurityRequirement(name = "bearer-key")
+@Tag(name = "Administração - Serviço de Armazenamento de Arquivos", description = "Diagnóstico do armazenamento de arquivos. Uso exclusivo do backend.")
+public class FileStorageAdminController {
+
+	@Autowired
+	private CacheArquivosService cacheArquivosService;
+
+	@Autowired
+	private OtimizacaoImagemService otimizacaoImagemService;
+
+	@Autowired
+	private MigracaoLayoutService migracaoLayoutService;
+
+	@Autowired
+	private DurabilidadeArquivosService durabilidadeArquivosService;
+
+	@Autowired
+	private CatalogoArquivosService catalogoArquivosService;
+
+	@Autowired
+	private ListagemArquivosService listagemArquivosService;
+
+	@GetMapping("/admin/filestorage/cache")
+	@Operation(summary = "Devolve acertos, faltas, despejos e bytes usados do cache de arquivos de cada raiz de armazenamento")
+	public ResponseEntity<Map<String, EstatisticasCacheDTO>> estatisticasCache() {
+		return ResponseEntity.ok(cacheArquivosService.estatisticas());
+	}
+
+	@GetMapping("/admin/filestorage/otimizacao")
+	@Operation(summary = "Devolve o estado da fila de otimização de imagens e quantos bytes ela já economizou")
+	public ResponseEntity<EstatisticasOtimizacaoDTO> estatisticasOtimizacao() {
+		return ResponseEntity.ok(otimizacaoImagemService.estatisticas());
+	}
+
+	@GetMapping("/admin/filestorage/migracao-layout")
+	@Operation(summary = "Devolve o andamento da migração dos arquivos do layout plano para o layout fragmentado")
+	public ResponseEntity<EstatisticasMigracaoDTO> estatisticasMigracaoLayout() {
+		return ResponseEntity.ok(migracaoLayoutService.estatisticas());
+	}
+
+	@GetMapping("/admin/filestorage/durabilidade")
+	@Operation(summary = "Devolve o modo de durabilidade das gravações, o tamanho dos lotes de fsync, a latência de confirmação e os temporários removidos na inicialização")
+	public ResponseEntity<EstatisticasDurabilidadeDTO> estatisticasDurabilidade() {
+		return ResponseEntity.ok(durabilidadeArquivosService.estatisticas());
+	}
+
+	@PostMapping("/admin/filestorage/catalogo/verificacao")
+	@Operation(summary = "Compara o catálogo de arquivos com os diretórios de armazenamento e, com corrigir=true, acerta as entradas ausentes, sobrando ou divergentes")
+	public ResponseEntity<ConsistenciaCatalogoDTO> verificarCatalogo(@RequestParam(defaultValue = "false") boolean corrigir) {
+		return ResponseEntity.ok(catalogoArquivosService.verificarConsistencia(corrigir));
+	}
+
+	@GetMapping("/admin/filestorage/arquivos/{raiz}")
+	@Operation(summary = "Lista os arquivos de produto, perfil ou pedido em ordem de nome, com tamanho e data, paginados por cursor. "
+			+ "Passe o proximoCursor da página anterior em cursor; prefixo, desde e ate (ISO-8601) filtram o resultado. "
+			+ "Responde 503 com Retry-After enquanto o índice da raiz é montado")
+	public ResponseEntity<PaginaArquivosDTO> listarArquivos(@PathVariable String raiz,
+			@RequestParam(required = false) String cursor,
+			@RequestParam(defaultValue = "100") int limite,
+			@RequestParam(required = false) String prefixo,
+			@RequestParam(required = false) Instant desde,
+			@RequestParam(required = false) Instant ate) {
+		try {
+			return ResponseEntity.ok(listagemArquivosService.listar(raiz, cursor, limite, prefixo, desde, ate));
+		} catch (IndiceEmConstrucaoException e) {
+			HttpStatus status = HttpStatus.SERVICE_UNAVAILABLE;
+			return ResponseEntity.status(status).header(HttpHeaders.RETRY_AFTER, "5").build();
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package br.com.danielschiavo.shop.controller.filestorage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.server.RequestPredicate;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import br.com.danielschiavo.shop.service.filestorage.FileStoragePedidoService;
+import br.com.danielschiavo.shop.service.filestorage.FileStoragePerfilService;
+import br.com.danielschiavo.shop.service.filestorage.FileStorageProdutoService;
+import br.com.danielschiavo.shop.service.filestorage.TransmissaoReativaArquivoService;
+import reactor.core.publisher.Mono;
+
+/**
+ * Endpoints de leitura de FileStorageProdutoController, FileStoragePerfilController e
+ * FileStoragePedidoController em WebFlux funcional, nas mesmas URLs, para o perfil reativo. As
+ * rotas são servidas pelo FiltroLeituraReativa; gravações, exclusões, metadados, multipart/mixed
+ * e ZIP continuam nos controllers MVC.
+ */
+@Component
+@Profile("reativo")
+public class FileStorageLeituraReativaController {
+
+	static final String PRODUTO = "/publico/produto/{nomesArquivos}";
+	static final String PRODUTO_BINARIO = "/publico/produto/binario/{nomeArquivo}";
+	static final String PERFIL = "/cliente/perfil/{nomeFotoPerfil}";
+	static final String PERFIL_BINARIO = "/cliente/perfil/binario/{nomeFotoPerfil}";
+	static final String PEDIDO = "/cliente/pedido/{nomeImagemPedido}";
+	static final String PEDIDO_BINARIO = "/cliente/pedido/binario/{nomeImagemPedido}";
+
+	static final List<String> ROTAS = List.of(PRODUTO, PRODUTO_BINARIO, PERFIL, PERFIL_BINARIO, PEDIDO, PEDIDO_BINARIO);
+
+	@Autowired
+	private FileStorageProdutoService fileStorageProdutoService;
+
+	@Autowired
+	private FileStoragePerfilService fileStoragePerfilService;
+
+	@Autowired
+	private FileStoragePedidoService fileStoragePedidoService;
+
+	@Autowired
+	private TransmissaoReativaArquivoService transmissaoReativaArquivoService;
+
+	public RouterFunction<ServerResponse> rotas() {
+		return RouterFunctions.route(leitura(PRODUTO_BINARIO), this::transmitirArquivoProduto)
+				.and(RouterFunctions.route(leitura(PRODUTO), this::pegarImagensProduto))
+				.and(RouterFunctions.route(leitura(PERFIL_BINARIO), this::transmitirFotoPerfil))
+				.and(RouterFunctions.route(leitura(PERFIL), this::pegarFotoPerfilPorNome))
+				.and(RouterFunctions.route(leitura(PEDIDO_BINARIO), this::transmitirImagemPedido))
+				.and(RouterFunctions.route(leitura(PEDIDO), this::pegarImagemPedidoPorNome));
+	}
+
+	public Mono<ServerResponse> pegarImagensProduto(ServerRequest request) {
+		String[] nomesImagens = nomes(request.pathVariable("nomesArquivos"));
+		return tratarErros(String.join(",", nomesImagens), () -> transmissaoReativaArquivoService.escreverJson(request,
+				FileStorageProdutoService.raizProduto, nomesImagens, () -> fileStorageProdutoService.localizarImagens(nomesImagens)));
+	}
+
+	public Mono<ServerResponse> transmitirArquivoProduto(ServerRequest request) {
+		String nomeArquivo = request.pathVariable("nomeArquivo");
+		return tratarErros(nomeArquivo, () -> {
+			Integer largura = largura(request);
+			return transmissaoReativaArquivoService.transmitir(request, () -> fileStorageProdutoService.localizarImagem(nomeArquivo, largura));
+		});
+	}
+
+	public Mono<ServerResponse> pegarFotoPerfilPorNome(ServerRequest request) {
+		String nomeFotoPerfil = request.pathVariable("nomeFotoPerfil");
+		return tratarErros(nomeFotoPerfil, () -> transmissaoReativaArquivoService.escreverJson(request,
+				FileStoragePerfilService.raizPerfil, new String[] {nomeFotoPerfil}, () -> {
+					fileStoragePerfilService.localizarFotoPerfil(nomeFotoPerfil);
+					return fileStoragePerfilService.localizarFotosPerfil(nomeFotoPerfil);
+				}));
+	}
+
+	public Mono<ServerResponse> transmitirFotoPerfil(ServerRequest request) {
+		String nomeFotoPerfil = request.pathVariable("nomeFotoPerfil");
+		return tratarErros(nomeFotoPerfil, () -> {
+			Integer largura = largura(request);
+			return transmissaoReativaArquivoService.transmitir(request, () -> fileStoragePerfilService.localizarFotoPerfil(nomeFotoPerfil, largura));
+		});
+	}
+
+	public Mono<ServerResponse> pegarImagemPedidoPorNome(ServerRequest request) {
+		String nomeImagemPedido = request.pathVariable("nomeImagemPedido");
+		return tratarErros(nomeImagemPedido, () -> transmissaoReativaArquivoService.escreverJson(request,
+				FileStoragePedidoService.raizPedido, new String[] {nomeImagemPedido}, () -> fileStoragePedidoService.localizarImagensPedido(nomeImagemPedido)));
+	}
+
+	public Mono<ServerResponse> transmitirImagemPedido(ServerRequest request) {
+		String nomeImagemPedido = request.pathVariable("nomeImagemPedido");
+		return tratarErros(nomeImagemPedido, () -> transmissaoReativaArquivoService.transmitir(request,
+				() -> fileStoragePedidoService.localizarImagemPedido(nomeImagemPedido)));
+	}
+
+
+//
+// METODOS UTILITARIOS DE LEITURA REATIVA
+//
+
+	/**
+	 * GET e HEAD no padrão; o HEAD responde só os cabeçalhos, como na pilha MVC.
+	 */
+	private static RequestPredicate leitura(String padrao) {
+		return RequestPredicates.GET(padrao).or(RequestPredicates.HEAD(padrao));
+	}
+
+	/**
+	 * Arquivo inexistente vira 404 e entrada inválida vira 400, com o mesmo ArquivoInfoDTO de erro
+	 * que o FileStoragePerfilController devolve.
+	 */
+	private Mono<ServerResponse> tratarErros(String nome, Supplier<Mono<ServerResponse>> resposta) {
+		return Mono.defer(resposta).onErrorResume(ValidacaoException.class, e -> erro(HttpStatus.BAD_REQUEST, nome, e.getMessage()))
+				.onErrorResume(FileStorageException.class, e -> erro(HttpStatus.NOT_FOUND, nome, e.getMessage()));
+	}
+
+	private Mono<ServerResponse> erro(HttpStatus status, String nome, String mensagem) {
+		return ServerResponse.status(status).contentType(MediaType.APPLICATION_JSON).bodyValue(ArquivoInfoDTO.comErro(nome, mensagem));
+	}
+
+	/**
+	 * w tem precedência sobre size, como no controller MVC.
+	 */
+	private Integer largura(ServerRequest request) {
+		String valor = request.queryParam("w").or(() -> request.queryParam("size")).orElse(null);
+		if (valor == null)
+			return null;
+		try {
+			return Integer.valueOf(valor);
+		} catch (NumberFormatException e) {
+			throw new ValidacaoException("A largura deve ser um número inteiro: " + valor);
+		}
+	}
+
+	private static String[] nomes(String nomesArquivos) {
+		return Arrays.stream(StringUtils.commaDelimitedListToStringArray(nomesArquivos)).map(String::trim).toArray(String[]::new);
+	}
+
+}
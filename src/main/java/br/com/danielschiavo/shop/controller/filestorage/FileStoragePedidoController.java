@@ -1,6 +1,8 @@
 package br.com.danielschiavo.shop.controller.filestorage;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
@@ -10,14 +12,19 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
 import br.com.danielschiavo.shop.model.filestorage.PersistirOuRecuperarImagemPedidoDTO;
+import br.com.danielschiavo.shop.service.filestorage.EscritaJsonArquivoService;
 import br.com.danielschiavo.shop.service.filestorage.FileStoragePedidoService;
+import br.com.danielschiavo.shop.service.filestorage.TransmissaoArquivoService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
 @RequestMapping
@@ -28,14 +35,36 @@ public class FileStoragePedidoController {
 	@Autowired
 	private FileStoragePedidoService fileStoragePedidoService;
 	
+	@Autowired
+	private TransmissaoArquivoService transmissaoArquivoService;
+	
+	@Autowired
+	private EscritaJsonArquivoService escritaJsonArquivoService;
+	
 	@GetMapping("/cliente/pedido/{nomeImagemPedido}")
 	@Operation(summary = "Recupera os bytes da imagem do pedido dado o nome no parametro da requisição")
-	public ResponseEntity<ArquivoInfoDTO> pegarImagemPedidoPorNome(@PathVariable String nomeImagemPedido) {
+	public ResponseEntity<ArquivoInfoDTO> pegarImagemPedidoPorNome(@PathVariable String nomeImagemPedido, ServletWebRequest webRequest,
+			HttpServletResponse response) throws IOException {
+		if (transmissaoArquivoService.verificarNaoModificado(webRequest, fileStoragePedidoService.localizarImagensPedido(nomeImagemPedido)))
+			return null;
+		if (escritaJsonArquivoService.isHabilitado()) {
+			escritaJsonArquivoService.escrever(FileStoragePedidoService.raizPedido, new String[] {nomeImagemPedido}, response);
+			return null;
+		}
+		
 		ArquivoInfoDTO arquivo = fileStoragePedidoService.pegarImagemPedidoPorNome(nomeImagemPedido);
 		
 		return ResponseEntity.ok(arquivo);
 	}
 	
+	@GetMapping("/cliente/pedido/binario/{nomeImagemPedido}")
+	@Operation(summary = "Transmite os bytes crus da imagem do pedido, com Content-Type e Content-Length, sem codificar em base64")
+	public void transmitirImagemPedido(@PathVariable String nomeImagemPedido,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Path arquivo = fileStoragePedidoService.localizarImagemPedido(nomeImagemPedido);
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+	}
+	
 	@PostMapping("/cliente/pedido")
 	@Operation(summary = "Cadastra uma nova imagem do pedido e devolve o nome e os bytes da imagem, ou, se já tiver uma imagem cadastrada devolve o nome e os bytes da imagem já cadastrada")
 	public ResponseEntity<?> persistirOuRecuperarImagemPedido(
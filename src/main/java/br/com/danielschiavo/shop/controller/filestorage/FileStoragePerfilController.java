@@ -2,6 +2,7 @@ package br.com.danielschiavo.shop.controller.filestorage;
 
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -15,15 +16,21 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import br.com.danielschiavo.shop.model.ValidacaoException;
 import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import br.com.danielschiavo.shop.service.filestorage.EscritaJsonArquivoService;
 import br.com.danielschiavo.shop.service.filestorage.FileStoragePerfilService;
+import br.com.danielschiavo.shop.service.filestorage.MetadadosMidiaDTO;
+import br.com.danielschiavo.shop.service.filestorage.TransmissaoArquivoService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
 @RequestMapping
@@ -34,6 +41,12 @@ public class FileStoragePerfilController {
 	@Autowired
 	private FileStoragePerfilService fileStoragePerfilService;
 	
+	@Autowired
+	private TransmissaoArquivoService transmissaoArquivoService;
+	
+	@Autowired
+	private EscritaJsonArquivoService escritaJsonArquivoService;
+	
 	@DeleteMapping("/cliente/perfil/{nomeFotoPerfil}")
 	@Operation(summary = "Deleta a foto de perfil com o nome enviado no parametro da requisição")
 	public ResponseEntity<?> deletarFotoPerfil(@PathVariable String nomeFotoPerfil) {
@@ -55,12 +68,38 @@ public class FileStoragePerfilController {
 	
 	@GetMapping("/cliente/perfil/{nomeFotoPerfil}")
 	@Operation(summary = "Pega uma foto de perfil dado o nome da foto no parametro da requisição")
-	public ResponseEntity<ArquivoInfoDTO> pegarFotoPerfilPorNome(@PathVariable String nomeFotoPerfil) {
+	public ResponseEntity<ArquivoInfoDTO> pegarFotoPerfilPorNome(@PathVariable String nomeFotoPerfil, ServletWebRequest webRequest,
+			HttpServletResponse response) throws IOException {
+		if (transmissaoArquivoService.verificarNaoModificado(webRequest, fileStoragePerfilService.localizarFotosPerfil(nomeFotoPerfil)))
+			return null;
+		if (escritaJsonArquivoService.isHabilitado()) {
+			fileStoragePerfilService.localizarFotoPerfil(nomeFotoPerfil);
+			escritaJsonArquivoService.escrever(FileStoragePerfilService.raizPerfil, new String[] {nomeFotoPerfil}, response);
+			return null;
+		}
+		
 		ArquivoInfoDTO arquivo = fileStoragePerfilService.pegarFotoPerfilPorNome(nomeFotoPerfil);
 		
 		return ResponseEntity.ok(arquivo);
 	}
 	
+	@GetMapping("/cliente/perfil/binario/{nomeFotoPerfil}")
+	@Operation(summary = "Transmite os bytes crus da foto de perfil, com Content-Type e Content-Length, sem codificar em base64. "
+			+ "Com w (ou size) transmite a miniatura de 64, 256, 512 ou 1024 px que cobre a largura pedida")
+	public void transmitirFotoPerfil(@PathVariable String nomeFotoPerfil,
+			@RequestParam(name = "w", required = false) Integer largura,
+			@RequestParam(name = "size", required = false) Integer tamanho,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Path arquivo = fileStoragePerfilService.localizarFotoPerfil(nomeFotoPerfil, largura != null ? largura : tamanho);
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+	}
+	
+	@GetMapping("/cliente/perfil/metadados/{nomeFotoPerfil}")
+	@Operation(summary = "Devolve formato, tamanho, largura e altura da foto de perfil, lidos só dos cabeçalhos, sem transmitir a imagem")
+	public ResponseEntity<MetadadosMidiaDTO> pegarMetadadosFotoPerfil(@PathVariable String nomeFotoPerfil) {
+		return ResponseEntity.ok(fileStoragePerfilService.metadadosFotoPerfil(nomeFotoPerfil));
+	}
+	
 	@PostMapping("/cliente/perfil/")
 	@Operation(summary = "Cadastra uma foto de perfil enviada através de um formulario html e gera um nome")
 	public ResponseEntity<?> cadastrarFotoPerfil(
@@ -1,26 +1,43 @@
 package br.com.danielschiavo.shop.controller.filestorage;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import br.com.danielschiavo.shop.service.filestorage.CriarSessaoUploadDTO;
+import br.com.danielschiavo.shop.service.filestorage.EscritaJsonArquivoService;
 import br.com.danielschiavo.shop.service.filestorage.FileStorageProdutoService;
+import br.com.danielschiavo.shop.service.filestorage.MetadadosMidiaDTO;
 import br.com.danielschiavo.shop.service.filestorage.RespostaAlterarArquivosDTO;
+import br.com.danielschiavo.shop.service.filestorage.SessaoUploadDTO;
+import br.com.danielschiavo.shop.service.filestorage.TransmissaoArquivoService;
+import br.com.danielschiavo.shop.service.filestorage.UploadRetomavelService;
+import br.com.danielschiavo.shop.service.filestorage.UploadRetomavelService.UploadEmConflitoException;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 @RestController
 @SecurityRequirement(name = "bearer-key")
@@ -30,6 +47,15 @@ public class FileStorageProdutoController {
 	@Autowired
 	private FileStorageProdutoService fileStorageService;
 
+	@Autowired
+	private TransmissaoArquivoService transmissaoArquivoService;
+
+	@Autowired
+	private EscritaJsonArquivoService escritaJsonArquivoService;
+
+	@Autowired
+	private UploadRetomavelService uploadRetomavelService;
+
 	@DeleteMapping("/admin/produto/{nomesArquivos}")
 	@Operation(summary = "Deleta o arquivo com o nome enviado no parametro da requisição")
 	public ResponseEntity<?> deletarImagensProduto(@PathVariable(name = "nomesArquivos") List<String> nomesArquivos,
@@ -41,10 +67,50 @@ public class FileStorageProdutoController {
 	@GetMapping("/publico/produto/{nomesArquivos}")
 	@Operation(summary = "Recupera os bytes do nome de todas imagens enviadas no parâmetro da requisição")
 	public ResponseEntity<?> pegarImagensProduto(
-			@PathVariable(name = "nomesArquivos") String... nomesImagens) {
+			@PathVariable(name = "nomesArquivos") String[] nomesImagens,
+			ServletWebRequest webRequest,
+			HttpServletResponse response) throws IOException {
+		if (transmissaoArquivoService.verificarNaoModificado(webRequest, fileStorageService.localizarImagens(nomesImagens)))
+			return null;
+		if (escritaJsonArquivoService.isHabilitado()) {
+			escritaJsonArquivoService.escrever(FileStorageProdutoService.raizProduto, nomesImagens, response);
+			return null;
+		}
+		
 		return ResponseEntity.ok(fileStorageService.pegarImagens(nomesImagens));
 	}
 
+	@GetMapping(path = "/publico/produto/{nomesArquivos}", produces = "multipart/mixed")
+	@Operation(summary = "Transmite todos os arquivos pedidos numa resposta multipart/mixed, uma parte por arquivo, sem montar a lista em memória")
+	public void pegarImagensProdutoMultipart(@PathVariable(name = "nomesArquivos") String[] nomesImagens,
+			HttpServletResponse response) throws IOException {
+		transmissaoArquivoService.transmitirMultipartMixed(FileStorageProdutoService.raizProduto, nomesImagens, response);
+	}
+
+	@GetMapping(path = "/publico/produto/{nomesArquivos}", produces = "application/zip")
+	@Operation(summary = "Transmite todos os arquivos pedidos num ZIP sem compressão gerado enquanto é enviado")
+	public void pegarImagensProdutoZip(@PathVariable(name = "nomesArquivos") String[] nomesImagens,
+			HttpServletResponse response) throws IOException {
+		transmissaoArquivoService.transmitirZip(FileStorageProdutoService.raizProduto, nomesImagens, response);
+	}
+
+	@GetMapping("/publico/produto/binario/{nomeArquivo}")
+	@Operation(summary = "Transmite os bytes crus do arquivo do produto, com Content-Type e Content-Length, sem codificar em base64. "
+			+ "Com w (ou size) transmite a miniatura de 64, 256, 512 ou 1024 px que cobre a largura pedida")
+	public void transmitirArquivoProduto(@PathVariable String nomeArquivo,
+			@RequestParam(name = "w", required = false) Integer largura,
+			@RequestParam(name = "size", required = false) Integer tamanho,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Path arquivo = fileStorageService.localizarImagem(nomeArquivo, largura != null ? largura : tamanho);
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+	}
+
+	@GetMapping("/publico/produto/metadados/{nomeArquivo}")
+	@Operation(summary = "Devolve formato, tamanho, largura, altura e duração do arquivo do produto, lidos só dos cabeçalhos, sem transmitir o conteúdo")
+	public ResponseEntity<MetadadosMidiaDTO> pegarMetadadosArquivoProduto(@PathVariable String nomeArquivo) {
+		return ResponseEntity.ok(fileStorageService.metadadosImagem(nomeArquivo));
+	}
+
 	@PostMapping(path = "/admin/produto", consumes = "multipart/form-data")
 	@ResponseBody
 	@Operation(summary = "Salva um array de arquivos enviados através de um formulário html e gera os seus respectivos nomes")
@@ -67,4 +133,56 @@ public class FileStorageProdutoController {
 		return ResponseEntity.ok(respostaAlterarImagemProduto);
 	}
 
+	@PostMapping("/admin/produto/upload-retomavel")
+	@Operation(summary = "Cria uma sessão de upload retomável para um arquivo grande (vídeo mp4 ou avi) informando nome, tipo e tamanho")
+	public ResponseEntity<SessaoUploadDTO> criarUploadRetomavel(@RequestBody CriarSessaoUploadDTO pedido, UriComponentsBuilder uriBuilder) {
+		SessaoUploadDTO sessao = uploadRetomavelService.criar(pedido);
+		return ResponseEntity.created(uriBuilder.path("/admin/produto/upload-retomavel/{id}").buildAndExpand(sessao.id()).toUri()).body(sessao);
+	}
+
+	@PutMapping(path = "/admin/produto/upload-retomavel/{id}", consumes = "application/octet-stream")
+	@Operation(summary = "Recebe os bytes do corpo da requisição a partir da posição inicio do arquivo. "
+			+ "Partes diferentes podem ser enviadas em paralelo; se a conexão cair, o que chegou continua salvo")
+	public ResponseEntity<SessaoUploadDTO> receberParteUploadRetomavel(@PathVariable String id,
+			@RequestParam(name = "inicio") long inicio, HttpServletRequest request) throws IOException {
+		return ResponseEntity.ok(uploadRetomavelService.receberParte(id, inicio, request.getInputStream()));
+	}
+
+	@GetMapping("/admin/produto/upload-retomavel/{id}")
+	@Operation(summary = "Devolve até onde o arquivo já foi recebido sem lacunas e os intervalos recebidos, para o cliente retomar o upload")
+	public ResponseEntity<SessaoUploadDTO> consultarUploadRetomavel(@PathVariable String id) {
+		return ResponseEntity.ok(uploadRetomavelService.consultar(id));
+	}
+
+	@PostMapping("/admin/produto/upload-retomavel/{id}/concluir")
+	@Operation(summary = "Conclui o upload retomável: salva o arquivo com um nome gerado e devolve o mesmo ArquivoInfoDTO do upload multipart")
+	public ResponseEntity<ArquivoInfoDTO> concluirUploadRetomavel(@PathVariable String id, UriComponentsBuilder uriBuilder) {
+		try {
+			ArquivoInfoDTO arquivo = fileStorageService.concluirUploadRetomavel(id, uriBuilder);
+			return ResponseEntity.created(uriBuilder.path("/publico/produto/binario/{nomeArquivo}").buildAndExpand(arquivo.nomeArquivo()).toUri())
+					.body(arquivo);
+		} catch (UploadEmConflitoException e) {
+			HttpStatus status = HttpStatus.CONFLICT;
+			return ResponseEntity.status(status).body(ArquivoInfoDTO.comErro(id, e.getMessage()));
+		} catch (ValidacaoException e) {
+			HttpStatus status = HttpStatus.BAD_REQUEST;
+			return ResponseEntity.status(status).body(ArquivoInfoDTO.comErro(id, e.getMessage()));
+		} catch (FileStorageException e) {
+			HttpStatus status = HttpStatus.INTERNAL_SERVER_ERROR;
+			return ResponseEntity.status(status).body(ArquivoInfoDTO.comErro(id, e.getMessage()));
+		}
+	}
+
+	@DeleteMapping("/admin/produto/upload-retomavel/{id}")
+	@Operation(summary = "Cancela o upload retomável e apaga os bytes já recebidos")
+	public ResponseEntity<?> cancelarUploadRetomavel(@PathVariable String id) {
+		try {
+			uploadRetomavelService.descartar(id);
+			return ResponseEntity.noContent().build();
+		} catch (UploadEmConflitoException e) {
+			HttpStatus status = HttpStatus.CONFLICT;
+			return ResponseEntity.status(status).body(ArquivoInfoDTO.comErro(id, e.getMessage()));
+		}
+	}
+
 }
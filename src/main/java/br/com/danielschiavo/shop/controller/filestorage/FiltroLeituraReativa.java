@@ -0,0 +1,153 @@
+package br.com.danielschiavo.shop.controller.filestorage;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.PathContainer;
+import org.springframework.http.server.reactive.ServletHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRegistration;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * No perfil reativo, desvia as leituras atendidas pelo FileStorageLeituraReativaController para o
+ * WebFlux antes de chegarem ao DispatcherServlet. O WebFlux roda no próprio Tomcat com I/O não
+ * bloqueante do Servlet: a requisição fica assíncrona e a thread do Tomcat volta para o pool
+ * enquanto o arquivo é lido e enviado, no ritmo em que o cliente consome.
+ * Como o spring.profiles.active escolhe o arquivo de propriedades, o perfil deve ser ligado com
+ * spring.profiles.include=reativo.
+ */
+@Component
+@Profile("reativo")
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class FiltroLeituraReativa extends OncePerRequestFilter {
+
+	private static final List<MediaType> TIPOS_MVC = List.of(MediaType.MULTIPART_MIXED, MediaType.valueOf("application/zip"));
+
+	private final ServletHttpHandlerAdapter adaptador;
+
+	private final List<PathPattern> rotas;
+
+	private volatile boolean adaptadorIniciado;
+
+	public FiltroLeituraReativa(FileStorageLeituraReativaController controller, ObjectMapper objectMapper) {
+		HandlerStrategies estrategias = HandlerStrategies.builder()
+				.codecs(codecs -> codecs.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper))).build();
+		this.adaptador = new ServletHttpHandlerAdapter(RouterFunctions.toHttpHandler(controller.rotas(), estrategias));
+		this.rotas = FileStorageLeituraReativaController.ROTAS.stream().map(PathPatternParser.defaultInstance::parse).toList();
+	}
+
+	/**
+	 * Só GET e HEAD das rotas de leitura; pedidos de multipart/mixed, ZIP ou de vários intervalos
+	 * (multipart/byteranges) seguem para os controllers MVC.
+	 */
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		if (!HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod()))
+			return true;
+		String range = request.getHeader(HttpHeaders.RANGE);
+		if (range != null && range.contains(","))
+			return true;
+		if (pedeTipoMvc(request.getHeader(HttpHeaders.ACCEPT)))
+			return true;
+		PathContainer caminho = PathContainer.parsePath(request.getRequestURI().substring(request.getContextPath().length()));
+		return rotas.stream().noneMatch(rota -> rota.matches(caminho));
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		if (!adaptadorIniciado)
+			iniciarAdaptador(request.getServletContext());
+		adaptador.service(request, response);
+	}
+
+
+//
+// METODOS UTILITARIOS DO FILTRO
+//
+
+	/**
+	 * Na primeira requisição, quando o DispatcherServlet já está registrado.
+	 */
+	private synchronized void iniciarAdaptador(ServletContext contexto) {
+		if (adaptadorIniciado)
+			return;
+		adaptador.init(new ConfiguracaoAdaptador(contexto));
+		adaptadorIniciado = true;
+	}
+
+	private static boolean pedeTipoMvc(String accept) {
+		if (accept == null)
+			return false;
+		try {
+			return MediaType.parseMediaTypes(accept).stream()
+					.anyMatch(tipo -> TIPOS_MVC.stream().anyMatch(tipo::equalsTypeAndSubtype));
+		} catch (InvalidMediaTypeException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * O adaptador é um servlet e desconta da URL o caminho do próprio mapeamento. Chamado daqui ele
+	 * atende as URLs do DispatcherServlet, então é iniciado com o mapeamento "/" dele.
+	 */
+	private static class ConfiguracaoAdaptador implements ServletConfig {
+
+		private final ServletContext contexto;
+		private final String nomeServlet;
+
+		ConfiguracaoAdaptador(ServletContext contexto) {
+			this.contexto = contexto;
+			this.nomeServlet = contexto.getServletRegistrations().values().stream()
+					.filter(registro -> registro.getMappings().size() == 1 && registro.getMappings().contains("/"))
+					.map(ServletRegistration::getName)
+					.findFirst()
+					.orElseThrow(() -> new IllegalStateException("Nenhum servlet mapeado em / para o FiltroLeituraReativa"));
+		}
+
+		@Override
+		public String getServletName() {
+			return nomeServlet;
+		}
+
+		@Override
+		public ServletContext getServletContext() {
+			return contexto;
+		}
+
+		@Override
+		public String getInitParameter(String nome) {
+			return null;
+		}
+
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.emptyEnumeration();
+		}
+	}
+
+}
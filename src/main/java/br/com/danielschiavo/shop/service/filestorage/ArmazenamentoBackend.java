@@ -0,0 +1,61 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Onde os bytes dos arquivos ficam de fato. Os serviços de domínio continuam endereçando cada
+ * arquivo pela raiz (imagens/produto, imagens/perfil, imagens/pedido) e pelo nome; a implementação
+ * decide se isso é um diretório do disco local ou um prefixo de chave num bucket S3.
+ * Arquivo inexistente é sinalizado com NoSuchFileException e nome repetido com FileAlreadyExistsException.
+ */
+public interface ArmazenamentoBackend {
+
+	void gravar(Path raiz, String nomeArquivo, InputStream conteudo) throws IOException;
+
+	InputStream abrir(Path raiz, String nomeArquivo) throws IOException;
+
+	InputStream abrirIntervalo(Path raiz, String nomeArquivo, long inicio, long quantidade) throws IOException;
+
+	/**
+	 * Devolve null quando o arquivo não existe.
+	 */
+	MetadadosArquivo metadados(Path raiz, String nomeArquivo) throws IOException;
+
+	boolean deletar(Path raiz, String nomeArquivo) throws IOException;
+
+	void copiar(Path raizOrigem, String nomeOrigem, Path raizDestino, String nomeDestino) throws IOException;
+
+	List<String> listar(Path raiz) throws IOException;
+
+	default boolean existe(Path raiz, String nomeArquivo) throws IOException {
+		return metadados(raiz, nomeArquivo) != null;
+	}
+
+	/**
+	 * Troca o conteúdo de um arquivo existente pelo de um temporário, desde que ele ainda tenha o
+	 * tamanho e a modificação de esperado; quem já está lendo continua com o conteúdo antigo.
+	 * Devolve false, sem trocar nada, quando o arquivo foi substituído ou excluído depois de lido.
+	 */
+	boolean substituir(Path raiz, String nomeArquivo, Path novoConteudo, MetadadosArquivo esperado) throws IOException;
+
+	/**
+	 * Indica se os arquivos ficam no disco da própria aplicação, onde rodam a otimização de imagens
+	 * e a migração de layout.
+	 */
+	default boolean isLocal() {
+		return false;
+	}
+
+	/**
+	 * Caminho no disco local quando o arquivo tem um, para quem precisa dele (sendfile, miniaturas,
+	 * otimização). Backends remotos e arquivos guardados em segmentos devolvem vazio.
+	 */
+	default Optional<Path> caminhoLocal(Path raiz, String nomeArquivo) {
+		return Optional.empty();
+	}
+
+}
@@ -0,0 +1,229 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Modo de armazenamento endereçado por conteúdo. Cada conteúdo distinto é gravado uma única vez em
+ * imagens/blobs/ab/&lt;sha-256&gt; e os nomes gerados viram hard links para o blob. A contagem de
+ * referências é a própria contagem de links do sistema de arquivos: o blob só é liberado quando o
+ * último nome que aponta para ele é excluído. Por isso o modo só sobe se as raízes e os blobs estão
+ * no mesmo sistema de arquivos e ele tem hard links e o atributo unix:nlink.
+ */
+@Service
+public class ArmazenamentoDeduplicadoService {
+
+	private final boolean habilitado;
+
+	private final Path raizBlobs;
+
+	@Autowired
+	private DurabilidadeArquivosService durabilidadeArquivosService;
+
+	public ArmazenamentoDeduplicadoService(
+			@Value("${shop.filestorage.cas.habilitado:false}") boolean habilitado,
+			@Value("${shop.filestorage.cas.diretorio:imagens/blobs}") String raizBlobs) {
+		this.habilitado = habilitado;
+		this.raizBlobs = Paths.get(raizBlobs);
+	}
+
+	public boolean isHabilitado() {
+		return habilitado;
+	}
+
+	/**
+	 * Recusa o modo deduplicado onde a contagem de links não serve de contagem de referências.
+	 */
+	@PostConstruct
+	public void verificarSuporte() {
+		if (!habilitado)
+			return;
+
+		try {
+			Files.createDirectories(raizBlobs);
+			FileStore sistemaArquivos = Files.getFileStore(raizBlobs);
+			if (!sistemaArquivos.supportsFileAttributeView("unix"))
+				throw new FileStorageException("O modo deduplicado exige o atributo unix:nlink, ausente em " + raizBlobs);
+			for (Path raiz : List.of(FileStorageProdutoService.raizProduto, FileStoragePerfilService.raizPerfil, FileStoragePedidoService.raizPedido)) {
+				Files.createDirectories(raiz);
+				if (!Files.getFileStore(raiz).equals(sistemaArquivos))
+					throw new FileStorageException("O modo deduplicado exige " + raiz + " no mesmo sistema de arquivos de " + raizBlobs);
+			}
+			verificarHardLink();
+		} catch (IOException | UnsupportedOperationException e) {
+			throw new FileStorageException("O modo deduplicado exige hard links em " + raizBlobs, e);
+		}
+	}
+
+	/**
+	 * Calcula o hash enquanto grava o conteúdo num arquivo temporário do diretório dos blobs (uma
+	 * única passada), publica o temporário como blob se o conteúdo ainda não existe e cria o destino
+	 * como link para o blob. Se o blob for liberado por uma exclusão entre a publicação e o link, ele
+	 * é publicado de novo a partir do temporário.
+	 * Lança FileAlreadyExistsException se o destino já existir.
+	 */
+	public void gravar(Path destino, InputStream conteudo) throws IOException {
+		Files.createDirectories(raizBlobs);
+		Path temporario = DurabilidadeArquivosService.criarTemporario(raizBlobs);
+		try {
+			MessageDigest digest = novoDigest();
+			try (OutputStream saida = new DigestOutputStream(Files.newOutputStream(temporario), digest)) {
+				conteudo.transferTo(saida);
+			}
+
+			Path blob = caminhoBlob(HexFormat.of().formatHex(digest.digest()));
+			boolean sincronizado = false;
+			while (true) {
+				if (!Files.exists(blob)) {
+					if (!sincronizado) {
+						durabilidadeArquivosService.sincronizar(temporario);
+						sincronizado = true;
+					}
+					publicarBlob(temporario, blob);
+				}
+				try {
+					Files.createLink(destino, blob);
+					break;
+				} catch (NoSuchFileException e) {
+					// o último nome do blob foi excluído depois da verificação; publica de novo
+				}
+			}
+			durabilidadeArquivosService.sincronizar(destino);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+	}
+
+	/**
+	 * Exclui o nome e, se ele era a última referência do blob, libera o blob também. A contagem
+	 * é conferida no blob depois da exclusão, e não no nome antes dela, para que exclusões
+	 * simultâneas de nomes do mesmo blob não o deixem para trás.
+	 * Devolve false se o arquivo não existia.
+	 */
+	public boolean deletar(Path arquivo) throws IOException {
+		if (!Files.exists(arquivo))
+			return false;
+
+		Path blob = blobDe(arquivo);
+		boolean deletado = Files.deleteIfExists(arquivo);
+		liberarSeSemReferencias(blob);
+
+		return deletado;
+	}
+
+	/**
+	 * Troca o conteúdo de um nome existente: o novo conteúdo é vinculado a um nome temporário,
+	 * renomeado por cima do antigo e o blob anterior é liberado se ninguém mais aponta para ele.
+	 */
+	public void substituir(Path destino, InputStream conteudo) throws IOException {
+		Path blobAnterior = blobDe(destino);
+
+		Path temporario = destino.resolveSibling(DurabilidadeArquivosService.PREFIXO_TEMPORARIO + UUID.randomUUID());
+		try {
+			gravar(temporario, conteudo);
+			durabilidadeArquivosService.publicar(temporario, destino);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+
+		liberarSeSemReferencias(blobAnterior);
+	}
+
+
+//
+// METODOS UTILITARIOS DE DEDUPLICACAO
+//
+
+	/**
+	 * Publica com um link para o temporário, que continua disponível caso o blob precise ser
+	 * publicado de novo, e sem sobrescrever um blob que outro upload publicou primeiro.
+	 */
+	private void publicarBlob(Path temporario, Path blob) throws IOException {
+		Files.createDirectories(blob.getParent());
+		try {
+			Files.createLink(blob, temporario);
+		} catch (FileAlreadyExistsException e) {
+			// outro upload com o mesmo conteúdo publicou o blob primeiro
+		}
+	}
+
+	private void verificarHardLink() throws IOException {
+		Path teste = DurabilidadeArquivosService.criarTemporario(raizBlobs);
+		Path link = teste.resolveSibling(teste.getFileName() + "-link");
+		try {
+			Files.createLink(link, teste);
+			if (contarLinks(teste) != 2)
+				throw new FileStorageException("O sistema de arquivos de " + raizBlobs + " não conta os hard links");
+		} finally {
+			Files.deleteIfExists(link);
+			Files.deleteIfExists(teste);
+		}
+	}
+
+	/**
+	 * Blob para o qual o nome aponta; null quando o nome não tem outro link (não veio do modo
+	 * deduplicado).
+	 */
+	private Path blobDe(Path arquivo) throws IOException {
+		return contarLinks(arquivo) > 1 ? caminhoBlob(calcularHash(arquivo)) : null;
+	}
+
+	/**
+	 * Só o próprio blob sobrou: ninguém mais aponta para ele. Duas exclusões podem chegar aqui
+	 * juntas e a segunda não encontra nada para apagar.
+	 */
+	private void liberarSeSemReferencias(Path blob) throws IOException {
+		try {
+			if (blob != null && contarLinks(blob) == 1)
+				Files.deleteIfExists(blob);
+		} catch (NoSuchFileException e) {
+			// já liberado por outra exclusão
+		}
+	}
+
+	private Path caminhoBlob(String hash) {
+		return raizBlobs.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private int contarLinks(Path arquivo) throws IOException {
+		return (Integer) Files.getAttribute(arquivo, "unix:nlink");
+	}
+
+	private String calcularHash(Path arquivo) throws IOException {
+		MessageDigest digest = novoDigest();
+		try (InputStream entrada = Files.newInputStream(arquivo);
+				OutputStream saida = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+			entrada.transferTo(saida);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private MessageDigest novoDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
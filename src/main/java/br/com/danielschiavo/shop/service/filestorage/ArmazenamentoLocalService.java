@@ -0,0 +1,309 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Backend padrão: os arquivos ficam no disco local, no layout definido pelo
+ * LayoutArmazenamentoService, e opcionalmente deduplicados pelo ArmazenamentoDeduplicadoService.
+ * Com os segmentos habilitados, arquivos pequenos de produto e perfil vão para o
+ * SegmentoArquivosPequenosService e não têm caminho próprio no disco.
+ */
+@Service
+@ConditionalOnProperty(name = "shop.filestorage.backend", havingValue = "local", matchIfMissing = true)
+public class ArmazenamentoLocalService implements ArmazenamentoBackend {
+
+	@Autowired
+	private LayoutArmazenamentoService layoutArmazenamentoService;
+
+	@Autowired
+	private ArmazenamentoDeduplicadoService armazenamentoDeduplicadoService;
+
+	@Autowired
+	private SegmentoArquivosPequenosService segmentoArquivosPequenosService;
+
+	@Autowired
+	private DurabilidadeArquivosService durabilidadeArquivosService;
+
+	// exclusões e substituições do mesmo nome passam pela mesma trava, para a verificação da
+	// substituição valer até a publicação
+	private final Object[] travas = IntStream.range(0, 64).mapToObj(i -> new Object()).toArray();
+
+	/**
+	 * Grava o conteúdo em blocos num arquivo temporário do mesmo diretório e só então o publica com o
+	 * nome final, de forma que o upload nunca fica inteiro na memória e ninguém lê um arquivo pela metade.
+	 * A publicação não substitui: se outro upload publicou o mesmo nome antes, lança
+	 * FileAlreadyExistsException. O fsync segue o modo do DurabilidadeArquivosService.
+	 */
+	@Override
+	public void gravar(Path raiz, String nomeArquivo, InputStream conteudo) throws IOException {
+		Path destino = layoutArmazenamentoService.caminhoParaGravar(raiz, nomeArquivo);
+		if (existe(raiz, nomeArquivo))
+			throw new FileAlreadyExistsException(destino.toString());
+
+		if (segmentoArquivosPequenosService.aceita(raiz)) {
+			int limite = segmentoArquivosPequenosService.getTamanhoMaximoArquivo();
+			byte[] inicio = conteudo.readNBytes(limite + 1);
+			if (inicio.length <= limite) {
+				segmentoArquivosPequenosService.gravar(raiz, nomeArquivo, inicio);
+				return;
+			}
+			conteudo = new SequenceInputStream(new ByteArrayInputStream(inicio), conteudo);
+		}
+		Files.createDirectories(destino.getParent());
+
+		if (armazenamentoDeduplicadoService.isHabilitado()) {
+			armazenamentoDeduplicadoService.gravar(destino, conteudo);
+			return;
+		}
+
+		Path temporario = DurabilidadeArquivosService.criarTemporario(destino.getParent());
+		try {
+			try (OutputStream saida = Files.newOutputStream(temporario)) {
+				conteudo.transferTo(saida);
+			}
+			durabilidadeArquivosService.publicarNovo(temporario, destino);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+	}
+
+	@Override
+	public InputStream abrir(Path raiz, String nomeArquivo) throws IOException {
+		ByteBuffer segmento = segmentoArquivosPequenosService.ler(raiz, nomeArquivo);
+		if (segmento != null)
+			return new EntradaByteBuffer(segmento);
+		return Files.newInputStream(localizarObrigatorio(raiz, nomeArquivo));
+	}
+
+	@Override
+	public InputStream abrirIntervalo(Path raiz, String nomeArquivo, long inicio, long quantidade) throws IOException {
+		ByteBuffer segmento = segmentoArquivosPequenosService.ler(raiz, nomeArquivo);
+		if (segmento != null) {
+			int deslocamento = (int) Math.min(inicio, segmento.remaining());
+			int tamanho = (int) Math.min(quantidade, segmento.remaining() - deslocamento);
+			return new EntradaByteBuffer(segmento.slice(deslocamento, tamanho));
+		}
+		FileChannel canal = FileChannel.open(localizarObrigatorio(raiz, nomeArquivo), StandardOpenOption.READ);
+		canal.position(inicio);
+		InputStream entrada = Channels.newInputStream(canal);
+		return new InputStream() {
+			private long restante = quantidade;
+
+			@Override
+			public int read() throws IOException {
+				if (restante <= 0)
+					return -1;
+				int lido = entrada.read();
+				if (lido >= 0)
+					restante--;
+				return lido;
+			}
+
+			@Override
+			public int read(byte[] destino, int deslocamento, int tamanho) throws IOException {
+				if (restante <= 0)
+					return -1;
+				int lidos = entrada.read(destino, deslocamento, (int) Math.min(tamanho, restante));
+				if (lidos > 0)
+					restante -= lidos;
+				return lidos;
+			}
+
+			@Override
+			public void close() throws IOException {
+				canal.close();
+			}
+		};
+	}
+
+	@Override
+	public MetadadosArquivo metadados(Path raiz, String nomeArquivo) throws IOException {
+		MetadadosArquivo segmento = segmentoArquivosPequenosService.metadados(raiz, nomeArquivo);
+		if (segmento != null)
+			return segmento;
+		Path arquivo = layoutArmazenamentoService.localizar(raiz, nomeArquivo);
+		if (arquivo == null)
+			return null;
+		try {
+			BasicFileAttributes atributos = Files.readAttributes(arquivo, BasicFileAttributes.class);
+			return new MetadadosArquivo(atributos.size(), atributos.lastModifiedTime().toMillis());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Se a migração de layout mover o arquivo entre a localização e a exclusão, procura de novo.
+	 */
+	@Override
+	public boolean deletar(Path raiz, String nomeArquivo) throws IOException {
+		if (segmentoArquivosPequenosService.deletar(raiz, nomeArquivo))
+			return true;
+		synchronized (trava(raiz, nomeArquivo)) {
+			for (int tentativa = 0; tentativa < 2; tentativa++) {
+				Path arquivo = layoutArmazenamentoService.localizar(raiz, nomeArquivo);
+				if (arquivo == null)
+					return false;
+				if (armazenamentoDeduplicadoService.isHabilitado() ? armazenamentoDeduplicadoService.deletar(arquivo) : Files.deleteIfExists(arquivo))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Cria o destino como hard link da origem, sem ler nem regravar os bytes. Quando as raízes estão
+	 * em volumes diferentes (ou o sistema de arquivos não tem links) faz uma cópia. Origem guardada
+	 * em segmento é regravada no destino.
+	 */
+	@Override
+	public void copiar(Path raizOrigem, String nomeOrigem, Path raizDestino, String nomeDestino) throws IOException {
+		ByteBuffer segmento = segmentoArquivosPequenosService.ler(raizOrigem, nomeOrigem);
+		if (segmento != null) {
+			gravar(raizDestino, nomeDestino, new EntradaByteBuffer(segmento));
+			return;
+		}
+		Path origem = localizarObrigatorio(raizOrigem, nomeOrigem);
+		Path destino = layoutArmazenamentoService.caminhoParaGravar(raizDestino, nomeDestino);
+		Files.createDirectories(destino.getParent());
+		try {
+			Files.createLink(destino, origem);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			Files.copy(origem, destino);
+		}
+		durabilidadeArquivosService.sincronizar(destino);
+	}
+
+	/**
+	 * Percorre a raiz plana e os fragmentos ab/cd, ignorando temporários, e junta os arquivos guardados em segmentos.
+	 */
+	@Override
+	public List<String> listar(Path raiz) throws IOException {
+		List<String> nomes = new ArrayList<>(segmentoArquivosPequenosService.listar(raiz));
+		if (!Files.isDirectory(raiz))
+			return nomes;
+		try (Stream<Path> arquivos = Files.walk(raiz, 3)) {
+			arquivos.filter(Files::isRegularFile)
+					.map(arquivo -> arquivo.getFileName().toString())
+					.filter(nome -> !nome.startsWith(".tmp-"))
+					.forEach(nomes::add);
+		}
+		return nomes;
+	}
+
+	@Override
+	public boolean existe(Path raiz, String nomeArquivo) throws IOException {
+		return segmentoArquivosPequenosService.metadados(raiz, nomeArquivo) != null
+				|| layoutArmazenamentoService.localizar(raiz, nomeArquivo) != null;
+	}
+
+	@Override
+	public boolean isLocal() {
+		return true;
+	}
+
+	@Override
+	public Optional<Path> caminhoLocal(Path raiz, String nomeArquivo) {
+		return Optional.ofNullable(layoutArmazenamentoService.localizar(raiz, nomeArquivo));
+	}
+
+	/**
+	 * Troca o conteúdo de um arquivo existente pelo de um temporário do mesmo volume, com uma
+	 * renomeação atômica: quem está lendo continua com o conteúdo antigo até fechar o arquivo.
+	 * A comparação com esperado e a renomeação acontecem sob a trava do nome, então uma exclusão
+	 * ou outra substituição no meio não é desfeita.
+	 */
+	@Override
+	public boolean substituir(Path raiz, String nomeArquivo, Path novoConteudo, MetadadosArquivo esperado) throws IOException {
+		synchronized (trava(raiz, nomeArquivo)) {
+			Path destino = layoutArmazenamentoService.localizar(raiz, nomeArquivo);
+			if (destino == null)
+				return false;
+			try {
+				BasicFileAttributes atributos = Files.readAttributes(destino, BasicFileAttributes.class);
+				if (atributos.size() != esperado.tamanho() || atributos.lastModifiedTime().toMillis() != esperado.ultimaModificacao())
+					return false;
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			if (armazenamentoDeduplicadoService.isHabilitado()) {
+				try (InputStream conteudo = Files.newInputStream(novoConteudo)) {
+					armazenamentoDeduplicadoService.substituir(destino, conteudo);
+				}
+			} else {
+				durabilidadeArquivosService.publicar(novoConteudo, destino);
+			}
+			return true;
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE ARMAZENAMENTO LOCAL
+//
+
+	private Object trava(Path raiz, String nomeArquivo) {
+		return travas[Math.floorMod(raiz.resolve(nomeArquivo).hashCode(), travas.length)];
+	}
+
+	private Path localizarObrigatorio(Path raiz, String nomeArquivo) throws NoSuchFileException {
+		Path arquivo = layoutArmazenamentoService.localizar(raiz, nomeArquivo);
+		if (arquivo == null)
+			throw new NoSuchFileException(raiz.resolve(nomeArquivo).toString());
+		return arquivo;
+	}
+
+	private static class EntradaByteBuffer extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		EntradaByteBuffer(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] destino, int deslocamento, int tamanho) {
+			if (!buffer.hasRemaining())
+				return -1;
+			int lidos = Math.min(tamanho, buffer.remaining());
+			buffer.get(destino, deslocamento, lidos);
+			return lidos;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,346 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Backend em qualquer armazenamento compatível com S3 (AWS, MinIO, Ceph...). Cada raiz vira um
+ * prefixo de chave no bucket, então imagens/produto/x.jpeg continua se chamando assim.
+ * Arquivos maiores que uma parte sobem por multipart upload com várias partes enviadas ao mesmo
+ * tempo, e leituras de intervalo viram GETs com cabeçalho Range.
+ */
+@Service
+@ConditionalOnProperty(name = "shop.filestorage.backend", havingValue = "s3")
+public class ArmazenamentoS3Service implements ArmazenamentoBackend {
+
+	private static final int TAMANHO_MINIMO_PARTE = 5 * 1024 * 1024;
+
+	private final S3Client s3;
+
+	private final String bucket;
+
+	private final int tamanhoParte;
+
+	private final int paralelismoUpload;
+
+	private final ExecutorService executor;
+
+	@Autowired
+	public ArmazenamentoS3Service(
+			@Value("${shop.filestorage.s3.bucket}") String bucket,
+			@Value("${shop.filestorage.s3.endpoint:}") String endpoint,
+			@Value("${shop.filestorage.s3.regiao:us-east-1}") String regiao,
+			@Value("${shop.filestorage.s3.chave-acesso:}") String chaveAcesso,
+			@Value("${shop.filestorage.s3.chave-secreta:}") String chaveSecreta,
+			@Value("${shop.filestorage.s3.tamanho-parte:8388608}") int tamanhoParte,
+			@Value("${shop.filestorage.s3.paralelismo-upload:4}") int paralelismoUpload) {
+		this(criarCliente(endpoint, regiao, chaveAcesso, chaveSecreta), bucket, tamanhoParte, paralelismoUpload);
+	}
+
+	ArmazenamentoS3Service(S3Client s3, String bucket, int tamanhoParte, int paralelismoUpload) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.tamanhoParte = Math.max(tamanhoParte, TAMANHO_MINIMO_PARTE);
+		this.paralelismoUpload = Math.max(1, paralelismoUpload);
+		AtomicInteger contador = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(this.paralelismoUpload, tarefa -> {
+			Thread thread = new Thread(tarefa, "filestorage-s3-upload-" + contador.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Conteúdo menor que uma parte vai num único PUT. Acima disso as partes são lidas em sequência
+	 * e enviadas em paralelo; no máximo paralelismo-upload partes ficam em memória ao mesmo tempo.
+	 * O PUT (ou o CompleteMultipartUpload) vai com If-None-Match: *, então é o próprio S3 que recusa
+	 * um nome que já existe, inclusive quando dois uploads do mesmo nome correm juntos.
+	 */
+	@Override
+	public void gravar(Path raiz, String nomeArquivo, InputStream conteudo) throws IOException {
+		gravarObjeto(chave(raiz, nomeArquivo), nomeArquivo, conteudo, HttpHeaders.IF_NONE_MATCH, "*");
+	}
+
+	/**
+	 * Regrava o objeto só se ele ainda tem o tamanho e a modificação esperados, condicionado ao ETag
+	 * lido na mesma consulta (If-Match): se ele foi excluído ou trocado no meio, o S3 recusa e nada é
+	 * sobrescrito.
+	 */
+	@Override
+	public boolean substituir(Path raiz, String nomeArquivo, Path novoConteudo, MetadadosArquivo esperado) throws IOException {
+		String chave = chave(raiz, nomeArquivo);
+		HeadObjectResponse atual = consultar(chave);
+		if (atual == null || atual.contentLength() != esperado.tamanho() || atual.lastModified().toEpochMilli() != esperado.ultimaModificacao())
+			return false;
+		try (InputStream conteudo = Files.newInputStream(novoConteudo)) {
+			gravarObjeto(chave, nomeArquivo, conteudo, HttpHeaders.IF_MATCH, atual.eTag());
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public InputStream abrir(Path raiz, String nomeArquivo) throws IOException {
+		String chave = chave(raiz, nomeArquivo);
+		try {
+			return s3.getObject(r -> r.bucket(bucket).key(chave));
+		} catch (NoSuchKeyException e) {
+			throw new NoSuchFileException(chave);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao ler " + chave + " do S3", e);
+		}
+	}
+
+	@Override
+	public InputStream abrirIntervalo(Path raiz, String nomeArquivo, long inicio, long quantidade) throws IOException {
+		if (quantidade <= 0)
+			return new ByteArrayInputStream(new byte[0]);
+
+		String chave = chave(raiz, nomeArquivo);
+		try {
+			return s3.getObject(r -> r.bucket(bucket).key(chave).range("bytes=" + inicio + "-" + (inicio + quantidade - 1)));
+		} catch (NoSuchKeyException e) {
+			throw new NoSuchFileException(chave);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao ler " + chave + " do S3", e);
+		}
+	}
+
+	@Override
+	public MetadadosArquivo metadados(Path raiz, String nomeArquivo) throws IOException {
+		HeadObjectResponse resposta = consultar(chave(raiz, nomeArquivo));
+		return resposta == null ? null : new MetadadosArquivo(resposta.contentLength(), resposta.lastModified().toEpochMilli());
+	}
+
+	/**
+	 * O DeleteObject do S3 responde sucesso mesmo para chave inexistente, então a exclusão vai
+	 * condicionada ao ETag consultado (If-Match): se outra requisição excluiu o objeto no meio, esta
+	 * responde que ele não existia.
+	 */
+	@Override
+	public boolean deletar(Path raiz, String nomeArquivo) throws IOException {
+		String chave = chave(raiz, nomeArquivo);
+		String etag = etag(chave);
+		if (etag == null)
+			return false;
+
+		try {
+			s3.deleteObject(r -> r.bucket(bucket).key(chave).overrideConfiguration(o -> o.putHeader(HttpHeaders.IF_MATCH, etag)));
+			return true;
+		} catch (S3Exception e) {
+			if (e.statusCode() == 404 || e.statusCode() == 412)
+				return false;
+			throw new IOException("Falha ao excluir " + chave + " do S3", e);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao excluir " + chave + " do S3", e);
+		}
+	}
+
+	/**
+	 * Cópia feita pelo próprio S3 (CopyObject), sem os bytes passarem pela aplicação. O destino vai
+	 * com If-None-Match: * e a origem inexistente volta como 404 da própria cópia, sem consultas antes.
+	 */
+	@Override
+	public void copiar(Path raizOrigem, String nomeOrigem, Path raizDestino, String nomeDestino) throws IOException {
+		String origem = chave(raizOrigem, nomeOrigem);
+		String destino = chave(raizDestino, nomeDestino);
+		try {
+			s3.copyObject(r -> r.sourceBucket(bucket).sourceKey(origem).destinationBucket(bucket).destinationKey(destino)
+					.overrideConfiguration(o -> o.putHeader(HttpHeaders.IF_NONE_MATCH, "*")));
+		} catch (S3Exception e) {
+			if (e.statusCode() == 404)
+				throw new NoSuchFileException(origem);
+			if (condicaoRecusada(e))
+				throw new FileAlreadyExistsException(destino);
+			throw new IOException("Falha ao copiar " + origem + " para " + destino + " no S3", e);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao copiar " + origem + " para " + destino + " no S3", e);
+		}
+	}
+
+	@Override
+	public List<String> listar(Path raiz) throws IOException {
+		String prefixo = prefixo(raiz);
+		try {
+			List<String> nomes = new ArrayList<>();
+			for (S3Object objeto : s3.listObjectsV2Paginator(r -> r.bucket(bucket).prefix(prefixo)).contents()) {
+				String nome = objeto.key().substring(prefixo.length());
+				if (nome.indexOf('/') < 0)
+					nomes.add(nome);
+			}
+			return nomes;
+		} catch (SdkException e) {
+			throw new IOException("Falha ao listar " + prefixo + " no S3", e);
+		}
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		executor.shutdown();
+		s3.close();
+	}
+
+
+//
+// METODOS UTILITARIOS DE S3
+//
+
+	/**
+	 * Grava com a condição informada (If-None-Match ou If-Match); a condição recusada vira
+	 * FileAlreadyExistsException.
+	 */
+	private void gravarObjeto(String chave, String nomeArquivo, InputStream conteudo, String cabecalhoCondicao, String valorCondicao) throws IOException {
+		String tipoConteudo = MediaTypeFactory.getMediaType(nomeArquivo).orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+		byte[] primeiraParte = conteudo.readNBytes(tamanhoParte);
+		try {
+			if (primeiraParte.length < tamanhoParte) {
+				s3.putObject(r -> r.bucket(bucket).key(chave).contentType(tipoConteudo)
+						.overrideConfiguration(o -> o.putHeader(cabecalhoCondicao, valorCondicao)), RequestBody.fromBytes(primeiraParte));
+				return;
+			}
+			gravarEmPartes(chave, tipoConteudo, primeiraParte, conteudo, cabecalhoCondicao, valorCondicao);
+		} catch (S3Exception e) {
+			if (condicaoRecusada(e))
+				throw new FileAlreadyExistsException(chave);
+			throw new IOException("Falha ao gravar " + chave + " no S3", e);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao gravar " + chave + " no S3", e);
+		}
+	}
+
+	private void gravarEmPartes(String chave, String tipoConteudo, byte[] primeiraParte, InputStream conteudo,
+			String cabecalhoCondicao, String valorCondicao) throws IOException {
+		String uploadId = s3.createMultipartUpload(r -> r.bucket(bucket).key(chave).contentType(tipoConteudo)).uploadId();
+		Semaphore vagas = new Semaphore(paralelismoUpload);
+		List<CompletableFuture<CompletedPart>> partes = new ArrayList<>();
+		try {
+			byte[] parte = primeiraParte;
+			int numero = 1;
+			while (parte.length > 0) {
+				vagas.acquireUninterruptibly();
+				byte[] bytes = parte;
+				int numeroParte = numero;
+				partes.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						String etag = s3.uploadPart(r -> r.bucket(bucket).key(chave).uploadId(uploadId).partNumber(numeroParte),
+								RequestBody.fromBytes(bytes)).eTag();
+						return CompletedPart.builder().partNumber(numeroParte).eTag(etag).build();
+					} finally {
+						vagas.release();
+					}
+				}, executor));
+				parte = conteudo.readNBytes(tamanhoParte);
+				numero++;
+			}
+
+			List<CompletedPart> concluidas = new ArrayList<>();
+			for (CompletableFuture<CompletedPart> futura : partes)
+				concluidas.add(futura.join());
+			s3.completeMultipartUpload(r -> r.bucket(bucket).key(chave).uploadId(uploadId)
+					.multipartUpload(CompletedMultipartUpload.builder().parts(concluidas).build())
+					.overrideConfiguration(o -> o.putHeader(cabecalhoCondicao, valorCondicao)));
+		} catch (IOException | SdkException | CompletionException e) {
+			partes.forEach(futura -> futura.cancel(false));
+			s3.abortMultipartUpload(r -> r.bucket(bucket).key(chave).uploadId(uploadId));
+			if (e instanceof IOException io)
+				throw io;
+			if (e instanceof S3Exception s3Exception && condicaoRecusada(s3Exception))
+				throw s3Exception;
+			throw new IOException("Falha no upload em partes de " + chave, e instanceof CompletionException ? e.getCause() : e);
+		}
+	}
+
+	/**
+	 * ETag atual do objeto, ou null quando ele não existe.
+	 */
+	private String etag(String chave) throws IOException {
+		HeadObjectResponse resposta = consultar(chave);
+		return resposta == null ? null : resposta.eTag();
+	}
+
+	/**
+	 * HEAD do objeto, ou null quando ele não existe.
+	 */
+	private HeadObjectResponse consultar(String chave) throws IOException {
+		try {
+			return s3.headObject(r -> r.bucket(bucket).key(chave));
+		} catch (NoSuchKeyException e) {
+			return null;
+		} catch (S3Exception e) {
+			if (e.statusCode() == 404)
+				return null;
+			throw new IOException("Falha ao consultar " + chave + " no S3", e);
+		} catch (SdkException e) {
+			throw new IOException("Falha ao consultar " + chave + " no S3", e);
+		}
+	}
+
+	/**
+	 * 412 quando a condição não vale; 409 quando outra gravação condicional da mesma chave terminou
+	 * no meio desta.
+	 */
+	private static boolean condicaoRecusada(S3Exception e) {
+		return e.statusCode() == 412 || e.statusCode() == 409;
+	}
+
+	private String chave(Path raiz, String nomeArquivo) throws NoSuchFileException {
+		if (nomeArquivo.isEmpty() || nomeArquivo.indexOf('/') >= 0 || nomeArquivo.indexOf('\\') >= 0 || nomeArquivo.equals(".."))
+			throw new NoSuchFileException(nomeArquivo);
+		return prefixo(raiz) + nomeArquivo;
+	}
+
+	private String prefixo(Path raiz) {
+		return raiz.normalize().toString().replace('\\', '/') + "/";
+	}
+
+	private static S3Client criarCliente(String endpoint, String regiao, String chaveAcesso, String chaveSecreta) {
+		AwsCredentialsProvider credenciais = chaveAcesso.isBlank()
+				? DefaultCredentialsProvider.create()
+				: StaticCredentialsProvider.create(AwsBasicCredentials.create(chaveAcesso, chaveSecreta));
+		S3ClientBuilder builder = S3Client.builder().region(Region.of(regiao)).credentialsProvider(credenciais);
+		if (!endpoint.isBlank())
+			builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+		return builder.build();
+	}
+
+}
@@ -0,0 +1,9 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record ArquivoListadoDTO(
+		String nomeArquivo,
+		long tamanho,
+		long ultimaModificacao
+		) {
+
+}
@@ -0,0 +1,127 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Cache em memória dos arquivos mais lidos, um por raiz de armazenamento. Cada cache é limitado
+ * pela soma dos bytes guardados e usa a política W-TinyLFU do Caffeine, que só admite um arquivo
+ * novo quando ele é mais frequente que a vítima que seria despejada.
+ * Cada invalidação incrementa uma versão (por faixa de nomes); uma leitura só fica no cache se a
+ * versão não mudou enquanto ela lia, para que bytes lidos antes de uma substituição não voltem
+ * ao cache depois da invalidação.
+ */
+@Service
+public class CacheArquivosService {
+
+	private static final int FAIXAS_VERSAO = 1024;
+
+	private final Map<Path, Cache<String, byte[]>> caches = new LinkedHashMap<>();
+
+	private final AtomicLongArray versoes = new AtomicLongArray(FAIXAS_VERSAO);
+
+	private final long tamanhoMaximoArquivo;
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	public CacheArquivosService(
+			@Value("${shop.filestorage.cache.produto.bytes:67108864}") long orcamentoProduto,
+			@Value("${shop.filestorage.cache.perfil.bytes:16777216}") long orcamentoPerfil,
+			@Value("${shop.filestorage.cache.pedido.bytes:16777216}") long orcamentoPedido,
+			@Value("${shop.filestorage.cache.tamanho-maximo-arquivo:1048576}") long tamanhoMaximoArquivo) {
+		this.tamanhoMaximoArquivo = tamanhoMaximoArquivo;
+		criarCache(FileStorageProdutoService.raizProduto, orcamentoProduto);
+		criarCache(FileStoragePerfilService.raizPerfil, orcamentoPerfil);
+		criarCache(FileStoragePedidoService.raizPedido, orcamentoPedido);
+	}
+
+	public long getTamanhoMaximoArquivo() {
+		return tamanhoMaximoArquivo;
+	}
+
+	public byte[] lerBytes(Path caminho, String nomeArquivo) throws IOException {
+		Cache<String, byte[]> cache = caches.get(caminho);
+		if (cache == null)
+			return ler(caminho, nomeArquivo);
+
+		byte[] bytes = cache.getIfPresent(nomeArquivo);
+		if (bytes != null)
+			return bytes;
+
+		int faixa = faixaVersao(caminho, nomeArquivo);
+		long versao = versoes.get(faixa);
+		bytes = ler(caminho, nomeArquivo);
+		if (bytes.length <= tamanhoMaximoArquivo) {
+			cache.put(nomeArquivo, bytes);
+			if (versoes.get(faixa) != versao || !armazenamentoBackend.existe(caminho, nomeArquivo))
+				cache.invalidate(nomeArquivo);
+		}
+		return bytes;
+	}
+
+	public byte[] buscar(Path caminho, String nomeArquivo) {
+		Cache<String, byte[]> cache = caches.get(caminho);
+		return cache == null ? null : cache.getIfPresent(nomeArquivo);
+	}
+
+	public void invalidar(Path caminho, String nomeArquivo) {
+		Cache<String, byte[]> cache = caches.get(caminho);
+		if (cache == null)
+			return;
+		versoes.incrementAndGet(faixaVersao(caminho, nomeArquivo));
+		cache.invalidate(nomeArquivo);
+	}
+
+	public Map<String, EstatisticasCacheDTO> estatisticas() {
+		Map<String, EstatisticasCacheDTO> estatisticas = new LinkedHashMap<>();
+		caches.forEach((raiz, cache) -> {
+			CacheStats stats = cache.stats();
+			long bytesUsados = cache.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+			long orcamento = cache.policy().eviction().map(e -> e.getMaximum()).orElse(0L);
+			estatisticas.put(raiz.toString(), new EstatisticasCacheDTO(stats.hitCount(), stats.missCount(), stats.hitRate(),
+					stats.evictionCount(), stats.evictionWeight(), cache.estimatedSize(), bytesUsados, orcamento));
+		});
+		return estatisticas;
+	}
+
+
+//
+// METODOS UTILITARIOS DE CACHE
+//
+
+	private static int faixaVersao(Path caminho, String nomeArquivo) {
+		return Math.floorMod(31 * caminho.hashCode() + nomeArquivo.hashCode(), FAIXAS_VERSAO);
+	}
+
+	private byte[] ler(Path caminho, String nomeArquivo) throws IOException {
+		try (InputStream entrada = armazenamentoBackend.abrir(caminho, nomeArquivo)) {
+			return entrada.readAllBytes();
+		}
+	}
+
+	private void criarCache(Path raiz, long orcamentoBytes) {
+		if (orcamentoBytes <= 0)
+			return;
+
+		Cache<String, byte[]> cache = Caffeine.newBuilder()
+				.maximumWeight(orcamentoBytes)
+				.weigher((String nome, byte[] bytes) -> bytes.length)
+				.recordStats()
+				.build();
+		caches.put(raiz, cache);
+	}
+
+}
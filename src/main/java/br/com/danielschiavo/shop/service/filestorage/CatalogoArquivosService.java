@@ -0,0 +1,607 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Catálogo persistente dos arquivos guardados (raiz e nome para tamanho, última modificação,
+ * formato e CRC-32), numa tabela hash de endereçamento aberto com slots de tamanho fixo num arquivo
+ * mapeado em memória. Carregar é só mapear o arquivo e ler o cabeçalho, então a inicialização não
+ * depende da quantidade de arquivos; gravações e exclusões atualizam o slot do arquivo no lugar.
+ * O catálogo é derivado do armazenamento: quando falta, quando a aplicação não foi encerrada
+ * direito ou quando alguém mexe nos diretórios por fora, a verificação de consistência o compara
+ * com o backend e corrige. Enquanto ela roda, as consultas voltam a ir ao backend.
+ */
+@Service
+public class CatalogoArquivosService {
+
+	private static final int MAGICO = 0x43415441;
+
+	// versão 2: o formato passou a ser gravado como código fixo em vez do ordinal do enum
+	private static final int VERSAO = 2;
+
+	private static final String NOME_ARQUIVO = "catalogo.dat";
+
+	private static final int TAMANHO_CABECALHO = 64;
+
+	private static final int TAMANHO_SLOT = 128;
+
+	// estado(1) raiz(1) tamanho do nome(2) tamanho(8) modificação(8) código do formato(1) crc(4)
+	private static final int CAMPOS_SLOT = 25;
+
+	static final int NOME_MAXIMO = TAMANHO_SLOT - CAMPOS_SLOT;
+
+	private static final byte LIVRE = 0;
+
+	private static final byte USADO = 1;
+
+	private static final byte REMOVIDO = 2;
+
+	private static final double CARGA_MAXIMA = 0.7;
+
+	// o mapeamento de um único buffer vai até 2 GiB
+	private static final int CAPACIDADE_MAXIMA = 1 << 23;
+
+	private static final int POSICAO_CAPACIDADE = 8;
+	private static final int POSICAO_QUANTIDADE = 12;
+	private static final int POSICAO_REMOVIDOS = 16;
+	private static final int POSICAO_ABERTO = 20;
+
+	private final boolean habilitado;
+
+	private final boolean verificarNaInicializacao;
+
+	private final Path diretorio;
+
+	private final int capacidadeInicial;
+
+	private List<Path> raizes = List.of(FileStorageProdutoService.raizProduto, FileStoragePerfilService.raizPerfil,
+			FileStoragePedidoService.raizPedido);
+
+	private final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
+
+	private FileChannel canal;
+
+	private MappedByteBuffer mapa;
+
+	private int capacidade;
+
+	private int quantidade;
+
+	private int removidos;
+
+	private volatile boolean pronto;
+
+	// alguma entrada não coube: o catálogo está incompleto e não pode responder consultas
+	private volatile boolean cheio;
+
+	private int capacidadeMaxima = CAPACIDADE_MAXIMA;
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	public CatalogoArquivosService(
+			@Value("${shop.filestorage.catalogo.habilitado:false}") boolean habilitado,
+			@Value("${shop.filestorage.catalogo.diretorio:imagens/catalogo}") String diretorio,
+			@Value("${shop.filestorage.catalogo.capacidade-inicial:65536}") int capacidadeInicial,
+			@Value("${shop.filestorage.catalogo.verificar-na-inicializacao:false}") boolean verificarNaInicializacao) {
+		this.habilitado = habilitado;
+		this.verificarNaInicializacao = verificarNaInicializacao;
+		this.diretorio = Paths.get(diretorio);
+		this.capacidadeInicial = Integer.highestOneBit(Math.max(16, capacidadeInicial) * 2 - 1);
+		if (habilitado && this.capacidadeInicial > CAPACIDADE_MAXIMA)
+			throw new FileStorageException("A capacidade do catálogo de arquivos vai até " + CAPACIDADE_MAXIMA + " entradas");
+	}
+
+	/**
+	 * Mapeia o catálogo existente. Se ele não existe, é de outra versão ou ficou aberto (a
+	 * aplicação caiu), o catálogo não responde consultas até passar pela verificação com correção.
+	 * A verificação consulta o backend arquivo por arquivo (um HEAD por arquivo no S3), então só
+	 * roda sozinha na inicialização com verificar-na-inicializacao; sem isso ela fica para o
+	 * endpoint de verificação do catálogo.
+	 */
+	@PostConstruct
+	public void carregar() {
+		if (!habilitado)
+			return;
+		Path arquivo = diretorio.resolve(NOME_ARQUIVO);
+		try {
+			Files.createDirectories(diretorio);
+			boolean valido = Files.exists(arquivo) && abrir(arquivo);
+			if (!valido)
+				criar(arquivo, capacidadeInicial);
+			boolean ficouAberto = mapa.get(POSICAO_ABERTO) == 1;
+			mapa.put(POSICAO_ABERTO, (byte) 1);
+			if (valido && !ficouAberto)
+				pronto = true;
+			else if (verificarNaInicializacao)
+				verificarEmSegundoPlano();
+			else
+				System.out.println("O catálogo de arquivos precisa ser verificado com corrigir=true antes de responder consultas");
+		} catch (IOException e) {
+			throw new FileStorageException("Falha ao carregar o catálogo de arquivos.", e);
+		}
+	}
+
+	/**
+	 * Indica se o catálogo está completo e pode responder no lugar do armazenamento.
+	 */
+	public boolean isPronto() {
+		return pronto;
+	}
+
+	/**
+	 * Recusa, com o catálogo habilitado, nomes que não cabem num slot, antes de gravar: eles
+	 * nunca apareceriam no catálogo. Os nomes gerados pela aplicação sempre cabem.
+	 */
+	public void validarNome(String nomeArquivo) {
+		int tamanho = nomeArquivo.getBytes(StandardCharsets.UTF_8).length;
+		if (habilitado && tamanho > NOME_MAXIMO)
+			throw new FileStorageException("Não foi possivel salvar o arquivo " + nomeArquivo + ", o nome tem " + tamanho + " bytes; o máximo é " + NOME_MAXIMO);
+	}
+
+	public EntradaCatalogoDTO buscar(Path raiz, String nomeArquivo) {
+		int codigoRaiz = codigoRaiz(raiz);
+		byte[] nome = nomeArquivo.getBytes(StandardCharsets.UTF_8);
+		if (codigoRaiz < 0 || nome.length > NOME_MAXIMO)
+			return null;
+		trava.readLock().lock();
+		try {
+			if (mapa == null)
+				return null;
+			int slot = localizar(mapa, capacidade, (byte) codigoRaiz, nome);
+			return slot < 0 ? null : ler(slot);
+		} finally {
+			trava.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Registra um arquivo recém gravado. O CRC vem do stream do upload e o formato dos primeiros
+	 * bytes dele; só tamanho e modificação são consultados no backend.
+	 */
+	public void registrar(Path raiz, String nomeArquivo, byte[] cabecalho, long crc32) {
+		if (mapa == null || codigoRaiz(raiz) < 0)
+			return;
+		try {
+			MetadadosArquivo metadados = armazenamentoBackend.metadados(raiz, nomeArquivo);
+			if (metadados != null)
+				gravar(raiz, nomeArquivo, metadados, cabecalho == null ? null : FormatoArquivo.detectar(cabecalho, cabecalho.length), crc32);
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Registra um arquivo cujo conteúdo não passou pela aplicação (substituído, copiado ou
+	 * encontrado na verificação), lendo-o do backend para calcular o CRC.
+	 */
+	public void registrarLendoConteudo(Path raiz, String nomeArquivo) {
+		if (mapa == null || codigoRaiz(raiz) < 0)
+			return;
+		try {
+			MetadadosArquivo metadados = armazenamentoBackend.metadados(raiz, nomeArquivo);
+			if (metadados == null)
+				return;
+			FormatoArquivo formato;
+			CRC32 crc = new CRC32();
+			try (CheckedInputStream conteudo = new CheckedInputStream(armazenamentoBackend.abrir(raiz, nomeArquivo), crc)) {
+				byte[] cabecalho = conteudo.readNBytes(FormatoArquivo.TAMANHO_CABECALHO);
+				formato = FormatoArquivo.detectar(cabecalho, cabecalho.length);
+				conteudo.transferTo(OutputStream.nullOutputStream());
+			}
+			gravar(raiz, nomeArquivo, metadados, formato, crc.getValue());
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Registra o destino de uma cópia com o formato e o CRC da origem, sem reler o conteúdo.
+	 */
+	public void copiar(Path raizOrigem, String nomeOrigem, Path raizDestino, String nomeDestino) {
+		EntradaCatalogoDTO origem = buscar(raizOrigem, nomeOrigem);
+		if (origem == null) {
+			registrarLendoConteudo(raizDestino, nomeDestino);
+			return;
+		}
+		if (mapa == null || codigoRaiz(raizDestino) < 0)
+			return;
+		try {
+			MetadadosArquivo metadados = armazenamentoBackend.metadados(raizDestino, nomeDestino);
+			if (metadados != null)
+				gravar(raizDestino, nomeDestino, metadados, origem.formato(), origem.crc32());
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void remover(Path raiz, String nomeArquivo) {
+		int codigoRaiz = codigoRaiz(raiz);
+		byte[] nome = nomeArquivo.getBytes(StandardCharsets.UTF_8);
+		if (codigoRaiz < 0 || nome.length > NOME_MAXIMO)
+			return;
+		trava.writeLock().lock();
+		try {
+			if (mapa == null)
+				return;
+			int slot = localizar(mapa, capacidade, (byte) codigoRaiz, nome);
+			if (slot < 0)
+				return;
+			mapa.put(posicaoSlot(slot), REMOVIDO);
+			quantidade--;
+			removidos++;
+			mapa.putInt(POSICAO_QUANTIDADE, quantidade);
+			mapa.putInt(POSICAO_REMOVIDOS, removidos);
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Todas as entradas de uma raiz, na ordem dos slots; percorre a tabela inteira.
+	 */
+	public List<EntradaCatalogoDTO> listar(Path raiz) {
+		int codigoRaiz = codigoRaiz(raiz);
+		List<EntradaCatalogoDTO> entradas = new ArrayList<>();
+		trava.readLock().lock();
+		try {
+			for (int slot = 0; codigoRaiz >= 0 && mapa != null && slot < capacidade; slot++) {
+				int posicao = posicaoSlot(slot);
+				if (mapa.get(posicao) == USADO && mapa.get(posicao + 1) == codigoRaiz)
+					entradas.add(ler(slot));
+			}
+		} finally {
+			trava.readLock().unlock();
+		}
+		return entradas;
+	}
+
+	/**
+	 * Compara o catálogo com o que o backend lista em cada raiz: arquivos sem entrada, entradas sem
+	 * arquivo e entradas com tamanho ou modificação diferentes. Com corrigir, acerta o catálogo e o
+	 * marca como pronto, a não ser que alguma entrada não tenha cabido nele.
+	 */
+	public ConsistenciaCatalogoDTO verificarConsistencia(boolean corrigir) {
+		if (mapa == null)
+			throw new FileStorageException("O catálogo de arquivos não está habilitado");
+		long entradas = 0, arquivos = 0, ausentesNoCatalogo = 0, ausentesNoArmazenamento = 0, divergentes = 0, nomesLongos = 0;
+		if (corrigir)
+			cheio = false;
+		try {
+			for (Path raiz : raizes) {
+				List<String> catalogados = listar(raiz).stream().map(EntradaCatalogoDTO::nomeArquivo).toList();
+				Set<String> nomes = new HashSet<>();
+				for (String nome : armazenamentoBackend.listar(raiz)) {
+					if (DerivadaImagemService.ehDerivada(nome) || !nomes.add(nome))
+						continue;
+					if (nome.getBytes(StandardCharsets.UTF_8).length > NOME_MAXIMO) {
+						nomesLongos++;
+						System.out.println("O arquivo " + raiz.resolve(nome) + " tem nome longo demais e ficou fora do catálogo");
+						continue;
+					}
+					MetadadosArquivo metadados = armazenamentoBackend.metadados(raiz, nome);
+					if (metadados == null)
+						continue;
+					arquivos++;
+					EntradaCatalogoDTO entrada = buscar(raiz, nome);
+					boolean ausente = entrada == null;
+					boolean divergente = !ausente && (entrada.tamanho() != metadados.tamanho() || entrada.ultimaModificacao() != metadados.ultimaModificacao());
+					if (ausente)
+						ausentesNoCatalogo++;
+					if (divergente)
+						divergentes++;
+					if (corrigir && (ausente || divergente))
+						registrarLendoConteudo(raiz, nome);
+				}
+				for (String nome : catalogados) {
+					entradas++;
+					// confere de novo: o arquivo pode ter sido gravado depois da listagem
+					if (!nomes.contains(nome) && !armazenamentoBackend.existe(raiz, nome)) {
+						ausentesNoArmazenamento++;
+						if (corrigir)
+							remover(raiz, nome);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel verificar o catálogo de arquivos");
+		}
+		if (corrigir)
+			pronto = !cheio;
+		return new ConsistenciaCatalogoDTO(entradas, arquivos, ausentesNoCatalogo, ausentesNoArmazenamento, divergentes, nomesLongos, corrigir);
+	}
+
+	@PreDestroy
+	public void encerrar() throws IOException {
+		if (mapa == null)
+			return;
+		trava.writeLock().lock();
+		try {
+			// só marca como fechado se a verificação terminou; senão ela roda de novo na próxima subida
+			if (pronto)
+				mapa.put(POSICAO_ABERTO, (byte) 0);
+			mapa.force();
+			canal.close();
+			liberar(mapa);
+			mapa = null;
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DO CATALOGO
+//
+
+	private void gravar(Path raiz, String nomeArquivo, MetadadosArquivo metadados, FormatoArquivo formato, long crc32) throws IOException {
+		byte[] nome = nomeArquivo.getBytes(StandardCharsets.UTF_8);
+		if (nome.length > NOME_MAXIMO) {
+			System.out.println("O arquivo " + raiz.resolve(nomeArquivo) + " tem nome longo demais e ficou fora do catálogo");
+			return;
+		}
+		byte codigoRaiz = (byte) codigoRaiz(raiz);
+		trava.writeLock().lock();
+		try {
+			if (mapa == null)
+				return;
+			int slot = localizar(mapa, capacidade, codigoRaiz, nome);
+			if (slot < 0) {
+				if (quantidade + removidos + 1 > capacidade * CARGA_MAXIMA) {
+					boolean crescer = quantidade + 1 > capacidade * CARGA_MAXIMA / 2;
+					if (crescer && capacidade >= capacidadeMaxima) {
+						marcarCheio(raiz, nomeArquivo);
+						return;
+					}
+					redimensionar(crescer ? capacidade * 2 : capacidade);
+				}
+				slot = livre(mapa, capacidade, codigoRaiz, nome);
+				if (mapa.get(posicaoSlot(slot)) == REMOVIDO)
+					removidos--;
+				quantidade++;
+				mapa.putInt(POSICAO_QUANTIDADE, quantidade);
+				mapa.putInt(POSICAO_REMOVIDOS, removidos);
+			}
+			int posicao = posicaoSlot(slot);
+			mapa.put(posicao + 1, codigoRaiz);
+			mapa.putShort(posicao + 2, (short) nome.length);
+			mapa.putLong(posicao + 4, metadados.tamanho());
+			mapa.putLong(posicao + 12, metadados.ultimaModificacao());
+			mapa.put(posicao + 20, codigoFormato(formato));
+			mapa.putInt(posicao + 21, (int) crc32);
+			mapa.put(posicao + CAMPOS_SLOT, nome);
+			// o estado vai por último para que um slot pela metade não pareça ocupado
+			mapa.put(posicao, USADO);
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	private EntradaCatalogoDTO ler(int slot) {
+		int posicao = posicaoSlot(slot);
+		byte[] nome = new byte[mapa.getShort(posicao + 2)];
+		mapa.get(posicao + CAMPOS_SLOT, nome);
+		return new EntradaCatalogoDTO(raizes.get(mapa.get(posicao + 1)).toString(), new String(nome, StandardCharsets.UTF_8),
+				mapa.getLong(posicao + 4), mapa.getLong(posicao + 12), formatoDoCodigo(mapa.get(posicao + 20)),
+				Integer.toUnsignedLong(mapa.getInt(posicao + 21)));
+	}
+
+	/**
+	 * Código gravado no slot, independente da ordem das constantes do enum.
+	 */
+	private static byte codigoFormato(FormatoArquivo formato) {
+		if (formato == null)
+			return 0;
+		return switch (formato) {
+		case JPEG -> 1;
+		case PNG -> 2;
+		case MP4 -> 3;
+		case AVI -> 4;
+		};
+	}
+
+	private static FormatoArquivo formatoDoCodigo(byte codigo) {
+		return switch (codigo) {
+		case 1 -> FormatoArquivo.JPEG;
+		case 2 -> FormatoArquivo.PNG;
+		case 3 -> FormatoArquivo.MP4;
+		case 4 -> FormatoArquivo.AVI;
+		default -> null;
+		};
+	}
+
+	/**
+	 * Sondagem linear a partir do hash; devolve o slot ocupado pela chave ou -1.
+	 */
+	private static int localizar(MappedByteBuffer mapa, int capacidade, byte raiz, byte[] nome) {
+		int slot = hash(raiz, nome) & (capacidade - 1);
+		for (int tentativas = 0; tentativas < capacidade; tentativas++) {
+			int posicao = posicaoSlot(slot);
+			byte estado = mapa.get(posicao);
+			if (estado == LIVRE)
+				return -1;
+			if (estado == USADO && mesmaChave(mapa, posicao, raiz, nome))
+				return slot;
+			slot = (slot + 1) & (capacidade - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Primeiro slot livre ou removido da sequência de sondagem de uma chave que não está na tabela.
+	 */
+	private static int livre(MappedByteBuffer mapa, int capacidade, byte raiz, byte[] nome) {
+		int slot = hash(raiz, nome) & (capacidade - 1);
+		while (mapa.get(posicaoSlot(slot)) == USADO)
+			slot = (slot + 1) & (capacidade - 1);
+		return slot;
+	}
+
+	private static boolean mesmaChave(MappedByteBuffer mapa, int posicao, byte raiz, byte[] nome) {
+		if (mapa.get(posicao + 1) != raiz || mapa.getShort(posicao + 2) != nome.length)
+			return false;
+		for (int i = 0; i < nome.length; i++)
+			if (mapa.get(posicao + CAMPOS_SLOT + i) != nome[i])
+				return false;
+		return true;
+	}
+
+	private static int hash(byte raiz, byte[] nome) {
+		int hash = 0x811C9DC5 ^ raiz;
+		for (byte b : nome)
+			hash = (hash ^ b) * 0x01000193;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Reescreve as entradas num arquivo novo com a capacidade pedida (também descarta os slots
+	 * removidos) e troca o catálogo por ele com uma renomeação atômica. O mapeamento antigo é
+	 * liberado na hora: todo acesso ao mapa acontece sob a trava, que aqui está com a escrita.
+	 */
+	private void redimensionar(int novaCapacidade) throws IOException {
+		Path arquivo = diretorio.resolve(NOME_ARQUIVO);
+		Path novo = diretorio.resolve(NOME_ARQUIVO + ".novo");
+		FileChannel novoCanal = FileChannel.open(novo, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer novoMapa = novoCanal.map(FileChannel.MapMode.READ_WRITE, 0, tamanhoArquivo(novaCapacidade));
+		escreverCabecalho(novoMapa, novaCapacidade);
+		byte[] slot = new byte[TAMANHO_SLOT];
+		for (int indice = 0; indice < capacidade; indice++) {
+			int posicao = posicaoSlot(indice);
+			if (mapa.get(posicao) != USADO)
+				continue;
+			mapa.get(posicao, slot);
+			byte[] nome = new byte[mapa.getShort(posicao + 2)];
+			mapa.get(posicao + CAMPOS_SLOT, nome);
+			novoMapa.put(posicaoSlot(livre(novoMapa, novaCapacidade, slot[1], nome)), slot);
+		}
+		novoMapa.putInt(POSICAO_QUANTIDADE, quantidade);
+		novoMapa.put(POSICAO_ABERTO, (byte) 1);
+		novoMapa.force();
+		Files.move(novo, arquivo, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		canal.close();
+		liberar(mapa);
+		canal = novoCanal;
+		mapa = novoMapa;
+		capacidade = novaCapacidade;
+		removidos = 0;
+	}
+
+	private boolean abrir(Path arquivo) throws IOException {
+		canal = FileChannel.open(arquivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long tamanho = canal.size();
+		if (tamanho >= TAMANHO_CABECALHO) {
+			mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanho);
+			int capacidadeGravada = mapa.getInt(POSICAO_CAPACIDADE);
+			if (mapa.getInt(0) == MAGICO && mapa.getInt(4) == VERSAO && Integer.bitCount(capacidadeGravada) == 1
+					&& tamanho == tamanhoArquivo(capacidadeGravada)) {
+				capacidade = capacidadeGravada;
+				quantidade = mapa.getInt(POSICAO_QUANTIDADE);
+				removidos = mapa.getInt(POSICAO_REMOVIDOS);
+				return true;
+			}
+		}
+		canal.close();
+		if (mapa != null)
+			liberar(mapa);
+		mapa = null;
+		return false;
+	}
+
+	private void criar(Path arquivo, int capacidadeNova) throws IOException {
+		canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanhoArquivo(capacidadeNova));
+		escreverCabecalho(mapa, capacidadeNova);
+		capacidade = capacidadeNova;
+		quantidade = 0;
+		removidos = 0;
+	}
+
+	private static void escreverCabecalho(MappedByteBuffer mapa, int capacidade) {
+		mapa.putInt(0, MAGICO);
+		mapa.putInt(4, VERSAO);
+		mapa.putInt(POSICAO_CAPACIDADE, capacidade);
+		mapa.putInt(POSICAO_QUANTIDADE, 0);
+		mapa.putInt(POSICAO_REMOVIDOS, 0);
+	}
+
+	/**
+	 * Sem a entrada o catálogo não serve mais de fonte completa: as consultas e a listagem
+	 * voltam para o backend até uma verificação com correção caber inteira nele.
+	 */
+	private void marcarCheio(Path raiz, String nomeArquivo) {
+		if (!cheio)
+			System.out.println("O catálogo de arquivos chegou a " + capacidade + " slots e o arquivo " + raiz.resolve(nomeArquivo)
+					+ " ficou fora dele; as consultas voltam para o armazenamento");
+		cheio = true;
+		pronto = false;
+	}
+
+	private void verificarEmSegundoPlano() {
+		Thread verificador = new Thread(() -> {
+			try {
+				verificarConsistencia(true);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, "catalogo-arquivos");
+		verificador.setDaemon(true);
+		verificador.start();
+	}
+
+	/**
+	 * Desfaz o mapeamento sem esperar o coletor de lixo, pelo Unsafe.invokeCleaner do JDK. Sem
+	 * ele (outra JVM), o mapeamento continua sendo liberado quando o buffer for coletado.
+	 */
+	private static void liberar(MappedByteBuffer mapeamento) {
+		try {
+			Class<?> classeUnsafe = Class.forName("sun.misc.Unsafe");
+			Field campo = classeUnsafe.getDeclaredField("theUnsafe");
+			campo.setAccessible(true);
+			classeUnsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(campo.get(null), mapeamento);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private int codigoRaiz(Path raiz) {
+		return raizes.indexOf(raiz);
+	}
+
+	private static int posicaoSlot(int slot) {
+		return TAMANHO_CABECALHO + slot * TAMANHO_SLOT;
+	}
+
+	private static long tamanhoArquivo(int capacidade) {
+		return TAMANHO_CABECALHO + (long) capacidade * TAMANHO_SLOT;
+	}
+
+}
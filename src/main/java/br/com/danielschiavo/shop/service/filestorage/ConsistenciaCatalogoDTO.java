@@ -0,0 +1,13 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record ConsistenciaCatalogoDTO(
+		long entradasNoCatalogo,
+		long arquivosNoArmazenamento,
+		long ausentesNoCatalogo,
+		long ausentesNoArmazenamento,
+		long divergentes,
+		long ignoradosPorNomeLongo,
+		boolean corrigido
+		) {
+
+}
@@ -0,0 +1,9 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record CriarSessaoUploadDTO(
+		String nomeArquivo,
+		String tipoConteudo,
+		long tamanho
+		) {
+
+}
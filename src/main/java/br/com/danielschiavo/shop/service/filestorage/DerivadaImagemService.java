@@ -0,0 +1,216 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+
+/**
+ * Versões reduzidas das imagens (miniaturas) para listagens e avatares. São geradas na primeira
+ * vez que alguém pede uma largura, gravadas ao lado do original como &lt;nome&gt;@&lt;largura&gt;.jpg
+ * e excluídas junto com ele. As decodificações simultâneas são limitadas, porque cada uma ocupa
+ * 4 bytes por pixel da imagem original.
+ */
+@Service
+public class DerivadaImagemService {
+
+	public static final int[] LARGURAS = {64, 256, 512, 1024};
+
+	public static final char MARCADOR_DERIVADA = '@';
+
+	private final Map<Path, Object> emGeracao = new ConcurrentHashMap<>();
+
+	private final float qualidadeJpeg;
+
+	private final long pixelsMaximos;
+
+	private final Semaphore decodificacoes;
+
+	@Autowired
+	private LayoutArmazenamentoService layoutArmazenamentoService;
+
+	public DerivadaImagemService(
+			@Value("${shop.filestorage.derivadas.qualidade-jpeg:0.8}") float qualidadeJpeg,
+			@Value("${shop.filestorage.derivadas.pixels-maximos:50000000}") long pixelsMaximos,
+			@Value("${shop.filestorage.derivadas.decodificacoes-simultaneas:2}") int decodificacoesSimultaneas) {
+		this.qualidadeJpeg = qualidadeJpeg;
+		this.pixelsMaximos = pixelsMaximos;
+		this.decodificacoes = new Semaphore(decodificacoesSimultaneas);
+	}
+
+	/**
+	 * Devolve o arquivo a ser servido para a largura pedida: a menor derivada que cobre a largura,
+	 * ou o próprio original quando ele já é menor que isso ou não é uma imagem.
+	 */
+	public Path obterDerivada(Path original, int larguraPedida) {
+		if (!ehImagem(original) || !Files.isRegularFile(original))
+			return original;
+
+		int largura = escolherLargura(larguraPedida);
+		Path derivada = caminhoDerivada(original, largura);
+		if (Files.exists(derivada))
+			return derivada;
+
+		Object trava = emGeracao.computeIfAbsent(derivada, chave -> new Object());
+		try {
+			synchronized (trava) {
+				if (Files.exists(derivada))
+					return derivada;
+				return gerar(original, derivada, largura);
+			}
+		} finally {
+			emGeracao.remove(derivada, trava);
+		}
+	}
+
+	/**
+	 * Procura as miniaturas nos dois layouts: uma gerada ao lado do original ainda plano pode não
+	 * ter sido migrada junto com ele.
+	 */
+	public void deletarDerivadas(Path raiz, String nomeArquivo) throws IOException {
+		for (int largura : LARGURAS) {
+			String nomeDerivada = nomeArquivo + MARCADOR_DERIVADA + largura + ".jpg";
+			Files.deleteIfExists(raiz.resolve(nomeDerivada));
+			Files.deleteIfExists(layoutArmazenamentoService.caminhoFragmentado(raiz, nomeDerivada));
+		}
+	}
+
+	public static boolean ehDerivada(String nomeArquivo) {
+		return nomeArquivo.indexOf(MARCADOR_DERIVADA) >= 0;
+	}
+
+
+//
+// METODOS UTILITARIOS DE DERIVADAS
+//
+
+	private Path gerar(Path original, Path derivada, int largura) {
+		try {
+			BufferedImage reduzida = reduzir(original, largura);
+			if (reduzida == null)
+				return original;
+
+			Path temporario = DurabilidadeArquivosService.criarTemporario(derivada.getParent());
+			try {
+				escreverJpeg(reduzida, temporario, qualidadeJpeg, false);
+				Files.move(temporario, derivada, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporario);
+			}
+			return derivada;
+		} catch (IOException e) {
+			throw new FileStorageException("Não foi possivel gerar a miniatura de " + original.getFileName(), e);
+		}
+	}
+
+	/**
+	 * Lê largura e altura do cabeçalho pelo ImageReader e só decodifica a imagem se ela é mais
+	 * larga que a miniatura e cabe no limite de pixels, já que o BufferedImage ocupa 4 bytes por
+	 * pixel independente do tamanho do arquivo. A decodificação e a redução seguram uma vaga do
+	 * limite de decodificações simultâneas. Devolve null quando o original serve como está: mais
+	 * estreito que a largura ou não é uma imagem que o ImageIO conhece.
+	 */
+	private BufferedImage reduzir(Path arquivo, int largura) throws IOException {
+		try (ImageInputStream entrada = ImageIO.createImageInputStream(arquivo.toFile())) {
+			Iterator<ImageReader> leitores = entrada == null ? null : ImageIO.getImageReaders(entrada);
+			if (leitores == null || !leitores.hasNext())
+				return null;
+			ImageReader leitor = leitores.next();
+			try {
+				leitor.setInput(entrada, true, true);
+				int larguraOriginal = leitor.getWidth(0);
+				int alturaOriginal = leitor.getHeight(0);
+				if (larguraOriginal <= largura)
+					return null;
+				if ((long) larguraOriginal * alturaOriginal > pixelsMaximos)
+					throw new ValidacaoException("A imagem " + arquivo.getFileName() + " tem " + larguraOriginal + "x" + alturaOriginal
+							+ " pixels, acima do máximo de " + pixelsMaximos + " para gerar miniaturas");
+
+				try {
+					decodificacoes.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new FileStorageException("Interrompido esperando para gerar a miniatura de " + arquivo.getFileName());
+				}
+				try {
+					return redimensionar(leitor.read(0), largura);
+				} finally {
+					decodificacoes.release();
+				}
+			} finally {
+				leitor.dispose();
+			}
+		}
+	}
+
+	private static BufferedImage redimensionar(BufferedImage imagem, int largura) {
+		int altura = Math.max(1, (int) Math.round((double) imagem.getHeight() * largura / imagem.getWidth()));
+		BufferedImage reduzida = new BufferedImage(largura, altura, BufferedImage.TYPE_INT_RGB);
+		Graphics2D grafico = reduzida.createGraphics();
+		try {
+			grafico.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+			grafico.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			grafico.setColor(Color.WHITE);
+			grafico.fillRect(0, 0, largura, altura);
+			grafico.drawImage(imagem, 0, 0, largura, altura, null);
+		} finally {
+			grafico.dispose();
+		}
+		return reduzida;
+	}
+
+	static void escreverJpeg(BufferedImage imagem, Path destino, float qualidade, boolean progressivo) throws IOException {
+		ImageWriter escritor = ImageIO.getImageWritersByFormatName("jpeg").next();
+		try (ImageOutputStream saida = ImageIO.createImageOutputStream(destino.toFile())) {
+			ImageWriteParam parametros = escritor.getDefaultWriteParam();
+			parametros.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			parametros.setCompressionQuality(qualidade);
+			if (progressivo)
+				parametros.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			escritor.setOutput(saida);
+			escritor.write(null, new IIOImage(imagem, null, null), parametros);
+		} finally {
+			escritor.dispose();
+		}
+	}
+
+	private int escolherLargura(int larguraPedida) {
+		for (int largura : LARGURAS)
+			if (largura >= larguraPedida)
+				return largura;
+		return LARGURAS[LARGURAS.length - 1];
+	}
+
+	private Path caminhoDerivada(Path original, int largura) {
+		return original.resolveSibling(original.getFileName().toString() + MARCADOR_DERIVADA + largura + ".jpg");
+	}
+
+	private boolean ehImagem(Path arquivo) {
+		String nome = arquivo.getFileName().toString().toLowerCase();
+		return nome.endsWith(".jpg") || nome.endsWith(".jpeg") || nome.endsWith(".png");
+	}
+
+}
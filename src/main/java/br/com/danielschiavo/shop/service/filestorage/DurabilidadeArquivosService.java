@@ -0,0 +1,401 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Publica arquivos gravados em temporários (renomeação atômica para o nome final) com a política
+ * de fsync configurada. No modo EM_GRUPO quem grava espera numa fila; uma única thread junta os
+ * pedidos de uma janela curta, faz o fsync de cada arquivo, as renomeações e um único fsync por
+ * diretório do lote, e só então libera todos. Numa rajada de uploads o custo do fsync de diretório
+ * é pago uma vez por lote e não uma vez por arquivo.
+ */
+@Service
+public class DurabilidadeArquivosService {
+
+	private static final boolean SINCRONIZA_DIRETORIO = !System.getProperty("os.name", "").startsWith("Windows");
+
+	/**
+	 * Prefixo dos temporários desta instância. Com o volume compartilhado entre várias instâncias,
+	 * a limpeza da inicialização só apaga os temporários com o próprio prefixo; o identificador vem
+	 * do nome do host, que continua o mesmo quando a instância reinicia.
+	 */
+	static final String PREFIXO_TEMPORARIO = ".tmp-" + identificadorInstancia() + "-";
+
+	private final ModoDurabilidade modo;
+
+	private final long janelaNanos;
+
+	private final int tamanhoMaximoGrupo;
+
+	private final List<Path> diretoriosTemporarios;
+
+	private final BlockingQueue<Pedido> fila = new LinkedBlockingQueue<>();
+
+	private final Instant iniciadoEm = Instant.now();
+
+	private volatile Thread confirmador;
+
+	private volatile boolean encerrado;
+
+	@Value("${shop.filestorage.durabilidade.espera-maxima-ms:30000}")
+	private long esperaMaximaMs = 30000;
+
+	private final AtomicLong grupos = new AtomicLong();
+	private final AtomicLong arquivosConfirmados = new AtomicLong();
+	private final AtomicLong maiorGrupo = new AtomicLong();
+	private final AtomicLong latenciaTotalNanos = new AtomicLong();
+	private final AtomicLong latenciaMaximaNanos = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private final AtomicLong temporariosRemovidos = new AtomicLong();
+
+	public DurabilidadeArquivosService(
+			@Value("${shop.filestorage.durabilidade.modo:NENHUMA}") ModoDurabilidade modo,
+			@Value("${shop.filestorage.durabilidade.janela-ms:5}") long janelaMs,
+			@Value("${shop.filestorage.durabilidade.tamanho-maximo-grupo:128}") int tamanhoMaximoGrupo,
+			@Value("${shop.filestorage.cas.diretorio:imagens/blobs}") String diretorioBlobs,
+			@Value("${shop.filestorage.segmentos.diretorio:imagens/segmentos}") String diretorioSegmentos) {
+		this.modo = modo;
+		this.janelaNanos = TimeUnit.MILLISECONDS.toNanos(janelaMs);
+		this.tamanhoMaximoGrupo = Math.max(1, tamanhoMaximoGrupo);
+		this.diretoriosTemporarios = List.of(FileStorageProdutoService.raizProduto, FileStoragePerfilService.raizPerfil,
+				FileStoragePedidoService.raizPedido, Paths.get(diretorioBlobs), Paths.get(diretorioSegmentos));
+	}
+
+	@PostConstruct
+	public void iniciar() {
+		limparTemporarios(diretoriosTemporarios, iniciadoEm);
+
+		if (modo == ModoDurabilidade.EM_GRUPO) {
+			confirmador = new Thread(this::confirmarGrupos, "filestorage-confirmacao-grupo");
+			confirmador.setDaemon(true);
+			confirmador.start();
+		}
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		encerrado = true;
+		if (confirmador != null)
+			confirmador.interrupt();
+	}
+
+	/**
+	 * Cria um temporário vazio com o prefixo desta instância, para ser publicado depois.
+	 */
+	public static Path criarTemporario(Path diretorio) throws IOException {
+		return Files.createTempFile(diretorio, PREFIXO_TEMPORARIO, null);
+	}
+
+	/**
+	 * Renomeia o temporário para o destino (substituindo o destino se existir). Nos modos com fsync o
+	 * conteúdo do temporário chega ao disco antes da renomeação, então depois de uma queda o destino
+	 * tem o conteúdo antigo ou o novo inteiro, nunca um arquivo pela metade.
+	 */
+	public void publicar(Path temporario, Path destino) throws IOException {
+		switch (modo) {
+		case NENHUMA -> Files.move(temporario, destino, StandardCopyOption.ATOMIC_MOVE);
+		case POR_ARQUIVO -> {
+			long inicio = System.nanoTime();
+			sincronizarArquivo(temporario);
+			Files.move(temporario, destino, StandardCopyOption.ATOMIC_MOVE);
+			sincronizarDiretorio(destino.getParent());
+			registrarGrupo(1, System.nanoTime() - inicio, System.nanoTime() - inicio);
+		}
+		case EM_GRUPO -> aguardar(new Pedido(temporario, destino, true));
+		}
+	}
+
+	/**
+	 * Como publicar, mas sem substituir: o destino é criado como hard link do temporário e um nome
+	 * que já existe lança FileAlreadyExistsException. O temporário continua existindo e é apagado
+	 * por quem chamou.
+	 */
+	public void publicarNovo(Path temporario, Path destino) throws IOException {
+		switch (modo) {
+		case NENHUMA -> vincularSemSubstituir(temporario, destino);
+		case POR_ARQUIVO -> {
+			long inicio = System.nanoTime();
+			sincronizarArquivo(temporario);
+			vincularSemSubstituir(temporario, destino);
+			sincronizarDiretorio(destino.getParent());
+			registrarGrupo(1, System.nanoTime() - inicio, System.nanoTime() - inicio);
+		}
+		case EM_GRUPO -> aguardar(new Pedido(temporario, destino, false));
+		}
+	}
+
+	/**
+	 * Leva ao disco um arquivo já visível com o nome final (hard link recém-criado, append num
+	 * segmento) e o diretório onde ele está.
+	 */
+	public void sincronizar(Path arquivo) throws IOException {
+		switch (modo) {
+		case NENHUMA -> {
+		}
+		case POR_ARQUIVO -> {
+			long inicio = System.nanoTime();
+			sincronizarArquivo(arquivo);
+			sincronizarDiretorio(arquivo.getParent());
+			registrarGrupo(1, System.nanoTime() - inicio, System.nanoTime() - inicio);
+		}
+		case EM_GRUPO -> aguardar(new Pedido(arquivo, null, false));
+		}
+	}
+
+	public ModoDurabilidade getModo() {
+		return modo;
+	}
+
+	public EstatisticasDurabilidadeDTO estatisticas() {
+		long totalGrupos = grupos.get();
+		long totalArquivos = arquivosConfirmados.get();
+		return new EstatisticasDurabilidadeDTO(modo, totalGrupos, totalArquivos,
+				totalGrupos == 0 ? 0 : (double) totalArquivos / totalGrupos, maiorGrupo.get(),
+				totalArquivos == 0 ? 0 : latenciaTotalNanos.get() / 1_000_000.0 / totalArquivos,
+				latenciaMaximaNanos.get() / 1_000_000.0, falhas.get(), temporariosRemovidos.get());
+	}
+
+
+//
+// METODOS UTILITARIOS DE DURABILIDADE
+//
+
+	private record Pedido(Path arquivo, Path destino, boolean substituir, long enfileiradoEm, CompletableFuture<Void> conclusao) {
+
+		Pedido(Path arquivo, Path destino, boolean substituir) {
+			this(arquivo, destino, substituir, System.nanoTime(), new CompletableFuture<>());
+		}
+
+		Path diretorio() {
+			return (destino != null ? destino : arquivo).getParent();
+		}
+	}
+
+	/**
+	 * Recusa o pedido quando a confirmação já foi encerrada ou a thread morreu, e espera no máximo
+	 * espera-maxima-ms: um pedido que ainda estava na fila sai dela e não é mais confirmado.
+	 */
+	private void aguardar(Pedido pedido) throws IOException {
+		if (!confirmacaoAtiva())
+			throw new IOException("A confirmação em grupo está encerrada; " + pedido.arquivo() + " não foi publicado");
+		fila.add(pedido);
+		// encerrada entre a verificação e a entrada na fila: ninguém mais vai tirar o pedido de lá
+		if (!confirmacaoAtiva() && fila.remove(pedido))
+			throw new IOException("A confirmação em grupo está encerrada; " + pedido.arquivo() + " não foi publicado");
+		try {
+			pedido.conclusao().get(esperaMaximaMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			fila.remove(pedido);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrompido esperando a confirmação de " + pedido.arquivo());
+		} catch (TimeoutException e) {
+			fila.remove(pedido);
+			throw new IOException("Tempo esgotado esperando a confirmação de " + pedido.arquivo());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io)
+				throw io;
+			throw new IOException("Falha ao confirmar " + pedido.arquivo(), e.getCause());
+		}
+	}
+
+	private boolean confirmacaoAtiva() {
+		Thread thread = confirmador;
+		return !encerrado && thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Uma exceção inesperada num lote falha os pedidos dele e a thread segue para o próximo lote.
+	 */
+	private void confirmarGrupos() {
+		try {
+			while (true) {
+				List<Pedido> grupo = new ArrayList<>();
+				grupo.add(fila.take());
+				long limite = System.nanoTime() + janelaNanos;
+				while (grupo.size() < tamanhoMaximoGrupo) {
+					Pedido pedido = fila.poll(limite - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (pedido == null)
+						break;
+					grupo.add(pedido);
+				}
+				try {
+					confirmar(grupo);
+				} catch (RuntimeException | Error e) {
+					e.printStackTrace();
+					IOException falha = new IOException("Falha inesperada ao confirmar o lote", e);
+					grupo.stream().filter(pedido -> !pedido.conclusao().isDone()).forEach(pedido -> falhar(pedido, falha));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			encerrado = true;
+			List<Pedido> pendentes = new ArrayList<>();
+			fila.drainTo(pendentes);
+			pendentes.forEach(pedido -> pedido.conclusao().completeExceptionally(new InterruptedIOException("Confirmação encerrada")));
+		}
+	}
+
+	/**
+	 * Sincroniza cada arquivo distinto uma vez, renomeia os temporários e sincroniza cada diretório
+	 * distinto uma vez. Uma falha afeta só os pedidos do arquivo ou diretório que falhou.
+	 */
+	private void confirmar(List<Pedido> grupo) {
+		Map<Path, List<Pedido>> porDiretorio = new LinkedHashMap<>();
+		Map<Path, IOException> arquivosSincronizados = new HashMap<>();
+		for (Pedido pedido : grupo) {
+			try {
+				if (!arquivosSincronizados.containsKey(pedido.arquivo())) {
+					try {
+						sincronizarArquivo(pedido.arquivo());
+						arquivosSincronizados.put(pedido.arquivo(), null);
+					} catch (IOException e) {
+						arquivosSincronizados.put(pedido.arquivo(), e);
+					}
+				}
+				if (arquivosSincronizados.get(pedido.arquivo()) != null)
+					throw arquivosSincronizados.get(pedido.arquivo());
+				if (pedido.destino() != null && pedido.substituir())
+					Files.move(pedido.arquivo(), pedido.destino(), StandardCopyOption.ATOMIC_MOVE);
+				else if (pedido.destino() != null)
+					vincularSemSubstituir(pedido.arquivo(), pedido.destino());
+				porDiretorio.computeIfAbsent(pedido.diretorio(), d -> new ArrayList<>()).add(pedido);
+			} catch (NoSuchFileException e) {
+				if (pedido.destino() != null) {
+					falhar(pedido, e);
+				} else {
+					// segmento compactado e apagado antes do fsync: o conteúdo já foi sincronizado na cópia
+					porDiretorio.computeIfAbsent(pedido.diretorio(), d -> new ArrayList<>()).add(pedido);
+				}
+			} catch (IOException e) {
+				falhar(pedido, e);
+			}
+		}
+
+		List<Pedido> confirmados = new ArrayList<>();
+		for (Map.Entry<Path, List<Pedido>> diretorio : porDiretorio.entrySet()) {
+			try {
+				sincronizarDiretorio(diretorio.getKey());
+				confirmados.addAll(diretorio.getValue());
+			} catch (IOException e) {
+				diretorio.getValue().forEach(pedido -> falhar(pedido, e));
+			}
+		}
+
+		long fim = System.nanoTime();
+		long latenciaTotal = 0;
+		long latenciaMaxima = 0;
+		for (Pedido pedido : grupo) {
+			latenciaTotal += fim - pedido.enfileiradoEm();
+			latenciaMaxima = Math.max(latenciaMaxima, fim - pedido.enfileiradoEm());
+		}
+		// as estatísticas entram antes de liberar quem espera, para quem publicou já ver o grupo contado
+		registrarGrupo(grupo.size(), latenciaTotal, latenciaMaxima);
+		confirmados.forEach(pedido -> pedido.conclusao().complete(null));
+	}
+
+	private void falhar(Pedido pedido, IOException e) {
+		falhas.incrementAndGet();
+		pedido.conclusao().completeExceptionally(e);
+	}
+
+	private void registrarGrupo(int tamanho, long latenciaTotal, long latenciaMaxima) {
+		grupos.incrementAndGet();
+		arquivosConfirmados.addAndGet(tamanho);
+		maiorGrupo.accumulateAndGet(tamanho, Math::max);
+		latenciaTotalNanos.addAndGet(latenciaTotal);
+		latenciaMaximaNanos.accumulateAndGet(latenciaMaxima, Math::max);
+	}
+
+	private static void vincularSemSubstituir(Path temporario, Path destino) throws IOException {
+		try {
+			Files.createLink(destino, temporario);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// sistema de arquivos sem hard links: renomeação que falha se o destino existir
+			Files.move(temporario, destino);
+		}
+	}
+
+	private static void sincronizarArquivo(Path arquivo) throws IOException {
+		try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.WRITE)) {
+			canal.force(true);
+		}
+	}
+
+	private static void sincronizarDiretorio(Path diretorio) throws IOException {
+		// no Windows não dá para abrir um diretório como canal; lá a renomeação já é registrada pelo NTFS
+		if (!SINCRONIZA_DIRETORIO || diretorio == null)
+			return;
+		try (FileChannel canal = FileChannel.open(diretorio, StandardOpenOption.READ)) {
+			canal.force(true);
+		}
+	}
+
+	/**
+	 * Remove os temporários desta instância deixados por uploads, miniaturas e otimizações
+	 * interrompidos por uma queda. Só apaga os modificados antes da inicialização, que nenhuma
+	 * gravação em andamento pode estar usando; os de outras instâncias no mesmo volume ficam.
+	 */
+	long limparTemporarios(List<Path> diretorios, Instant antesDe) {
+		long removidos = 0;
+		for (Path diretorio : diretorios) {
+			if (!Files.isDirectory(diretorio))
+				continue;
+			try (Stream<Path> arquivos = Files.walk(diretorio, 3)) {
+				for (Path arquivo : (Iterable<Path>) arquivos::iterator) {
+					if (!arquivo.getFileName().toString().startsWith(PREFIXO_TEMPORARIO) || !Files.isRegularFile(arquivo)
+							|| !Files.getLastModifiedTime(arquivo).toInstant().isBefore(antesDe))
+						continue;
+					if (Files.deleteIfExists(arquivo))
+						removidos++;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		temporariosRemovidos.addAndGet(removidos);
+		return removidos;
+	}
+
+	private static String identificadorInstancia() {
+		String host = System.getenv("HOSTNAME");
+		if (host == null || host.isBlank())
+			host = System.getenv("COMPUTERNAME");
+		if (host == null || host.isBlank())
+			return "local";
+		return host.replaceAll("[^A-Za-z0-9_.]", "_");
+	}
+
+}
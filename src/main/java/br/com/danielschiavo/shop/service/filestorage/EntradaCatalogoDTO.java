@@ -0,0 +1,15 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+/**
+ * Formato nulo quando o conteúdo não é de um formato reconhecido; crc32 é o CRC-32 do conteúdo.
+ */
+public record EntradaCatalogoDTO(
+		String raiz,
+		String nomeArquivo,
+		long tamanho,
+		long ultimaModificacao,
+		FormatoArquivo formato,
+		long crc32
+		) {
+
+}
@@ -0,0 +1,231 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Serializa respostas ArquivoInfoDTO direto no stream da resposta, sem montar o byte[] em base64
+ * de cada arquivo. O campo bytesArquivo é produzido por um codificador base64 em blocos lendo do
+ * disco; o JSON gerado é idêntico ao que o Jackson produziria a partir do DTO.
+ * Antes de escrever, os arquivos são preparados em paralelo pelo ExecutorArquivosService: os que
+ * cabem no cache são lidos por ele (e passam a ficar em cache), os maiores só são localizados e
+ * depois lidos em streaming, um de cada vez, na ordem da resposta.
+ */
+@Service
+public class EscritaJsonArquivoService {
+
+	private static final String CAMPO_BYTES = "bytesArquivo";
+
+	private static final int BLOCO_BRUTO = 3 * 1024;
+
+	@Autowired
+	private FileStorageService fileStorageService;
+
+	@Autowired
+	private CacheArquivosService cacheArquivosService;
+
+	@Autowired
+	private ExecutorArquivosService executorArquivosService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${shop.filestorage.leitura.paralelismo-por-requisicao:8}")
+	private int paralelismoLeituraPorRequisicao;
+
+	@Value("${shop.filestorage.json.streaming:true}")
+	private boolean habilitado;
+
+	public boolean isHabilitado() {
+		return habilitado;
+	}
+
+	/**
+	 * Mesmo contrato de FileStorageService.recuperarBytesImagemDoDisco: um nome gera um objeto,
+	 * vários nomes geram uma lista, e cada nome que não pode ser lido vira uma entrada com erro.
+	 */
+	public void escrever(Path caminho, String[] nomesArquivos, HttpServletResponse response) throws IOException {
+		List<Fonte> fontes = executorArquivosService.processarEmOrdem(Arrays.asList(nomesArquivos), paralelismoLeituraPorRequisicao,
+				nome -> preparar(caminho, nome));
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+
+		try (JsonGenerator gerador = objectMapper.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+			boolean lista = nomesArquivos.length != 1;
+			if (lista)
+				gerador.writeStartArray();
+			for (Fonte fonte : fontes)
+				escreverArquivo(gerador, fonte);
+			if (lista)
+				gerador.writeEndArray();
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE ESCRITA
+//
+
+	/**
+	 * Conteúdo de um nome pronto para ser escrito: os bytes já lidos, o arquivo a ler em
+	 * streaming ou o erro que vira a entrada do nome.
+	 */
+	private record Fonte(String nome, byte[] bytes, Path arquivo, ArquivoInfoDTO erro) {
+	}
+
+	/**
+	 * Mesmas mensagens de erro do FileStorageService.recuperarBytesImagemDoDisco; um arquivo
+	 * excluído depois de localizado vira entrada com erro, como um nome inexistente.
+	 */
+	private Fonte preparar(Path caminho, String nome) {
+		List<Path> arquivos = fileStorageService.localizarArquivos(caminho, nome);
+		Fonte inexistente = new Fonte(nome, null, null, ArquivoInfoDTO.comErro(nome, "Não foi possivel recuperar os bytes do arquivo nome " + nome
+				+ ", motivo: " + caminho.resolve(nome)));
+		if (arquivos.isEmpty())
+			return inexistente;
+		try {
+			byte[] emCache = cacheArquivosService.buscar(caminho, nome);
+			if (emCache != null)
+				return new Fonte(nome, emCache, null, null);
+			Path arquivo = arquivos.get(0);
+			long tamanho;
+			try {
+				tamanho = fileStorageService.metadados(arquivo).tamanho();
+			} catch (FileStorageException e) {
+				return inexistente;
+			}
+			if (tamanho <= cacheArquivosService.getTamanhoMaximoArquivo())
+				return new Fonte(nome, cacheArquivosService.lerBytes(caminho, nome), null, null);
+			return new Fonte(nome, null, arquivo, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new Fonte(nome, null, null, ArquivoInfoDTO.comErro(nome, "Não foi possivel recuperar os bytes do arquivo nome " + nome
+					+ ", motivo: " + e.getMessage()));
+		}
+	}
+
+	private void escreverArquivo(JsonGenerator gerador, Fonte fonte) throws IOException {
+		if (fonte.erro() != null) {
+			objectMapper.writeValue(gerador, fonte.erro());
+			return;
+		}
+
+		JsonNode modelo = objectMapper.valueToTree(new ArquivoInfoDTO(fonte.nome(), new byte[0]));
+		gerador.writeStartObject();
+		for (Iterator<Map.Entry<String, JsonNode>> campos = modelo.fields(); campos.hasNext();) {
+			Map.Entry<String, JsonNode> campo = campos.next();
+			gerador.writeFieldName(campo.getKey());
+			if (!campo.getKey().equals(CAMPO_BYTES)) {
+				gerador.writeTree(campo.getValue());
+				continue;
+			}
+			escreverBytes(gerador, fonte);
+		}
+		gerador.writeEndObject();
+		gerador.flush();
+	}
+
+	/**
+	 * O tamanho vem do que foi aberto (os bytes já lidos ou o FileChannel do arquivo local), então
+	 * corresponde aos bytes escritos mesmo que o arquivo seja substituído no meio. Do backend remoto
+	 * o stream é lido até o fim, sem tamanho declarado.
+	 */
+	private void escreverBytes(JsonGenerator gerador, Fonte fonte) throws IOException {
+		if (fonte.bytes() != null) {
+			escreverBase64(gerador, new ByteArrayInputStream(fonte.bytes()), fonte.bytes().length);
+			return;
+		}
+		if (fileStorageService.isArquivoLocal(fonte.arquivo())) {
+			try (FileChannel canal = FileChannel.open(fonte.arquivo(), StandardOpenOption.READ)) {
+				escreverBase64(gerador, Channels.newInputStream(canal), canal.size());
+			}
+			return;
+		}
+		escreverBase64(gerador, fileStorageService.abrir(fonte.arquivo()), -1);
+	}
+
+	private void escreverBase64(JsonGenerator gerador, InputStream bruto, long tamanho) throws IOException {
+		try (InputStream base64 = new CodificadorBase64InputStream(bruto)) {
+			int tamanhoBase64 = tamanho < 0 ? -1 : (int) (4 * ((tamanho + 2) / 3));
+			gerador.writeBinary(objectMapper.getSerializationConfig().getBase64Variant(), base64, tamanhoBase64);
+		}
+	}
+
+	/**
+	 * Entrega o conteúdo já codificado em base64 (o que o DTO guarda em bytesArquivo),
+	 * codificando blocos de 3 KiB por vez em vez do arquivo inteiro.
+	 */
+	static class CodificadorBase64InputStream extends InputStream {
+
+		private final InputStream bruto;
+		private final byte[] blocoBruto = new byte[BLOCO_BRUTO];
+		private final byte[] blocoCodificado = new byte[BLOCO_BRUTO / 3 * 4];
+		private int posicao;
+		private int limite;
+
+		CodificadorBase64InputStream(InputStream bruto) {
+			this.bruto = bruto;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!preencher())
+				return -1;
+			return blocoCodificado[posicao++];
+		}
+
+		@Override
+		public int read(byte[] destino, int inicio, int quantidade) throws IOException {
+			if (quantidade == 0)
+				return 0;
+			if (!preencher())
+				return -1;
+			int copiados = Math.min(quantidade, limite - posicao);
+			System.arraycopy(blocoCodificado, posicao, destino, inicio, copiados);
+			posicao += copiados;
+			return copiados;
+		}
+
+		@Override
+		public void close() throws IOException {
+			bruto.close();
+		}
+
+		private boolean preencher() throws IOException {
+			if (posicao < limite)
+				return true;
+			int lidos = bruto.readNBytes(blocoBruto, 0, blocoBruto.length);
+			if (lidos == 0)
+				return false;
+			byte[] origem = lidos == blocoBruto.length ? blocoBruto : Arrays.copyOf(blocoBruto, lidos);
+			limite = Base64.getEncoder().encode(origem, blocoCodificado);
+			posicao = 0;
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record EstatisticasCacheDTO(
+		long acertos,
+		long faltas,
+		double taxaAcerto,
+		long despejos,
+		long bytesDespejados,
+		long entradas,
+		long bytesUsados,
+		long orcamentoBytes
+		) {
+
+}
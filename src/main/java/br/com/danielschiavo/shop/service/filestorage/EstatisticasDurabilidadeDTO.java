@@ -0,0 +1,15 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record EstatisticasDurabilidadeDTO(
+		ModoDurabilidade modo,
+		long grupos,
+		long arquivosConfirmados,
+		double mediaArquivosPorGrupo,
+		long maiorGrupo,
+		double latenciaMediaMs,
+		double latenciaMaximaMs,
+		long falhas,
+		long temporariosRemovidos
+		) {
+
+}
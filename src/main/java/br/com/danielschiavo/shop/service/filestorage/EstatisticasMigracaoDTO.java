@@ -0,0 +1,10 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record EstatisticasMigracaoDTO(
+		boolean layoutFragmentado,
+		boolean emAndamento,
+		long movidos,
+		long falhas
+		) {
+
+}
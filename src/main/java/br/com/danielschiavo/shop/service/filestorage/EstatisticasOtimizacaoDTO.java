@@ -0,0 +1,15 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+public record EstatisticasOtimizacaoDTO(
+		long enfileiradas,
+		long rejeitadas,
+		int naFila,
+		int vagasNaFila,
+		long otimizadas,
+		long semGanho,
+		long falhas,
+		long bytesOriginais,
+		long bytesEconomizados
+		) {
+
+}
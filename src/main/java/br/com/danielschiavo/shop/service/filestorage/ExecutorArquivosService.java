@@ -0,0 +1,130 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Pool compartilhado para processar em paralelo os vários arquivos de uma mesma requisição.
+ * Cada chamada usa no máximo o paralelismo pedido e a própria thread da requisição também
+ * trabalha, então um pool ocupado deixa a requisição mais lenta, mas nunca parada.
+ */
+@Service
+public class ExecutorArquivosService {
+
+	private final ThreadPoolExecutor executor;
+
+	public ExecutorArquivosService(@Value("${shop.filestorage.executor.threads:16}") int threads) {
+		AtomicInteger contador = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(threads * 4), tarefa -> {
+			Thread thread = new Thread(tarefa, "filestorage-arquivos-" + contador.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Aplica a tarefa a cada item com até {@code paralelismoMaximo} execuções simultâneas e devolve
+	 * os resultados na mesma ordem dos itens. A tarefa deve transformar as próprias falhas em
+	 * resultado; uma exceção não tratada é relançada depois que todos os itens terminam.
+	 * Quando a thread da requisição acaba os itens, os ajudantes que ainda estão na fila são
+	 * descartados em vez de esperados: só os que pegaram algum item seguram a requisição.
+	 */
+	public <T, R> List<R> processarEmOrdem(List<T> itens, int paralelismoMaximo, Function<T, R> tarefa) {
+		int trabalhadores = Math.max(1, Math.min(paralelismoMaximo, itens.size()));
+		Object[] resultados = new Object[itens.size()];
+		AtomicInteger proximo = new AtomicInteger();
+		RuntimeException[] falha = new RuntimeException[1];
+
+		Runnable trabalhador = () -> {
+			int indice;
+			while ((indice = proximo.getAndIncrement()) < itens.size()) {
+				try {
+					resultados[indice] = tarefa.apply(itens.get(indice));
+				} catch (RuntimeException e) {
+					synchronized (falha) {
+						if (falha[0] == null)
+							falha[0] = e;
+					}
+				}
+			}
+		};
+
+		List<Ajudante> ajudantes = new ArrayList<>();
+		for (int i = 1; i < trabalhadores; i++) {
+			Ajudante ajudante = new Ajudante(trabalhador);
+			try {
+				executor.execute(ajudante);
+			} catch (RejectedExecutionException e) {
+				break;
+			}
+			ajudantes.add(ajudante);
+		}
+		trabalhador.run();
+		for (Ajudante ajudante : ajudantes) {
+			if (ajudante.iniciado.compareAndSet(false, true))
+				executor.remove(ajudante);
+			else
+				ajudante.fim.join();
+		}
+
+		synchronized (falha) {
+			if (falha[0] != null)
+				throw falha[0];
+		}
+
+		@SuppressWarnings("unchecked")
+		List<R> lista = (List<R>) Arrays.asList(resultados);
+		return lista;
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		executor.shutdown();
+	}
+
+
+//
+// METODOS UTILITARIOS DO EXECUTOR
+//
+
+	/**
+	 * Trabalhador auxiliar que só roda se ninguém o reivindicou antes: quem marca iniciado primeiro,
+	 * a thread do pool ou a requisição que já terminou, decide se ele roda ou é descartado.
+	 */
+	private static final class Ajudante implements Runnable {
+
+		private final Runnable trabalhador;
+		private final AtomicBoolean iniciado = new AtomicBoolean();
+		private final CompletableFuture<Void> fim = new CompletableFuture<>();
+
+		private Ajudante(Runnable trabalhador) {
+			this.trabalhador = trabalhador;
+		}
+
+		@Override
+		public void run() {
+			if (!iniciado.compareAndSet(false, true))
+				return;
+			try {
+				trabalhador.run();
+			} finally {
+				fim.complete(null);
+			}
+		}
+	}
+
+}
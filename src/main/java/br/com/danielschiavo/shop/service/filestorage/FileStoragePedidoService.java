@@ -1,13 +1,9 @@
 package br.com.danielschiavo.shop.service.filestorage;
 
-import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -21,13 +17,28 @@ public class FileStoragePedidoService {
 	@Autowired
 	private FileStorageService fileStorageService;
 	
-	private final Path raizPedido = Paths.get("imagens/pedido");
+	@Autowired
+	private IndiceImagemPedidoService indiceImagemPedidoService;
+	
+	public static final Path raizPedido = Paths.get("imagens/pedido");
 	
 	public ArquivoInfoDTO pegarImagemPedidoPorNome(String nomeArquivo) {
-		ArquivoInfoDTO arquivoInfoDTO = (ArquivoInfoDTO) fileStorageService.recuperarBytesImagemDoDisco(FileStorageProdutoService.raizProduto, nomeArquivo);
+		ArquivoInfoDTO arquivoInfoDTO = (ArquivoInfoDTO) fileStorageService.recuperarBytesImagemDoDisco(raizPedido, nomeArquivo);
 		return arquivoInfoDTO;
 	}
 	
+	public Path localizarImagemPedido(String nomeArquivo) {
+		return fileStorageService.localizarArquivo(raizPedido, nomeArquivo);
+	}
+	
+	public List<Path> localizarImagensPedido(String... nomesArquivos) {
+		return fileStorageService.localizarArquivos(raizPedido, nomesArquivos);
+	}
+	
+	/**
+	 * O índice só conhece as imagens que esta instância viu; o nome é determinístico, então uma
+	 * imagem criada por outra instância ou por um checkout simultâneo é reaproveitada.
+	 */
 	public String persistirOuRecuperarImagemPedido(String nomePrimeiraImagemProduto, Long idProduto) {
 		String nomeImagemPedido = verificarSeExisteImagemPedidoNoDisco(nomePrimeiraImagemProduto);
 		if (nomeImagemPedido != null) {
@@ -35,8 +46,9 @@ public class FileStoragePedidoService {
 		}
 		else {
 			String nomeImagemPedidoGerado = gerarNomeImagemPedido(idProduto, nomePrimeiraImagemProduto);
-			ArquivoInfoDTO arquivoInfoDTO = (ArquivoInfoDTO) fileStorageService.recuperarBytesImagemDoDisco(FileStorageProdutoService.raizProduto, nomePrimeiraImagemProduto);
-			fileStorageService.salvarNoDisco(raizPedido, nomeImagemPedidoGerado, arquivoInfoDTO.bytesArquivo());
+			if (!fileStorageService.existeArquivo(raizPedido, nomeImagemPedidoGerado))
+				fileStorageService.vincularNoDisco(FileStorageProdutoService.raizProduto, nomePrimeiraImagemProduto, raizPedido, nomeImagemPedidoGerado);
+			indiceImagemPedidoService.registrar(nomeImagemPedidoGerado);
 			return nomeImagemPedidoGerado;
 		}
 	}
@@ -55,17 +67,7 @@ public class FileStoragePedidoService {
 	}
 	
 	public String verificarSeExisteImagemPedidoNoDisco(String nomePrimeiraImagemProduto) {
-		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*" + nomePrimeiraImagemProduto);
-	    try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.raizPedido)) {
-	        for (Path entry : stream) {
-	        	if (matcher.matches(entry.getFileName())) {
-		        	return entry.getFileName().toString(); 
-	            }
-	        }
-	        return null;
-	    } catch (IOException e) {
-	        throw new FileStorageException("Falha ao tentar recuperar imagem do pedido no disco.", e);
-	    }
+		return indiceImagemPedidoService.buscar(nomePrimeiraImagemProduto);
 	}
 	
 
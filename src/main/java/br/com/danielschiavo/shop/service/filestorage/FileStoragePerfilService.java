@@ -1,8 +1,10 @@
 package br.com.danielschiavo.shop.service.filestorage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -18,7 +20,16 @@ public class FileStoragePerfilService {
 	@Autowired
 	private FileStorageService fileStorageService;
 	
-	private final Path raizPerfil = Paths.get("imagens/perfil");
+	@Autowired
+	private DerivadaImagemService derivadaImagemService;
+	
+	@Autowired
+	private OtimizacaoImagemService otimizacaoImagemService;
+	
+	@Autowired
+	private GeradorNomeArquivoService geradorNomeArquivoService;
+	
+	public static final Path raizPerfil = Paths.get("imagens/perfil");
 
 	public String deletarFotoPerfilNoDisco(String nome) throws IOException {
 		fileStorageService.deletarNoDisco(raizPerfil, nome);
@@ -34,6 +45,23 @@ public class FileStoragePerfilService {
 			return arquivoInfoDTO;
 	}
 	
+	public Path localizarFotoPerfil(String nomeArquivo) {
+		return fileStorageService.localizarArquivo(raizPerfil, nomeArquivo);
+	}
+	
+	public Path localizarFotoPerfil(String nomeArquivo, Integer largura) {
+		Path original = localizarFotoPerfil(nomeArquivo);
+		return largura == null ? original : derivadaImagemService.obterDerivada(original, largura);
+	}
+	
+	public List<Path> localizarFotosPerfil(String... nomesArquivos) {
+		return fileStorageService.localizarArquivos(raizPerfil, nomesArquivos);
+	}
+	
+	public MetadadosMidiaDTO metadadosFotoPerfil(String nomeArquivo) {
+		return fileStorageService.metadadosMidia(raizPerfil, nomeArquivo);
+	}
+	
 	public String persistirFotoPerfil(MultipartFile arquivo) {
 		String[] contentType = arquivo.getContentType().split("/");
 		if (!contentType[1].contains("jpg") && !contentType[1].contains("jpeg") && !contentType[1].contains("png"))
@@ -41,7 +69,10 @@ public class FileStoragePerfilService {
 		
 		try {
 			String nomeFotoPerfilGerado = gerarNovoNomeFotoPerfil(contentType[1]);
-			fileStorageService.salvarNoDisco(raizPerfil, nomeFotoPerfilGerado, arquivo.getBytes());
+			try (InputStream conteudo = FormatoArquivo.abrirVerificado(arquivo.getInputStream(), contentType[1])) {
+				fileStorageService.salvarNoDisco(raizPerfil, nomeFotoPerfilGerado, conteudo);
+			}
+			otimizacaoImagemService.enfileirar(raizPerfil, nomeFotoPerfilGerado);
 		} catch (IOException e) {
 			throw new FileStorageException("Erro ao pegar bytes da nova foto de perfil");
 		}
@@ -59,10 +90,11 @@ public class FileStoragePerfilService {
 			throw new FileStorageException("Os tipos aceitos são jpg, jpeg, png");
 		}
 		
-		try {
+		try (InputStream conteudo = FormatoArquivo.abrirVerificado(novaFoto.getInputStream(), contentType[1])) {
 			fileStorageService.deletarNoDisco(raizPerfil, nomeArquivoASerSubstituido);
 			String nomeFotoPerfilGerado = gerarNovoNomeFotoPerfil(contentType[1]);
-			fileStorageService.salvarNoDisco(raizPerfil, nomeFotoPerfilGerado, novaFoto.getBytes());
+			fileStorageService.salvarNoDisco(raizPerfil, nomeFotoPerfilGerado, conteudo);
+			otimizacaoImagemService.enfileirar(raizPerfil, nomeFotoPerfilGerado);
 		} catch (IOException e) {
 			throw new FileStorageException("Erro ao pegar bytes da nova foto de perfil");
 		}
@@ -76,7 +108,7 @@ public class FileStoragePerfilService {
 //	
 	
 	private String gerarNovoNomeFotoPerfil(String formato) {
-		return FileStorageService.gerarStringUnica() + "." + formato;
+		return geradorNomeArquivoService.gerar() + "." + formato;
 	}
 
 }
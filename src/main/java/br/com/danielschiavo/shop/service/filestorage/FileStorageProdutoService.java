@@ -1,15 +1,17 @@
 package br.com.danielschiavo.shop.service.filestorage;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileUrlResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -27,6 +29,27 @@ public class FileStorageProdutoService {
 	@Autowired
 	private FileStorageService fileStorageService;
 	
+	@Autowired
+	private ExecutorArquivosService executorArquivosService;
+	
+	@Autowired
+	private DerivadaImagemService derivadaImagemService;
+	
+	@Autowired
+	private OtimizacaoImagemService otimizacaoImagemService;
+	
+	@Autowired
+	private UploadRetomavelService uploadRetomavelService;
+	
+	@Autowired
+	private InicioRapidoMp4Service inicioRapidoMp4Service;
+	
+	@Autowired
+	private GeradorNomeArquivoService geradorNomeArquivoService;
+	
+	@Value("${shop.filestorage.upload.paralelismo-por-requisicao:4}")
+	private int paralelismoPorRequisicao;
+	
 	public Object deletarImagens(List<String> nomesArquivos) {
 		Object arquivos = fileStorageService.deletarNoDisco(raizProduto, nomesArquivos.toArray(new String[0]));
 		
@@ -39,23 +62,26 @@ public class FileStorageProdutoService {
 		return arquivos;
 	}
 	
+	public Path localizarImagem(String nomeImagem) {
+		return fileStorageService.localizarArquivo(raizProduto, nomeImagem);
+	}
+	
+	public Path localizarImagem(String nomeImagem, Integer largura) {
+		Path original = localizarImagem(nomeImagem);
+		return largura == null ? original : derivadaImagemService.obterDerivada(original, largura);
+	}
+	
+	public List<Path> localizarImagens(String... nomesImagens) {
+		return fileStorageService.localizarArquivos(raizProduto, nomesImagens);
+	}
+	
+	public MetadadosMidiaDTO metadadosImagem(String nomeImagem) {
+		return fileStorageService.metadadosMidia(raizProduto, nomeImagem);
+	}
+	
 	public Object persistirImagens(MultipartFile[] arquivos, UriComponentsBuilder uriBuilderBase) {
-	    List<ArquivoInfoDTO> arquivosInfo = new ArrayList<>();
-
-	    for (MultipartFile arquivo : arquivos) {
-	    	try {
-	    		String nomeArquivo = gerarNomeArquivoProduto(arquivo);
-	    		fileStorageService.salvarNoDisco(raizProduto, nomeArquivo, arquivo.getBytes());
-	    		UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(uriBuilderBase.toUriString());
-	    		URI uri = uriBuilder.path("/arquivo-produto/" + nomeArquivo).build().toUri();
-	    		var arquivoInfo = ArquivoInfoDTO.comUriENomeAntigoArquivo(nomeArquivo, arquivo.getOriginalFilename(), uri.toString());
-	    		arquivosInfo.add(arquivoInfo);
-			} catch (FileStorageException e) {
-				arquivosInfo.add(ArquivoInfoDTO.comErro(arquivo.getOriginalFilename(), e.getMessage()));
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-	    }
+		List<ArquivoInfoDTO> arquivosInfo = executorArquivosService.processarEmOrdem(Arrays.asList(arquivos), paralelismoPorRequisicao,
+				arquivo -> persistirImagem(arquivo, uriBuilderBase));
 	    
 	    return arquivosInfo;
 	}
@@ -66,44 +92,137 @@ public class FileStorageProdutoService {
 		if (arquivos.length != excluirArquivo.size())
 			throw new ValidacaoException("Para cada arquivo enviado você deve enviar um nome de arquivo a ser excluido");
 		
+		List<Integer> indices = IntStream.range(0, arquivos.length).boxed().toList();
+		List<ResultadoAlteracao> resultados = executorArquivosService.processarEmOrdem(indices, paralelismoPorRequisicao,
+				i -> alterarImagem(arquivos[i], excluirArquivo.get(i), uriBuilderBase));
+		
 		List<ArquivoInfoDTO> sucesso = new ArrayList<>();
 		List<ArquivoInfoDTO> falha = new ArrayList<>();
-		
-		for (int i = 0; i < excluirArquivo.size(); i++) {
-			try {
-				ArquivoInfoDTO arquivoInfoDTO = (ArquivoInfoDTO) fileStorageService.deletarNoDisco(raizProduto, excluirArquivo.get(i));
-				if (arquivoInfoDTO != null)
-					falha.add(arquivoInfoDTO);
-				
-				UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(uriBuilderBase.toUriString());
-				String novoNomeGerado = gerarNomeArquivoProduto(arquivos[i]);
-				fileStorageService.salvarNoDisco(raizProduto, novoNomeGerado, arquivos[i].getBytes());
-				URI uri = uriBuilder.path("/arquivo-produto/" + novoNomeGerado).build().toUri();
-				
-				sucesso.add(ArquivoInfoDTO.comUri(novoNomeGerado, uri.toString(), arquivos[i].getBytes()));
-			} catch (FileStorageException e) {
-				falha.add(ArquivoInfoDTO.comErro(arquivos[i].getOriginalFilename(), e.getMessage()));
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		for (ResultadoAlteracao resultado : resultados) {
+			falha.addAll(resultado.falhas());
+			if (resultado.sucesso() != null)
+				sucesso.add(resultado.sucesso());
 		}
 		
 		return new RespostaAlterarArquivosDTO(sucesso, falha);
 	}
+	
+	/**
+	 * Grava o arquivo de uma sessão completa. Uma sessão incompleta ou já sendo concluída lança
+	 * UploadEmConflitoException, um conteúdo diferente do tipo declarado lança ValidacaoException e
+	 * uma falha ao gravar lança FileStorageException; nas falhas a sessão continua disponível.
+	 */
+	public ArquivoInfoDTO concluirUploadRetomavel(String idSessao, UriComponentsBuilder uriBuilderBase) {
+		SessaoUploadDTO sessao = uploadRetomavelService.consultar(idSessao);
+		String nomeArquivo = gerarNomeArquivoProduto(sessao.tipoConteudo());
+		InputStream dados;
+		try {
+			dados = uploadRetomavelService.abrirConcluido(idSessao);
+		} catch (IOException e) {
+			throw new FileStorageException("Não foi possivel ler o arquivo enviado", e);
+		}
+		try {
+			try (InputStream conteudo = abrirConcluidoVerificado(dados, sessao.tipoConteudo().split("/")[1])) {
+				fileStorageService.salvarNoDisco(raizProduto, nomeArquivo, conteudo);
+			}
+		} catch (IOException e) {
+			uploadRetomavelService.liberarConclusao(idSessao);
+			throw new FileStorageException("Não foi possivel ler o arquivo enviado", e);
+		} catch (RuntimeException e) {
+			uploadRetomavelService.liberarConclusao(idSessao);
+			throw e;
+		}
+		uploadRetomavelService.removerConcluida(idSessao);
+		otimizacaoImagemService.enfileirar(raizProduto, nomeArquivo);
+		inicioRapidoMp4Service.processar(raizProduto, nomeArquivo);
+		UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(uriBuilderBase.toUriString());
+		URI uri = uriBuilder.path("/arquivo-produto/" + nomeArquivo).build().toUri();
+		return ArquivoInfoDTO.comUriENomeAntigoArquivo(nomeArquivo, sessao.nomeArquivo(), uri.toString());
+	}
 
 	
 //
 // METODOS UTILITARIOS DE PRODUTO
 //	
 
+	/**
+	 * O conteúdo já está todo no servidor, então não corresponder ao tipo declarado é erro de quem enviou.
+	 */
+	private InputStream abrirConcluidoVerificado(InputStream dados, String subtipo) throws IOException {
+		try {
+			return FormatoArquivo.abrirVerificado(dados, subtipo);
+		} catch (FileStorageException e) {
+			throw new ValidacaoException(e.getMessage());
+		} catch (IOException e) {
+			dados.close();
+			throw e;
+		}
+	}
+
+	private ArquivoInfoDTO persistirImagem(MultipartFile arquivo, UriComponentsBuilder uriBuilderBase) {
+		try {
+			String nomeArquivo = gerarNomeArquivoProduto(arquivo);
+			try (InputStream conteudo = abrirConteudoVerificado(arquivo)) {
+				fileStorageService.salvarNoDisco(raizProduto, nomeArquivo, conteudo);
+			}
+			otimizacaoImagemService.enfileirar(raizProduto, nomeArquivo);
+			inicioRapidoMp4Service.processar(raizProduto, nomeArquivo);
+			UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(uriBuilderBase.toUriString());
+			URI uri = uriBuilder.path("/arquivo-produto/" + nomeArquivo).build().toUri();
+			return ArquivoInfoDTO.comUriENomeAntigoArquivo(nomeArquivo, arquivo.getOriginalFilename(), uri.toString());
+		} catch (FileStorageException e) {
+			return ArquivoInfoDTO.comErro(arquivo.getOriginalFilename(), e.getMessage());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return ArquivoInfoDTO.comErro(arquivo.getOriginalFilename(), "Não foi possivel ler o arquivo enviado");
+		}
+	}
+	
+	private ResultadoAlteracao alterarImagem(MultipartFile arquivo, String nomeArquivoASerExcluido, UriComponentsBuilder uriBuilderBase) {
+		List<ArquivoInfoDTO> falhas = new ArrayList<>();
+		try {
+			ArquivoInfoDTO arquivoInfoDTO = (ArquivoInfoDTO) fileStorageService.deletarNoDisco(raizProduto, nomeArquivoASerExcluido);
+			if (arquivoInfoDTO != null)
+				falhas.add(arquivoInfoDTO);
+			
+			UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(uriBuilderBase.toUriString());
+			String novoNomeGerado = gerarNomeArquivoProduto(arquivo);
+			try (InputStream conteudo = abrirConteudoVerificado(arquivo)) {
+				fileStorageService.salvarNoDisco(raizProduto, novoNomeGerado, conteudo);
+			}
+			otimizacaoImagemService.enfileirar(raizProduto, novoNomeGerado);
+			inicioRapidoMp4Service.processar(raizProduto, novoNomeGerado);
+			URI uri = uriBuilder.path("/arquivo-produto/" + novoNomeGerado).build().toUri();
+			
+			return new ResultadoAlteracao(ArquivoInfoDTO.comUriENomeAntigoArquivo(novoNomeGerado, arquivo.getOriginalFilename(), uri.toString()), falhas);
+		} catch (FileStorageException e) {
+			falhas.add(ArquivoInfoDTO.comErro(arquivo.getOriginalFilename(), e.getMessage()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			falhas.add(ArquivoInfoDTO.comErro(arquivo.getOriginalFilename(), "Não foi possivel ler o arquivo enviado"));
+		}
+		return new ResultadoAlteracao(null, falhas);
+	}
+	
+	private record ResultadoAlteracao(ArquivoInfoDTO sucesso, List<ArquivoInfoDTO> falhas) {
+	}
+	
 	private String gerarNomeArquivoProduto(MultipartFile arquivo) {
-		String[] contentType = arquivo.getContentType().split("/");
+		return gerarNomeArquivoProduto(arquivo.getContentType());
+	}
+	
+	private String gerarNomeArquivoProduto(String tipoConteudo) {
+		String[] contentType = tipoConteudo.split("/");
 		if (!contentType[1].contains("jpg") && !contentType[1].contains("jpeg") && !contentType[1].contains("png")
 				&& !contentType[1].contains("mp4") && !contentType[1].contains("avi")) {
 			throw new FileStorageException("Os tipos aceitos são jpg, jpeg, png, mp4 e avi");
 		}
-		String stringUnica = FileStorageService.gerarStringUnica();
-		return stringUnica + "." + contentType[1];
+		return geradorNomeArquivoService.gerar() + "." + contentType[1];
+	}
+	
+	private InputStream abrirConteudoVerificado(MultipartFile arquivo) throws IOException {
+		String[] contentType = arquivo.getContentType().split("/");
+		return FormatoArquivo.abrirVerificado(arquivo.getInputStream(), contentType[1]);
 	}
 	
     public byte[] recuperarBytesArquivoProdutoDoDisco(String nomeArquivoProduto) {
@@ -113,8 +232,10 @@ public class FileStorageProdutoService {
 	        // Imprimir o diretório atual
 	        System.out.println(" O diretorio atual é: " + diretorioAtual);
 			
-			FileUrlResource fileUrlResource = new FileUrlResource(raizProduto + "/" + nomeArquivoProduto);
-			byte[] bytes = fileUrlResource.getContentAsByteArray();
+			byte[] bytes;
+			try (InputStream conteudo = fileStorageService.abrir(fileStorageService.localizarArquivo(raizProduto, nomeArquivoProduto))) {
+				bytes = conteudo.readAllBytes();
+			}
 			byte[] bytesBase64 = Base64Utils.codificarParaBase64(bytes);
 			return bytesBase64;
 		} catch (IOException e) {
@@ -124,13 +245,8 @@ public class FileStorageProdutoService {
 	}
 
 	public void verificarSeExisteArquivoProdutoPorNome(String nome) {
-		try {
-			FileUrlResource fileUrlResource = new FileUrlResource(raizProduto + "/" + nome);
-			if (!fileUrlResource.exists()) {
-				throw new ValidacaoException("Não existe arquivo-produto com o nome " + nome);
-			}
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+		if (!fileStorageService.existeArquivo(raizProduto, nome)) {
+			throw new ValidacaoException("Não existe arquivo-produto com o nome " + nome);
 		}
 	}
 
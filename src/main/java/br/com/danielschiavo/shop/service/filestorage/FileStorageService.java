@@ -1,30 +1,58 @@
 package br.com.danielschiavo.shop.service.filestorage;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.time.Instant;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.UUID;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import br.com.danielschiavo.shop.Base64Utils;
 import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
 import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
 
 @Service
 public class FileStorageService {
 	
-	public static String gerarStringUnica() {
-        String string = UUID.randomUUID().toString();
-        int divisao = string.length() / 3;
-        long timestamp = Instant.now().toEpochMilli();
-        String substring = string.substring(0, divisao);
-        return substring + timestamp;
-    }
+	public static final String NOME_IMAGEM_PADRAO = "Padrao.jpeg";
+	
+	@Autowired
+	private CacheArquivosService cacheArquivosService;
+	
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+	
+	@Autowired
+	private ExecutorArquivosService executorArquivosService;
+	
+	@Autowired
+	private DerivadaImagemService derivadaImagemService;
+	
+	@Autowired
+	private MetadadosMidiaService metadadosMidiaService;
+	
+	@Autowired
+	private CatalogoArquivosService catalogoArquivosService;
+	
+	@Autowired
+	private ListagemArquivosService listagemArquivosService;
+	
+	@Value("${shop.filestorage.leitura.paralelismo-por-requisicao:8}")
+	private int paralelismoLeituraPorRequisicao;
 	
 	public Object deletarNoDisco(Path caminho, String... nomesImagens) {
 		verificacaoDiretorioAtual();
@@ -32,12 +60,24 @@ public class FileStorageService {
 		List<ArquivoInfoDTO> listaArquivosInfoDTO = new ArrayList<>();
 		
 		for (String nomeImagem : nomesImagens) {
-			if (nomeImagem.equals("Padrao.jpeg"))
+			if (nomeImagem.equals(NOME_IMAGEM_PADRAO))
 				throw new FileStorageException("O arquivo não pode ser excluido porque é a imagem padrão para produtos sem fotos.");
 			
 			try {
-				if (!Files.deleteIfExists(caminho.resolve(nomeImagem)))
+				// miniaturas e metadados saem junto com o original, nunca sozinhos
+				if (DerivadaImagemService.ehDerivada(nomeImagem))
 					throw new FileStorageException("O arquivo não existe, portanto não foi possivel exclui-lo");
+				boolean arquivoLocal = armazenamentoBackend.caminhoLocal(caminho, nomeImagem).isPresent();
+				boolean deletado = armazenamentoBackend.deletar(caminho, nomeImagem);
+				// depois da exclusão, para que uma leitura concorrente não recoloque o arquivo no cache
+				cacheArquivosService.invalidar(caminho, nomeImagem);
+				if (!deletado)
+					throw new FileStorageException("O arquivo não existe, portanto não foi possivel exclui-lo");
+				catalogoArquivosService.remover(caminho, nomeImagem);
+				listagemArquivosService.remover(caminho, nomeImagem);
+				metadadosMidiaService.remover(caminho, nomeImagem);
+				if (arquivoLocal)
+					derivadaImagemService.deletarDerivadas(caminho, nomeImagem);
 			} catch (IOException e) {
 				e.printStackTrace();
 			} catch (FileStorageException e) {
@@ -45,47 +85,212 @@ public class FileStorageService {
 			}
 		}
 		
-		return nomesImagens.length > 1 ? 
-				listaArquivosInfoDTO.get(0) : 
-					listaArquivosInfoDTO;
+		if (nomesImagens.length == 1)
+			return listaArquivosInfoDTO.isEmpty() ? null : listaArquivosInfoDTO.get(0);
+		return listaArquivosInfoDTO;
 		
 	}
 	
 	public void salvarNoDisco(Path caminho, String nomesImagens, byte[] bytes) {
+		salvarNoDisco(caminho, nomesImagens, new ByteArrayInputStream(bytes));
+	}
+	
+	/**
+	 * Entrega o conteúdo em streaming ao backend de armazenamento; o upload nunca fica inteiro
+	 * na memória e ninguém lê um arquivo pela metade. Os primeiros bytes que passam pelo stream
+	 * são aproveitados para extrair os metadados de mídia e o CRC é calculado no caminho, então
+	 * nada precisa reler o arquivo.
+	 */
+	public void salvarNoDisco(Path caminho, String nomesImagens, InputStream conteudo) {
 		verificacaoDiretorioAtual();
+		catalogoArquivosService.validarNome(nomesImagens);
 		
 		try {
-			Files.write(caminho.resolve(nomesImagens), bytes, StandardOpenOption.CREATE_NEW);
+			CheckedInputStream verificado = new CheckedInputStream(conteudo, new CRC32());
+			MetadadosMidiaService.CapturaCabecalho captura = metadadosMidiaService.capturar(verificado);
+			armazenamentoBackend.gravar(caminho, nomesImagens, captura);
+			cacheArquivosService.invalidar(caminho, nomesImagens);
+			catalogoArquivosService.registrar(caminho, nomesImagens, captura.cabecalho(), verificado.getChecksum().getValue());
+			listagemArquivosService.registrar(caminho, nomesImagens);
+			metadadosMidiaService.registrar(caminho, nomesImagens, captura.cabecalho());
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new FileStorageException("Não foi possivel salvar o arquivo " + nomesImagens + " no disco");
 		}
 	}
 	
+	/**
+	 * Troca o conteúdo de um arquivo existente pelo de um temporário da mesma raiz, se ele ainda
+	 * tiver os metadados lidos antes de gerar o temporário. Devolve false quando o arquivo foi
+	 * substituído ou excluído nesse meio tempo.
+	 */
+	public boolean substituirNoDisco(Path caminho, String nomeArquivo, Path novoConteudo, MetadadosArquivo esperado) {
+		try {
+			if (!armazenamentoBackend.substituir(caminho, nomeArquivo, novoConteudo, esperado))
+				return false;
+			cacheArquivosService.invalidar(caminho, nomeArquivo);
+			catalogoArquivosService.registrarLendoConteudo(caminho, nomeArquivo);
+			listagemArquivosService.registrar(caminho, nomeArquivo);
+			metadadosMidiaService.atualizar(caminho, nomeArquivo);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel substituir o arquivo " + nomeArquivo + " no disco");
+		}
+	}
+	
+	/**
+	 * Cria o destino com o mesmo conteúdo da origem sem passar os bytes pela aplicação: hard link
+	 * no disco local, cópia do lado do servidor no S3. Devolve false, sem alterar nada, quando o
+	 * destino já existe (outra requisição ou outra instância criou o mesmo nome antes).
+	 */
+	public boolean vincularNoDisco(Path caminhoOrigem, String nomeOrigem, Path caminhoDestino, String nomeDestino) {
+		verificacaoDiretorioAtual();
+		catalogoArquivosService.validarNome(nomeDestino);
+		
+		try {
+			armazenamentoBackend.copiar(caminhoOrigem, nomeOrigem, caminhoDestino, nomeDestino);
+			cacheArquivosService.invalidar(caminhoDestino, nomeDestino);
+			catalogoArquivosService.copiar(caminhoOrigem, nomeOrigem, caminhoDestino, nomeDestino);
+			listagemArquivosService.registrar(caminhoDestino, nomeDestino);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (NoSuchFileException e) {
+			throw new FileStorageException("O arquivo " + nomeOrigem + " não existe");
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel salvar o arquivo " + nomeDestino + " no disco");
+		}
+	}
+	
     public Object recuperarBytesImagemDoDisco(Path caminho, String... nomesImagens) {
     	verificacaoDiretorioAtual();
 
-    	String nomeAtual = null;
-    	List<ArquivoInfoDTO> listaArquivosInfoDTO = new ArrayList<>();
-
-		for (String nome : nomesImagens) {
-			try {
-				nomeAtual = nome;
-				byte[] allBytes = Files.readAllBytes(caminho.resolve(nome));
-				byte[] allBytesBase64 = Base64Utils.codificarParaBase64(allBytes);
-				listaArquivosInfoDTO.add(new ArquivoInfoDTO(nome, allBytesBase64));
-			} catch (IOException e) {
-				listaArquivosInfoDTO.add(ArquivoInfoDTO.comErro(nome, "Não foi possivel recuperar os bytes do arquivo nome " + nomeAtual
-						+ ", motivo: " + e.getMessage()));
-				e.printStackTrace();
-			}
-		}
+    	List<ArquivoInfoDTO> listaArquivosInfoDTO = executorArquivosService.processarEmOrdem(Arrays.asList(nomesImagens),
+    			paralelismoLeituraPorRequisicao, nome -> recuperarBytesImagem(caminho, nome));
 		
 		return listaArquivosInfoDTO.size() == 1 ? 
 				listaArquivosInfoDTO.get(0) : 
 					listaArquivosInfoDTO;
 	}
     
+    private ArquivoInfoDTO recuperarBytesImagem(Path caminho, String nome) {
+    	try {
+    		byte[] allBytes = cacheArquivosService.lerBytes(caminho, nome);
+    		byte[] allBytesBase64 = Base64Utils.codificarParaBase64(allBytes);
+    		return new ArquivoInfoDTO(nome, allBytesBase64);
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		return ArquivoInfoDTO.comErro(nome, "Não foi possivel recuperar os bytes do arquivo nome " + nome
+    				+ ", motivo: " + e.getMessage());
+    	}
+    }
+    
+    /**
+     * No armazenamento local devolve o caminho real do arquivo; nos remotos, e para arquivos guardados
+     * em segmentos, devolve o caminho lógico raiz/nome, que deve ser lido por metadados, abrir e
+     * abrirIntervalo deste serviço.
+     */
+    public Path localizarArquivo(Path caminho, String nomeArquivo) {
+    	Path arquivo = resolverArquivoExistente(caminho, nomeArquivo);
+    	if (arquivo == null)
+    		throw new FileStorageException("O arquivo " + nomeArquivo + " não existe");
+    	return arquivo;
+    }
+    
+    /**
+     * Responde pelo catálogo quando ele está pronto e tem o arquivo; um nome ausente ainda é
+     * conferido no armazenamento, que pode ter recebido o arquivo por fora da aplicação.
+     */
+    public boolean existeArquivo(Path caminho, String nomeArquivo) {
+    	if (catalogoArquivosService.isPronto() && catalogoArquivosService.buscar(caminho, nomeArquivo) != null)
+    		return true;
+    	return resolverArquivoExistente(caminho, nomeArquivo) != null;
+    }
+    
+    public List<Path> localizarArquivos(Path caminho, String... nomesArquivos) {
+    	List<Path> arquivos = new ArrayList<>();
+    	for (String nome : nomesArquivos) {
+    		Path arquivo = resolverArquivoExistente(caminho, nome);
+    		if (arquivo == null)
+    			return List.of();
+    		arquivos.add(arquivo);
+    	}
+    	return arquivos;
+    }
+    
+    /**
+     * Largura, altura e duração lidas dos cabeçalhos do arquivo, sem transmitir o conteúdo.
+     */
+    public MetadadosMidiaDTO metadadosMidia(Path caminho, String nomeArquivo) {
+    	if (DerivadaImagemService.ehDerivada(nomeArquivo))
+    		throw new ValidacaoException("O nome " + nomeArquivo + " não é de um arquivo original");
+    	localizarArquivo(caminho, nomeArquivo);
+    	return metadadosMidiaService.obter(caminho, nomeArquivo);
+    }
+    
+    public boolean isArmazenamentoLocal() {
+    	return armazenamentoBackend.isLocal();
+    }
+    
+    /**
+     * Indica se o caminho devolvido por localizarArquivo é um arquivo de verdade no disco, que pode ser
+     * aberto direto (FileChannel, sendfile), ou um caminho lógico.
+     */
+    public boolean isArquivoLocal(Path arquivo) {
+    	return isArmazenamentoLocal() && Files.isRegularFile(arquivo);
+    }
+    
+    /**
+     * O arquivo pode sumir entre localizarArquivo e esta chamada; nesse caso lança FileStorageException,
+     * como o próprio localizarArquivo.
+     */
+    public MetadadosArquivo metadados(Path arquivo) throws IOException {
+    	MetadadosArquivo metadados;
+    	try {
+    		if (isArquivoLocal(arquivo)) {
+    			BasicFileAttributes atributos = Files.readAttributes(arquivo, BasicFileAttributes.class);
+    			return new MetadadosArquivo(atributos.size(), atributos.lastModifiedTime().toMillis());
+    		}
+    		metadados = armazenamentoBackend.metadados(arquivo.getParent(), arquivo.getFileName().toString());
+    	} catch (NoSuchFileException e) {
+    		metadados = null;
+    	}
+    	if (metadados == null)
+    		throw new FileStorageException("O arquivo " + arquivo.getFileName() + " não existe");
+    	return metadados;
+    }
+    
+    public InputStream abrir(Path arquivo) throws IOException {
+    	if (isArquivoLocal(arquivo))
+    		return Files.newInputStream(arquivo);
+    	return armazenamentoBackend.abrir(arquivo.getParent(), arquivo.getFileName().toString());
+    }
+    
+    public InputStream abrirIntervalo(Path arquivo, long inicio, long quantidade) throws IOException {
+    	return armazenamentoBackend.abrirIntervalo(arquivo.getParent(), arquivo.getFileName().toString(), inicio, quantidade);
+    }
+    
+    /**
+     * Null só quando o arquivo não existe; uma falha ao consultar o backend sobe como
+     * UncheckedIOException, para não virar um 404 de arquivo inexistente. Nomes com o marcador de
+     * derivada (miniaturas e o &lt;nome&gt;@meta.properties) não são arquivos enviados e nunca são
+     * localizados por aqui: as miniaturas saem de DerivadaImagemService.obterDerivada a partir do original.
+     */
+    private Path resolverArquivoExistente(Path caminho, String nomeArquivo) {
+    	if (DerivadaImagemService.ehDerivada(nomeArquivo))
+    		return null;
+    	Optional<Path> arquivoLocal = armazenamentoBackend.caminhoLocal(caminho, nomeArquivo);
+    	if (arquivoLocal.isPresent())
+    		return arquivoLocal.get().normalize().startsWith(caminho.normalize()) ? arquivoLocal.get() : null;
+    	try {
+    		return armazenamentoBackend.existe(caminho, nomeArquivo) ? caminho.resolve(nomeArquivo) : null;
+    	} catch (IOException e) {
+    		throw new UncheckedIOException("Não foi possivel consultar o arquivo " + nomeArquivo + " no armazenamento", e);
+    	}
+    }
+    
     public void verificacaoDiretorioAtual() {
     	String diretorioAtual = System.getProperty("user.dir");
     	System.out.println(" O diretorio atual é: " + diretorioAtual);
@@ -0,0 +1,70 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+
+/**
+ * Formatos aceitos pelo armazenamento, reconhecidos pelos primeiros bytes do conteúdo
+ * (assinatura do arquivo), sem precisar carregar o arquivo inteiro.
+ */
+public enum FormatoArquivo {
+
+	JPEG, PNG, MP4, AVI;
+
+	static final int TAMANHO_CABECALHO = 12;
+
+	public static FormatoArquivo detectar(byte[] cabecalho, int tamanho) {
+		if (tamanho >= 3 && (cabecalho[0] & 0xFF) == 0xFF && (cabecalho[1] & 0xFF) == 0xD8 && (cabecalho[2] & 0xFF) == 0xFF)
+			return JPEG;
+		if (tamanho >= 8 && (cabecalho[0] & 0xFF) == 0x89 && texto(cabecalho, 1, 3).equals("PNG")
+				&& cabecalho[4] == 0x0D && cabecalho[5] == 0x0A && cabecalho[6] == 0x1A && cabecalho[7] == 0x0A)
+			return PNG;
+		if (tamanho >= 12 && texto(cabecalho, 0, 4).equals("RIFF") && texto(cabecalho, 8, 4).equals("AVI "))
+			return AVI;
+		if (tamanho >= 8) {
+			String caixa = texto(cabecalho, 4, 4);
+			if (caixa.equals("ftyp") || caixa.equals("moov") || caixa.equals("mdat") || caixa.equals("free") || caixa.equals("wide"))
+				return MP4;
+		}
+		return null;
+	}
+
+	public static FormatoArquivo doSubtipo(String subtipo) {
+		if (subtipo.contains("jpg") || subtipo.contains("jpeg"))
+			return JPEG;
+		if (subtipo.contains("png"))
+			return PNG;
+		if (subtipo.contains("mp4"))
+			return MP4;
+		if (subtipo.contains("avi"))
+			return AVI;
+		return null;
+	}
+
+	/**
+	 * Lê só o cabeçalho do conteúdo para confirmar que ele é do formato declarado no Content-Type
+	 * e devolve um stream posicionado de volta no início, pronto para ser gravado.
+	 */
+	public static InputStream abrirVerificado(InputStream entrada, String subtipoDeclarado) throws IOException {
+		BufferedInputStream conteudo = new BufferedInputStream(entrada);
+		conteudo.mark(TAMANHO_CABECALHO);
+		byte[] cabecalho = conteudo.readNBytes(TAMANHO_CABECALHO);
+		conteudo.reset();
+
+		FormatoArquivo declarado = doSubtipo(subtipoDeclarado);
+		if (declarado == null || declarado != detectar(cabecalho, cabecalho.length)) {
+			conteudo.close();
+			throw new FileStorageException("O conteúdo do arquivo não corresponde ao tipo " + subtipoDeclarado);
+		}
+		return conteudo;
+	}
+
+	private static String texto(byte[] bytes, int inicio, int tamanho) {
+		return new String(bytes, inicio, tamanho, StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,137 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Gera os nomes dos arquivos de produto e perfil (e, por tabela, os de pedido, que são derivados
+ * deles) no estilo Snowflake: 41 bits de milissegundos desde 2024, 10 bits do nó e 12 bits de
+ * sequência, codificados em 13 caracteres base32 Crockford minúsculos. Com largura fixa, a ordem
+ * alfabética dos nomes é a ordem em que foram gerados, então um intervalo de datas vira um
+ * intervalo de nomes.
+ * Não há aleatoriedade nem trava: o estado (instante e sequência) fica num AtomicLong atualizado
+ * por CAS. Se a sequência de um milissegundo acaba ou o relógio volta, o gerador segue a partir do
+ * último valor emitido, então os nomes nunca se repetem nem andam para trás dentro do processo.
+ * Entre instâncias a unicidade vem do nó, que deve ser configurado diferente em cada uma.
+ */
+@Service
+public class GeradorNomeArquivoService {
+
+	static final long EPOCA = 1704067200000L;
+
+	static final int BITS_NO = 10;
+
+	static final int BITS_SEQUENCIA = 12;
+
+	static final int TAMANHO_NOME = 13;
+
+	private static final long MASCARA_SEQUENCIA = (1L << BITS_SEQUENCIA) - 1;
+
+	private static final char[] ALFABETO = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+
+	private final int no;
+
+	private final AtomicLong ultimo = new AtomicLong();
+
+	public GeradorNomeArquivoService(@Value("${shop.filestorage.nome.no:-1}") int no) {
+		this.no = no >= 0 ? no & ((1 << BITS_NO) - 1) : noPadrao();
+	}
+
+	public String gerar() {
+		long candidato = (System.currentTimeMillis() - EPOCA) << BITS_SEQUENCIA;
+		long estado = ultimo.accumulateAndGet(candidato, (anterior, agora) -> Math.max(anterior + 1, agora));
+		long id = (estado >>> BITS_SEQUENCIA) << (BITS_NO + BITS_SEQUENCIA) | (long) no << BITS_SEQUENCIA | (estado & MASCARA_SEQUENCIA);
+		return codificar(id);
+	}
+
+	public int getNo() {
+		return no;
+	}
+
+	/**
+	 * Instante em que o nome foi gerado, ou null se ele não veio deste gerador (nomes antigos).
+	 */
+	public static Instant instante(String nomeArquivo) {
+		long id = decodificar(nomeArquivo);
+		return id < 0 ? null : Instant.ofEpochMilli((id >>> (BITS_NO + BITS_SEQUENCIA)) + EPOCA);
+	}
+
+	/**
+	 * Nó que gerou o nome, para rotear o arquivo para a instância ou o fragmento dono dele; -1 para
+	 * nomes antigos.
+	 */
+	public static int no(String nomeArquivo) {
+		long id = decodificar(nomeArquivo);
+		return id < 0 ? -1 : (int) ((id >>> BITS_SEQUENCIA) & ((1 << BITS_NO) - 1));
+	}
+
+	/**
+	 * Menor nome possível gerado a partir do instante: nomes gerados em [desde, ate) ficam entre
+	 * limiteInferior(desde), inclusivo, e limiteInferior(ate), exclusivo.
+	 */
+	public static String limiteInferior(Instant instante) {
+		long milissegundos = Math.max(0, instante.toEpochMilli() - EPOCA);
+		return codificar(milissegundos << (BITS_NO + BITS_SEQUENCIA));
+	}
+
+
+//
+// METODOS UTILITARIOS DO GERADOR
+//
+
+	private static String codificar(long id) {
+		char[] nome = new char[TAMANHO_NOME];
+		for (int i = TAMANHO_NOME - 1; i >= 0; i--) {
+			nome[i] = ALFABETO[(int) (id & 31)];
+			id >>>= 5;
+		}
+		return new String(nome);
+	}
+
+	/**
+	 * Lê os 13 primeiros caracteres do nome (antes da extensão); -1 quando não é um nome gerado.
+	 */
+	private static long decodificar(String nomeArquivo) {
+		if (nomeArquivo.length() < TAMANHO_NOME || (nomeArquivo.length() > TAMANHO_NOME && nomeArquivo.charAt(TAMANHO_NOME) != '.'))
+			return -1;
+		// o primeiro caractere carrega os 4 bits mais altos, mas o de sinal é sempre zero: sobram 3 bits (0 a 7)
+		if (nomeArquivo.charAt(0) > '7')
+			return -1;
+		long id = 0;
+		for (int i = 0; i < TAMANHO_NOME; i++) {
+			int valor = indice(nomeArquivo.charAt(i));
+			if (valor < 0)
+				return -1;
+			id = id << 5 | valor;
+		}
+		return id;
+	}
+
+	private static int indice(char caractere) {
+		for (int i = 0; i < ALFABETO.length; i++)
+			if (ALFABETO[i] == caractere)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Sem configuração, o nó sai do nome da máquina e do pid; em várias instâncias é melhor fixar
+	 * shop.filestorage.nome.no para não depender de 10 bits de hash.
+	 */
+	private static int noPadrao() {
+		String maquina;
+		try {
+			maquina = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			maquina = "";
+		}
+		int hash = (maquina + ":" + ProcessHandle.current().pid()).hashCode();
+		return (hash ^ hash >>> 10 ^ hash >>> 20) & ((1 << BITS_NO) - 1);
+	}
+
+}
@@ -0,0 +1,185 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Índice em memória de nome da imagem do produto para o nome da imagem do pedido já gravada,
+ * para que o checkout não precise varrer imagens/pedido a cada pedido. É montado uma vez na
+ * inicialização e mantido pelas gravações; opcionalmente um WatchService acompanha alterações
+ * feitas no diretório por fora da aplicação, inclusive nos subdiretórios do layout fragmentado.
+ */
+@Service
+public class IndiceImagemPedidoService {
+
+	private static final String PREFIXO = "PRODID";
+
+	/**
+	 * Trocado inteiro quando o índice é remontado, para as buscas nunca verem um índice vazio.
+	 */
+	private volatile Map<String, String> imagemPedidoPorImagemProduto = new ConcurrentHashMap<>();
+
+	private final boolean observarDiretorio;
+
+	private WatchService watchService;
+
+	private final Map<WatchKey, Path> diretoriosObservados = new ConcurrentHashMap<>();
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	public IndiceImagemPedidoService(@Value("${shop.filestorage.pedido.indice.observar-diretorio:false}") boolean observarDiretorio) {
+		this.observarDiretorio = observarDiretorio;
+	}
+
+	@PostConstruct
+	public void carregar() {
+		reconstruir();
+		if (observarDiretorio && Files.isDirectory(FileStoragePedidoService.raizPedido))
+			iniciarObservacao(FileStoragePedidoService.raizPedido);
+	}
+
+	public String buscar(String nomeImagemProduto) {
+		return imagemPedidoPorImagemProduto.get(nomeImagemProduto);
+	}
+
+	public void registrar(String nomeImagemPedido) {
+		String nomeImagemProduto = extrairNomeImagemProduto(nomeImagemPedido);
+		if (nomeImagemProduto != null)
+			imagemPedidoPorImagemProduto.putIfAbsent(nomeImagemProduto, nomeImagemPedido);
+	}
+
+	/**
+	 * Monta um índice novo a partir da listagem da raiz e só então o publica no lugar do atual.
+	 */
+	public void reconstruir() {
+		Map<String, String> novoIndice = new ConcurrentHashMap<>();
+		try {
+			for (String nomeImagemPedido : armazenamentoBackend.listar(FileStoragePedidoService.raizPedido)) {
+				String nomeImagemProduto = extrairNomeImagemProduto(nomeImagemPedido);
+				if (nomeImagemProduto != null)
+					novoIndice.putIfAbsent(nomeImagemProduto, nomeImagemPedido);
+			}
+		} catch (IOException e) {
+			throw new FileStorageException("Falha ao montar o índice de imagens do pedido.", e);
+		}
+		imagemPedidoPorImagemProduto = novoIndice;
+	}
+
+	public void remover(String nomeImagemPedido) {
+		String nomeImagemProduto = extrairNomeImagemProduto(nomeImagemPedido);
+		if (nomeImagemProduto != null)
+			imagemPedidoPorImagemProduto.remove(nomeImagemProduto, nomeImagemPedido);
+	}
+
+	@PreDestroy
+	public void encerrar() throws IOException {
+		if (watchService != null)
+			watchService.close();
+	}
+
+
+//
+// METODOS UTILITARIOS DO INDICE
+//
+
+	void iniciarObservacao(Path raiz) {
+		try {
+			watchService = raiz.getFileSystem().newWatchService();
+			observarArvore(raiz);
+		} catch (IOException e) {
+			throw new FileStorageException("Falha ao observar o diretório de imagens do pedido.", e);
+		}
+
+		Thread observador = new Thread(this::observar, "indice-imagem-pedido");
+		observador.setDaemon(true);
+		observador.start();
+	}
+
+	private void observar() {
+		try {
+			while (true) {
+				WatchKey chave = watchService.take();
+				Path diretorio = diretoriosObservados.get(chave);
+				for (WatchEvent<?> evento : chave.pollEvents())
+					tratar(evento, diretorio);
+				if (!chave.reset())
+					diretoriosObservados.remove(chave);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Registra o diretório e todos os subdiretórios (os fragmentos ab/cd do layout) no WatchService.
+	 */
+	private void observarArvore(Path diretorio) throws IOException {
+		try (Stream<Path> diretorios = Files.walk(diretorio)) {
+			for (Path atual : (Iterable<Path>) diretorios.filter(Files::isDirectory)::iterator)
+				diretoriosObservados.put(atual.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE), atual);
+		}
+	}
+
+	/**
+	 * Um fragmento novo passa a ser observado, e o que foi gravado nele antes do registro é
+	 * indexado na hora. Uma falha num evento é registrada e não derruba a thread do observador.
+	 */
+	private void tratar(WatchEvent<?> evento, Path diretorio) {
+		try {
+			if (evento.kind() == StandardWatchEventKinds.OVERFLOW || diretorio == null) {
+				reconstruir();
+				return;
+			}
+			String nome = evento.context().toString();
+			Path caminho = diretorio.resolve(nome);
+			if (evento.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(caminho)) {
+				observarArvore(caminho);
+				try (Stream<Path> arquivos = Files.walk(caminho)) {
+					arquivos.filter(Files::isRegularFile).forEach(arquivo -> registrar(arquivo.getFileName().toString()));
+				}
+			} else if (evento.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+				registrar(nome);
+			else
+				remover(nome);
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Falha ao atualizar o índice de imagens do pedido com o evento " + evento.kind() + " de " + evento.context());
+			e.printStackTrace();
+		}
+	}
+
+	static String extrairNomeImagemProduto(String nomeImagemPedido) {
+		if (!nomeImagemPedido.startsWith(PREFIXO))
+			return null;
+
+		int posicao = PREFIXO.length();
+		while (posicao < nomeImagemPedido.length() && Character.isDigit(nomeImagemPedido.charAt(posicao)))
+			posicao++;
+
+		if (posicao == PREFIXO.length() || posicao + 1 >= nomeImagemPedido.length() || nomeImagemPedido.charAt(posicao) != '-')
+			return null;
+
+		return nomeImagemPedido.substring(posicao + 1);
+	}
+
+}
@@ -0,0 +1,353 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Reorganiza vídeos MP4 enviados com o átomo moov no fim do arquivo ("fast start"): o moov passa
+ * para logo depois do ftyp e os deslocamentos de chunk das tabelas stco/co64 são corrigidos, para
+ * que o player comece a tocar sem baixar o arquivo inteiro. Arquivos pequenos são reorganizados
+ * durante o upload; os grandes vão para uma fila limitada em segundo plano.
+ */
+@Service
+public class InicioRapidoMp4Service {
+
+	private static final Set<String> CONTEINERES = Set.of("moov", "trak", "mdia", "minf", "stbl");
+
+	@Autowired
+	private FileStorageService fileStorageService;
+
+	private final boolean habilitado;
+
+	private final long limiteSincrono;
+
+	private final int tamanhoMaximoMoov;
+
+	private final ThreadPoolExecutor executor;
+
+	public InicioRapidoMp4Service(
+			@Value("${shop.filestorage.mp4-inicio-rapido.habilitado:true}") boolean habilitado,
+			@Value("${shop.filestorage.mp4-inicio-rapido.limite-sincrono:16777216}") long limiteSincrono,
+			@Value("${shop.filestorage.mp4-inicio-rapido.tamanho-maximo-moov:67108864}") int tamanhoMaximoMoov,
+			@Value("${shop.filestorage.mp4-inicio-rapido.capacidade-fila:20}") int capacidadeFila) {
+		this.habilitado = habilitado;
+		this.limiteSincrono = limiteSincrono;
+		this.tamanhoMaximoMoov = tamanhoMaximoMoov;
+		this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacidadeFila), tarefa -> {
+			Thread thread = new Thread(tarefa, "filestorage-mp4-inicio-rapido");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Reorganiza na hora um MP4 recém gravado até o limite síncrono, ou o agenda se for maior.
+	 * Devolve false quando o arquivo não é MP4 local ou a fila está cheia; o vídeo continua tocável,
+	 * só sem início rápido.
+	 */
+	public boolean processar(Path caminho, String nomeArquivo) {
+		if (!podeReescrever(nomeArquivo))
+			return false;
+
+		List<Path> encontrados = fileStorageService.localizarArquivos(caminho, nomeArquivo);
+		if (encontrados.isEmpty() || !fileStorageService.isArquivoLocal(encontrados.get(0)))
+			return false;
+		try {
+			if (Files.size(encontrados.get(0)) <= limiteSincrono) {
+				reorganizar(caminho, nomeArquivo);
+				return true;
+			}
+			executor.execute(() -> reorganizar(caminho, nomeArquivo));
+			return true;
+		} catch (IOException | RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Indica se o arquivo pode ser reescrito depois de publicado; esses arquivos não são servidos
+	 * como imutáveis.
+	 */
+	public boolean podeReescrever(String nomeArquivo) {
+		return habilitado && fileStorageService.isArmazenamentoLocal() && nomeArquivo.toLowerCase().endsWith(".mp4");
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		executor.shutdown();
+	}
+
+
+//
+// METODOS UTILITARIOS DE MP4
+//
+
+	/**
+	 * O tamanho costuma continuar o mesmo, então o temporário ganha uma modificação pelo menos um
+	 * segundo depois da original: o ETag (tamanho e segundos da modificação) muda e um If-Range com o
+	 * ETag antigo não mistura intervalos das duas organizações. A substituição só acontece se o
+	 * arquivo ainda é o que foi lido.
+	 */
+	boolean reorganizar(Path caminho, String nomeArquivo) {
+		Path temporario = null;
+		try {
+			List<Path> encontrados = fileStorageService.localizarArquivos(caminho, nomeArquivo);
+			if (encontrados.isEmpty() || !fileStorageService.isArquivoLocal(encontrados.get(0)))
+				return false;
+			Path original = encontrados.get(0);
+			MetadadosArquivo lido = new MetadadosArquivo(Files.size(original), Files.getLastModifiedTime(original).toMillis());
+
+			temporario = DurabilidadeArquivosService.criarTemporario(original.getParent());
+			if (!reescreverComMoovNoInicio(original, temporario, tamanhoMaximoMoov))
+				return false;
+			long modificacao = Math.max(System.currentTimeMillis(), (lido.ultimaModificacao() / 1000 + 1) * 1000);
+			Files.setLastModifiedTime(temporario, FileTime.fromMillis(modificacao));
+			return fileStorageService.substituirNoDisco(caminho, nomeArquivo, temporario, lido);
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (temporario != null) {
+				try {
+					Files.deleteIfExists(temporario);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	record Caixa(String tipo, long inicio, long tamanho) {
+
+		long fim() {
+			return inicio + tamanho;
+		}
+	}
+
+	/**
+	 * Lê as caixas do nível superior do arquivo ISO-BMFF e, se o moov estiver depois do primeiro
+	 * mdat, grava em destino ftyp (e o que mais vinha antes do mdat), moov com os deslocamentos
+	 * corrigidos e o resto na ordem original. Devolve false, sem gravar nada, quando o arquivo já
+	 * começa rápido, não é um MP4 reconhecível ou tem o moov comprimido ou grande demais.
+	 */
+	static boolean reescreverComMoovNoInicio(Path origem, Path destino, int tamanhoMaximoMoov) throws IOException {
+		try (FileChannel entrada = FileChannel.open(origem, StandardOpenOption.READ)) {
+			List<Caixa> caixas = lerCaixas(entrada);
+			Caixa moov = caixas.stream().filter(c -> c.tipo().equals("moov")).findFirst().orElse(null);
+			Caixa mdat = caixas.stream().filter(c -> c.tipo().equals("mdat")).findFirst().orElse(null);
+			if (moov == null || mdat == null || moov.inicio() < mdat.inicio() || moov.tamanho() > tamanhoMaximoMoov)
+				return false;
+
+			ByteBuffer conteudoMoov = ByteBuffer.allocate((int) moov.tamanho());
+			while (conteudoMoov.hasRemaining() && entrada.read(conteudoMoov, moov.inicio() + conteudoMoov.position()) > 0);
+			if (conteudoMoov.hasRemaining())
+				return false;
+			byte[] moovOriginal = conteudoMoov.array();
+
+			List<Caixa> ordem = new ArrayList<>();
+			caixas.stream().filter(c -> c != moov && c.inicio() < mdat.inicio()).forEach(ordem::add);
+			ordem.add(moov);
+			caixas.stream().filter(c -> c != moov && c.inicio() >= mdat.inicio()).forEach(ordem::add);
+
+			byte[] moovNovo = moovReposicionado(moovOriginal, ordem, moov);
+			if (moovNovo == null)
+				return false;
+
+			try (FileChannel saida = FileChannel.open(destino, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (Caixa caixa : ordem) {
+					if (caixa == moov) {
+						ByteBuffer buffer = ByteBuffer.wrap(moovNovo);
+						while (buffer.hasRemaining())
+							saida.write(buffer);
+						continue;
+					}
+					long copiados = 0;
+					while (copiados < caixa.tamanho())
+						copiados += entrada.transferTo(caixa.inicio() + copiados, caixa.tamanho() - copiados, saida);
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Moov com os deslocamentos das caixas na nova ordem, ou null quando não dá para corrigi-los.
+	 * Os deslocamentos dependem do tamanho do novo moov; começa com as tabelas como estão e, se
+	 * algum deslocamento passar de 4 GiB, converte tudo para co64 e recalcula.
+	 */
+	static byte[] moovReposicionado(byte[] moovOriginal, List<Caixa> ordem, Caixa moov) {
+		byte[] moovNovo = null;
+		long tamanhoMoovNovo = moovOriginal.length;
+		boolean co64 = false;
+		for (int tentativa = 0; tentativa < 4 && (moovNovo == null || moovNovo.length != tamanhoMoovNovo); tentativa++) {
+			if (moovNovo != null)
+				tamanhoMoovNovo = moovNovo.length;
+			moovNovo = reescreverMoov(moovOriginal, ordem, moov, tamanhoMoovNovo, co64);
+			if (moovNovo == null) {
+				if (co64)
+					return null;
+				co64 = true;
+			}
+		}
+		return moovNovo != null && moovNovo.length == tamanhoMoovNovo ? moovNovo : null;
+	}
+
+	private static List<Caixa> lerCaixas(FileChannel entrada) throws IOException {
+		List<Caixa> caixas = new ArrayList<>();
+		long tamanhoArquivo = entrada.size();
+		long posicao = 0;
+		while (posicao + 8 <= tamanhoArquivo) {
+			ByteBuffer cabecalho = ByteBuffer.allocate(16);
+			entrada.read(cabecalho, posicao);
+			cabecalho.flip();
+			long tamanho = cabecalho.getInt() & 0xFFFFFFFFL;
+			String tipo = tipo(cabecalho);
+			if (tamanho == 1) {
+				if (cabecalho.remaining() < 8)
+					return List.of();
+				tamanho = cabecalho.getLong();
+			} else if (tamanho == 0) {
+				tamanho = tamanhoArquivo - posicao;
+			}
+			if (tamanho < 8 || posicao + tamanho > tamanhoArquivo)
+				return List.of();
+			caixas.add(new Caixa(tipo, posicao, tamanho));
+			posicao += tamanho;
+		}
+		return posicao == tamanhoArquivo ? caixas : List.of();
+	}
+
+	/**
+	 * Reescreve o moov supondo que ele terá tamanhoMoovNovo bytes na nova posição. Devolve null se
+	 * um deslocamento não couber em stco (e converterParaCo64 for false) ou apontar para fora das caixas.
+	 */
+	private static byte[] reescreverMoov(byte[] moov, List<Caixa> ordem, Caixa moovOriginal, long tamanhoMoovNovo,
+			boolean converterParaCo64) {
+		List<long[]> novasPosicoes = new ArrayList<>();
+		long posicao = 0;
+		for (Caixa caixa : ordem) {
+			if (caixa != moovOriginal)
+				novasPosicoes.add(new long[] {caixa.inicio(), caixa.fim(), posicao});
+			posicao += caixa == moovOriginal ? tamanhoMoovNovo : caixa.tamanho();
+		}
+		try {
+			return reescreverCaixa(ByteBuffer.wrap(moov), novasPosicoes, converterParaCo64);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static byte[] reescreverCaixa(ByteBuffer caixa, List<long[]> novasPosicoes, boolean converterParaCo64) {
+		int inicio = caixa.position();
+		long tamanho = caixa.getInt() & 0xFFFFFFFFL;
+		String tipo = tipo(caixa);
+		int cabecalho = 8;
+		if (tamanho == 1) {
+			tamanho = caixa.getLong();
+			cabecalho = 16;
+		} else if (tamanho == 0) {
+			tamanho = caixa.limit() - inicio;
+		}
+		if (tamanho < cabecalho || inicio + tamanho > caixa.limit())
+			throw new IllegalArgumentException("Caixa " + tipo + " com tamanho inválido");
+		int fim = (int) (inicio + tamanho);
+
+		if (tipo.equals("cmov"))
+			throw new IllegalArgumentException("moov comprimido");
+
+		ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+		String tipoNovo = tipo;
+		if (CONTEINERES.contains(tipo)) {
+			caixa.position(inicio + cabecalho);
+			while (caixa.position() + 8 <= fim) {
+				ByteBuffer filho = caixa.slice(caixa.position(), fim - caixa.position());
+				int tamanhoFilho = tamanhoCaixa(filho);
+				filho.limit(tamanhoFilho);
+				corpo.writeBytes(reescreverCaixa(filho, novasPosicoes, converterParaCo64));
+				caixa.position(caixa.position() + tamanhoFilho);
+			}
+			corpo.write(caixa.array(), caixa.arrayOffset() + caixa.position(), fim - caixa.position());
+		} else if (tipo.equals("stco") || tipo.equals("co64")) {
+			caixa.position(inicio + cabecalho);
+			int versaoEFlags = caixa.getInt();
+			long quantidade = caixa.getInt() & 0xFFFFFFFFL;
+			boolean entrada64 = tipo.equals("co64");
+			if (cabecalho + 8 + quantidade * (entrada64 ? 8 : 4) > tamanho)
+				throw new IllegalArgumentException("Tabela " + tipo + " truncada");
+			boolean saida64 = entrada64 || converterParaCo64;
+			tipoNovo = saida64 ? "co64" : "stco";
+			ByteBuffer tabela = ByteBuffer.allocate((int) (8 + quantidade * (saida64 ? 8 : 4)));
+			tabela.putInt(versaoEFlags).putInt((int) quantidade);
+			for (long i = 0; i < quantidade; i++) {
+				long deslocamento = mapear(entrada64 ? caixa.getLong() : caixa.getInt() & 0xFFFFFFFFL, novasPosicoes);
+				if (saida64)
+					tabela.putLong(deslocamento);
+				else if (deslocamento > 0xFFFFFFFFL)
+					throw new IllegalArgumentException("Deslocamento não cabe em stco");
+				else
+					tabela.putInt((int) deslocamento);
+			}
+			corpo.writeBytes(tabela.array());
+		} else {
+			corpo.write(caixa.array(), caixa.arrayOffset() + inicio + cabecalho, fim - inicio - cabecalho);
+		}
+
+		byte[] bytesCorpo = corpo.toByteArray();
+		ByteBuffer resultado;
+		if (cabecalho == 16 || bytesCorpo.length + 8L > 0xFFFFFFFFL) {
+			resultado = ByteBuffer.allocate(16 + bytesCorpo.length);
+			resultado.putInt(1).put(tipoNovo.getBytes(StandardCharsets.ISO_8859_1)).putLong(16L + bytesCorpo.length);
+		} else {
+			resultado = ByteBuffer.allocate(8 + bytesCorpo.length);
+			resultado.putInt(8 + bytesCorpo.length).put(tipoNovo.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		resultado.put(bytesCorpo);
+		return resultado.array();
+	}
+
+	private static int tamanhoCaixa(ByteBuffer caixa) {
+		long tamanho = caixa.getInt(caixa.position()) & 0xFFFFFFFFL;
+		if (tamanho == 1 && caixa.remaining() >= 16)
+			tamanho = caixa.getLong(caixa.position() + 8);
+		else if (tamanho == 0)
+			tamanho = caixa.remaining();
+		if (tamanho < 8 || tamanho > caixa.remaining())
+			throw new IllegalArgumentException("Caixa filha com tamanho inválido");
+		return (int) tamanho;
+	}
+
+	private static long mapear(long deslocamento, List<long[]> novasPosicoes) {
+		for (long[] posicao : novasPosicoes)
+			if (deslocamento >= posicao[0] && deslocamento < posicao[1])
+				return posicao[2] + (deslocamento - posicao[0]);
+		throw new IllegalArgumentException("Deslocamento " + deslocamento + " fora das caixas de dados");
+	}
+
+	private static String tipo(ByteBuffer buffer) {
+		byte[] tipo = new byte[4];
+		buffer.get(tipo);
+		return new String(tipo, StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,99 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public record IntervaloBytes(
+		long inicio,
+		long fim
+		) {
+
+	static final int MAXIMO_INTERVALOS = 16;
+
+	public long tamanho() {
+		return fim - inicio + 1;
+	}
+
+	public String contentRange(long tamanhoArquivo) {
+		return "bytes " + inicio + "-" + fim + "/" + tamanhoArquivo;
+	}
+
+	/**
+	 * Interpreta o cabeçalho Range ("bytes=0-99,200-,-50") contra o tamanho do arquivo.
+	 * Devolve lista vazia quando o cabeçalho não é de bytes ou é malformado (o arquivo deve ir inteiro)
+	 * e lança {@link IntervaloInsatisfativelException} quando nenhum intervalo cai dentro do arquivo.
+	 * Intervalos sobrepostos ou adjacentes são unidos.
+	 */
+	public static List<IntervaloBytes> interpretar(String cabecalhoRange, long tamanhoArquivo) {
+		if (cabecalhoRange == null || !cabecalhoRange.startsWith("bytes="))
+			return List.of();
+
+		List<IntervaloBytes> intervalos = new ArrayList<>();
+		for (String especificacao : cabecalhoRange.substring("bytes=".length()).split(",")) {
+			String trecho = especificacao.trim();
+			int hifen = trecho.indexOf('-');
+			if (hifen < 0)
+				return List.of();
+			try {
+				String inicio = trecho.substring(0, hifen).trim();
+				String fim = trecho.substring(hifen + 1).trim();
+				if (inicio.isEmpty()) {
+					long sufixo = Long.parseLong(fim);
+					if (sufixo > 0 && tamanhoArquivo > 0)
+						intervalos.add(new IntervaloBytes(Math.max(0, tamanhoArquivo - sufixo), tamanhoArquivo - 1));
+				}
+				else {
+					long primeiro = Long.parseLong(inicio);
+					long ultimo = fim.isEmpty() ? tamanhoArquivo - 1 : Math.min(Long.parseLong(fim), tamanhoArquivo - 1);
+					if (!fim.isEmpty() && Long.parseLong(fim) < primeiro)
+						return List.of();
+					if (primeiro < tamanhoArquivo)
+						intervalos.add(new IntervaloBytes(primeiro, ultimo));
+				}
+			} catch (NumberFormatException e) {
+				return List.of();
+			}
+		}
+
+		if (intervalos.isEmpty())
+			throw new IntervaloInsatisfativelException(tamanhoArquivo);
+
+		return unir(intervalos);
+	}
+
+	private static List<IntervaloBytes> unir(List<IntervaloBytes> intervalos) {
+		intervalos.sort(Comparator.comparingLong(IntervaloBytes::inicio));
+		List<IntervaloBytes> unidos = new ArrayList<>();
+		IntervaloBytes atual = intervalos.get(0);
+		for (int i = 1; i < intervalos.size(); i++) {
+			IntervaloBytes proximo = intervalos.get(i);
+			if (proximo.inicio() <= atual.fim() + 1)
+				atual = new IntervaloBytes(atual.inicio(), Math.max(atual.fim(), proximo.fim()));
+			else {
+				unidos.add(atual);
+				atual = proximo;
+			}
+		}
+		unidos.add(atual);
+
+		return unidos.size() > MAXIMO_INTERVALOS ? List.of() : unidos;
+	}
+
+	public static class IntervaloInsatisfativelException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long tamanhoArquivo;
+
+		public IntervaloInsatisfativelException(long tamanhoArquivo) {
+			super("Nenhum intervalo solicitado está dentro do arquivo de " + tamanhoArquivo + " bytes");
+			this.tamanhoArquivo = tamanhoArquivo;
+		}
+
+		public long getTamanhoArquivo() {
+			return tamanhoArquivo;
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Decide onde cada arquivo mora dentro da sua raiz. No layout fragmentado o arquivo fica em
+ * raiz/ab/cd/&lt;nome&gt;, com ab e cd tirados do hash do nome, para que nenhum diretório acumule
+ * centenas de milhares de entradas. Enquanto a migração não termina o layout plano antigo
+ * (raiz/&lt;nome&gt;) continua sendo lido, então os dois convivem sem janela de indisponibilidade.
+ */
+@Service
+public class LayoutArmazenamentoService {
+
+	private final boolean fragmentado;
+
+	public LayoutArmazenamentoService(@Value("${shop.filestorage.layout.fragmentado:true}") boolean fragmentado) {
+		this.fragmentado = fragmentado;
+	}
+
+	public boolean isFragmentado() {
+		return fragmentado;
+	}
+
+	/**
+	 * Caminho onde um arquivo novo deve ser gravado. A imagem padrão fica sempre na raiz.
+	 */
+	public Path caminhoParaGravar(Path raiz, String nomeArquivo) {
+		if (!fragmentado || nomeArquivo.equals(FileStorageService.NOME_IMAGEM_PADRAO))
+			return raiz.resolve(nomeArquivo);
+		return caminhoFragmentado(raiz, nomeArquivo);
+	}
+
+	/**
+	 * Procura o arquivo nos dois layouts e devolve null se ele não existe ou se o nome tenta sair
+	 * da raiz. O layout fragmentado é consultado de novo no fim porque a migração pode ter movido
+	 * o arquivo entre as duas primeiras verificações.
+	 */
+	public Path localizar(Path raiz, String nomeArquivo) {
+		if (nomeArquivo.isEmpty() || nomeArquivo.indexOf('/') >= 0 || nomeArquivo.indexOf('\\') >= 0
+				|| nomeArquivo.equals(".") || nomeArquivo.equals(".."))
+			return null;
+
+		Path emFragmento = caminhoFragmentado(raiz, nomeArquivo);
+		if (Files.isRegularFile(emFragmento))
+			return emFragmento;
+		Path plano = raiz.resolve(nomeArquivo);
+		if (Files.isRegularFile(plano))
+			return plano;
+		if (Files.isRegularFile(emFragmento))
+			return emFragmento;
+		return null;
+	}
+
+	/**
+	 * As miniaturas (&lt;nome&gt;@&lt;largura&gt;.jpg) usam o hash do nome do original, para ficarem
+	 * sempre no mesmo diretório que ele.
+	 */
+	public Path caminhoFragmentado(Path raiz, String nomeArquivo) {
+		int marcador = nomeArquivo.indexOf(DerivadaImagemService.MARCADOR_DERIVADA);
+		String chave = marcador >= 0 ? nomeArquivo.substring(0, marcador) : nomeArquivo;
+		int hash = misturar(chave.hashCode());
+		return raiz.resolve(hex(hash >>> 24)).resolve(hex(hash >>> 16)).resolve(nomeArquivo);
+	}
+
+
+//
+// METODOS UTILITARIOS DE LAYOUT
+//
+
+	private static int misturar(int h) {
+		// finalizador do murmur3: espalha bem nomes que só diferem no fim (como o timestamp dos nomes gerados)
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static String hex(int valor) {
+		String hex = Integer.toHexString(valor & 0xFF);
+		return hex.length() == 1 ? "0" + hex : hex;
+	}
+
+}
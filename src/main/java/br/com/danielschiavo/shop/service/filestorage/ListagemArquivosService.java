@@ -0,0 +1,227 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Listagem paginada por cursor dos arquivos de cada raiz. Cada raiz tem um índice ordenado por nome
+ * em memória, montado em segundo plano a partir da primeira listagem (do catálogo quando ele está
+ * pronto, senão do backend) e mantido pelas gravações e exclusões; até o índice ficar pronto a
+ * listagem responde IndiceEmConstrucaoException. Uma página parte do cursor direto no índice e
+ * custa o tamanho da página, não uma varredura do diretório. O prefixo vira um intervalo do
+ * índice; os filtros de data são aplicados no caminho, com um teto de arquivos examinados por página.
+ * Derivadas, arquivos auxiliares (com @ no nome) e temporários não aparecem.
+ */
+@Service
+public class ListagemArquivosService {
+
+	static final int LIMITE_MAXIMO = 1000;
+
+	static final int VARREDURA_MAXIMA = 10_000;
+
+	private Map<String, Path> raizes = Map.of("produto", FileStorageProdutoService.raizProduto,
+			"perfil", FileStoragePerfilService.raizPerfil, "pedido", FileStoragePedidoService.raizPedido);
+
+	private final Map<Path, Indice> indices = new ConcurrentHashMap<>();
+
+	private final ExecutorService carregamento = Executors.newSingleThreadExecutor(tarefa -> {
+		Thread thread = new Thread(tarefa, "filestorage-listagem");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	@Autowired
+	private CatalogoArquivosService catalogoArquivosService;
+
+	public PaginaArquivosDTO listar(String raiz, String cursor, int limite, String prefixo, Instant desde, Instant ate) {
+		if (limite < 1 || limite > LIMITE_MAXIMO)
+			throw new ValidacaoException("O limite deve estar entre 1 e " + LIMITE_MAXIMO);
+		Indice indice = indicePronto(raizPorNome(raiz));
+
+		// o início é o maior entre o prefixo (inclusivo) e o cursor (exclusivo)
+		String inicio = prefixo == null || prefixo.isEmpty() ? null : prefixo;
+		String fim = inicio == null ? null : prefixo + Character.MAX_VALUE;
+		boolean incluiInicio = true;
+		if (cursor != null && !cursor.isEmpty()) {
+			String depoisDe = decodificarCursor(cursor);
+			if (inicio == null || depoisDe.compareTo(inicio) >= 0) {
+				inicio = depoisDe;
+				incluiInicio = false;
+			}
+		}
+		NavigableMap<String, MetadadosArquivo> arquivos = indice.arquivos;
+		if (fim != null && inicio.compareTo(fim) >= 0)
+			return new PaginaArquivosDTO(List.of(), null);
+		if (fim != null)
+			arquivos = arquivos.subMap(inicio, incluiInicio, fim, false);
+		else if (inicio != null)
+			arquivos = arquivos.tailMap(inicio, incluiInicio);
+
+		List<ArquivoListadoDTO> pagina = new ArrayList<>();
+		String ultimo = null;
+		int examinados = 0;
+		for (Map.Entry<String, MetadadosArquivo> entrada : arquivos.entrySet()) {
+			if (pagina.size() == limite || examinados == VARREDURA_MAXIMA)
+				return new PaginaArquivosDTO(pagina, codificarCursor(ultimo));
+			examinados++;
+			ultimo = entrada.getKey();
+			MetadadosArquivo metadados = entrada.getValue();
+			if (desde != null && metadados.ultimaModificacao() < desde.toEpochMilli())
+				continue;
+			if (ate != null && metadados.ultimaModificacao() >= ate.toEpochMilli())
+				continue;
+			pagina.add(new ArquivoListadoDTO(entrada.getKey(), metadados.tamanho(), metadados.ultimaModificacao()));
+		}
+		return new PaginaArquivosDTO(pagina, null);
+	}
+
+	/**
+	 * Atualiza o índice da raiz depois de uma gravação, substituição ou cópia. Enquanto ninguém
+	 * listou a raiz não há índice e nada é feito.
+	 */
+	public void registrar(Path raiz, String nomeArquivo) {
+		Indice indice = indices.get(raiz);
+		if (indice == null || !listavel(nomeArquivo))
+			return;
+		try {
+			MetadadosArquivo metadados = armazenamentoBackend.metadados(raiz, nomeArquivo);
+			if (metadados != null) {
+				indice.arquivos.put(nomeArquivo, metadados);
+				indice.removidosNaCarga.remove(nomeArquivo);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void remover(Path raiz, String nomeArquivo) {
+		Indice indice = indices.get(raiz);
+		if (indice == null)
+			return;
+		indice.arquivos.remove(nomeArquivo);
+		if (!indice.carregado)
+			indice.removidosNaCarga.add(nomeArquivo);
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		carregamento.shutdownNow();
+	}
+
+	/**
+	 * O índice da raiz ainda está sendo montado; a listagem pode ser repetida em instantes.
+	 */
+	public static class IndiceEmConstrucaoException extends FileStorageException {
+
+		public IndiceEmConstrucaoException(String mensagem) {
+			super(mensagem);
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE LISTAGEM
+//
+
+	private static final class Indice {
+
+		private final ConcurrentSkipListMap<String, MetadadosArquivo> arquivos = new ConcurrentSkipListMap<>();
+		// exclusões que chegam durante a carga não podem ser desfeitas por ela
+		private final Set<String> removidosNaCarga = ConcurrentHashMap.newKeySet();
+		private volatile boolean carregado;
+	}
+
+	/**
+	 * Agenda a carga do índice na primeira listagem da raiz e recusa a listagem até ela terminar.
+	 * Uma carga que falha descarta o índice, e a próxima listagem agenda outra.
+	 */
+	private Indice indicePronto(Path raiz) {
+		Indice indice = indices.computeIfAbsent(raiz, r -> {
+			Indice novo = new Indice();
+			carregamento.execute(() -> carregar(raiz, novo));
+			return novo;
+		});
+		if (!indice.carregado)
+			throw new IndiceEmConstrucaoException("O índice de " + raiz + " ainda está sendo montado, tente novamente em instantes");
+		return indice;
+	}
+
+	/**
+	 * O índice é publicado antes da carga para que gravações e exclusões concorrentes já o
+	 * atualizem; a carga só acrescenta o que ainda não está nele.
+	 */
+	private void carregar(Path raiz, Indice indice) {
+		try {
+			if (catalogoArquivosService.isPronto()) {
+				for (EntradaCatalogoDTO entrada : catalogoArquivosService.listar(raiz))
+					adicionarNaCarga(indice, entrada.nomeArquivo(), new MetadadosArquivo(entrada.tamanho(), entrada.ultimaModificacao()));
+			} else {
+				for (String nome : armazenamentoBackend.listar(raiz)) {
+					if (listavel(nome) && !indice.arquivos.containsKey(nome)) {
+						MetadadosArquivo metadados = armazenamentoBackend.metadados(raiz, nome);
+						if (metadados != null)
+							adicionarNaCarga(indice, nome, metadados);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Não foi possivel montar o índice de listagem de " + raiz);
+			e.printStackTrace();
+			indices.remove(raiz, indice);
+			return;
+		}
+		indice.carregado = true;
+		indice.removidosNaCarga.clear();
+	}
+
+	private void adicionarNaCarga(Indice indice, String nome, MetadadosArquivo metadados) {
+		if (listavel(nome) && !indice.removidosNaCarga.contains(nome))
+			indice.arquivos.putIfAbsent(nome, metadados);
+	}
+
+	private static boolean listavel(String nomeArquivo) {
+		return !DerivadaImagemService.ehDerivada(nomeArquivo) && !nomeArquivo.startsWith(".tmp-");
+	}
+
+	private Path raizPorNome(String raiz) {
+		Path caminho = raizes.get(raiz);
+		if (caminho == null)
+			throw new ValidacaoException("As raízes listáveis são produto, perfil e pedido");
+		return caminho;
+	}
+
+	private static String codificarCursor(String nome) {
+		return nome == null ? null : Base64.getUrlEncoder().withoutPadding().encodeToString(nome.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String decodificarCursor(String cursor) {
+		try {
+			return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new ValidacaoException("Cursor inválido: " + cursor);
+		}
+	}
+
+}
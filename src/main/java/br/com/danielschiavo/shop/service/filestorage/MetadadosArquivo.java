@@ -0,0 +1,11 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+/**
+ * Tamanho em bytes e última modificação em milissegundos desde a época.
+ */
+public record MetadadosArquivo(
+		long tamanho,
+		long ultimaModificacao
+		) {
+
+}
@@ -0,0 +1,16 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+/**
+ * Largura e altura já consideram a rotação (EXIF nas fotos, matriz do tkhd nos vídeos), ou seja,
+ * são as dimensões em que o arquivo é exibido. Campos que não se aplicam ao formato vêm nulos.
+ */
+public record MetadadosMidiaDTO(
+		String nomeArquivo,
+		FormatoArquivo formato,
+		long tamanho,
+		Integer largura,
+		Integer altura,
+		Long duracaoMs
+		) {
+
+}
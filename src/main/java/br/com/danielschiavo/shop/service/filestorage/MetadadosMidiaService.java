@@ -0,0 +1,407 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+
+/**
+ * Extrai largura, altura e duração de fotos e vídeos lendo só os cabeçalhos (SOF do JPEG, IHDR do
+ * PNG, mvhd/tkhd do MP4, avih do AVI), nunca decodificando o arquivo. A extração acontece na
+ * gravação, aproveitando os primeiros bytes que já passaram pelo upload, e o resultado fica num
+ * arquivo auxiliar &lt;nome&gt;@meta.properties gravado pelo mesmo backend do original, então serve
+ * tanto para o disco local quanto para segmentos e S3. Arquivos anteriores a isso têm os metadados
+ * extraídos na primeira consulta, com leituras por intervalo.
+ */
+@Service
+public class MetadadosMidiaService {
+
+	static final String SUFIXO_METADADOS = DerivadaImagemService.MARCADOR_DERIVADA + "meta.properties";
+
+	static final int TAMANHO_BLOCO = 64 * 1024;
+
+	private static final int LIMITE_VARREDURA_JPEG = 1024 * 1024;
+
+	private static final int TAMANHO_MAXIMO_MOOV = 16 * 1024 * 1024;
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	/**
+	 * Envolve o conteúdo de um upload guardando os primeiros bytes que passarem por ele, para que
+	 * registrar não precise ler de novo o que acabou de ser gravado.
+	 */
+	public CapturaCabecalho capturar(InputStream conteudo) {
+		return new CapturaCabecalho(conteudo);
+	}
+
+	/**
+	 * Extrai e grava os metadados de um arquivo recém gravado. Falhas aqui não desfazem o upload: a
+	 * consulta extrai de novo quando o arquivo auxiliar não existe.
+	 */
+	public void registrar(Path raiz, String nomeArquivo, byte[] cabecalho) {
+		try {
+			MetadadosArquivo arquivo = armazenamentoBackend.metadados(raiz, nomeArquivo);
+			if (arquivo == null)
+				return;
+			Properties propriedades = extrair(new Leitor(raiz, nomeArquivo, arquivo.tamanho(), cabecalho));
+			if (propriedades != null)
+				persistir(raiz, nomeArquivo, propriedades);
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Refaz os metadados depois que o conteúdo do arquivo foi trocado.
+	 */
+	public void atualizar(Path raiz, String nomeArquivo) {
+		remover(raiz, nomeArquivo);
+		registrar(raiz, nomeArquivo, null);
+	}
+
+	public void remover(Path raiz, String nomeArquivo) {
+		try {
+			armazenamentoBackend.deletar(raiz, nomeArquivo + SUFIXO_METADADOS);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public MetadadosMidiaDTO obter(Path raiz, String nomeArquivo) {
+		try {
+			MetadadosArquivo arquivo = armazenamentoBackend.metadados(raiz, nomeArquivo);
+			if (arquivo == null)
+				throw new FileStorageException("O arquivo " + nomeArquivo + " não existe");
+
+			Properties propriedades = ler(raiz, nomeArquivo);
+			if (propriedades == null) {
+				propriedades = extrair(new Leitor(raiz, nomeArquivo, arquivo.tamanho(), null));
+				if (propriedades == null)
+					return new MetadadosMidiaDTO(nomeArquivo, null, arquivo.tamanho(), null, null, null);
+				persistir(raiz, nomeArquivo, propriedades);
+			}
+			String formato = propriedades.getProperty("formato");
+			return new MetadadosMidiaDTO(nomeArquivo, formato == null ? null : FormatoArquivo.valueOf(formato), arquivo.tamanho(),
+					inteiro(propriedades, "largura"), inteiro(propriedades, "altura"), longo(propriedades, "duracaoMs"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel ler os metadados do arquivo " + nomeArquivo);
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE METADADOS
+//
+
+	public static final class CapturaCabecalho extends FilterInputStream {
+
+		private final ByteArrayOutputStream capturado = new ByteArrayOutputStream();
+
+		private CapturaCabecalho(InputStream conteudo) {
+			super(conteudo);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0 && capturado.size() < TAMANHO_BLOCO)
+				capturado.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] destino, int deslocamento, int tamanho) throws IOException {
+			int lidos = super.read(destino, deslocamento, tamanho);
+			if (lidos > 0 && capturado.size() < TAMANHO_BLOCO)
+				capturado.write(destino, deslocamento, Math.min(lidos, TAMANHO_BLOCO - capturado.size()));
+			return lidos;
+		}
+
+		@Override
+		public long skip(long quantidade) throws IOException {
+			// pular quebraria a correspondência entre o capturado e o início do arquivo
+			return quantidade <= 0 ? 0 : Math.max(0, read(new byte[(int) Math.min(quantidade, 8192)]));
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		public byte[] cabecalho() {
+			return capturado.toByteArray();
+		}
+	}
+
+	/**
+	 * Leituras por intervalo com um bloco em memória; o primeiro bloco pode vir do upload.
+	 */
+	private final class Leitor {
+
+		private final Path raiz;
+		private final String nomeArquivo;
+		private final long tamanho;
+		private byte[] bloco;
+		private long inicioBloco;
+
+		private Leitor(Path raiz, String nomeArquivo, long tamanho, byte[] cabecalho) {
+			this.raiz = raiz;
+			this.nomeArquivo = nomeArquivo;
+			this.tamanho = tamanho;
+			this.bloco = cabecalho;
+		}
+
+		/**
+		 * Devolve até quantidade bytes a partir de inicio; menos quando o arquivo acaba antes.
+		 */
+		private byte[] ler(long inicio, int quantidade) throws IOException {
+			if (inicio < 0 || inicio >= tamanho)
+				return new byte[0];
+			quantidade = (int) Math.min(quantidade, tamanho - inicio);
+			if (bloco != null && inicio >= inicioBloco && inicio + quantidade <= inicioBloco + bloco.length) {
+				int deslocamento = (int) (inicio - inicioBloco);
+				return Arrays.copyOfRange(bloco, deslocamento, deslocamento + quantidade);
+			}
+			if (quantidade > TAMANHO_BLOCO)
+				return lerDoBackend(inicio, quantidade);
+			bloco = lerDoBackend(inicio, (int) Math.min(TAMANHO_BLOCO, tamanho - inicio));
+			inicioBloco = inicio;
+			return Arrays.copyOf(bloco, Math.min(quantidade, bloco.length));
+		}
+
+		private byte[] lerDoBackend(long inicio, int quantidade) throws IOException {
+			try (InputStream entrada = armazenamentoBackend.abrirIntervalo(raiz, nomeArquivo, inicio, quantidade)) {
+				return entrada.readNBytes(quantidade);
+			}
+		}
+	}
+
+	private Properties extrair(Leitor leitor) throws IOException {
+		byte[] inicio = leitor.ler(0, TAMANHO_BLOCO);
+		FormatoArquivo formato = FormatoArquivo.detectar(inicio, inicio.length);
+		if (formato == null)
+			return null;
+
+		Properties propriedades = new Properties();
+		propriedades.setProperty("formato", formato.name());
+		switch (formato) {
+		case JPEG -> extrairJpeg(leitor, inicio, propriedades);
+		case PNG -> extrairPng(inicio, propriedades);
+		case MP4 -> extrairMp4(leitor, propriedades);
+		case AVI -> extrairAvi(inicio, propriedades);
+		}
+		return propriedades;
+	}
+
+	/**
+	 * Percorre os marcadores até o SOFn, que traz altura e largura; o EXIF (APP1) vem antes dele,
+	 * dentro do primeiro bloco.
+	 */
+	private void extrairJpeg(Leitor leitor, byte[] inicio, Properties propriedades) throws IOException {
+		long posicao = 2;
+		while (posicao < LIMITE_VARREDURA_JPEG) {
+			byte[] marcador = leitor.ler(posicao, 4);
+			if (marcador.length < 2 || (marcador[0] & 0xFF) != 0xFF)
+				return;
+			int tipo = marcador[1] & 0xFF;
+			if (tipo == 0xFF) {
+				posicao++;
+				continue;
+			}
+			if (tipo == 0x01 || (tipo >= 0xD0 && tipo <= 0xD8)) {
+				posicao += 2;
+				continue;
+			}
+			if (tipo == 0xD9 || tipo == 0xDA || marcador.length < 4)
+				return;
+			if (tipo >= 0xC0 && tipo <= 0xCF && tipo != 0xC4 && tipo != 0xC8 && tipo != 0xCC) {
+				byte[] sof = leitor.ler(posicao + 4, 5);
+				if (sof.length < 5)
+					return;
+				int altura = u16(sof, 1);
+				int largura = u16(sof, 3);
+				// orientações 5 a 8 giram a foto em 90 graus na exibição
+				boolean girada = OtimizacaoImagemService.lerOrientacaoExif(inicio) >= 5;
+				dimensoes(propriedades, girada ? altura : largura, girada ? largura : altura);
+				return;
+			}
+			posicao += 2 + u16(marcador, 2);
+		}
+	}
+
+	private void extrairPng(byte[] inicio, Properties propriedades) {
+		if (inicio.length >= 24 && new String(inicio, 12, 4, StandardCharsets.ISO_8859_1).equals("IHDR"))
+			dimensoes(propriedades, (int) u32(inicio, 16), (int) u32(inicio, 20));
+	}
+
+	/**
+	 * Anda pelas caixas de primeiro nível lendo só os cabeçalhos até achar o moov, que é lido
+	 * inteiro (é pequeno perto do mdat): duração do mvhd e dimensões do maior tkhd com vídeo.
+	 */
+	private void extrairMp4(Leitor leitor, Properties propriedades) throws IOException {
+		long posicao = 0;
+		while (posicao + 8 <= leitor.tamanho) {
+			byte[] cabecalho = leitor.ler(posicao, 16);
+			if (cabecalho.length < 8)
+				return;
+			long tamanhoCaixa = u32(cabecalho, 0);
+			int tamanhoCabecalho = 8;
+			if (tamanhoCaixa == 1 && cabecalho.length >= 16) {
+				tamanhoCaixa = u64(cabecalho, 8);
+				tamanhoCabecalho = 16;
+			} else if (tamanhoCaixa == 0) {
+				tamanhoCaixa = leitor.tamanho - posicao;
+			}
+			if (tamanhoCaixa < tamanhoCabecalho)
+				return;
+			if (tipo(cabecalho, 4).equals("moov")) {
+				if (tamanhoCaixa > TAMANHO_MAXIMO_MOOV)
+					return;
+				byte[] moov = leitor.ler(posicao, (int) tamanhoCaixa);
+				lerMoov(moov, tamanhoCabecalho, moov.length, propriedades);
+				return;
+			}
+			posicao += tamanhoCaixa;
+		}
+	}
+
+	private void lerMoov(byte[] b, int inicio, int fim, Properties propriedades) {
+		int maiorLargura = 0;
+		int maiorAltura = 0;
+		int posicao = inicio;
+		while (posicao + 8 <= fim) {
+			long tamanhoCaixa = u32(b, posicao);
+			if (tamanhoCaixa < 8 || posicao + tamanhoCaixa > fim)
+				break;
+			String tipo = tipo(b, posicao + 4);
+			int corpo = posicao + 8;
+			if (tipo.equals("mvhd") && tamanhoCaixa >= 40) {
+				boolean versao1 = b[corpo] == 1;
+				long escala = u32(b, corpo + (versao1 ? 20 : 12));
+				long duracao = versao1 ? u64(b, corpo + 24) : u32(b, corpo + 16);
+				boolean desconhecida = versao1 ? duracao == -1 : duracao == 0xFFFFFFFFL;
+				if (escala > 0 && !desconhecida && duracao >= 0)
+					propriedades.setProperty("duracaoMs", Long.toString(duracao * 1000 / escala));
+			} else if (tipo.equals("trak")) {
+				int[] dimensoes = lerTrak(b, corpo, posicao + (int) tamanhoCaixa);
+				if (dimensoes != null && (long) dimensoes[0] * dimensoes[1] > (long) maiorLargura * maiorAltura) {
+					maiorLargura = dimensoes[0];
+					maiorAltura = dimensoes[1];
+				}
+			}
+			posicao += (int) tamanhoCaixa;
+		}
+		if (maiorLargura > 0 && maiorAltura > 0)
+			dimensoes(propriedades, maiorLargura, maiorAltura);
+	}
+
+	/**
+	 * Largura e altura do tkhd (ponto fixo 16.16), trocadas quando a matriz gira a faixa em 90 graus.
+	 * Faixas de áudio têm dimensões zeradas.
+	 */
+	private int[] lerTrak(byte[] b, int inicio, int fim) {
+		int posicao = inicio;
+		while (posicao + 8 <= fim) {
+			long tamanhoCaixa = u32(b, posicao);
+			if (tamanhoCaixa < 8 || posicao + tamanhoCaixa > fim)
+				return null;
+			if (tipo(b, posicao + 4).equals("tkhd")) {
+				int corpo = posicao + 8;
+				int matriz = corpo + (b[corpo] == 1 ? 36 : 24) + 16;
+				if (matriz + 44 > posicao + tamanhoCaixa)
+					return null;
+				int largura = (int) (u32(b, matriz + 36) >>> 16);
+				int altura = (int) (u32(b, matriz + 40) >>> 16);
+				boolean girada = u32(b, matriz) == 0 && u32(b, matriz + 4) != 0;
+				return girada ? new int[] {altura, largura} : new int[] {largura, altura};
+			}
+			posicao += (int) tamanhoCaixa;
+		}
+		return null;
+	}
+
+	/**
+	 * RIFF AVI: o avih é a primeira caixa da lista hdrl, com campos little-endian.
+	 */
+	private void extrairAvi(byte[] inicio, Properties propriedades) {
+		if (inicio.length < 72 || !tipo(inicio, 12).equals("LIST") || !tipo(inicio, 20).equals("hdrl") || !tipo(inicio, 24).equals("avih"))
+			return;
+		long microssegundosPorQuadro = u32le(inicio, 32);
+		long quadros = u32le(inicio, 48);
+		if (microssegundosPorQuadro > 0 && quadros > 0)
+			propriedades.setProperty("duracaoMs", Long.toString(microssegundosPorQuadro * quadros / 1000));
+		dimensoes(propriedades, (int) u32le(inicio, 64), (int) u32le(inicio, 68));
+	}
+
+	private Properties ler(Path raiz, String nomeArquivo) throws IOException {
+		try (InputStream entrada = armazenamentoBackend.abrir(raiz, nomeArquivo + SUFIXO_METADADOS)) {
+			Properties propriedades = new Properties();
+			propriedades.load(entrada);
+			return propriedades;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void persistir(Path raiz, String nomeArquivo, Properties propriedades) throws IOException {
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		propriedades.store(saida, null);
+		try {
+			armazenamentoBackend.gravar(raiz, nomeArquivo + SUFIXO_METADADOS, new ByteArrayInputStream(saida.toByteArray()));
+		} catch (FileAlreadyExistsException e) {
+			// outra consulta extraiu os mesmos metadados ao mesmo tempo
+		}
+	}
+
+	private static void dimensoes(Properties propriedades, int largura, int altura) {
+		if (largura <= 0 || altura <= 0)
+			return;
+		propriedades.setProperty("largura", Integer.toString(largura));
+		propriedades.setProperty("altura", Integer.toString(altura));
+	}
+
+	private static Integer inteiro(Properties propriedades, String chave) {
+		String valor = propriedades.getProperty(chave);
+		return valor == null ? null : Integer.valueOf(valor);
+	}
+
+	private static Long longo(Properties propriedades, String chave) {
+		String valor = propriedades.getProperty(chave);
+		return valor == null ? null : Long.valueOf(valor);
+	}
+
+	private static String tipo(byte[] b, int inicio) {
+		return new String(b, inicio, 4, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int u16(byte[] b, int inicio) {
+		return ((b[inicio] & 0xFF) << 8) | (b[inicio + 1] & 0xFF);
+	}
+
+	private static long u32(byte[] b, int inicio) {
+		return ((long) u16(b, inicio) << 16) | u16(b, inicio + 2);
+	}
+
+	private static long u64(byte[] b, int inicio) {
+		return (u32(b, inicio) << 32) | u32(b, inicio + 4);
+	}
+
+	private static long u32le(byte[] b, int inicio) {
+		return (b[inicio] & 0xFFL) | (b[inicio + 1] & 0xFFL) << 8 | (b[inicio + 2] & 0xFFL) << 16 | (b[inicio + 3] & 0xFFL) << 24;
+	}
+
+}
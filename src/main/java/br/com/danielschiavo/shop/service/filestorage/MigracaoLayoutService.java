@@ -0,0 +1,114 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Migra em segundo plano os arquivos que ainda estão no layout plano para o layout fragmentado.
+ * Cada arquivo é movido com uma renomeação atômica no mesmo volume (o inode não muda, então os
+ * hard links do CAS e das imagens de pedido continuam valendo) e, como os dois layouts são lidos,
+ * a aplicação atende normalmente durante toda a migração. Só roda na inicialização quando
+ * shop.filestorage.layout.migrar-na-inicializacao=true.
+ */
+@Service
+public class MigracaoLayoutService {
+
+	private static final List<Path> RAIZES = List.of(FileStorageProdutoService.raizProduto,
+			FileStoragePerfilService.raizPerfil, FileStoragePedidoService.raizPedido);
+
+	@Autowired
+	private LayoutArmazenamentoService layoutArmazenamentoService;
+
+	@Autowired
+	private ArmazenamentoBackend armazenamentoBackend;
+
+	@Value("${shop.filestorage.layout.migrar-na-inicializacao:false}")
+	private boolean migrarNaInicializacao;
+
+	@Value("${shop.filestorage.layout.arquivos-por-segundo:500}")
+	private int arquivosPorSegundo;
+
+	private volatile boolean emAndamento;
+	private final AtomicLong movidos = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void iniciar() {
+		if (!migrarNaInicializacao || !layoutArmazenamentoService.isFragmentado() || !armazenamentoBackend.isLocal())
+			return;
+
+		Thread migrador = new Thread(this::migrarTudo, "filestorage-migracao-layout");
+		migrador.setDaemon(true);
+		migrador.setPriority(Thread.MIN_PRIORITY);
+		migrador.start();
+	}
+
+	public void migrarTudo() {
+		emAndamento = true;
+		try {
+			for (Path raiz : RAIZES)
+				if (Files.isDirectory(raiz))
+					migrar(raiz);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			emAndamento = false;
+		}
+	}
+
+	public EstatisticasMigracaoDTO estatisticas() {
+		return new EstatisticasMigracaoDTO(layoutArmazenamentoService.isFragmentado(), emAndamento, movidos.get(), falhas.get());
+	}
+
+
+//
+// METODOS UTILITARIOS DE MIGRACAO
+//
+
+	void migrar(Path raiz) throws InterruptedException {
+		long intervaloNanos = arquivosPorSegundo > 0 ? 1_000_000_000L / arquivosPorSegundo : 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(raiz, Files::isRegularFile)) {
+			for (Path arquivo : stream) {
+				String nome = arquivo.getFileName().toString();
+				if (nome.equals(FileStorageService.NOME_IMAGEM_PADRAO) || nome.startsWith(".tmp-"))
+					continue;
+
+				mover(raiz, arquivo, nome);
+				if (intervaloNanos > 0)
+					Thread.sleep(intervaloNanos / 1_000_000, (int) (intervaloNanos % 1_000_000));
+			}
+		} catch (IOException e) {
+			falhas.incrementAndGet();
+			e.printStackTrace();
+		}
+	}
+
+	private void mover(Path raiz, Path arquivo, String nome) {
+		Path destino = layoutArmazenamentoService.caminhoFragmentado(raiz, nome);
+		try {
+			if (Files.exists(destino)) {
+				// o mesmo nome já existe no fragmento; o arquivo plano fica para ser analisado à mão
+				falhas.incrementAndGet();
+				return;
+			}
+			Files.createDirectories(destino.getParent());
+			Files.move(arquivo, destino, StandardCopyOption.ATOMIC_MOVE);
+			movidos.incrementAndGet();
+		} catch (IOException e) {
+			falhas.incrementAndGet();
+			e.printStackTrace();
+		}
+	}
+
+}
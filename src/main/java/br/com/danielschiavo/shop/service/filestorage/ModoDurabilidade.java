@@ -0,0 +1,12 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+/**
+ * Quando uma gravação é considerada concluída em relação a uma queda de energia:
+ * NENHUMA deixa a cargo do sistema operacional, POR_ARQUIVO faz fsync do arquivo e do diretório
+ * a cada gravação e EM_GRUPO junta as gravações de uma janela curta num único lote de fsyncs.
+ */
+public enum ModoDurabilidade {
+
+	NENHUMA, POR_ARQUIVO, EM_GRUPO
+
+}
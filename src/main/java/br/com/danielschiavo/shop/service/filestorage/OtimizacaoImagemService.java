@@ -0,0 +1,267 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Fila de otimização das imagens enviadas. Depois que o upload é gravado, a imagem é recodificada
+ * em segundo plano (JPEG progressivo na qualidade configurada, PNG sem perdas), sem EXIF nem
+ * miniaturas embutidas, e só substitui o original quando o resultado é menor. PNGs com perfil de
+ * cor ou gama (iCCP, sRGB, gAMA, cHRM) ficam como foram enviados, porque o ImageIO não regrava
+ * esses chunks e as cores mudariam.
+ * A fila é limitada: quando está cheia, o upload espera um pouco e, se ainda não houver vaga,
+ * a imagem fica como foi enviada.
+ */
+@Service
+public class OtimizacaoImagemService {
+
+	private static final int TAMANHO_LEITURA_EXIF = 64 * 1024;
+
+	private static final long ASSINATURA_PNG = 0x89504E470D0A1A0AL;
+
+	private static final Set<String> CHUNKS_COR_PNG = Set.of("iCCP", "sRGB", "gAMA", "cHRM");
+
+	@Autowired
+	private FileStorageService fileStorageService;
+
+	private final boolean habilitado;
+
+	private final float qualidadeJpeg;
+
+	private final long esperaPorVagaMs;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong enfileiradas = new AtomicLong();
+	private final AtomicLong rejeitadas = new AtomicLong();
+	private final AtomicLong otimizadas = new AtomicLong();
+	private final AtomicLong semGanho = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private final AtomicLong bytesOriginais = new AtomicLong();
+	private final AtomicLong bytesEconomizados = new AtomicLong();
+
+	public OtimizacaoImagemService(
+			@Value("${shop.filestorage.otimizacao.habilitado:true}") boolean habilitado,
+			@Value("${shop.filestorage.otimizacao.qualidade-jpeg:0.85}") float qualidadeJpeg,
+			@Value("${shop.filestorage.otimizacao.threads:2}") int threads,
+			@Value("${shop.filestorage.otimizacao.capacidade-fila:100}") int capacidadeFila,
+			@Value("${shop.filestorage.otimizacao.espera-por-vaga-ms:50}") long esperaPorVagaMs) {
+		this.habilitado = habilitado;
+		this.qualidadeJpeg = qualidadeJpeg;
+		this.esperaPorVagaMs = esperaPorVagaMs;
+		AtomicInteger contador = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacidadeFila), tarefa -> {
+			Thread thread = new Thread(tarefa, "filestorage-otimizacao-" + contador.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}, this::aguardarVaga);
+	}
+
+	/**
+	 * Agenda a otimização de uma imagem recém gravada. Devolve false quando a imagem não é
+	 * otimizável ou a fila continuou cheia depois da espera; nos dois casos o arquivo fica como está.
+	 */
+	public boolean enfileirar(Path caminho, String nomeArquivo) {
+		FormatoArquivo formato = FormatoArquivo.doSubtipo(nomeArquivo.substring(nomeArquivo.lastIndexOf('.') + 1).toLowerCase());
+		if (!habilitado || !fileStorageService.isArmazenamentoLocal() || (formato != FormatoArquivo.JPEG && formato != FormatoArquivo.PNG)
+				|| nomeArquivo.equals(FileStorageService.NOME_IMAGEM_PADRAO))
+			return false;
+
+		try {
+			executor.execute(() -> otimizar(caminho, nomeArquivo, formato));
+		} catch (RejectedExecutionException e) {
+			rejeitadas.incrementAndGet();
+			return false;
+		}
+		enfileiradas.incrementAndGet();
+		return true;
+	}
+
+	public EstatisticasOtimizacaoDTO estatisticas() {
+		return new EstatisticasOtimizacaoDTO(enfileiradas.get(), rejeitadas.get(), executor.getQueue().size(),
+				executor.getQueue().remainingCapacity(), otimizadas.get(), semGanho.get(), falhas.get(),
+				bytesOriginais.get(), bytesEconomizados.get());
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		executor.shutdown();
+	}
+
+
+//
+// METODOS UTILITARIOS DE OTIMIZACAO
+//
+
+	/**
+	 * Política de rejeição do executor: com a fila cheia, espera até esperaPorVagaMs por uma vaga.
+	 * Depois do encerramento nada entra na fila, para nenhuma tarefa ficar esquecida nela.
+	 */
+	private void aguardarVaga(Runnable tarefa, ThreadPoolExecutor executor) {
+		if (executor.isShutdown())
+			throw new RejectedExecutionException("Otimização de imagens encerrada");
+		try {
+			if (!executor.getQueue().offer(tarefa, esperaPorVagaMs, TimeUnit.MILLISECONDS))
+				throw new RejectedExecutionException("Fila de otimização de imagens cheia");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrompido esperando vaga na fila de otimização", e);
+		}
+		// encerrado durante a espera: a tarefa sai da fila em vez de esperar por threads que já terminaram
+		if (executor.isShutdown() && executor.getQueue().remove(tarefa))
+			throw new RejectedExecutionException("Otimização de imagens encerrada");
+	}
+
+	void otimizar(Path caminho, String nomeArquivo, FormatoArquivo formato) {
+		Path temporario = null;
+		try {
+			List<Path> encontrados = fileStorageService.localizarArquivos(caminho, nomeArquivo);
+			// arquivos guardados em segmentos já são pequenos e não têm caminho próprio para trocar
+			if (encontrados.isEmpty() || !fileStorageService.isArquivoLocal(encontrados.get(0)))
+				return;
+			Path original = encontrados.get(0);
+			MetadadosArquivo lido = new MetadadosArquivo(Files.size(original), Files.getLastModifiedTime(original).toMillis());
+			long tamanhoOriginal = lido.tamanho();
+
+			if (formato == FormatoArquivo.JPEG && lerOrientacaoExif(original) > 1) {
+				// sem EXIF a foto perderia a rotação; manter o original é mais seguro que girar pixels aqui
+				semGanho.incrementAndGet();
+				return;
+			}
+			if (formato == FormatoArquivo.PNG && temChunkDeCor(original)) {
+				semGanho.incrementAndGet();
+				return;
+			}
+
+			BufferedImage imagem = ImageIO.read(original.toFile());
+			if (imagem == null) {
+				falhas.incrementAndGet();
+				return;
+			}
+
+			temporario = DurabilidadeArquivosService.criarTemporario(caminho);
+			if (formato == FormatoArquivo.JPEG)
+				DerivadaImagemService.escreverJpeg(imagem, temporario, qualidadeJpeg, true);
+			else
+				ImageIO.write(imagem, "png", temporario.toFile());
+
+			long tamanhoOtimizado = Files.size(temporario);
+			// a substituição compara com o que foi lido e não troca um arquivo alterado ou excluído no meio
+			if (tamanhoOtimizado >= tamanhoOriginal || !fileStorageService.substituirNoDisco(caminho, nomeArquivo, temporario, lido)) {
+				semGanho.incrementAndGet();
+				return;
+			}
+
+			otimizadas.incrementAndGet();
+			bytesOriginais.addAndGet(tamanhoOriginal);
+			bytesEconomizados.addAndGet(tamanhoOriginal - tamanhoOtimizado);
+		} catch (IOException | RuntimeException e) {
+			falhas.incrementAndGet();
+			e.printStackTrace();
+		} finally {
+			if (temporario != null) {
+				try {
+					Files.deleteIfExists(temporario);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Procura a tag Orientation (0x0112) no IFD0 do segmento APP1/Exif. Devolve 1 (normal)
+	 * quando não há EXIF ou a tag não existe.
+	 */
+	static int lerOrientacaoExif(Path jpeg) throws IOException {
+		try (InputStream entrada = Files.newInputStream(jpeg)) {
+			return lerOrientacaoExif(entrada.readNBytes(TAMANHO_LEITURA_EXIF));
+		}
+	}
+
+	/**
+	 * Orientação EXIF a partir do início do JPEG já lido; 1 quando não há EXIF.
+	 */
+	static int lerOrientacaoExif(byte[] b) {
+		int i = 2;
+		while (i + 4 <= b.length && (b[i] & 0xFF) == 0xFF) {
+			int marcador = b[i + 1] & 0xFF;
+			int tamanho = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+			if (marcador == 0xDA)
+				break;
+			int tiff = i + 10;
+			if (marcador == 0xE1 && tiff + 8 <= b.length && new String(b, i + 4, 4, StandardCharsets.ISO_8859_1).equals("Exif")) {
+				boolean littleEndian = b[tiff] == 'I';
+				int ifd = tiff + (int) ler(b, tiff + 4, 4, littleEndian);
+				if (ifd + 2 > b.length)
+					break;
+				int entradas = (int) ler(b, ifd, 2, littleEndian);
+				for (int e = 0; e < entradas && ifd + 2 + (e + 1) * 12 <= b.length; e++) {
+					int entrada = ifd + 2 + e * 12;
+					if (ler(b, entrada, 2, littleEndian) == 0x0112)
+						return (int) ler(b, entrada + 8, 2, littleEndian);
+				}
+				break;
+			}
+			i += 2 + tamanho;
+		}
+		return 1;
+	}
+
+	/**
+	 * Percorre os chunks do PNG até o primeiro IDAT procurando os que definem perfil de cor ou gama.
+	 */
+	static boolean temChunkDeCor(Path png) throws IOException {
+		try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(png)))) {
+			if (entrada.readLong() != ASSINATURA_PNG)
+				return false;
+			while (true) {
+				long tamanho = Integer.toUnsignedLong(entrada.readInt());
+				byte[] tipo = new byte[4];
+				entrada.readFully(tipo);
+				String nomeChunk = new String(tipo, StandardCharsets.ISO_8859_1);
+				if (CHUNKS_COR_PNG.contains(nomeChunk))
+					return true;
+				if (nomeChunk.equals("IDAT") || nomeChunk.equals("IEND"))
+					return false;
+				entrada.skipNBytes(tamanho + 4);
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	private static long ler(byte[] b, int inicio, int tamanho, boolean littleEndian) {
+		long valor = 0;
+		for (int k = 0; k < tamanho; k++) {
+			int indice = littleEndian ? inicio + tamanho - 1 - k : inicio + k;
+			valor = (valor << 8) | (b[indice] & 0xFF);
+		}
+		return valor;
+	}
+
+}
@@ -0,0 +1,14 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.util.List;
+
+/**
+ * proximoCursor é nulo na última página. Uma página pode vir com menos arquivos que o limite (até
+ * vazia) e ainda ter próximo cursor quando os filtros de data descartaram muitos arquivos.
+ */
+public record PaginaArquivosDTO(
+		List<ArquivoListadoDTO> arquivos,
+		String proximoCursor
+		) {
+
+}
@@ -0,0 +1,515 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Armazena arquivos pequenos (avatares, miniaturas de produto) concatenados em arquivos de segmento
+ * grandes, no estilo Haystack: gravar é um append no segmento ativo, ler é uma fatia do segmento
+ * mapeado em memória, sem abrir arquivo nem gastar inode por imagem.
+ * A localização de cada arquivo fica num índice em memória, persistido num log de índice
+ * (indice.log). Na inicialização o log é carregado e a cauda de cada segmento é relida, então um
+ * append que não chegou ao log antes de uma queda é recuperado do próprio segmento.
+ * Exclusões só marcam o arquivo como removido; o compactador reescreve os segmentos com muito
+ * espaço morto e apaga os antigos.
+ */
+@Service
+public class SegmentoArquivosPequenosService {
+
+	private static final int MAGICO = 0x53484F50;
+
+	private static final int CABECALHO_FIXO = 4 + 2 + 8 + 4 + 4;
+
+	private static final byte OPERACAO_GRAVAR = 'P';
+
+	private static final byte OPERACAO_DELETAR = 'D';
+
+	private static final byte OPERACAO_FIM_SEGMENTO = 'F';
+
+	private static final String NOME_INDICE = "indice.log";
+
+	private static final long PASSO_REMAPEAMENTO = 16 * 1024 * 1024;
+
+	private final boolean habilitado;
+
+	private final Path diretorio;
+
+	private final int tamanhoMaximoArquivo;
+
+	private final long tamanhoMaximoSegmento;
+
+	private final double limiarCompactacao;
+
+	private final long intervaloCompactacaoSegundos;
+
+	private final List<Path> raizes = List.of(FileStorageProdutoService.raizProduto, FileStoragePerfilService.raizPerfil);
+
+	private final Map<String, Localizacao> indice = new ConcurrentHashMap<>();
+
+	private final Map<Integer, MappedByteBuffer> mapeados = new ConcurrentHashMap<>();
+
+	private final Map<Integer, AtomicLong> bytesVivos = new ConcurrentHashMap<>();
+
+	private final Map<Integer, Long> tamanhos = new ConcurrentHashMap<>();
+
+	private volatile int segmentoAtivo;
+
+	private FileChannel canalAtivo;
+
+	private FileChannel canalIndice;
+
+	private DataOutputStream logIndice;
+
+	private ScheduledExecutorService compactador;
+
+	@Autowired
+	private DurabilidadeArquivosService durabilidadeArquivosService;
+
+	public SegmentoArquivosPequenosService(
+			@Value("${shop.filestorage.segmentos.habilitado:false}") boolean habilitado,
+			@Value("${shop.filestorage.segmentos.diretorio:imagens/segmentos}") String diretorio,
+			@Value("${shop.filestorage.segmentos.tamanho-maximo-arquivo:65536}") int tamanhoMaximoArquivo,
+			@Value("${shop.filestorage.segmentos.tamanho-maximo-segmento:268435456}") long tamanhoMaximoSegmento,
+			@Value("${shop.filestorage.segmentos.limiar-compactacao:0.5}") double limiarCompactacao,
+			@Value("${shop.filestorage.segmentos.intervalo-compactacao-segundos:300}") long intervaloCompactacaoSegundos) {
+		this.habilitado = habilitado;
+		this.diretorio = Paths.get(diretorio);
+		this.tamanhoMaximoArquivo = tamanhoMaximoArquivo;
+		// o mapeamento de um segmento é um único MappedByteBuffer, limitado a 2 GiB
+		this.tamanhoMaximoSegmento = Math.min(tamanhoMaximoSegmento, Integer.MAX_VALUE);
+		this.limiarCompactacao = limiarCompactacao;
+		this.intervaloCompactacaoSegundos = intervaloCompactacaoSegundos;
+	}
+
+	@PostConstruct
+	public void carregar() throws IOException {
+		if (!habilitado)
+			return;
+
+		Files.createDirectories(diretorio);
+		Map<Integer, Long> fimIndexado = carregarLogIndice();
+
+		List<Integer> segmentos = listarSegmentos();
+		for (int segmento : segmentos)
+			recuperarCauda(segmento, fimIndexado.getOrDefault(segmento, 0L));
+		for (Localizacao localizacao : indice.values())
+			bytesVivos.computeIfAbsent(localizacao.segmento(), s -> new AtomicLong()).addAndGet(localizacao.tamanhoRegistro());
+
+		abrirSegmentoAtivo(segmentos.isEmpty() ? 1 : segmentos.get(segmentos.size() - 1));
+		reescreverLogIndice();
+
+		if (intervaloCompactacaoSegundos > 0) {
+			compactador = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+				Thread thread = new Thread(tarefa, "filestorage-compactador-segmentos");
+				thread.setDaemon(true);
+				return thread;
+			});
+			compactador.scheduleWithFixedDelay(this::compactarComSeguranca, intervaloCompactacaoSegundos, intervaloCompactacaoSegundos, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Só as raízes de produto e perfil usam segmentos, e só para arquivos até o tamanho configurado.
+	 */
+	public boolean aceita(Path raiz) {
+		return habilitado && raizes.stream().anyMatch(r -> r.normalize().equals(raiz.normalize()));
+	}
+
+	public int getTamanhoMaximoArquivo() {
+		return tamanhoMaximoArquivo;
+	}
+
+	/**
+	 * O append acontece sob o lock do serviço, junto com a verificação de nome repetido; o fsync do
+	 * segmento (conforme o modo de durabilidade) é feito fora dele, para que vários appends entrem no
+	 * mesmo lote de confirmação.
+	 */
+	public void gravar(Path raiz, String nomeArquivo, byte[] bytes) throws IOException {
+		String chave = chave(raiz, nomeArquivo);
+		if (chave == null)
+			throw new FileStorageException("Nome de arquivo inválido: " + nomeArquivo);
+		Localizacao localizacao;
+		synchronized (this) {
+			if (indice.containsKey(chave))
+				throw new FileAlreadyExistsException(chave);
+			localizacao = acrescentar(chave, bytes, System.currentTimeMillis());
+			indice.put(chave, localizacao);
+			registrarNoLog(OPERACAO_GRAVAR, chave, localizacao, false);
+		}
+		durabilidadeArquivosService.sincronizar(caminhoSegmento(localizacao.segmento()));
+	}
+
+	/**
+	 * Devolve uma fatia somente leitura do segmento mapeado, ou null se o arquivo não está nos segmentos.
+	 */
+	public ByteBuffer ler(Path raiz, String nomeArquivo) throws IOException {
+		if (!habilitado)
+			return null;
+		String chave = chave(raiz, nomeArquivo);
+		Localizacao localizacao = chave == null ? null : indice.get(chave);
+		if (localizacao == null)
+			return null;
+		try {
+			return fatia(localizacao);
+		} catch (NoSuchFileException e) {
+			// o compactador moveu o arquivo e apagou o segmento entre a consulta ao índice e o mapeamento
+			localizacao = indice.get(chave);
+			return localizacao == null ? null : fatia(localizacao);
+		}
+	}
+
+	public MetadadosArquivo metadados(Path raiz, String nomeArquivo) {
+		if (!habilitado)
+			return null;
+		String chave = chave(raiz, nomeArquivo);
+		Localizacao localizacao = chave == null ? null : indice.get(chave);
+		return localizacao == null ? null : new MetadadosArquivo(localizacao.tamanho(), localizacao.ultimaModificacao());
+	}
+
+	public synchronized boolean deletar(Path raiz, String nomeArquivo) throws IOException {
+		if (!habilitado)
+			return false;
+		String chave = chave(raiz, nomeArquivo);
+		Localizacao localizacao = chave == null ? null : indice.remove(chave);
+		if (localizacao == null)
+			return false;
+		bytesVivos.get(localizacao.segmento()).addAndGet(-localizacao.tamanhoRegistro());
+		registrarNoLog(OPERACAO_DELETAR, chave, null, true);
+		return true;
+	}
+
+	public List<String> listar(Path raiz) {
+		if (!habilitado)
+			return List.of();
+		String prefixo = prefixo(raiz);
+		return indice.keySet().stream()
+				.filter(chave -> chave.startsWith(prefixo))
+				.map(chave -> chave.substring(prefixo.length()))
+				.toList();
+	}
+
+	/**
+	 * Reescreve no segmento ativo os arquivos vivos dos segmentos selados cujo espaço útil caiu
+	 * abaixo do limiar, apaga esses segmentos e regrava o log de índice já sem as entradas mortas.
+	 */
+	public synchronized int compactar() throws IOException {
+		int compactados = 0;
+		for (int segmento : listarSegmentos()) {
+			if (segmento == segmentoAtivo)
+				continue;
+			long tamanho = tamanhos.getOrDefault(segmento, 0L);
+			long vivos = bytesVivos.getOrDefault(segmento, new AtomicLong()).get();
+			if (tamanho == 0 || (double) vivos / tamanho >= limiarCompactacao)
+				continue;
+
+			for (Map.Entry<String, Localizacao> entrada : new ArrayList<>(indice.entrySet())) {
+				Localizacao antiga = entrada.getValue();
+				if (antiga.segmento() != segmento)
+					continue;
+				ByteBuffer conteudo = fatia(antiga);
+				byte[] bytes = new byte[conteudo.remaining()];
+				conteudo.get(bytes);
+				Localizacao nova = acrescentar(entrada.getKey(), bytes, antiga.ultimaModificacao());
+				indice.put(entrada.getKey(), nova);
+			}
+			canalAtivo.force(false);
+			mapeados.remove(segmento);
+			bytesVivos.remove(segmento);
+			tamanhos.remove(segmento);
+			Files.deleteIfExists(caminhoSegmento(segmento));
+			compactados++;
+		}
+		if (compactados > 0)
+			reescreverLogIndice();
+		return compactados;
+	}
+
+	@PreDestroy
+	public synchronized void encerrar() throws IOException {
+		if (compactador != null)
+			compactador.shutdown();
+		if (logIndice != null)
+			logIndice.close();
+		if (canalAtivo != null) {
+			canalAtivo.force(false);
+			canalAtivo.close();
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE SEGMENTOS
+//
+
+	private record Localizacao(int segmento, long inicioDados, int tamanho, long ultimaModificacao, int tamanhoChave) {
+
+		long tamanhoRegistro() {
+			return CABECALHO_FIXO + tamanhoChave + tamanho;
+		}
+	}
+
+	private Localizacao acrescentar(String chave, byte[] bytes, long ultimaModificacao) throws IOException {
+		byte[] chaveBytes = chave.getBytes(StandardCharsets.UTF_8);
+		int tamanhoRegistro = CABECALHO_FIXO + chaveBytes.length + bytes.length;
+		if (tamanhos.get(segmentoAtivo) + tamanhoRegistro > tamanhoMaximoSegmento && tamanhos.get(segmentoAtivo) > 0) {
+			canalAtivo.force(false);
+			canalAtivo.close();
+			abrirSegmentoAtivo(segmentoAtivo + 1);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ByteBuffer registro = ByteBuffer.allocate(tamanhoRegistro);
+		registro.putInt(MAGICO).putShort((short) chaveBytes.length).put(chaveBytes)
+				.putLong(ultimaModificacao).putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+
+		long posicao = tamanhos.get(segmentoAtivo);
+		while (registro.hasRemaining())
+			canalAtivo.write(registro, posicao + registro.position());
+		tamanhos.put(segmentoAtivo, posicao + tamanhoRegistro);
+		bytesVivos.computeIfAbsent(segmentoAtivo, s -> new AtomicLong()).addAndGet(tamanhoRegistro);
+
+		return new Localizacao(segmentoAtivo, posicao + CABECALHO_FIXO + chaveBytes.length, bytes.length, ultimaModificacao, chaveBytes.length);
+	}
+
+	/**
+	 * O segmento ativo cresce depois de mapeado. O que foi gravado depois do mapeamento é lido do
+	 * canal, e o segmento só é remapeado quando essa cauda passa de PASSO_REMAPEAMENTO (ou quando
+	 * ele é selado), em vez de a cada leitura. O mapeamento trocado não é desfeito à força: fatias
+	 * dele ainda podem estar com leitores, e o GC o libera quando a última for descartada.
+	 */
+	private ByteBuffer fatia(Localizacao localizacao) throws IOException {
+		long fim = localizacao.inicioDados() + localizacao.tamanho();
+		MappedByteBuffer mapeado = mapeados.get(localizacao.segmento());
+		if (mapeado != null && mapeado.capacity() < fim && localizacao.segmento() == segmentoAtivo
+				&& fim - mapeado.capacity() <= PASSO_REMAPEAMENTO)
+			return lerDoCanal(localizacao);
+		if (mapeado == null || mapeado.capacity() < fim) {
+			synchronized (mapeados) {
+				mapeado = mapeados.get(localizacao.segmento());
+				if (mapeado == null || mapeado.capacity() < fim) {
+					try (FileChannel canal = FileChannel.open(caminhoSegmento(localizacao.segmento()), StandardOpenOption.READ)) {
+						mapeado = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+					}
+					mapeados.put(localizacao.segmento(), mapeado);
+				}
+			}
+		}
+		return mapeado.slice((int) localizacao.inicioDados(), localizacao.tamanho()).asReadOnlyBuffer();
+	}
+
+	private ByteBuffer lerDoCanal(Localizacao localizacao) throws IOException {
+		ByteBuffer conteudo = ByteBuffer.allocate(localizacao.tamanho());
+		try (FileChannel canal = FileChannel.open(caminhoSegmento(localizacao.segmento()), StandardOpenOption.READ)) {
+			while (conteudo.hasRemaining())
+				if (canal.read(conteudo, localizacao.inicioDados() + conteudo.position()) < 0)
+					throw new EOFException(caminhoSegmento(localizacao.segmento()).toString());
+		}
+		return conteudo.flip().asReadOnlyBuffer();
+	}
+
+	private void abrirSegmentoAtivo(int segmento) throws IOException {
+		segmentoAtivo = segmento;
+		canalAtivo = FileChannel.open(caminhoSegmento(segmento), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+		tamanhos.put(segmento, canalAtivo.size());
+	}
+
+	private void registrarNoLog(byte operacao, String chave, Localizacao localizacao, boolean sincronizar) throws IOException {
+		escreverEntradaLog(logIndice, operacao, chave, localizacao);
+		logIndice.flush();
+		if (sincronizar)
+			canalIndice.force(false);
+	}
+
+	private void escreverEntradaLog(DataOutputStream saida, byte operacao, String chave, Localizacao localizacao) throws IOException {
+		saida.writeByte(operacao);
+		saida.writeUTF(chave);
+		if (operacao == OPERACAO_GRAVAR) {
+			saida.writeInt(localizacao.segmento());
+			saida.writeLong(localizacao.inicioDados());
+			saida.writeInt(localizacao.tamanho());
+			saida.writeLong(localizacao.ultimaModificacao());
+			saida.writeShort(localizacao.tamanhoChave());
+		}
+	}
+
+	private void escreverFimSegmento(DataOutputStream saida, int segmento, long fim) throws IOException {
+		saida.writeByte(OPERACAO_FIM_SEGMENTO);
+		saida.writeInt(segmento);
+		saida.writeLong(fim);
+	}
+
+	/**
+	 * Carrega o log de índice e devolve, por segmento, até onde os registros já estavam indexados.
+	 * O retrato do log marca o fim de cada segmento, para que registros já excluídos no fim de um
+	 * segmento não voltem na recuperação. Uma entrada cortada no fim do log é ignorada.
+	 */
+	private Map<Integer, Long> carregarLogIndice() throws IOException {
+		Map<Integer, Long> fimIndexado = new TreeMap<>();
+		Path arquivoIndice = diretorio.resolve(NOME_INDICE);
+		if (!Files.exists(arquivoIndice))
+			return fimIndexado;
+
+		try (DataInputStream entrada = new DataInputStream(new BufferedInputStream(Files.newInputStream(arquivoIndice)))) {
+			while (true) {
+				byte operacao = entrada.readByte();
+				if (operacao == OPERACAO_FIM_SEGMENTO) {
+					fimIndexado.merge(entrada.readInt(), entrada.readLong(), Math::max);
+					continue;
+				}
+				String chave = entrada.readUTF();
+				if (operacao == OPERACAO_DELETAR) {
+					indice.remove(chave);
+					continue;
+				}
+				Localizacao localizacao = new Localizacao(entrada.readInt(), entrada.readLong(), entrada.readInt(), entrada.readLong(), entrada.readUnsignedShort());
+				indice.put(chave, localizacao);
+				fimIndexado.merge(localizacao.segmento(), localizacao.inicioDados() + localizacao.tamanho(), Math::max);
+			}
+		} catch (EOFException e) {
+			return fimIndexado;
+		}
+	}
+
+	/**
+	 * Relê os registros gravados depois da última entrada indexada do segmento e trunca o que
+	 * sobrar de um append incompleto.
+	 */
+	private void recuperarCauda(int segmento, long inicio) throws IOException {
+		try (FileChannel canal = FileChannel.open(caminhoSegmento(segmento), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long posicao = inicio;
+			long tamanho = canal.size();
+			while (posicao + CABECALHO_FIXO <= tamanho) {
+				ByteBuffer cabecalho = ByteBuffer.allocate(6);
+				canal.read(cabecalho, posicao);
+				cabecalho.flip();
+				if (cabecalho.getInt() != MAGICO)
+					break;
+				int tamanhoChave = cabecalho.getShort() & 0xFFFF;
+				ByteBuffer resto = ByteBuffer.allocate(tamanhoChave + 16);
+				if (canal.read(resto, posicao + 6) < resto.capacity())
+					break;
+				resto.flip();
+				byte[] chaveBytes = new byte[tamanhoChave];
+				resto.get(chaveBytes);
+				long ultimaModificacao = resto.getLong();
+				int tamanhoDados = resto.getInt();
+				int crcEsperado = resto.getInt();
+				long inicioDados = posicao + CABECALHO_FIXO + tamanhoChave;
+				if (inicioDados + tamanhoDados > tamanho)
+					break;
+				ByteBuffer dados = ByteBuffer.allocate(tamanhoDados);
+				canal.read(dados, inicioDados);
+				CRC32 crc = new CRC32();
+				crc.update(dados.flip());
+				if ((int) crc.getValue() != crcEsperado)
+					break;
+
+				indice.put(new String(chaveBytes, StandardCharsets.UTF_8),
+						new Localizacao(segmento, inicioDados, tamanhoDados, ultimaModificacao, tamanhoChave));
+				posicao = inicioDados + tamanhoDados;
+			}
+			if (posicao < tamanho)
+				canal.truncate(posicao);
+			tamanhos.put(segmento, canal.size());
+		}
+	}
+
+	/**
+	 * Grava um retrato do índice atual num temporário e o troca pelo log antigo com uma renomeação atômica.
+	 */
+	private void reescreverLogIndice() throws IOException {
+		if (logIndice != null)
+			logIndice.close();
+		if (canalIndice != null)
+			canalIndice.close();
+
+		Path arquivoIndice = diretorio.resolve(NOME_INDICE);
+		Path temporario = DurabilidadeArquivosService.criarTemporario(diretorio);
+		try {
+			try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.WRITE);
+					DataOutputStream saida = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canal)))) {
+				for (Map.Entry<Integer, Long> segmento : tamanhos.entrySet())
+					escreverFimSegmento(saida, segmento.getKey(), segmento.getValue());
+				for (Map.Entry<String, Localizacao> entrada : indice.entrySet())
+					escreverEntradaLog(saida, OPERACAO_GRAVAR, entrada.getKey(), entrada.getValue());
+				saida.flush();
+				canal.force(true);
+			}
+			Files.move(temporario, arquivoIndice, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporario);
+		}
+
+		canalIndice = FileChannel.open(arquivoIndice, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logIndice = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canalIndice)));
+	}
+
+	private void compactarComSeguranca() {
+		try {
+			compactar();
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private List<Integer> listarSegmentos() throws IOException {
+		try (var arquivos = Files.list(diretorio)) {
+			return arquivos.map(arquivo -> arquivo.getFileName().toString())
+					.filter(nome -> nome.startsWith("segmento-") && nome.endsWith(".dat"))
+					.map(nome -> Integer.parseInt(nome.substring("segmento-".length(), nome.length() - ".dat".length())))
+					.sorted()
+					.toList();
+		}
+	}
+
+	private Path caminhoSegmento(int segmento) {
+		return diretorio.resolve(String.format("segmento-%06d.dat", segmento));
+	}
+
+	private String chave(Path raiz, String nomeArquivo) {
+		if (nomeArquivo.isEmpty() || nomeArquivo.indexOf('/') >= 0 || nomeArquivo.indexOf('\\') >= 0
+				|| nomeArquivo.equals(".") || nomeArquivo.equals(".."))
+			return null;
+		return prefixo(raiz) + nomeArquivo;
+	}
+
+	private String prefixo(Path raiz) {
+		return raiz.normalize().toString().replace('\\', '/') + "/";
+	}
+
+}
@@ -0,0 +1,14 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.util.List;
+
+public record SessaoUploadDTO(
+		String id,
+		String nomeArquivo,
+		String tipoConteudo,
+		long tamanho,
+		long recebido,
+		List<String> intervalosRecebidos
+		) {
+
+}
@@ -0,0 +1,411 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import br.com.danielschiavo.shop.service.filestorage.IntervaloBytes.IntervaloInsatisfativelException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+@Service
+public class TransmissaoArquivoService {
+
+	@Autowired
+	private FileStorageService fileStorageService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private InicioRapidoMp4Service inicioRapidoMp4Service;
+
+	private static final String SENDFILE_SUPORTADO = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_ARQUIVO = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_INICIO = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_FIM = "org.apache.tomcat.sendfile.end";
+
+	private static final CacheControl CACHE_IMUTAVEL = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable();
+
+	/**
+	 * Escreve o arquivo cru na resposta, sem passar os bytes pelo heap: usa o sendfile do Tomcat
+	 * quando o conector suporta e, caso contrário, FileChannel.transferTo direto no stream da resposta.
+	 * Atende cabeçalhos Range (um ou vários intervalos) e If-Range com 206 Partial Content,
+	 * e requisições condicionais (If-None-Match / If-Modified-Since) com 304.
+	 */
+	public void transmitir(Path arquivo, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!fileStorageService.isArquivoLocal(arquivo)) {
+			// backend remoto ou arquivo em segmento: cada intervalo vira uma leitura de intervalo no backend (GET com Range no S3)
+			transmitir(arquivo, fileStorageService.metadados(arquivo), false, (inicio, quantidade, saida) -> {
+				try (InputStream entrada = fileStorageService.abrirIntervalo(arquivo, inicio, quantidade)) {
+					entrada.transferTo(saida);
+				}
+				saida.flush();
+			}, request, response);
+			return;
+		}
+
+		try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+			BasicFileAttributes atributos = Files.readAttributes(arquivo, BasicFileAttributes.class);
+			transmitir(arquivo, new MetadadosArquivo(canal.size(), atributos.lastModifiedTime().toMillis()), true,
+					(inicio, quantidade, saida) -> transferir(canal, inicio, quantidade, saida), request, response);
+		}
+	}
+
+	/**
+	 * Validação condicional para as respostas JSON: o ETag sai do tamanho e da data de modificação
+	 * de cada arquivo, sem ler o conteúdo. Devolve true quando a resposta já foi marcada como 304.
+	 */
+	public boolean verificarNaoModificado(ServletWebRequest webRequest, List<Path> arquivos) {
+		if (arquivos.isEmpty())
+			return false;
+
+		try {
+			ValidacaoArquivos validacao = validacao(arquivos);
+			webRequest.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, validacao.cacheControl().getHeaderValue());
+			return webRequest.checkNotModified(validacao.etag(), validacao.ultimaModificacao());
+		} catch (IOException | FileStorageException e) {
+			// arquivo excluído depois de localizado: a escrita da resposta trata o nome como inexistente
+			return false;
+		}
+	}
+
+	/**
+	 * Escreve vários arquivos numa única resposta multipart/mixed, uma parte por nome, lendo cada
+	 * arquivo direto do disco para a resposta. Nomes que não existem viram uma parte JSON com o erro.
+	 */
+	public void transmitirMultipartMixed(Path caminho, String[] nomesArquivos, HttpServletResponse response) throws IOException {
+		String fronteira = MimeTypeUtils.generateMultipartBoundaryString();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("multipart/mixed; boundary=" + fronteira);
+
+		OutputStream saida = response.getOutputStream();
+		for (String nome : nomesArquivos) {
+			Path arquivo = localizar(caminho, nome);
+			if (arquivo == null) {
+				escreverParteErro(saida, fronteira, nome);
+				continue;
+			}
+			if (!fileStorageService.isArquivoLocal(arquivo)) {
+				long tamanho;
+				try {
+					tamanho = fileStorageService.metadados(arquivo).tamanho();
+				} catch (FileStorageException e) {
+					escreverParteErro(saida, fronteira, nome);
+					continue;
+				}
+				escreverCabecalhoParte(saida, fronteira, tipoConteudo(arquivo), nome, tamanho);
+				try (InputStream entrada = fileStorageService.abrir(arquivo)) {
+					entrada.transferTo(saida);
+				}
+				continue;
+			}
+			try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+				escreverCabecalhoParte(saida, fronteira, tipoConteudo(arquivo), nome, canal.size());
+				transferir(canal, 0, canal.size(), saida);
+			}
+		}
+		saida.write(("\r\n--" + fronteira + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		saida.flush();
+	}
+
+	/**
+	 * Escreve vários arquivos como um ZIP sem compressão (STORED), gerado enquanto é enviado. O CRC de
+	 * cada entrada é calculado numa leitura prévia do arquivo, então nada é acumulado em memória; no
+	 * disco local as duas leituras usam o mesmo FileChannel, e o tamanho, o CRC e os bytes enviados
+	 * são os do mesmo arquivo mesmo que ele seja substituído no meio. Nomes que não existem são
+	 * listados na entrada erros.json.
+	 */
+	public void transmitirZip(Path caminho, String[] nomesArquivos, HttpServletResponse response) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/zip");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("arquivos.zip").build().toString());
+
+		List<ArquivoInfoDTO> erros = new ArrayList<>();
+		ZipOutputStream zip = new ZipOutputStream(response.getOutputStream());
+		for (String nome : nomesArquivos) {
+			Path arquivo = localizar(caminho, nome);
+			if (arquivo == null) {
+				erros.add(ArquivoInfoDTO.comErro(nome, "O arquivo " + nome + " não existe"));
+				continue;
+			}
+			if (fileStorageService.isArquivoLocal(arquivo))
+				escreverEntradaZipLocal(zip, nome, arquivo);
+			else
+				escreverEntradaZipRemota(zip, nome, arquivo);
+		}
+		if (!erros.isEmpty()) {
+			zip.putNextEntry(new ZipEntry("erros.json"));
+			zip.write(objectMapper.writeValueAsBytes(erros));
+			zip.closeEntry();
+		}
+		zip.finish();
+		zip.flush();
+	}
+
+	public MediaType tipoConteudo(Path arquivo) {
+		return MediaTypeFactory.getMediaType(arquivo.getFileName().toString())
+				.orElse(MediaType.APPLICATION_OCTET_STREAM);
+	}
+
+
+//
+// METODOS UTILITARIOS DE TRANSMISSAO
+//
+
+	private void transmitir(Path arquivo, MetadadosArquivo metadados, boolean local, EscritorIntervalo escritor,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		long tamanho = metadados.tamanho();
+		long ultimaModificacao = metadados.ultimaModificacao() / 1000 * 1000;
+		String etag = gerarEtag(tamanho, ultimaModificacao);
+		MediaType tipoConteudo = tipoConteudo(arquivo);
+
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl(arquivo).getHeaderValue());
+		if (new ServletWebRequest(request, response).checkNotModified(etag, ultimaModificacao))
+			return;
+
+		List<IntervaloBytes> intervalos;
+		try {
+			intervalos = intervaloAplicavel(request, etag, ultimaModificacao)
+					? IntervaloBytes.interpretar(request.getHeader(HttpHeaders.RANGE), tamanho)
+					: List.of();
+		} catch (IntervaloInsatisfativelException e) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + tamanho);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		if (intervalos.isEmpty())
+			transmitirIntervalo(escritor, local ? arquivo : null, tipoConteudo, new IntervaloBytes(0, tamanho - 1), HttpServletResponse.SC_OK, request, response);
+		else if (intervalos.size() == 1) {
+			IntervaloBytes intervalo = intervalos.get(0);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, intervalo.contentRange(tamanho));
+			transmitirIntervalo(escritor, local ? arquivo : null, tipoConteudo, intervalo, HttpServletResponse.SC_PARTIAL_CONTENT, request, response);
+		}
+		else
+			transmitirVariosIntervalos(escritor, tipoConteudo, intervalos, tamanho, request, response);
+	}
+
+	/**
+	 * ETag de uma resposta com vários arquivos, montado com o tamanho e a data de cada um.
+	 */
+	record ValidacaoArquivos(String etag, long ultimaModificacao, CacheControl cacheControl) {
+	}
+
+	ValidacaoArquivos validacao(List<Path> arquivos) throws IOException {
+		StringBuilder etag = new StringBuilder("\"");
+		long ultimaModificacao = 0;
+		for (Path arquivo : arquivos) {
+			MetadadosArquivo metadados = fileStorageService.metadados(arquivo);
+			long modificacao = metadados.ultimaModificacao() / 1000 * 1000;
+			String etagArquivo = gerarEtag(metadados.tamanho(), modificacao);
+			if (etag.length() > 1)
+				etag.append('.');
+			etag.append(etagArquivo, 1, etagArquivo.length() - 1);
+			ultimaModificacao = Math.max(ultimaModificacao, modificacao);
+		}
+		etag.append('"');
+
+		boolean imutavel = arquivos.stream().allMatch(arquivo -> cacheControl(arquivo) == CACHE_IMUTAVEL);
+		return new ValidacaoArquivos(etag.toString(), ultimaModificacao, imutavel ? CACHE_IMUTAVEL : CacheControl.noCache());
+	}
+
+	/**
+	 * Escreve um trecho do arquivo na resposta: FileChannel.transferTo no disco local, leitura de
+	 * intervalo no backend remoto.
+	 */
+	@FunctionalInterface
+	private interface EscritorIntervalo {
+		void escrever(long inicio, long quantidade, OutputStream saida) throws IOException;
+	}
+
+	private Path localizar(Path caminho, String nome) {
+		List<Path> arquivos = fileStorageService.localizarArquivos(caminho, nome);
+		return arquivos.isEmpty() ? null : arquivos.get(0);
+	}
+
+	private void escreverParteErro(OutputStream saida, String fronteira, String nome) throws IOException {
+		byte[] erro = objectMapper.writeValueAsBytes(ArquivoInfoDTO.comErro(nome, "O arquivo " + nome + " não existe"));
+		escreverCabecalhoParte(saida, fronteira, MediaType.APPLICATION_JSON, nome, erro.length);
+		saida.write(erro);
+	}
+
+	private void escreverCabecalhoParte(OutputStream saida, String fronteira, MediaType tipoConteudo, String nome, long tamanho) throws IOException {
+		String cabecalho = "\r\n--" + fronteira + "\r\n"
+				+ HttpHeaders.CONTENT_TYPE + ": " + tipoConteudo + "\r\n"
+				+ HttpHeaders.CONTENT_DISPOSITION + ": " + ContentDisposition.attachment().filename(nome).build() + "\r\n"
+				+ HttpHeaders.CONTENT_LENGTH + ": " + tamanho + "\r\n\r\n";
+		saida.write(cabecalho.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void escreverEntradaZipLocal(ZipOutputStream zip, String nome, Path arquivo) throws IOException {
+		try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+			long tamanho = canal.size();
+			CRC32 crc = new CRC32();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (long posicao = 0; posicao < tamanho;) {
+				buffer.clear();
+				int lidos = canal.read(buffer, posicao);
+				if (lidos < 0)
+					break;
+				crc.update(buffer.flip());
+				posicao += lidos;
+			}
+			zip.putNextEntry(entradaZip(nome, tamanho, crc.getValue()));
+			transferir(canal, 0, tamanho, zip);
+			zip.closeEntry();
+		}
+	}
+
+	/**
+	 * No backend remoto o objeto é lido duas vezes; o tamanho sai da mesma leitura do CRC.
+	 */
+	private void escreverEntradaZipRemota(ZipOutputStream zip, String nome, Path arquivo) throws IOException {
+		long tamanho;
+		CRC32 crc = new CRC32();
+		try (CheckedInputStream entrada = new CheckedInputStream(fileStorageService.abrir(arquivo), crc)) {
+			tamanho = entrada.transferTo(OutputStream.nullOutputStream());
+		}
+		zip.putNextEntry(entradaZip(nome, tamanho, crc.getValue()));
+		try (InputStream conteudo = fileStorageService.abrir(arquivo)) {
+			conteudo.transferTo(zip);
+		}
+		zip.closeEntry();
+	}
+
+	private static ZipEntry entradaZip(String nome, long tamanho, long crc) {
+		ZipEntry entrada = new ZipEntry(nome);
+		entrada.setMethod(ZipEntry.STORED);
+		entrada.setSize(tamanho);
+		entrada.setCompressedSize(tamanho);
+		entrada.setCrc(crc);
+		return entrada;
+	}
+
+	/**
+	 * A imagem padrão e os arquivos que ainda podem ser reescritos no lugar (MP4 reorganizado depois
+	 * do upload) são revalidados a cada uso em vez de ficarem imutáveis no cache.
+	 */
+	CacheControl cacheControl(Path arquivo) {
+		String nome = arquivo.getFileName().toString();
+		if (nome.equals(FileStorageService.NOME_IMAGEM_PADRAO) || inicioRapidoMp4Service.podeReescrever(nome))
+			return CacheControl.noCache();
+		return CACHE_IMUTAVEL;
+	}
+
+	private void transmitirIntervalo(EscritorIntervalo escritor, Path arquivoLocal, MediaType tipoConteudo, IntervaloBytes intervalo, int status,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		long quantidade = Math.max(0, intervalo.tamanho());
+		response.setStatus(status);
+		response.setContentType(tipoConteudo.toString());
+		response.setContentLengthLong(quantidade);
+
+		if (HttpMethod.HEAD.matches(request.getMethod()))
+			return;
+
+		if (arquivoLocal != null && sendfileSuportado(request)) {
+			request.setAttribute(SENDFILE_ARQUIVO, arquivoLocal.toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_INICIO, intervalo.inicio());
+			request.setAttribute(SENDFILE_FIM, intervalo.inicio() + quantidade);
+			return;
+		}
+
+		escritor.escrever(intervalo.inicio(), quantidade, response.getOutputStream());
+	}
+
+	private void transmitirVariosIntervalos(EscritorIntervalo escritor, MediaType tipoConteudo, List<IntervaloBytes> intervalos, long tamanho,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String fronteira = MimeTypeUtils.generateMultipartBoundaryString();
+		byte[][] cabecalhos = new byte[intervalos.size()][];
+		long tamanhoTotal = 0;
+		for (int i = 0; i < intervalos.size(); i++) {
+			IntervaloBytes intervalo = intervalos.get(i);
+			cabecalhos[i] = ("\r\n--" + fronteira + "\r\n"
+					+ HttpHeaders.CONTENT_TYPE + ": " + tipoConteudo + "\r\n"
+					+ HttpHeaders.CONTENT_RANGE + ": " + intervalo.contentRange(tamanho) + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			tamanhoTotal += cabecalhos[i].length + intervalo.tamanho();
+		}
+		byte[] encerramento = ("\r\n--" + fronteira + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		tamanhoTotal += encerramento.length;
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + fronteira);
+		response.setContentLengthLong(tamanhoTotal);
+
+		if (HttpMethod.HEAD.matches(request.getMethod()))
+			return;
+
+		OutputStream saida = response.getOutputStream();
+		for (int i = 0; i < intervalos.size(); i++) {
+			saida.write(cabecalhos[i]);
+			escritor.escrever(intervalos.get(i).inicio(), intervalos.get(i).tamanho(), saida);
+		}
+		saida.write(encerramento);
+		saida.flush();
+	}
+
+	private boolean intervaloAplicavel(HttpServletRequest request, String etag, long ultimaModificacao) {
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+		long data = request.getDateHeader(HttpHeaders.IF_RANGE);
+		return data != -1 && data == ultimaModificacao;
+	}
+
+	String gerarEtag(long tamanho, long ultimaModificacao) {
+		return "\"" + Long.toHexString(tamanho) + "-" + Long.toHexString(ultimaModificacao) + "\"";
+	}
+
+	private boolean sendfileSuportado(HttpServletRequest request) {
+		return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPORTADO));
+	}
+
+	void transferir(FileChannel canal, long inicio, long quantidade, OutputStream saida) throws IOException {
+		WritableByteChannel destino = Channels.newChannel(saida);
+		long posicao = inicio;
+		long fim = inicio + quantidade;
+		while (posicao < fim) {
+			long transferidos = canal.transferTo(posicao, fim - posicao, destino);
+			if (transferidos <= 0)
+				break;
+			posicao += transferidos;
+		}
+		saida.flush();
+	}
+
+}
@@ -0,0 +1,282 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.danielschiavo.shop.Base64Utils;
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+import br.com.danielschiavo.shop.service.filestorage.IntervaloBytes.IntervaloInsatisfativelException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Versão reativa da leitura feita por TransmissaoArquivoService e EscritaJsonArquivoService, usada
+ * no perfil reativo. O conteúdo sai em DataBuffers lidos com AsynchronousFileChannel conforme o
+ * cliente consome a resposta, então nenhuma thread fica presa esperando o disco ou a rede. As
+ * consultas ao armazenamento (localizar, metadados) e a leitura de backends remotos continuam
+ * bloqueantes e rodam no boundedElastic.
+ * Os cabeçalhos (ETag, Cache-Control, Range, 304) e o JSON gerado são os mesmos da pilha MVC.
+ */
+@Service
+@Profile("reativo")
+public class TransmissaoReativaArquivoService {
+
+	private static final String MARCADOR_BYTES = "\"bytesArquivo\":\"AAAA\"";
+
+	@Autowired
+	private FileStorageService fileStorageService;
+
+	@Autowired
+	private TransmissaoArquivoService transmissaoArquivoService;
+
+	@Autowired
+	private CacheArquivosService cacheArquivosService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${shop.filestorage.reativo.tamanho-buffer:65536}")
+	private int tamanhoBuffer;
+
+	/**
+	 * Transmite os bytes crus do arquivo, com Range de um intervalo, If-Range e 304. Vários
+	 * intervalos (multipart/byteranges) continuam com a pilha MVC; se chegarem aqui o arquivo vai
+	 * inteiro, o que o RFC 9110 permite.
+	 */
+	public Mono<ServerResponse> transmitir(ServerRequest request, Callable<Path> localizar) {
+		return Mono.fromCallable(() -> {
+			Path arquivo = localizar.call();
+			return new ArquivoLocalizado(arquivo, fileStorageService.metadados(arquivo), fileStorageService.isArquivoLocal(arquivo));
+		}).subscribeOn(Schedulers.boundedElastic()).flatMap(arquivo -> transmitir(request, arquivo));
+	}
+
+	/**
+	 * Mesmo contrato de EscritaJsonArquivoService.escrever: um nome gera um objeto, vários nomes
+	 * geram uma lista e cada nome que não pode ser lido vira uma entrada com erro. A lista
+	 * devolvida por localizar só serve à validação condicional, como no controller MVC.
+	 */
+	public Mono<ServerResponse> escreverJson(ServerRequest request, Path caminho, String[] nomesArquivos, Callable<List<Path>> localizar) {
+		DataBufferFactory fabrica = request.exchange().getResponse().bufferFactory();
+		return Mono.fromCallable(() -> {
+			List<Path> arquivos = localizar.call();
+			return arquivos.isEmpty() ? Optional.<TransmissaoArquivoService.ValidacaoArquivos>empty() : Optional.of(transmissaoArquivoService.validacao(arquivos));
+		}).subscribeOn(Schedulers.boundedElastic()).flatMap(validacao -> {
+			Flux<DataBuffer> corpo = Flux.range(0, nomesArquivos.length).concatMap(i -> i == 0
+					? entradaJson(caminho, nomesArquivos[i], fabrica)
+					: Flux.concat(Mono.fromSupplier(() -> texto(fabrica, ",")), entradaJson(caminho, nomesArquivos[i], fabrica)));
+			if (nomesArquivos.length != 1)
+				corpo = Flux.concat(Mono.fromSupplier(() -> texto(fabrica, "[")), corpo, Mono.fromSupplier(() -> texto(fabrica, "]")));
+
+			ServerResponse.BodyBuilder resposta = ServerResponse.ok().contentType(MediaType.APPLICATION_JSON);
+			if (validacao.isEmpty())
+				return resposta.body(BodyInserters.fromDataBuffers(corpo));
+			request.exchange().getResponse().getHeaders().setCacheControl(validacao.get().cacheControl());
+			Flux<DataBuffer> conteudo = corpo;
+			return request.checkNotModified(Instant.ofEpochMilli(validacao.get().ultimaModificacao()), validacao.get().etag())
+					.switchIfEmpty(Mono.defer(() -> resposta.body(BodyInserters.fromDataBuffers(conteudo))));
+		});
+	}
+
+	/**
+	 * Lê o trecho do arquivo sob demanda: AsynchronousFileChannel no disco local, leitura de
+	 * intervalo no boundedElastic nos backends remotos e nos arquivos guardados em segmentos.
+	 */
+	Flux<DataBuffer> ler(Path arquivo, boolean local, long inicio, long quantidade, DataBufferFactory fabrica) {
+		if (quantidade <= 0)
+			return Flux.empty();
+		if (local)
+			return DataBufferUtils.takeUntilByteCount(DataBufferUtils.readAsynchronousFileChannel(
+					() -> AsynchronousFileChannel.open(arquivo, StandardOpenOption.READ), inicio, fabrica, tamanhoBuffer), quantidade);
+		return DataBufferUtils.readInputStream(() -> fileStorageService.abrirIntervalo(arquivo, inicio, quantidade), fabrica, tamanhoBuffer)
+				.subscribeOn(Schedulers.boundedElastic());
+	}
+
+
+//
+// METODOS UTILITARIOS DE TRANSMISSAO REATIVA
+//
+
+	private record ArquivoLocalizado(Path arquivo, MetadadosArquivo metadados, boolean local) {
+	}
+
+	private Mono<ServerResponse> transmitir(ServerRequest request, ArquivoLocalizado localizado) {
+		long tamanho = localizado.metadados().tamanho();
+		long ultimaModificacao = localizado.metadados().ultimaModificacao() / 1000 * 1000;
+		String etag = transmissaoArquivoService.gerarEtag(tamanho, ultimaModificacao);
+		// na resposta da troca, para saírem também no 304
+		HttpHeaders cabecalhos = request.exchange().getResponse().getHeaders();
+		cabecalhos.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+		cabecalhos.setCacheControl(transmissaoArquivoService.cacheControl(localizado.arquivo()));
+
+		return request.checkNotModified(Instant.ofEpochMilli(ultimaModificacao), etag).switchIfEmpty(Mono.defer(() -> {
+			List<IntervaloBytes> intervalos;
+			try {
+				intervalos = intervaloAplicavel(request, etag, ultimaModificacao)
+						? IntervaloBytes.interpretar(request.headers().firstHeader(HttpHeaders.RANGE), tamanho)
+						: List.of();
+			} catch (IntervaloInsatisfativelException e) {
+				return ServerResponse.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+						.header(HttpHeaders.CONTENT_RANGE, "bytes */" + tamanho).build();
+			}
+
+			boolean parcial = intervalos.size() == 1;
+			IntervaloBytes intervalo = parcial ? intervalos.get(0) : new IntervaloBytes(0, tamanho - 1);
+			long quantidade = Math.max(0, intervalo.tamanho());
+			ServerResponse.BodyBuilder resposta = ServerResponse.status(parcial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+					.contentType(transmissaoArquivoService.tipoConteudo(localizado.arquivo()))
+					.contentLength(quantidade);
+			if (parcial)
+				resposta.header(HttpHeaders.CONTENT_RANGE, intervalo.contentRange(tamanho));
+			if (HttpMethod.HEAD.equals(request.method()))
+				return resposta.build();
+
+			DataBufferFactory fabrica = request.exchange().getResponse().bufferFactory();
+			return resposta.body(BodyInserters.fromDataBuffers(ler(localizado.arquivo(), localizado.local(), intervalo.inicio(), quantidade, fabrica)));
+		}));
+	}
+
+	private boolean intervaloAplicavel(ServerRequest request, String etag, long ultimaModificacao) {
+		String ifRange = request.headers().firstHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+		try {
+			long data = request.headers().asHttpHeaders().getFirstDate(HttpHeaders.IF_RANGE);
+			return data != -1 && data == ultimaModificacao;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Um objeto ArquivoInfoDTO do JSON: o Jackson gera o objeto com um bytesArquivo de marcação,
+	 * que é trocado pelo conteúdo codificado enquanto é lido.
+	 */
+	private Flux<DataBuffer> entradaJson(Path caminho, String nome, DataBufferFactory fabrica) {
+		return Mono.fromCallable(() -> {
+			List<Path> arquivos = fileStorageService.localizarArquivos(caminho, nome);
+			if (arquivos.isEmpty())
+				return Flux.just(entradaErro(nome, caminho, fabrica));
+
+			String modelo = objectMapper.writeValueAsString(new ArquivoInfoDTO(nome, new byte[3]));
+			int posicao = modelo.indexOf(MARCADOR_BYTES);
+			if (posicao < 0)
+				throw new FileStorageException("O JSON de ArquivoInfoDTO não tem o campo bytesArquivo");
+			int fimAbertura = posicao + MARCADOR_BYTES.length() - "AAAA\"".length();
+			byte[] abertura = modelo.substring(0, fimAbertura).getBytes(StandardCharsets.UTF_8);
+			byte[] fechamento = modelo.substring(fimAbertura + "AAAA".length()).getBytes(StandardCharsets.UTF_8);
+
+			byte[] emCache = cacheArquivosService.buscar(caminho, nome);
+			Flux<DataBuffer> bruto;
+			if (emCache != null)
+				bruto = Flux.just(fabrica.wrap(emCache));
+			else {
+				Path arquivo = arquivos.get(0);
+				long tamanho;
+				try {
+					tamanho = fileStorageService.metadados(arquivo).tamanho();
+				} catch (FileStorageException e) {
+					// excluído depois de localizado: vira entrada com erro, como um nome inexistente
+					return Flux.just(entradaErro(nome, caminho, fabrica));
+				}
+				// como na pilha MVC, o que cabe no cache é lido por ele e fica guardado para as próximas
+				if (tamanho <= cacheArquivosService.getTamanhoMaximoArquivo())
+					bruto = Flux.just(fabrica.wrap(cacheArquivosService.lerBytes(caminho, nome)));
+				else
+					bruto = ler(arquivo, fileStorageService.isArquivoLocal(arquivo), 0, tamanho, fabrica);
+			}
+			return Flux.concat(Mono.fromSupplier(() -> fabrica.wrap(abertura)), codificarBase64(bruto, fabrica),
+					Mono.fromSupplier(() -> fabrica.wrap(fechamento)));
+		}).subscribeOn(Schedulers.boundedElastic()).flatMapMany(entrada -> entrada);
+	}
+
+	private DataBuffer entradaErro(String nome, Path caminho, DataBufferFactory fabrica) throws IOException {
+		return fabrica.wrap(objectMapper.writeValueAsBytes(ArquivoInfoDTO.comErro(nome,
+				"Não foi possivel recuperar os bytes do arquivo nome " + nome + ", motivo: " + caminho.resolve(nome))));
+	}
+
+	private Flux<DataBuffer> codificarBase64(Flux<DataBuffer> bruto, DataBufferFactory fabrica) {
+		return Flux.defer(() -> {
+			CodificadorBase64Duplo codificador = new CodificadorBase64Duplo();
+			return bruto.map(buffer -> {
+				try {
+					return fabrica.wrap(codificador.codificar(buffer));
+				} finally {
+					DataBufferUtils.release(buffer);
+				}
+			}).concatWith(Mono.fromSupplier(() -> fabrica.wrap(codificador.finalizar())));
+		});
+	}
+
+	/**
+	 * bytesArquivo guarda o base64 do arquivo e o Jackson codifica esse byte[] de novo. Blocos de 9
+	 * bytes viram 12 na primeira codificação e 16 na segunda, sem enchimento, então o arquivo pode
+	 * ser codificado em pedaços; só o resto do último bloco é codificado com enchimento no final.
+	 */
+	private static class CodificadorBase64Duplo {
+
+		private static final int BLOCO = 9;
+
+		private final byte[] pendente = new byte[BLOCO];
+		private int quantidadePendente;
+
+		byte[] codificar(DataBuffer buffer) {
+			int disponivel = quantidadePendente + buffer.readableByteCount();
+			byte[] bytes = new byte[disponivel / BLOCO * BLOCO];
+			if (bytes.length == 0) {
+				buffer.read(pendente, quantidadePendente, buffer.readableByteCount());
+				quantidadePendente = disponivel;
+				return bytes;
+			}
+			System.arraycopy(pendente, 0, bytes, 0, quantidadePendente);
+			buffer.read(bytes, quantidadePendente, bytes.length - quantidadePendente);
+			quantidadePendente = buffer.readableByteCount();
+			buffer.read(pendente, 0, quantidadePendente);
+			return codificarDuasVezes(bytes);
+		}
+
+		byte[] finalizar() {
+			byte[] resto = new byte[quantidadePendente];
+			System.arraycopy(pendente, 0, resto, 0, quantidadePendente);
+			quantidadePendente = 0;
+			return codificarDuasVezes(resto);
+		}
+
+		private static byte[] codificarDuasVezes(byte[] bytes) {
+			return Base64.getEncoder().encode(Base64Utils.codificarParaBase64(bytes));
+		}
+	}
+
+	private static DataBuffer texto(DataBufferFactory fabrica, String texto) {
+		return fabrica.wrap(texto.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
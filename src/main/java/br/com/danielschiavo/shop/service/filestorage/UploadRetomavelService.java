@@ -0,0 +1,384 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Sessões de upload retomável: o cliente cria a sessão informando o tamanho, envia partes em
+ * qualquer ordem (e em paralelo) para posições do arquivo, consulta até onde o servidor já recebeu
+ * e conclui. Cada sessão é um diretório em imagens/uploads/&lt;id&gt; com os dados (arquivo esparso
+ * escrito por posição), as propriedades da sessão e o log dos intervalos recebidos, então uma
+ * conexão caída ou um restart da aplicação só custam a parte que estava em trânsito.
+ */
+@Service
+public class UploadRetomavelService {
+
+	private static final int TAMANHO_BLOCO = 64 * 1024;
+
+	private final Path diretorio;
+
+	private final long tamanhoMaximo;
+
+	private final Duration validade;
+
+	private final Map<String, Sessao> sessoes = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService limpeza;
+
+	@Value("${shop.filestorage.upload-retomavel.intervalo-limpeza-minutos:60}")
+	private long intervaloLimpezaMinutos;
+
+	@Autowired
+	private DurabilidadeArquivosService durabilidadeArquivosService;
+
+	public UploadRetomavelService(
+			@Value("${shop.filestorage.upload-retomavel.diretorio:imagens/uploads}") String diretorio,
+			@Value("${shop.filestorage.upload-retomavel.tamanho-maximo:2147483648}") long tamanhoMaximo,
+			@Value("${shop.filestorage.upload-retomavel.validade-horas:24}") long validadeHoras) {
+		this.diretorio = Paths.get(diretorio);
+		this.tamanhoMaximo = tamanhoMaximo;
+		this.validade = Duration.ofHours(validadeHoras);
+	}
+
+	/**
+	 * As sessões abandonadas são apagadas periodicamente, mesmo que ninguém crie sessões novas.
+	 */
+	@PostConstruct
+	public void iniciar() {
+		if (intervaloLimpezaMinutos <= 0)
+			return;
+		limpeza = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+			Thread thread = new Thread(tarefa, "filestorage-limpeza-uploads");
+			thread.setDaemon(true);
+			return thread;
+		});
+		limpeza.scheduleWithFixedDelay(this::removerExpiradasComSeguranca, 0, intervaloLimpezaMinutos, TimeUnit.MINUTES);
+	}
+
+	@PreDestroy
+	public void encerrar() {
+		if (limpeza != null)
+			limpeza.shutdown();
+	}
+
+	public SessaoUploadDTO criar(CriarSessaoUploadDTO pedido) {
+		if (pedido.tamanho() <= 0 || pedido.tamanho() > tamanhoMaximo)
+			throw new ValidacaoException("O tamanho do arquivo deve estar entre 1 e " + tamanhoMaximo + " bytes");
+		if (pedido.tipoConteudo() == null || pedido.tipoConteudo().indexOf('/') < 0 || FormatoArquivo.doSubtipo(subtipo(pedido.tipoConteudo())) == null)
+			throw new ValidacaoException("Os tipos aceitos são jpg, jpeg, png, mp4 e avi");
+
+		String id = UUID.randomUUID().toString();
+		Path pasta = diretorio.resolve(id);
+		try {
+			Files.createDirectories(pasta);
+			Properties propriedades = new Properties();
+			propriedades.setProperty("nomeArquivo", pedido.nomeArquivo() == null ? "" : pedido.nomeArquivo());
+			propriedades.setProperty("tipoConteudo", pedido.tipoConteudo());
+			propriedades.setProperty("tamanho", Long.toString(pedido.tamanho()));
+			try (OutputStream saida = Files.newOutputStream(pasta.resolve("sessao.properties"))) {
+				propriedades.store(saida, null);
+			}
+			Files.createFile(pasta.resolve("dados"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel criar a sessão de upload");
+		}
+		return consultar(id);
+	}
+
+	public SessaoUploadDTO consultar(String id) {
+		return sessao(id).paraDTO();
+	}
+
+	/**
+	 * Grava a parte a partir da posição inicio. Se a conexão cair no meio, o que já foi gravado
+	 * continua registrado e o cliente retoma do offset devolvido por consultar.
+	 */
+	public SessaoUploadDTO receberParte(String id, long inicio, InputStream conteudo) {
+		Sessao sessao = sessao(id);
+		if (inicio < 0 || inicio >= sessao.tamanho)
+			throw new ValidacaoException("A posição " + inicio + " está fora do arquivo de " + sessao.tamanho + " bytes");
+		if (sessao.concluindo.get())
+			throw new UploadEmConflitoException("O upload " + id + " está sendo concluído e não recebe mais partes");
+
+		long limite = sessao.tamanho - inicio;
+		long escritos = 0;
+		IOException falha = null;
+		try (FileChannel canal = FileChannel.open(sessao.pasta.resolve("dados"), StandardOpenOption.WRITE)) {
+			byte[] bloco = new byte[TAMANHO_BLOCO];
+			int lidos;
+			while ((lidos = conteudo.read(bloco, 0, (int) Math.min(bloco.length, limite - escritos))) > 0) {
+				ByteBuffer buffer = ByteBuffer.wrap(bloco, 0, lidos);
+				while (buffer.hasRemaining())
+					escritos += canal.write(buffer, inicio + escritos);
+				if (escritos == limite)
+					break;
+			}
+			if (escritos == limite && conteudo.read() != -1)
+				throw new ValidacaoException("A parte enviada ultrapassa o tamanho declarado de " + sessao.tamanho + " bytes");
+			durabilidadeArquivosService.sincronizar(sessao.pasta.resolve("dados"));
+		} catch (IOException e) {
+			falha = e;
+		} finally {
+			// o finally não lança nada, para não esconder a falha original da parte
+			if (escritos > 0) {
+				try {
+					sessao.registrar(inicio, inicio + escritos);
+				} catch (IOException e) {
+					if (falha == null)
+						falha = e;
+					else
+						falha.addSuppressed(e);
+				}
+			}
+		}
+		if (falha != null) {
+			falha.printStackTrace();
+			throw new FileStorageException("A parte do upload " + id + " foi interrompida depois de " + escritos + " bytes");
+		}
+		return sessao.paraDTO();
+	}
+
+	/**
+	 * Reserva a sessão completa para a conclusão e abre os dados para serem gravados no
+	 * armazenamento. Uma sessão incompleta, ou que outra requisição já está concluindo, lança
+	 * UploadEmConflitoException. Quem reservou chama removerConcluida depois de gravar ou
+	 * liberarConclusao se a gravação falhar.
+	 */
+	public InputStream abrirConcluido(String id) throws IOException {
+		Sessao sessao = sessao(id);
+		if (!sessao.concluindo.compareAndSet(false, true))
+			throw new UploadEmConflitoException("O upload " + id + " já está sendo concluído por outra requisição");
+		try {
+			long recebido = sessao.recebido();
+			if (recebido < sessao.tamanho)
+				throw new UploadEmConflitoException("O upload " + id + " está incompleto: recebidos " + recebido + " de " + sessao.tamanho + " bytes");
+			return Files.newInputStream(sessao.pasta.resolve("dados"));
+		} catch (IOException | RuntimeException e) {
+			sessao.concluindo.set(false);
+			throw e;
+		}
+	}
+
+	public void liberarConclusao(String id) {
+		Sessao sessao = sessoes.get(id);
+		if (sessao != null)
+			sessao.concluindo.set(false);
+	}
+
+	/**
+	 * Apaga a sessão depois que a conclusão gravou o arquivo.
+	 */
+	public void removerConcluida(String id) {
+		Sessao sessao = sessoes.remove(id);
+		if (sessao != null)
+			apagar(sessao.pasta);
+	}
+
+	public void descartar(String id) {
+		Sessao sessao = sessao(id);
+		if (sessao.concluindo.get())
+			throw new UploadEmConflitoException("O upload " + id + " está sendo concluído e não pode ser cancelado");
+		sessoes.remove(id);
+		apagar(sessao.pasta);
+	}
+
+	/**
+	 * Sessão em estado que não permite a operação: incompleta na conclusão ou já sendo concluída.
+	 */
+	public static class UploadEmConflitoException extends FileStorageException {
+
+		public UploadEmConflitoException(String mensagem) {
+			super(mensagem);
+		}
+	}
+
+
+//
+// METODOS UTILITARIOS DE UPLOAD RETOMAVEL
+//
+
+	private static final class Sessao {
+
+		private final Path pasta;
+		private final String id;
+		private final String nomeArquivo;
+		private final String tipoConteudo;
+		private final long tamanho;
+		private final TreeMap<Long, Long> intervalos = new TreeMap<>();
+		private final AtomicBoolean concluindo = new AtomicBoolean();
+
+		private Sessao(Path pasta, String id, Properties propriedades) {
+			this.pasta = pasta;
+			this.id = id;
+			this.nomeArquivo = propriedades.getProperty("nomeArquivo");
+			this.tipoConteudo = propriedades.getProperty("tipoConteudo");
+			this.tamanho = Long.parseLong(propriedades.getProperty("tamanho"));
+		}
+
+		/**
+		 * Junta o intervalo [inicio, fim) aos já recebidos e o anota no log da sessão.
+		 */
+		private synchronized void registrar(long inicio, long fim) throws IOException {
+			juntar(inicio, fim);
+			Files.writeString(pasta.resolve("recebidos"), inicio + " " + fim + "\n", StandardCharsets.US_ASCII,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+
+		private void juntar(long inicio, long fim) {
+			Map.Entry<Long, Long> anterior = intervalos.floorEntry(inicio);
+			if (anterior != null && anterior.getValue() >= inicio) {
+				inicio = anterior.getKey();
+				fim = Math.max(fim, anterior.getValue());
+			}
+			Map.Entry<Long, Long> seguinte = intervalos.ceilingEntry(inicio);
+			while (seguinte != null && seguinte.getKey() <= fim) {
+				fim = Math.max(fim, seguinte.getValue());
+				intervalos.remove(seguinte.getKey());
+				seguinte = intervalos.ceilingEntry(inicio);
+			}
+			intervalos.put(inicio, fim);
+		}
+
+		/**
+		 * Quantos bytes contíguos a partir do início do arquivo já chegaram.
+		 */
+		private synchronized long recebido() {
+			Long fim = intervalos.get(0L);
+			return fim == null ? 0 : fim;
+		}
+
+		private synchronized SessaoUploadDTO paraDTO() {
+			List<String> recebidos = new ArrayList<>();
+			intervalos.forEach((inicio, fim) -> recebidos.add(inicio + "-" + (fim - 1)));
+			return new SessaoUploadDTO(id, nomeArquivo, tipoConteudo, tamanho, recebido(), recebidos);
+		}
+	}
+
+	private Sessao sessao(String id) {
+		try {
+			if (!UUID.fromString(id).toString().equals(id))
+				throw new IllegalArgumentException(id);
+		} catch (IllegalArgumentException e) {
+			throw new ValidacaoException("Sessão de upload inválida: " + id);
+		}
+		Sessao sessao = sessoes.computeIfAbsent(id, this::carregar);
+		if (!Files.isDirectory(sessao.pasta)) {
+			sessoes.remove(id);
+			throw new ValidacaoException("Não existe sessão de upload com o id " + id);
+		}
+		return sessao;
+	}
+
+	/**
+	 * Recria a sessão a partir do disco, inclusive depois de um restart da aplicação.
+	 */
+	private Sessao carregar(String id) {
+		Path pasta = diretorio.resolve(id);
+		try {
+			Properties propriedades = new Properties();
+			try (InputStream entrada = Files.newInputStream(pasta.resolve("sessao.properties"))) {
+				propriedades.load(entrada);
+			}
+			Sessao sessao = new Sessao(pasta, id, propriedades);
+			Path recebidos = pasta.resolve("recebidos");
+			if (Files.exists(recebidos)) {
+				for (String linha : Files.readAllLines(recebidos, StandardCharsets.US_ASCII)) {
+					String[] partes = linha.split(" ");
+					// a última linha pode ter ficado pela metade numa queda
+					if (partes.length == 2 && !partes[1].isEmpty())
+						sessao.juntar(Long.parseLong(partes[0]), Long.parseLong(partes[1]));
+				}
+			}
+			return sessao;
+		} catch (NoSuchFileException e) {
+			throw new ValidacaoException("Não existe sessão de upload com o id " + id);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new FileStorageException("Não foi possivel ler a sessão de upload " + id);
+		}
+	}
+
+	/**
+	 * Apaga as sessões cujos dados não recebem nada há mais tempo que a validade, menos as que
+	 * estão sendo concluídas.
+	 */
+	void removerExpiradas() {
+		if (!Files.isDirectory(diretorio))
+			return;
+		Instant limite = Instant.now().minus(validade);
+		try (Stream<Path> pastas = Files.list(diretorio)) {
+			pastas.filter(pasta -> {
+				Sessao sessao = sessoes.get(pasta.getFileName().toString());
+				if (sessao != null && sessao.concluindo.get())
+					return false;
+				try {
+					return Files.getLastModifiedTime(pasta.resolve("dados")).toInstant().isBefore(limite);
+				} catch (IOException e) {
+					return false;
+				}
+			}).forEach(pasta -> {
+				sessoes.remove(pasta.getFileName().toString());
+				apagar(pasta);
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void removerExpiradasComSeguranca() {
+		try {
+			removerExpiradas();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void apagar(Path pasta) {
+		try (Stream<Path> arquivos = Files.list(pasta)) {
+			for (Path arquivo : (Iterable<Path>) arquivos::iterator)
+				Files.deleteIfExists(arquivo);
+			Files.deleteIfExists(pasta);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String subtipo(String tipoConteudo) {
+		String[] partes = tipoConteudo.split("/");
+		return partes[partes.length - 1];
+	}
+
+}
@@ -0,0 +1,118 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ArmazenamentoDeduplicadoServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	@Test
+	@DisplayName("Gravar o mesmo conteúdo com dois nomes deve guardar um único blob e só liberá-lo quando o último nome for excluído")
+	void gravar_ConteudoRepetido_DeveGuardarUmBlobComContagemDeReferencias() throws IOException {
+		//ARRANGE
+		Path raizBlobs = raiz.resolve("blobs");
+		ArmazenamentoDeduplicadoService armazenamento = new ArmazenamentoDeduplicadoService(true, raizBlobs.toString());
+		ReflectionTestUtils.setField(armazenamento, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.POR_ARQUIVO, 0, 1, raizBlobs.toString(), raizBlobs.toString()));
+		byte[] bytes = "mesma foto".getBytes();
+
+		//ACT
+		armazenamento.gravar(raiz.resolve("a.jpeg"), new ByteArrayInputStream(bytes));
+		armazenamento.gravar(raiz.resolve("b.jpeg"), new ByteArrayInputStream(bytes));
+
+		//ASSERT
+		Assertions.assertEquals(1, contarBlobs(raizBlobs));
+		Assertions.assertArrayEquals(bytes, Files.readAllBytes(raiz.resolve("b.jpeg")));
+
+		Assertions.assertTrue(armazenamento.deletar(raiz.resolve("a.jpeg")));
+		Assertions.assertEquals(1, contarBlobs(raizBlobs));
+
+		Assertions.assertTrue(armazenamento.deletar(raiz.resolve("b.jpeg")));
+		Assertions.assertEquals(0, contarBlobs(raizBlobs));
+	}
+
+	@Test
+	@DisplayName("Deletar nome inexistente deve devolver false")
+	void deletar_ArquivoNaoExiste_DeveRetornarFalse() throws IOException {
+		//ARRANGE
+		ArmazenamentoDeduplicadoService armazenamento = new ArmazenamentoDeduplicadoService(true, raiz.resolve("blobs").toString());
+		ReflectionTestUtils.setField(armazenamento, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.POR_ARQUIVO, 0, 1, raiz.resolve("blobs").toString(), raiz.resolve("blobs").toString()));
+
+		//ACT + ASSERT
+		Assertions.assertFalse(armazenamento.deletar(raiz.resolve("nao-existe.jpeg")));
+	}
+
+	@Test
+	@DisplayName("Substituir o conteúdo de um nome deve apontá-lo para o novo blob e liberar o antigo")
+	void substituir_NomeExistente_DeveLiberarBlobAntigo() throws IOException {
+		//ARRANGE
+		Path raizBlobs = raiz.resolve("blobs");
+		ArmazenamentoDeduplicadoService armazenamento = new ArmazenamentoDeduplicadoService(true, raizBlobs.toString());
+		ReflectionTestUtils.setField(armazenamento, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.POR_ARQUIVO, 0, 1, raizBlobs.toString(), raizBlobs.toString()));
+		armazenamento.gravar(raiz.resolve("a.jpeg"), new ByteArrayInputStream("original".getBytes()));
+
+		//ACT
+		armazenamento.substituir(raiz.resolve("a.jpeg"), new ByteArrayInputStream("otimizada".getBytes()));
+
+		//ASSERT
+		Assertions.assertArrayEquals("otimizada".getBytes(), Files.readAllBytes(raiz.resolve("a.jpeg")));
+		Assertions.assertEquals(1, contarBlobs(raizBlobs));
+	}
+
+	@Test
+	@DisplayName("Excluir ao mesmo tempo os nomes que compartilham um blob deve liberar o blob")
+	void deletar_NomesDoMesmoBlobAoMesmoTempo_DeveLiberarBlob() throws Exception {
+		//ARRANGE
+		Path raizBlobs = raiz.resolve("blobs");
+		ArmazenamentoDeduplicadoService armazenamento = new ArmazenamentoDeduplicadoService(true, raizBlobs.toString());
+		ReflectionTestUtils.setField(armazenamento, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raizBlobs.toString(), raizBlobs.toString()));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		for (int i = 0; i < 50; i++) {
+			byte[] bytes = ("foto " + i).getBytes();
+			Path a = raiz.resolve("a" + i + ".jpeg");
+			Path b = raiz.resolve("b" + i + ".jpeg");
+			armazenamento.gravar(a, new ByteArrayInputStream(bytes));
+			armazenamento.gravar(b, new ByteArrayInputStream(bytes));
+			CountDownLatch largada = new CountDownLatch(1);
+
+			//ACT
+			Future<Boolean> primeira = executor.submit(() -> {
+				largada.await();
+				return armazenamento.deletar(a);
+			});
+			Future<Boolean> segunda = executor.submit(() -> {
+				largada.await();
+				return armazenamento.deletar(b);
+			});
+			largada.countDown();
+
+			//ASSERT
+			Assertions.assertTrue(primeira.get());
+			Assertions.assertTrue(segunda.get());
+			Assertions.assertEquals(0, contarBlobs(raizBlobs));
+		}
+		executor.shutdown();
+	}
+
+	private long contarBlobs(Path raizBlobs) throws IOException {
+		try (Stream<Path> arquivos = Files.walk(raizBlobs)) {
+			return arquivos.filter(Files::isRegularFile).count();
+		}
+	}
+
+}
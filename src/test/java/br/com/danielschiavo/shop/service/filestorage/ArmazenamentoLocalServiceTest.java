@@ -0,0 +1,123 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ArmazenamentoLocalServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private ArmazenamentoLocalService armazenamentoLocal;
+
+	@BeforeEach
+	void configurar() {
+		armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raiz.toString(), raiz.toString()));
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, raiz.resolve("blobs").toString()));
+	}
+
+	@Test
+	@DisplayName("Gravar em streaming não deve expor o nome final antes do fim e não deve deixar nada quando o upload falha no meio")
+	void gravar_UploadInterrompido_NaoDeveExporArquivoParcial() throws IOException {
+		//ARRANGE
+		boolean[] visivelDuranteGravacao = {false};
+		InputStream conteudo = new InputStream() {
+			private int lidos;
+
+			@Override
+			public int read() throws IOException {
+				if (lidos == 1000) {
+					visivelDuranteGravacao[0] = armazenamentoLocal.existe(raiz, "video.mp4");
+					throw new IOException("conexão encerrada pelo cliente");
+				}
+				return lidos++ & 0xFF;
+			}
+		};
+
+		//ACT
+		Assertions.assertThrows(IOException.class, () -> armazenamentoLocal.gravar(raiz, "video.mp4", conteudo));
+
+		//ASSERT
+		Assertions.assertFalse(visivelDuranteGravacao[0]);
+		Assertions.assertFalse(armazenamentoLocal.existe(raiz, "video.mp4"));
+		Assertions.assertEquals(0, contarArquivos());
+	}
+
+	@Test
+	@DisplayName("Gravar nome que outro upload publicou durante a gravação deve lançar FileAlreadyExistsException sem sobrescrevê-lo")
+	void gravar_NomePublicadoDuranteGravacao_NaoDeveSobrescrever() throws IOException {
+		//ARRANGE
+		InputStream conteudo = new InputStream() {
+			private int lidos;
+
+			@Override
+			public int read() throws IOException {
+				// o outro upload termina enquanto este ainda está gravando o temporário
+				if (lidos == 0)
+					armazenamentoLocal.gravar(raiz, "foto.jpeg", new ByteArrayInputStream(new byte[] {1, 2}));
+				return lidos++ < 3 ? 9 : -1;
+			}
+		};
+
+		//ACT
+		Assertions.assertThrows(FileAlreadyExistsException.class, () -> armazenamentoLocal.gravar(raiz, "foto.jpeg", conteudo));
+
+		//ASSERT
+		try (InputStream entrada = armazenamentoLocal.abrir(raiz, "foto.jpeg")) {
+			Assertions.assertArrayEquals(new byte[] {1, 2}, entrada.readAllBytes());
+		}
+		Assertions.assertEquals(1, contarArquivos());
+	}
+
+	@Test
+	@DisplayName("Gravar nome já existente deve lançar FileAlreadyExistsException")
+	void gravar_NomeExistente_DeveLancarExcecao() throws IOException {
+		//ARRANGE
+		armazenamentoLocal.gravar(raiz, "foto.jpeg", new ByteArrayInputStream(new byte[] {1}));
+
+		//ACT + ASSERT
+		Assertions.assertThrows(FileAlreadyExistsException.class,
+				() -> armazenamentoLocal.gravar(raiz, "foto.jpeg", new ByteArrayInputStream(new byte[] {2})));
+	}
+
+	@Test
+	@DisplayName("Substituir deve recusar, sem mexer no arquivo, quando ele mudou ou foi excluído depois de lido")
+	void substituir_ArquivoAlteradoOuExcluido_NaoDeveSubstituir() throws IOException {
+		//ARRANGE
+		armazenamentoLocal.gravar(raiz, "video.mp4", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		MetadadosArquivo lido = armazenamentoLocal.metadados(raiz, "video.mp4");
+		MetadadosArquivo antigo = new MetadadosArquivo(lido.tamanho(), lido.ultimaModificacao() - 5000);
+		Path novoConteudo = Files.write(raiz.resolve(DurabilidadeArquivosService.PREFIXO_TEMPORARIO + "1"), new byte[] {9, 9, 9});
+
+		//ACT + ASSERT
+		Assertions.assertFalse(armazenamentoLocal.substituir(raiz, "video.mp4", novoConteudo, antigo));
+		try (InputStream conteudo = armazenamentoLocal.abrir(raiz, "video.mp4")) {
+			Assertions.assertArrayEquals(new byte[] {1, 2, 3}, conteudo.readAllBytes());
+		}
+		armazenamentoLocal.deletar(raiz, "video.mp4");
+		Assertions.assertFalse(armazenamentoLocal.substituir(raiz, "video.mp4", novoConteudo, lido));
+		Assertions.assertFalse(armazenamentoLocal.existe(raiz, "video.mp4"));
+	}
+
+	private long contarArquivos() throws IOException {
+		try (Stream<Path> arquivos = Files.walk(raiz)) {
+			return arquivos.filter(Files::isRegularFile).count();
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+@Testcontainers(disabledWithoutDocker = true)
+class ArmazenamentoS3ServiceTest {
+
+	private static final String BUCKET = "shop-filestorage";
+
+	@Container
+	private static final GenericContainer<?> minio = new GenericContainer<>("minio/minio:RELEASE.2024-11-07T00-52-20Z")
+			.withCommand("server", "/data")
+			.withEnv("MINIO_ROOT_USER", "minio")
+			.withEnv("MINIO_ROOT_PASSWORD", "minio-senha")
+			.withExposedPorts(9000)
+			.waitingFor(Wait.forHttp("/minio/health/ready").forPort(9000));
+
+	private static ArmazenamentoS3Service armazenamento;
+
+	private final Path raiz = Paths.get("imagens/produto");
+
+	@BeforeAll
+	static void configurar() {
+		S3Client s3 = S3Client.builder()
+				.endpointOverride(URI.create("http://" + minio.getHost() + ":" + minio.getMappedPort(9000)))
+				.forcePathStyle(true)
+				.region(Region.US_EAST_1)
+				.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("minio", "minio-senha")))
+				.build();
+		s3.createBucket(r -> r.bucket(BUCKET));
+		armazenamento = new ArmazenamentoS3Service(s3, BUCKET, 5 * 1024 * 1024, 3);
+	}
+
+	@AfterAll
+	static void encerrar() {
+		armazenamento.encerrar();
+	}
+
+	@Test
+	@DisplayName("Gravar arquivo maior que uma parte deve subir em partes paralelas e ser lido inteiro e por intervalo")
+	void gravar_ArquivoMaiorQueUmaParte_DeveUsarMultipartELerIntervalos() throws IOException {
+		//ARRANGE
+		byte[] bytes = new byte[12 * 1024 * 1024 + 123];
+		new Random(42).nextBytes(bytes);
+
+		//ACT
+		armazenamento.gravar(raiz, "video.mp4", new ByteArrayInputStream(bytes));
+
+		//ASSERT
+		Assertions.assertEquals(bytes.length, armazenamento.metadados(raiz, "video.mp4").tamanho());
+		try (InputStream conteudo = armazenamento.abrir(raiz, "video.mp4")) {
+			Assertions.assertArrayEquals(bytes, conteudo.readAllBytes());
+		}
+		try (InputStream intervalo = armazenamento.abrirIntervalo(raiz, "video.mp4", 5 * 1024 * 1024 - 2, 4)) {
+			Assertions.assertArrayEquals(new byte[] {bytes[5 * 1024 * 1024 - 2], bytes[5 * 1024 * 1024 - 1],
+					bytes[5 * 1024 * 1024], bytes[5 * 1024 * 1024 + 1]}, intervalo.readAllBytes());
+		}
+	}
+
+	@Test
+	@DisplayName("Gravar nome repetido deve lançar FileAlreadyExistsException e copiar deve duplicar no servidor")
+	void gravarECopiar_NomeRepetido_DeveLancarExcecaoECopiarConteudo() throws IOException {
+		//ARRANGE
+		byte[] bytes = {1, 2, 3};
+		Path raizPedido = Paths.get("imagens/pedido");
+		armazenamento.gravar(raiz, "foto.png", new ByteArrayInputStream(bytes));
+
+		//ACT + ASSERT
+		Assertions.assertThrows(FileAlreadyExistsException.class,
+				() -> armazenamento.gravar(raiz, "foto.png", new ByteArrayInputStream(bytes)));
+
+		armazenamento.copiar(raiz, "foto.png", raizPedido, "PRODID1-foto.png");
+		try (InputStream conteudo = armazenamento.abrir(raizPedido, "PRODID1-foto.png")) {
+			Assertions.assertArrayEquals(bytes, conteudo.readAllBytes());
+		}
+		Assertions.assertEquals(List.of("PRODID1-foto.png"), armazenamento.listar(raizPedido));
+		Assertions.assertThrows(FileAlreadyExistsException.class,
+				() -> armazenamento.copiar(raiz, "foto.png", raizPedido, "PRODID1-foto.png"));
+		Assertions.assertThrows(NoSuchFileException.class,
+				() -> armazenamento.copiar(raiz, "inexistente.png", raizPedido, "PRODID1-inexistente.png"));
+	}
+
+	@Test
+	@DisplayName("Substituir deve trocar o conteúdo de um objeto que não mudou e recusar um alterado depois de lido ou inexistente")
+	void substituir_ObjetoExistente_DeveTrocarConteudo() throws IOException {
+		//ARRANGE
+		armazenamento.gravar(raiz, "trocar.png", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		MetadadosArquivo lido = armazenamento.metadados(raiz, "trocar.png");
+		Path novoConteudo = Files.createTempFile("s3-substituir", ".png");
+		Files.write(novoConteudo, new byte[] {4, 5});
+
+		//ACT
+		boolean substituido = armazenamento.substituir(raiz, "trocar.png", novoConteudo, lido);
+
+		//ASSERT
+		Assertions.assertTrue(substituido);
+		try (InputStream conteudo = armazenamento.abrir(raiz, "trocar.png")) {
+			Assertions.assertArrayEquals(new byte[] {4, 5}, conteudo.readAllBytes());
+		}
+		Assertions.assertFalse(armazenamento.substituir(raiz, "trocar.png", novoConteudo, lido));
+		Assertions.assertFalse(armazenamento.substituir(raiz, "nunca-gravado.png", novoConteudo, lido));
+		Files.delete(novoConteudo);
+	}
+
+	@Test
+	@DisplayName("Deletar deve remover o objeto e devolver false quando ele não existe")
+	void deletar_ObjetoExistente_DeveRemover() throws IOException {
+		//ARRANGE
+		armazenamento.gravar(raiz, "apagar.jpeg", new ByteArrayInputStream(new byte[] {9}));
+
+		//ACT + ASSERT
+		Assertions.assertTrue(armazenamento.deletar(raiz, "apagar.jpeg"));
+		Assertions.assertFalse(armazenamento.deletar(raiz, "apagar.jpeg"));
+		Assertions.assertNull(armazenamento.metadados(raiz, "apagar.jpeg"));
+		Assertions.assertThrows(NoSuchFileException.class, () -> armazenamento.abrir(raiz, "apagar.jpeg"));
+	}
+
+}
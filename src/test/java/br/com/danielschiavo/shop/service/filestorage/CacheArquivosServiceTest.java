@@ -0,0 +1,113 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class CacheArquivosServiceTest {
+
+	private final Path raiz = FileStorageProdutoService.raizProduto;
+
+	private ArmazenamentoBackend armazenamentoBackend = Mockito.mock(ArmazenamentoBackend.class);
+
+	private CacheArquivosService cacheArquivosService = new CacheArquivosService(1024, 0, 0, 100);
+
+	@BeforeEach
+	void configurar() throws IOException {
+		ReflectionTestUtils.setField(cacheArquivosService, "armazenamentoBackend", armazenamentoBackend);
+		Mockito.when(armazenamentoBackend.existe(any(), anyString())).thenReturn(true);
+	}
+
+	@Test
+	@DisplayName("Ler bytes duas vezes deve ir ao armazenamento só na primeira e contar um acerto")
+	void lerBytes_SegundaLeitura_DeveVirDoCache() throws IOException {
+		//ARRANGE
+		byte[] conteudo = {1, 2, 3};
+		Mockito.when(armazenamentoBackend.abrir(raiz, "foto.png")).thenAnswer(i -> new ByteArrayInputStream(conteudo));
+
+		//ACT
+		byte[] primeira = cacheArquivosService.lerBytes(raiz, "foto.png");
+		byte[] segunda = cacheArquivosService.lerBytes(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertArrayEquals(conteudo, primeira);
+		Assertions.assertArrayEquals(conteudo, segunda);
+		Mockito.verify(armazenamentoBackend, Mockito.times(1)).abrir(raiz, "foto.png");
+		Assertions.assertEquals(1, cacheArquivosService.estatisticas().get(raiz.toString()).acertos());
+	}
+
+	@Test
+	@DisplayName("Invalidar deve fazer a próxima leitura buscar o conteúdo novo no armazenamento")
+	void invalidar_ArquivoEmCache_DeveRelerDoArmazenamento() throws IOException {
+		//ARRANGE
+		Mockito.when(armazenamentoBackend.abrir(raiz, "foto.png"))
+				.thenAnswer(i -> new ByteArrayInputStream(new byte[] {1}))
+				.thenAnswer(i -> new ByteArrayInputStream(new byte[] {2}));
+		cacheArquivosService.lerBytes(raiz, "foto.png");
+
+		//ACT
+		cacheArquivosService.invalidar(raiz, "foto.png");
+		byte[] bytes = cacheArquivosService.lerBytes(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {2}, bytes);
+		Assertions.assertArrayEquals(new byte[] {2}, cacheArquivosService.buscar(raiz, "foto.png"));
+	}
+
+	@Test
+	@DisplayName("Ler arquivo maior que o tamanho máximo deve devolver os bytes sem guardá-los no cache")
+	void lerBytes_ArquivoMaiorQueLimite_NaoDeveGuardarNoCache() throws IOException {
+		//ARRANGE
+		Mockito.when(armazenamentoBackend.abrir(raiz, "video.mp4")).thenAnswer(i -> new ByteArrayInputStream(new byte[101]));
+
+		//ACT
+		byte[] bytes = cacheArquivosService.lerBytes(raiz, "video.mp4");
+
+		//ASSERT
+		Assertions.assertEquals(101, bytes.length);
+		Assertions.assertNull(cacheArquivosService.buscar(raiz, "video.mp4"));
+	}
+
+	@Test
+	@DisplayName("Ler bytes de arquivo apagado durante a leitura não deve deixá-lo no cache")
+	void lerBytes_ArquivoApagadoDuranteLeitura_NaoDeveFicarNoCache() throws IOException {
+		//ARRANGE
+		Mockito.when(armazenamentoBackend.abrir(raiz, "foto.png")).thenAnswer(i -> new ByteArrayInputStream(new byte[] {1}));
+		Mockito.when(armazenamentoBackend.existe(raiz, "foto.png")).thenReturn(false);
+
+		//ACT
+		cacheArquivosService.lerBytes(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertNull(cacheArquivosService.buscar(raiz, "foto.png"));
+	}
+
+	@Test
+	@DisplayName("Bytes lidos antes de uma substituição invalidada durante a leitura não devem ficar no cache")
+	void lerBytes_SubstituidoDuranteLeitura_NaoDeveFicarNoCache() throws IOException {
+		//ARRANGE
+		Mockito.when(armazenamentoBackend.abrir(raiz, "foto.png")).thenAnswer(i -> {
+			ByteArrayInputStream antigo = new ByteArrayInputStream(new byte[] {1});
+			cacheArquivosService.invalidar(raiz, "foto.png");
+			return antigo;
+		});
+
+		//ACT
+		byte[] bytes = cacheArquivosService.lerBytes(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {1}, bytes);
+		Assertions.assertNull(cacheArquivosService.buscar(raiz, "foto.png"));
+	}
+
+}
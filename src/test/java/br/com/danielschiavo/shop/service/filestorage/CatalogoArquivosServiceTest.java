@@ -0,0 +1,198 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+
+class CatalogoArquivosServiceTest {
+
+	@TempDir
+	Path diretorio;
+
+	private Path raiz;
+
+	private ArmazenamentoLocalService armazenamentoLocal;
+
+	@BeforeEach
+	void configurar() {
+		raiz = diretorio.resolve("produto");
+		armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, diretorio.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService",
+				new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, diretorio.toString(), diretorio.toString()));
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, diretorio.resolve("blobs").toString()));
+	}
+
+	@Test
+	@DisplayName("Entradas gravadas além da capacidade inicial devem sobreviver ao redimensionamento e a um restart, com o catálogo pronto logo ao carregar")
+	void registrar_AlemDaCapacidadeEDepoisDeRestart_DeveManterEntradas() throws IOException {
+		//ARRANGE
+		CatalogoArquivosService catalogo = novoCatalogo(true);
+		Assertions.assertTrue(aguardarPronto(catalogo));
+		for (int i = 0; i < 100; i++)
+			gravar(catalogo, "imagem" + i + ".png", ("conteudo " + i).getBytes());
+		catalogo.remover(raiz, "imagem7.png");
+
+		//ACT
+		catalogo.encerrar();
+		CatalogoArquivosService recarregado = novoCatalogo(true);
+
+		//ASSERT
+		Assertions.assertTrue(recarregado.isPronto());
+		EntradaCatalogoDTO entrada = recarregado.buscar(raiz, "imagem42.png");
+		CRC32 crc = new CRC32();
+		crc.update("conteudo 42".getBytes());
+		Assertions.assertEquals("imagem42.png", entrada.nomeArquivo());
+		Assertions.assertEquals(11, entrada.tamanho());
+		Assertions.assertEquals(crc.getValue(), entrada.crc32());
+		Assertions.assertNull(recarregado.buscar(raiz, "imagem7.png"));
+		for (int i = 0; i < 100; i++)
+			Assertions.assertEquals(i != 7, recarregado.buscar(raiz, "imagem" + i + ".png") != null);
+		recarregado.encerrar();
+	}
+
+	@Test
+	@DisplayName("Verificação de consistência deve achar arquivos criados, alterados e apagados por fora e, com correção, deixar o catálogo igual aos diretórios")
+	void verificarConsistencia_AlteracoesPorFora_DeveDetectarECorrigir() throws IOException {
+		//ARRANGE
+		CatalogoArquivosService catalogo = novoCatalogo(true);
+		Assertions.assertTrue(aguardarPronto(catalogo));
+		gravar(catalogo, "mantido.png", new byte[] {1});
+		gravar(catalogo, "alterado.png", new byte[] {1});
+		gravar(catalogo, "apagado.png", new byte[] {1});
+		armazenamentoLocal.gravar(raiz, "novo.png", new ByteArrayInputStream(new byte[] {1, 2}));
+		Files.write(armazenamentoLocal.caminhoLocal(raiz, "alterado.png").orElseThrow(), new byte[] {1, 2, 3});
+		Files.delete(armazenamentoLocal.caminhoLocal(raiz, "apagado.png").orElseThrow());
+
+		//ACT
+		ConsistenciaCatalogoDTO antes = catalogo.verificarConsistencia(true);
+		ConsistenciaCatalogoDTO depois = catalogo.verificarConsistencia(false);
+
+		//ASSERT
+		Assertions.assertEquals(new ConsistenciaCatalogoDTO(3, 3, 1, 1, 1, 0, true), antes);
+		Assertions.assertEquals(new ConsistenciaCatalogoDTO(3, 3, 0, 0, 0, 0, false), depois);
+		Assertions.assertEquals(3, catalogo.buscar(raiz, "alterado.png").tamanho());
+		Assertions.assertNotNull(catalogo.buscar(raiz, "novo.png"));
+		Assertions.assertNull(catalogo.buscar(raiz, "apagado.png"));
+		catalogo.encerrar();
+	}
+
+	@Test
+	@DisplayName("O formato gravado deve voltar igual depois do redimensionamento e de um restart")
+	void registrar_Formatos_DeveManterFormatoDepoisDeRedimensionarEReiniciar() throws IOException {
+		//ARRANGE
+		CatalogoArquivosService catalogo = novoCatalogo(true);
+		Assertions.assertTrue(aguardarPronto(catalogo));
+		gravar(catalogo, "foto.png", new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+		gravar(catalogo, "foto.jpeg", new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0});
+		gravar(catalogo, "desconhecido.png", new byte[] {1, 2, 3});
+		for (int i = 0; i < 40; i++)
+			gravar(catalogo, "imagem" + i + ".png", new byte[] {1});
+
+		//ACT
+		catalogo.encerrar();
+		CatalogoArquivosService recarregado = novoCatalogo(true);
+
+		//ASSERT
+		Assertions.assertEquals(FormatoArquivo.PNG, recarregado.buscar(raiz, "foto.png").formato());
+		Assertions.assertEquals(FormatoArquivo.JPEG, recarregado.buscar(raiz, "foto.jpeg").formato());
+		Assertions.assertNull(recarregado.buscar(raiz, "desconhecido.png").formato());
+		recarregado.encerrar();
+	}
+
+	@Test
+	@DisplayName("Nome que não cabe num slot deve ser recusado antes de gravar e contado na verificação quando já existe no armazenamento")
+	void validarNome_NomeLongoDemais_DeveRecusarEContarNaVerificacao() throws IOException {
+		//ARRANGE
+		CatalogoArquivosService catalogo = novoCatalogo(true);
+		Assertions.assertTrue(aguardarPronto(catalogo));
+		String nomeLongo = "a".repeat(100) + ".png";
+		armazenamentoLocal.gravar(raiz, nomeLongo, new ByteArrayInputStream(new byte[] {1}));
+
+		//ACT + ASSERT
+		Assertions.assertThrows(FileStorageException.class, () -> catalogo.validarNome(nomeLongo));
+		Assertions.assertDoesNotThrow(() -> catalogo.validarNome("a".repeat(99) + ".png"));
+		ConsistenciaCatalogoDTO consistencia = catalogo.verificarConsistencia(false);
+		Assertions.assertEquals(1, consistencia.ignoradosPorNomeLongo());
+		Assertions.assertEquals(0, consistencia.ausentesNoCatalogo());
+		catalogo.encerrar();
+	}
+
+	@Test
+	@DisplayName("Sem verificação na inicialização, um catálogo novo só deve responder consultas depois da verificação com correção")
+	void carregar_SemVerificacaoNaInicializacao_DeveEsperarVerificacaoComCorrecao() throws IOException {
+		//ARRANGE
+		armazenamentoLocal.gravar(raiz, "existente.png", new ByteArrayInputStream(new byte[] {1}));
+		CatalogoArquivosService catalogo = novoCatalogo(false);
+
+		//ACT
+		boolean prontoAoCarregar = catalogo.isPronto();
+		catalogo.verificarConsistencia(true);
+
+		//ASSERT
+		Assertions.assertFalse(prontoAoCarregar);
+		Assertions.assertTrue(catalogo.isPronto());
+		Assertions.assertNotNull(catalogo.buscar(raiz, "existente.png"));
+		catalogo.encerrar();
+	}
+
+	@Test
+	@DisplayName("Uma entrada que não cabe no catálogo cheio deve tirá-lo das consultas em vez de deixá-lo incompleto")
+	void registrar_CatalogoCheio_DeveDeixarDeEstarPronto() throws IOException {
+		//ARRANGE
+		CatalogoArquivosService catalogo = novoCatalogo(true);
+		Assertions.assertTrue(aguardarPronto(catalogo));
+		ReflectionTestUtils.setField(catalogo, "capacidadeMaxima", 16);
+
+		//ACT
+		for (int i = 0; i < 20; i++)
+			gravar(catalogo, "imagem" + i + ".png", new byte[] {1});
+		catalogo.verificarConsistencia(true);
+
+		//ASSERT
+		Assertions.assertFalse(catalogo.isPronto());
+		catalogo.encerrar();
+	}
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private CatalogoArquivosService novoCatalogo(boolean verificarNaInicializacao) {
+		CatalogoArquivosService catalogo = new CatalogoArquivosService(true, diretorio.resolve("catalogo").toString(), 16, verificarNaInicializacao);
+		ReflectionTestUtils.setField(catalogo, "raizes", List.of(raiz));
+		ReflectionTestUtils.setField(catalogo, "armazenamentoBackend", armazenamentoLocal);
+		catalogo.carregar();
+		return catalogo;
+	}
+
+	private void gravar(CatalogoArquivosService catalogo, String nome, byte[] conteudo) throws IOException {
+		armazenamentoLocal.gravar(raiz, nome, new ByteArrayInputStream(conteudo));
+		CRC32 crc = new CRC32();
+		crc.update(conteudo);
+		catalogo.registrar(raiz, nome, conteudo, crc.getValue());
+	}
+
+	private static boolean aguardarPronto(CatalogoArquivosService catalogo) {
+		// catálogo novo é montado em segundo plano pela verificação de consistência
+		long limite = System.currentTimeMillis() + 5000;
+		while (!catalogo.isPronto() && System.currentTimeMillis() < limite)
+			Thread.onSpinWait();
+		return catalogo.isPronto();
+	}
+
+}
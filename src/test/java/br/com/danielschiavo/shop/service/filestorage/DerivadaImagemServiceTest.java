@@ -0,0 +1,102 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.model.ValidacaoException;
+
+class DerivadaImagemServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private DerivadaImagemService derivadaImagemService = new DerivadaImagemService(0.8f, 50_000_000, 2);
+
+	private LayoutArmazenamentoService layoutArmazenamentoService = new LayoutArmazenamentoService(true);
+
+	@BeforeEach
+	void configurar() {
+		ReflectionTestUtils.setField(derivadaImagemService, "layoutArmazenamentoService", layoutArmazenamentoService);
+	}
+
+	@Test
+	@DisplayName("Obter derivada deve gerar a menor largura que cobre o pedido ao lado do original e reaproveitá-la depois")
+	void obterDerivada_OriginalMaiorQueLargura_DeveGerarMiniatura() throws IOException {
+		//ARRANGE
+		Path original = criarImagem("foto.png", 800, 400);
+
+		//ACT
+		Path derivada = derivadaImagemService.obterDerivada(original, 200);
+
+		//ASSERT
+		Assertions.assertEquals(raiz.resolve("foto.png@256.jpg"), derivada);
+		BufferedImage miniatura = ImageIO.read(derivada.toFile());
+		Assertions.assertEquals(256, miniatura.getWidth());
+		Assertions.assertEquals(128, miniatura.getHeight());
+		Assertions.assertEquals(derivada, derivadaImagemService.obterDerivada(original, 256));
+	}
+
+	@Test
+	@DisplayName("Obter derivada deve devolver o próprio original pelo cabeçalho, sem esperar vaga para decodificar, quando ele já é menor que a largura pedida")
+	void obterDerivada_OriginalMenorQueLargura_DeveRetornarOriginal() throws IOException {
+		//ARRANGE
+		DerivadaImagemService semVagas = new DerivadaImagemService(0.8f, 50_000_000, 0);
+		Path original = criarImagem("pequena.png", 50, 50);
+
+		//ACT + ASSERT
+		Assertions.assertEquals(original, Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> semVagas.obterDerivada(original, 64)));
+		Assertions.assertFalse(Files.exists(raiz.resolve("pequena.png@64.jpg")));
+	}
+
+	@Test
+	@DisplayName("Obter derivada de imagem com mais pixels que o máximo deve recusá-la pelo cabeçalho, sem decodificar nem gerar miniatura")
+	void obterDerivada_ImagemAcimaDoLimiteDePixels_DeveLancarExcecao() throws IOException {
+		//ARRANGE
+		DerivadaImagemService derivadaLimitada = new DerivadaImagemService(0.8f, 100_000, 2);
+		Path original = criarImagem("enorme.png", 1000, 101);
+
+		//ACT + ASSERT
+		Assertions.assertThrows(ValidacaoException.class, () -> derivadaLimitada.obterDerivada(original, 256));
+		Assertions.assertFalse(Files.exists(raiz.resolve("enorme.png@256.jpg")));
+	}
+
+	@Test
+	@DisplayName("Deletar derivadas deve excluir as miniaturas dos dois layouts, inclusive as que ficaram no plano depois da migração do original")
+	void deletarDerivadas_MiniaturasNosDoisLayouts_DeveExcluirTodas() throws IOException {
+		//ARRANGE
+		Path original = criarImagem("foto.png", 1200, 600);
+		Path pequena = derivadaImagemService.obterDerivada(original, 64);
+		Path grande = derivadaImagemService.obterDerivada(original, 1024);
+		Path fragmentada = layoutArmazenamentoService.caminhoFragmentado(raiz, "foto.png@512.jpg");
+		Files.createDirectories(fragmentada.getParent());
+		Files.write(fragmentada, new byte[] {1});
+
+		//ACT
+		derivadaImagemService.deletarDerivadas(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertFalse(Files.exists(pequena));
+		Assertions.assertFalse(Files.exists(grande));
+		Assertions.assertFalse(Files.exists(fragmentada));
+		Assertions.assertTrue(Files.exists(original));
+	}
+
+	private Path criarImagem(String nome, int largura, int altura) throws IOException {
+		Path arquivo = raiz.resolve(nome);
+		ImageIO.write(new BufferedImage(largura, altura, BufferedImage.TYPE_INT_RGB), "png", arquivo.toFile());
+		return arquivo;
+	}
+
+}
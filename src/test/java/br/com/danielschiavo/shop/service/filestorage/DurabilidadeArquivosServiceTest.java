@@ -0,0 +1,109 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DurabilidadeArquivosServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	@Test
+	@DisplayName("Publicações simultâneas no modo em grupo devem ser confirmadas em lotes e todos os arquivos devem aparecer com o nome final")
+	void publicar_ModoEmGrupo_DeveConfirmarEmLotes() throws Exception {
+		//ARRANGE
+		DurabilidadeArquivosService durabilidade = new DurabilidadeArquivosService(ModoDurabilidade.EM_GRUPO, 200, 64, raiz.toString(), raiz.toString());
+		durabilidade.iniciar();
+		int quantidade = 8;
+		CountDownLatch largada = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(quantidade);
+		List<Future<?>> publicacoes = new ArrayList<>();
+
+		//ACT
+		for (int i = 0; i < quantidade; i++) {
+			Path temporario = Files.write(raiz.resolve(".tmp-" + i), new byte[] {(byte) i});
+			Path destino = raiz.resolve("arquivo-" + i + ".jpeg");
+			publicacoes.add(executor.submit(() -> {
+				largada.await();
+				durabilidade.publicar(temporario, destino);
+				return null;
+			}));
+		}
+		largada.countDown();
+		for (Future<?> publicacao : publicacoes)
+			publicacao.get();
+		executor.shutdown();
+		durabilidade.encerrar();
+
+		//ASSERT
+		for (int i = 0; i < quantidade; i++) {
+			Assertions.assertArrayEquals(new byte[] {(byte) i}, Files.readAllBytes(raiz.resolve("arquivo-" + i + ".jpeg")));
+			Assertions.assertFalse(Files.exists(raiz.resolve(".tmp-" + i)));
+		}
+		EstatisticasDurabilidadeDTO estatisticas = durabilidade.estatisticas();
+		Assertions.assertEquals(quantidade, estatisticas.arquivosConfirmados());
+		Assertions.assertTrue(estatisticas.grupos() < quantidade);
+		Assertions.assertTrue(estatisticas.maiorGrupo() > 1);
+		Assertions.assertEquals(0, estatisticas.falhas());
+	}
+
+	@Test
+	@DisplayName("Publicar depois de encerrar a confirmação em grupo deve falhar na hora em vez de esperar para sempre")
+	void publicar_ConfirmacaoEncerrada_DeveLancarExcecao() throws Exception {
+		//ARRANGE
+		DurabilidadeArquivosService durabilidade = new DurabilidadeArquivosService(ModoDurabilidade.EM_GRUPO, 5, 64, raiz.toString(), raiz.toString());
+		durabilidade.iniciar();
+		durabilidade.encerrar();
+		Path temporario = Files.write(raiz.resolve(".tmp-encerrado"), new byte[] {1});
+		Path destino = raiz.resolve("encerrado.jpeg");
+
+		//ACT + ASSERT
+		Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5),
+				() -> Assertions.assertThrows(IOException.class, () -> durabilidade.publicarNovo(temporario, destino)));
+		Assertions.assertFalse(Files.exists(destino));
+	}
+
+	@Test
+	@DisplayName("Limpar temporários deve apagar só os temporários desta instância anteriores à inicialização, inclusive nos fragmentos")
+	void limparTemporarios_TemporariosAntigosENovos_DeveApagarSoOsAntigos() throws IOException {
+		//ARRANGE
+		DurabilidadeArquivosService durabilidade = new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raiz.toString(), raiz.toString());
+		Instant inicio = Instant.now();
+		Path fragmento = Files.createDirectories(raiz.resolve("ab/cd"));
+		Path orfao = Files.write(fragmento.resolve(DurabilidadeArquivosService.PREFIXO_TEMPORARIO + "123"), new byte[] {1});
+		Files.setLastModifiedTime(orfao, FileTime.from(inicio.minusSeconds(60)));
+		Path emAndamento = Files.write(raiz.resolve(DurabilidadeArquivosService.PREFIXO_TEMPORARIO + "456"), new byte[] {2});
+		Files.setLastModifiedTime(emAndamento, FileTime.from(inicio.plusSeconds(1)));
+		Path outraInstancia = Files.write(raiz.resolve(".tmp-outra-instancia-789"), new byte[] {4});
+		Files.setLastModifiedTime(outraInstancia, FileTime.from(inicio.minusSeconds(60)));
+		Path arquivo = Files.write(fragmento.resolve("foto.jpeg"), new byte[] {3});
+		Files.setLastModifiedTime(arquivo, FileTime.from(inicio.minusSeconds(60)));
+
+		//ACT
+		long removidos = durabilidade.limparTemporarios(List.of(raiz), inicio);
+
+		//ASSERT
+		Assertions.assertEquals(1, removidos);
+		Assertions.assertFalse(Files.exists(orfao));
+		Assertions.assertTrue(Files.exists(emAndamento));
+		Assertions.assertTrue(Files.exists(outraInstancia));
+		Assertions.assertTrue(Files.exists(arquivo));
+		Assertions.assertEquals(1, durabilidade.estatisticas().temporariosRemovidos());
+	}
+
+}
@@ -0,0 +1,132 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.com.danielschiavo.shop.Base64Utils;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+
+class EscritaJsonArquivoServiceTest {
+
+	private EscritaJsonArquivoService escritaJsonArquivoService = new EscritaJsonArquivoService();
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private ExecutorArquivosService executorArquivosService = new ExecutorArquivosService(4);
+
+	@TempDir
+	Path raiz;
+
+	@BeforeEach
+	void configurar() {
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		FileStorageService fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "fileStorageService", fileStorageService);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "cacheArquivosService", new CacheArquivosService(0, 0, 0, 0));
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "objectMapper", objectMapper);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "executorArquivosService", executorArquivosService);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "paralelismoLeituraPorRequisicao", 4);
+	}
+
+	@AfterEach
+	void encerrar() {
+		executorArquivosService.encerrar();
+	}
+
+	@Test
+	@DisplayName("Escrever lista de arquivos deve gerar exatamente o mesmo JSON que o Jackson geraria a partir dos ArquivoInfoDTO")
+	void escrever_VariosArquivos_DeveGerarMesmoJsonDoContratoAntigo() throws IOException {
+		//ARRANGE
+		byte[] grande = new byte[10_000];
+		new Random(7).nextBytes(grande);
+		byte[] pequeno = {1, 2};
+		Files.write(raiz.resolve("grande.jpeg"), grande);
+		Files.write(raiz.resolve("pequeno.png"), pequeno);
+		List<ArquivoInfoDTO> esperado = List.of(
+				new ArquivoInfoDTO("grande.jpeg", Base64Utils.codificarParaBase64(grande)),
+				new ArquivoInfoDTO("pequeno.png", Base64Utils.codificarParaBase64(pequeno)));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		escritaJsonArquivoService.escrever(raiz, new String[] {"grande.jpeg", "pequeno.png"}, response);
+
+		//ASSERT
+		Assertions.assertEquals(objectMapper.writeValueAsString(esperado), response.getContentAsString());
+	}
+
+	@Test
+	@DisplayName("Escrever um único arquivo deve gerar um objeto e não uma lista")
+	void escrever_UmArquivo_DeveGerarObjeto() throws IOException {
+		//ARRANGE
+		byte[] bytes = {9, 8, 7, 6};
+		Files.write(raiz.resolve("foto.png"), bytes);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		escritaJsonArquivoService.escrever(raiz, new String[] {"foto.png"}, response);
+
+		//ASSERT
+		Assertions.assertEquals(objectMapper.writeValueAsString(new ArquivoInfoDTO("foto.png", Base64Utils.codificarParaBase64(bytes))),
+				response.getContentAsString());
+	}
+
+	@Test
+	@DisplayName("Escrever deve guardar no cache os arquivos que cabem nele e servi-los da memória na próxima vez, sem guardar os maiores")
+	void escrever_ArquivosPequenosEGrandes_DeveEncherOCacheSoComOsPequenos() throws IOException {
+		//ARRANGE
+		Path raizCache = FileStorageProdutoService.raizProduto;
+		ArmazenamentoBackend armazenamentoBackend = Mockito.mock(ArmazenamentoBackend.class);
+		CacheArquivosService cacheArquivosService = new CacheArquivosService(1024, 0, 0, 100);
+		ReflectionTestUtils.setField(cacheArquivosService, "armazenamentoBackend", armazenamentoBackend);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "cacheArquivosService", cacheArquivosService);
+		FileStorageService fileStorageService = Mockito.mock(FileStorageService.class);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "fileStorageService", fileStorageService);
+		byte[] pequeno = {1, 2, 3};
+		byte[] grande = new byte[500];
+		Path arquivoPequeno = Files.write(raiz.resolve("pequeno.png"), pequeno);
+		Path arquivoGrande = Files.write(raiz.resolve("grande.jpeg"), grande);
+		Mockito.when(fileStorageService.localizarArquivos(raizCache, "pequeno.png")).thenReturn(List.of(arquivoPequeno));
+		Mockito.when(fileStorageService.localizarArquivos(raizCache, "grande.jpeg")).thenReturn(List.of(arquivoGrande));
+		Mockito.when(fileStorageService.metadados(arquivoPequeno)).thenReturn(new MetadadosArquivo(3, 0));
+		Mockito.when(fileStorageService.metadados(arquivoGrande)).thenReturn(new MetadadosArquivo(500, 0));
+		Mockito.when(fileStorageService.isArquivoLocal(arquivoGrande)).thenReturn(true);
+		Mockito.when(armazenamentoBackend.abrir(raizCache, "pequeno.png")).thenAnswer(i -> new ByteArrayInputStream(pequeno));
+		Mockito.when(armazenamentoBackend.existe(raizCache, "pequeno.png")).thenReturn(true);
+		String esperado = objectMapper.writeValueAsString(List.of(
+				new ArquivoInfoDTO("pequeno.png", Base64Utils.codificarParaBase64(pequeno)),
+				new ArquivoInfoDTO("grande.jpeg", Base64Utils.codificarParaBase64(grande))));
+
+		//ACT
+		MockHttpServletResponse primeira = new MockHttpServletResponse();
+		escritaJsonArquivoService.escrever(raizCache, new String[] {"pequeno.png", "grande.jpeg"}, primeira);
+		MockHttpServletResponse segunda = new MockHttpServletResponse();
+		escritaJsonArquivoService.escrever(raizCache, new String[] {"pequeno.png", "grande.jpeg"}, segunda);
+
+		//ASSERT
+		Assertions.assertEquals(esperado, primeira.getContentAsString());
+		Assertions.assertEquals(esperado, segunda.getContentAsString());
+		Assertions.assertArrayEquals(pequeno, cacheArquivosService.buscar(raizCache, "pequeno.png"));
+		Assertions.assertNull(cacheArquivosService.buscar(raizCache, "grande.jpeg"));
+		Mockito.verify(armazenamentoBackend, Mockito.times(1)).abrir(raizCache, "pequeno.png");
+	}
+
+}
@@ -0,0 +1,88 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class ExecutorArquivosServiceTest {
+
+	private ExecutorArquivosService executorArquivosService = new ExecutorArquivosService(8);
+
+	@AfterEach
+	void encerrar() {
+		executorArquivosService.encerrar();
+	}
+
+	@Test
+	@DisplayName("Processar em ordem deve devolver os resultados na ordem dos itens sem passar do paralelismo pedido")
+	void processarEmOrdem_VariosItens_DeveManterOrdemERespeitarParalelismo() {
+		//ARRANGE
+		List<Integer> itens = IntStream.range(0, 40).boxed().toList();
+		AtomicInteger simultaneos = new AtomicInteger();
+		AtomicInteger maximoSimultaneos = new AtomicInteger();
+
+		//ACT
+		List<String> resultados = executorArquivosService.processarEmOrdem(itens, 3, item -> {
+			maximoSimultaneos.accumulateAndGet(simultaneos.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(item % 5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			simultaneos.decrementAndGet();
+			return "arquivo" + item;
+		});
+
+		//ASSERT
+		Assertions.assertEquals(IntStream.range(0, 40).mapToObj(i -> "arquivo" + i).toList(), resultados);
+		Assertions.assertTrue(maximoSimultaneos.get() <= 3);
+	}
+
+	@Test
+	@DisplayName("Com o pool ocupado por outras requisições, a requisição deve terminar sozinha sem esperar os ajudantes que ficaram na fila")
+	void processarEmOrdem_PoolOcupado_NaoDeveEsperarAjudantesNaFila() throws Exception {
+		//ARRANGE
+		ExecutorArquivosService ocupado = new ExecutorArquivosService(1);
+		CountDownLatch liberarPool = new CountDownLatch(1);
+		CountDownLatch poolOcupado = new CountDownLatch(1);
+		// a única thread do pool fica presa num item da outra requisição até o fim do teste
+		Thread outraRequisicao = new Thread(() -> ocupado.processarEmOrdem(List.of(0, 1), 2, item -> {
+			try {
+				if (Thread.currentThread().getName().startsWith("filestorage-arquivos-")) {
+					poolOcupado.countDown();
+					liberarPool.await();
+				} else {
+					poolOcupado.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return item;
+		}));
+
+		//ACT
+		List<Integer> resultados;
+		try {
+			outraRequisicao.start();
+			Assertions.assertTrue(poolOcupado.await(5, TimeUnit.SECONDS));
+			resultados = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5),
+					() -> ocupado.processarEmOrdem(List.of(1, 2, 3), 3, item -> item * 10));
+		} finally {
+			liberarPool.countDown();
+			outraRequisicao.join();
+			ocupado.encerrar();
+		}
+
+		//ASSERT
+		Assertions.assertEquals(List.of(10, 20, 30), resultados);
+	}
+
+}
@@ -0,0 +1,171 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.Base64Utils;
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.filestorage.ArquivoInfoDTO;
+
+class FileStorageServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private FileStorageService fileStorageService;
+
+	private ExecutorArquivosService executorArquivosService = new ExecutorArquivosService(4);
+
+	@BeforeEach
+	void configurar() {
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raiz.toString(), raiz.toString()));
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, raiz.resolve("blobs").toString()));
+
+		fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		CacheArquivosService cacheArquivosService = new CacheArquivosService(0, 0, 0, 0);
+		ReflectionTestUtils.setField(cacheArquivosService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(fileStorageService, "cacheArquivosService", cacheArquivosService);
+		ReflectionTestUtils.setField(fileStorageService, "catalogoArquivosService", new CatalogoArquivosService(false, raiz.toString(), 16, false));
+		ReflectionTestUtils.setField(fileStorageService, "listagemArquivosService", new ListagemArquivosService());
+		ReflectionTestUtils.setField(fileStorageService, "executorArquivosService", executorArquivosService);
+		ReflectionTestUtils.setField(fileStorageService, "paralelismoLeituraPorRequisicao", 3);
+	}
+
+	@AfterEach
+	void encerrar() {
+		executorArquivosService.encerrar();
+	}
+
+	@Test
+	@DisplayName("Recuperar vários arquivos em paralelo deve manter a ordem pedida e devolver erro só para o nome inexistente")
+	void recuperarBytesImagemDoDisco_VariosNomesComUmInexistente_DeveManterOrdemEErro() throws IOException {
+		//ARRANGE
+		for (int i = 0; i < 6; i++)
+			Files.write(raiz.resolve("foto" + i + ".png"), new byte[] {(byte) i, (byte) (i * 2)});
+		String[] nomes = {"foto5.png", "foto0.png", "inexistente.png", "foto3.png", "foto1.png", "foto4.png", "foto2.png"};
+
+		//ACT
+		@SuppressWarnings("unchecked")
+		List<ArquivoInfoDTO> arquivos = (List<ArquivoInfoDTO>) fileStorageService.recuperarBytesImagemDoDisco(raiz, nomes);
+
+		//ASSERT
+		Assertions.assertEquals(List.of(nomes), arquivos.stream().map(ArquivoInfoDTO::nomeArquivo).toList());
+		for (ArquivoInfoDTO arquivo : arquivos) {
+			if (arquivo.nomeArquivo().equals("inexistente.png")) {
+				Assertions.assertNotNull(arquivo.erro());
+				Assertions.assertNull(arquivo.bytesArquivo());
+				continue;
+			}
+			int i = arquivo.nomeArquivo().charAt(4) - '0';
+			Assertions.assertNull(arquivo.erro());
+			Assertions.assertArrayEquals(Base64Utils.codificarParaBase64(new byte[] {(byte) i, (byte) (i * 2)}), arquivo.bytesArquivo());
+		}
+	}
+
+	@Test
+	@DisplayName("Vincular arquivo existente deve criar o destino com o mesmo conteúdo sem alterar a origem")
+	void vincularNoDisco_OrigemExiste_DeveCriarDestinoComMesmoConteudo() throws IOException {
+		//ARRANGE
+		Path destino = Files.createDirectory(raiz.resolve("pedido"));
+		Files.write(raiz.resolve("foto.jpeg"), new byte[] {1, 2, 3});
+
+		//ACT
+		fileStorageService.vincularNoDisco(raiz, "foto.jpeg", destino, "PRODID1-foto.jpeg");
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(fileStorageService.localizarArquivo(destino, "PRODID1-foto.jpeg")));
+		Assertions.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(raiz.resolve("foto.jpeg")));
+	}
+
+	@Test
+	@DisplayName("Vincular para um destino que já existe deve devolver false e manter o conteúdo do destino")
+	void vincularNoDisco_DestinoExiste_DeveDevolverFalseSemAlterar() throws IOException {
+		//ARRANGE
+		Path destino = Files.createDirectory(raiz.resolve("pedido"));
+		Files.write(raiz.resolve("foto.jpeg"), new byte[] {1, 2, 3});
+		Files.write(raiz.resolve("outra.jpeg"), new byte[] {4, 5});
+		Assertions.assertTrue(fileStorageService.vincularNoDisco(raiz, "foto.jpeg", destino, "PRODID1-foto.jpeg"));
+
+		//ACT
+		boolean vinculado = fileStorageService.vincularNoDisco(raiz, "outra.jpeg", destino, "PRODID1-foto.jpeg");
+
+		//ASSERT
+		Assertions.assertFalse(vinculado);
+		Assertions.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(fileStorageService.localizarArquivo(destino, "PRODID1-foto.jpeg")));
+	}
+
+	@Test
+	@DisplayName("Vincular origem inexistente deve lançar FileStorageException sem criar o destino")
+	void vincularNoDisco_OrigemNaoExiste_DeveLancarExcecao() throws IOException {
+		//ARRANGE
+		Path destino = Files.createDirectory(raiz.resolve("pedido"));
+
+		//ACT + ASSERT
+		FileStorageException excecao = Assertions.assertThrows(FileStorageException.class,
+				() -> fileStorageService.vincularNoDisco(raiz, "inexistente.jpeg", destino, "PRODID1-inexistente.jpeg"));
+		Assertions.assertEquals("O arquivo inexistente.jpeg não existe", excecao.getMessage());
+		Assertions.assertFalse(fileStorageService.existeArquivo(destino, "PRODID1-inexistente.jpeg"));
+	}
+
+	@Test
+	@DisplayName("Metadados auxiliares e miniaturas gravados ao lado do original não devem ser localizados nem excluídos pelo nome")
+	void localizarArquivos_NomeComMarcadorDeDerivada_NaoDeveEncontrar() throws IOException {
+		//ARRANGE
+		Files.write(raiz.resolve("foto.jpeg"), new byte[] {1, 2, 3});
+		Files.write(raiz.resolve("foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS), "largura=10".getBytes());
+		Files.write(raiz.resolve("foto.jpeg@256.jpg"), new byte[] {4, 5});
+
+		//ACT + ASSERT
+		Assertions.assertEquals(List.of(), fileStorageService.localizarArquivos(raiz, "foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS));
+		Assertions.assertThrows(FileStorageException.class, () -> fileStorageService.localizarArquivo(raiz, "foto.jpeg@256.jpg"));
+		Assertions.assertFalse(fileStorageService.existeArquivo(raiz, "foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS));
+		Assertions.assertNotNull(fileStorageService.deletarNoDisco(raiz, "foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS));
+		Assertions.assertTrue(Files.exists(raiz.resolve("foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS)));
+		Assertions.assertEquals(raiz.resolve("foto.jpeg"), fileStorageService.localizarArquivo(raiz, "foto.jpeg"));
+	}
+
+	@Test
+	@DisplayName("Metadados de objeto remoto excluído depois de localizado deve lançar FileStorageException em vez de devolver null")
+	void metadados_ObjetoRemotoExcluido_DeveLancarFileStorageException() throws IOException {
+		//ARRANGE
+		ArmazenamentoBackend remoto = Mockito.mock(ArmazenamentoBackend.class);
+		Mockito.when(remoto.caminhoLocal(raiz, "video.mp4")).thenReturn(Optional.empty());
+		Mockito.when(remoto.existe(raiz, "video.mp4")).thenReturn(true);
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", remoto);
+		Path arquivo = fileStorageService.localizarArquivo(raiz, "video.mp4");
+
+		//ACT + ASSERT
+		Assertions.assertThrows(FileStorageException.class, () -> fileStorageService.metadados(arquivo));
+	}
+
+	@Test
+	@DisplayName("Falha ao consultar o backend não deve ser tratada como arquivo inexistente")
+	void localizarArquivo_FalhaNoBackend_DevePropagarErro() throws IOException {
+		//ARRANGE
+		ArmazenamentoBackend remoto = Mockito.mock(ArmazenamentoBackend.class);
+		Mockito.when(remoto.caminhoLocal(raiz, "video.mp4")).thenReturn(Optional.empty());
+		Mockito.when(remoto.existe(raiz, "video.mp4")).thenThrow(new IOException("S3 fora do ar"));
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", remoto);
+
+		//ACT + ASSERT
+		Assertions.assertThrows(UncheckedIOException.class, () -> fileStorageService.localizarArquivo(raiz, "video.mp4"));
+	}
+
+}
@@ -0,0 +1,45 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+
+class FormatoArquivoTest {
+
+	private static final byte[] CABECALHO_PNG = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D, 'I', 'H'};
+
+	@Test
+	@DisplayName("Abrir conteúdo verificado deve devolver o stream inteiro, desde o primeiro byte, quando o cabeçalho confere com o tipo declarado")
+	void abrirVerificado_CabecalhoConfereComTipo_DeveDevolverConteudoInteiro() throws IOException {
+		//ACT
+		InputStream conteudo = FormatoArquivo.abrirVerificado(new ByteArrayInputStream(CABECALHO_PNG), "png");
+
+		//ASSERT
+		Assertions.assertArrayEquals(CABECALHO_PNG, conteudo.readAllBytes());
+	}
+
+	@Test
+	@DisplayName("Abrir conteúdo verificado deve lançar exceção quando o cabeçalho não confere com o tipo declarado")
+	void abrirVerificado_CabecalhoNaoConfereComTipo_DeveLancarExcecao() {
+		//ASSERT + ACT
+		Assertions.assertThrows(FileStorageException.class,
+				() -> FormatoArquivo.abrirVerificado(new ByteArrayInputStream(CABECALHO_PNG), "jpeg"));
+	}
+
+	@Test
+	@DisplayName("Detectar formato deve reconhecer mp4 pela caixa ftyp")
+	void detectar_CaixaFtyp_DeveRetornarMp4() {
+		//ARRANGE
+		byte[] cabecalho = {0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm'};
+
+		//ACT + ASSERT
+		Assertions.assertEquals(FormatoArquivo.MP4, FormatoArquivo.detectar(cabecalho, cabecalho.length));
+	}
+
+}
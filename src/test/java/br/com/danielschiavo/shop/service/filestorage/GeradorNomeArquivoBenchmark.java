@@ -0,0 +1,54 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compara o gerador de nomes com o método antigo (UUID truncado mais timestamp) com 64 threads
+ * gerando nomes ao mesmo tempo. Não roda com os testes; execute o main depois de mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(64)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GeradorNomeArquivoBenchmark {
+
+	private final GeradorNomeArquivoService gerador = new GeradorNomeArquivoService(1);
+
+	@Benchmark
+	public String gerarStringUnicaAntigo() {
+		String string = UUID.randomUUID().toString();
+		int divisao = string.length() / 3;
+		long timestamp = Instant.now().toEpochMilli();
+		String substring = string.substring(0, divisao);
+		return substring + timestamp;
+	}
+
+	@Benchmark
+	public String geradorNomeArquivo() {
+		return gerador.gerar();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(GeradorNomeArquivoBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
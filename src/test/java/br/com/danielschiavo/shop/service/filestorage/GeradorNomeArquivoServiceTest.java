@@ -0,0 +1,70 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class GeradorNomeArquivoServiceTest {
+
+	private GeradorNomeArquivoService gerador = new GeradorNomeArquivoService(5);
+
+	@Test
+	@DisplayName("Nomes gerados em paralelo devem ser únicos e, em cada thread, crescentes em ordem alfabética")
+	void gerar_VariasThreads_DeveSerUnicoEMonotonico() {
+		//ARRANGE
+		int threads = 8;
+		int porThread = 50_000;
+		List<CompletableFuture<List<String>>> tarefas = new ArrayList<>();
+
+		//ACT
+		for (int t = 0; t < threads; t++)
+			tarefas.add(CompletableFuture.supplyAsync(() -> {
+				List<String> nomes = new ArrayList<>(porThread);
+				for (int i = 0; i < porThread; i++)
+					nomes.add(gerador.gerar());
+				return nomes;
+			}));
+
+		//ASSERT
+		Set<String> todos = new HashSet<>();
+		for (CompletableFuture<List<String>> tarefa : tarefas) {
+			List<String> nomes = tarefa.join();
+			for (int i = 1; i < nomes.size(); i++)
+				Assertions.assertTrue(nomes.get(i - 1).compareTo(nomes.get(i)) < 0);
+			todos.addAll(nomes);
+		}
+		Assertions.assertEquals(threads * porThread, todos.size());
+	}
+
+	@Test
+	@DisplayName("O nome deve guardar o instante e o nó de origem, caber entre os limites do seu instante e nomes antigos não devem ser decodificados")
+	void instanteENo_NomeGerado_DeveDecodificar() {
+		//ARRANGE
+		Instant antes = Instant.now();
+		String nome = gerador.gerar() + ".png";
+		Instant depois = Instant.now().plusMillis(1);
+
+		//ACT
+		Instant instante = GeradorNomeArquivoService.instante(nome);
+		int no = GeradorNomeArquivoService.no(nome);
+
+		//ASSERT
+		Assertions.assertEquals(GeradorNomeArquivoService.TAMANHO_NOME + 4, nome.length());
+		Assertions.assertFalse(instante.isBefore(antes.truncatedTo(ChronoUnit.MILLIS)));
+		Assertions.assertTrue(instante.isBefore(depois));
+		Assertions.assertEquals(5, no);
+		Assertions.assertTrue(GeradorNomeArquivoService.limiteInferior(antes.minusMillis(1)).compareTo(nome) <= 0);
+		Assertions.assertTrue(GeradorNomeArquivoService.limiteInferior(depois.plusMillis(1)).compareTo(nome) > 0);
+		Assertions.assertNull(GeradorNomeArquivoService.instante("a1b2c3d4-e5f1715000000000.png"));
+		Assertions.assertEquals(-1, GeradorNomeArquivoService.no("Padrao.jpeg"));
+	}
+
+}
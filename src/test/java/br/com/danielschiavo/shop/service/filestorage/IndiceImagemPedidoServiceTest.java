@@ -0,0 +1,102 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class IndiceImagemPedidoServiceTest {
+
+	private IndiceImagemPedidoService indiceImagemPedidoService = new IndiceImagemPedidoService(false);
+
+	@Test
+	@DisplayName("Registrar imagem do pedido deve permitir buscar pelo nome da imagem do produto mesmo quando ele contém hífen")
+	void registrar_NomeImagemProdutoComHifen_DeveEncontrarPeloNomeDoProduto() {
+		//ACT
+		indiceImagemPedidoService.registrar("PRODID42-3f2a9c1d-e4b1700000000000.jpeg");
+
+		//ASSERT
+		Assertions.assertEquals("PRODID42-3f2a9c1d-e4b1700000000000.jpeg", indiceImagemPedidoService.buscar("3f2a9c1d-e4b1700000000000.jpeg"));
+	}
+
+	@Test
+	@DisplayName("Registrar arquivo que não segue o padrão de nome do pedido deve ser ignorado")
+	void registrar_NomeForaDoPadrao_NaoDeveIndexar() {
+		//ACT
+		indiceImagemPedidoService.registrar("Padrao.jpeg");
+		indiceImagemPedidoService.registrar("PRODID-semid.jpeg");
+
+		//ASSERT
+		Assertions.assertNull(indiceImagemPedidoService.buscar("Padrao.jpeg"));
+		Assertions.assertNull(indiceImagemPedidoService.buscar("semid.jpeg"));
+	}
+
+	@Test
+	@DisplayName("Remover imagem do pedido deve tirar a entrada do índice")
+	void remover_ImagemRegistrada_DeveTirarDoIndice() {
+		//ARRANGE
+		indiceImagemPedidoService.registrar("PRODID7-imagem.png");
+
+		//ACT
+		indiceImagemPedidoService.remover("PRODID7-imagem.png");
+
+		//ASSERT
+		Assertions.assertNull(indiceImagemPedidoService.buscar("imagem.png"));
+	}
+
+	@Test
+	@DisplayName("Reconstruir deve trocar o índice pelo conteúdo atual da raiz, descartando entradas que não existem mais")
+	void reconstruir_RaizAlterada_DeveTrocarIndiceInteiro() throws IOException {
+		//ARRANGE
+		ArmazenamentoBackend armazenamentoBackend = Mockito.mock(ArmazenamentoBackend.class);
+		ReflectionTestUtils.setField(indiceImagemPedidoService, "armazenamentoBackend", armazenamentoBackend);
+		Mockito.when(armazenamentoBackend.listar(FileStoragePedidoService.raizPedido)).thenReturn(List.of("PRODID1-nova.png"));
+		indiceImagemPedidoService.registrar("PRODID2-antiga.png");
+
+		//ACT
+		indiceImagemPedidoService.reconstruir();
+
+		//ASSERT
+		Assertions.assertEquals("PRODID1-nova.png", indiceImagemPedidoService.buscar("nova.png"));
+		Assertions.assertNull(indiceImagemPedidoService.buscar("antiga.png"));
+	}
+
+	@Test
+	@DisplayName("Observando o diretório, imagens gravadas em fragmentos existentes e em fragmentos novos devem entrar no índice")
+	void iniciarObservacao_LayoutFragmentado_DeveIndexarArquivosDosFragmentos(@TempDir Path raiz) throws Exception {
+		//ARRANGE
+		Path fragmentoExistente = Files.createDirectories(raiz.resolve("ab/cd"));
+		indiceImagemPedidoService.iniciarObservacao(raiz);
+
+		//ACT
+		Files.write(fragmentoExistente.resolve("PRODID1-existente.png"), new byte[] {1});
+		Path fragmentoNovo = Files.createDirectories(raiz.resolve("ef/01"));
+		Files.write(fragmentoNovo.resolve("PRODID2-novo.png"), new byte[] {1});
+
+		//ASSERT
+		Assertions.assertTrue(aguardarIndice("existente.png"));
+		Assertions.assertTrue(aguardarIndice("novo.png"));
+		Assertions.assertEquals("PRODID2-novo.png", indiceImagemPedidoService.buscar("novo.png"));
+		indiceImagemPedidoService.encerrar();
+	}
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private boolean aguardarIndice(String nomeImagemProduto) throws InterruptedException {
+		long limite = System.currentTimeMillis() + 10_000;
+		while (indiceImagemPedidoService.buscar(nomeImagemProduto) == null && System.currentTimeMillis() < limite)
+			Thread.sleep(20);
+		return indiceImagemPedidoService.buscar(nomeImagemProduto) != null;
+	}
+
+}
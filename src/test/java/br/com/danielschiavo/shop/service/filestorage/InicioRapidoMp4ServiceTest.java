@@ -0,0 +1,178 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.service.filestorage.InicioRapidoMp4Service.Caixa;
+
+class InicioRapidoMp4ServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	@Test
+	@DisplayName("MP4 com moov no fim deve ser reescrito com moov logo depois do ftyp e os deslocamentos do stco apontando para os mesmos bytes")
+	void reescrever_MoovNoFim_DeveMoverMoovECorrigirStco() throws IOException {
+		//ARRANGE
+		byte[] ftyp = caixa("ftyp", "isom\0\0\2\0isomiso2mp41".getBytes(StandardCharsets.ISO_8859_1));
+		byte[] amostras = "AMOSTRA1AMOSTRA2".getBytes(StandardCharsets.ISO_8859_1);
+		byte[] mdat = caixa("mdat", amostras);
+		long primeiraAmostra = ftyp.length + 8;
+		byte[] moov = moovComStco(primeiraAmostra, primeiraAmostra + 8);
+		Path original = Files.write(raiz.resolve("video.mp4"), concatenar(ftyp, mdat, moov));
+		Path destino = Files.createFile(raiz.resolve("rapido.mp4"));
+
+		//ACT
+		boolean reescrito = InicioRapidoMp4Service.reescreverComMoovNoInicio(original, destino, 1024 * 1024);
+
+		//ASSERT
+		Assertions.assertTrue(reescrito);
+		byte[] resultado = Files.readAllBytes(destino);
+		Assertions.assertEquals(Files.size(original), resultado.length);
+		Assertions.assertEquals("moov", new String(resultado, ftyp.length + 4, 4, StandardCharsets.ISO_8859_1));
+		Assertions.assertEquals("mdat", new String(resultado, ftyp.length + moov.length + 4, 4, StandardCharsets.ISO_8859_1));
+
+		int inicioStco = indice(resultado, "stco") + 4;
+		ByteBuffer tabela = ByteBuffer.wrap(resultado, inicioStco + 4, 12);
+		Assertions.assertEquals(2, tabela.getInt());
+		Assertions.assertEquals("AMOSTRA1", new String(resultado, tabela.getInt(), 8, StandardCharsets.ISO_8859_1));
+		Assertions.assertEquals("AMOSTRA2", new String(resultado, tabela.getInt(), 8, StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	@DisplayName("MP4 que já começa com moov e arquivo que não é MP4 não devem ser reescritos")
+	void reescrever_JaRapidoOuInvalido_NaoDeveReescrever() throws IOException {
+		//ARRANGE
+		byte[] ftyp = caixa("ftyp", "isom\0\0\2\0".getBytes(StandardCharsets.ISO_8859_1));
+		Path rapido = Files.write(raiz.resolve("rapido.mp4"), concatenar(ftyp, moovComStco(0, 0), caixa("mdat", new byte[16])));
+		Path invalido = Files.write(raiz.resolve("invalido.mp4"), "não é um mp4 de verdade".getBytes(StandardCharsets.UTF_8));
+		Path destino = Files.createFile(raiz.resolve("destino.mp4"));
+
+		//ACT + ASSERT
+		Assertions.assertFalse(InicioRapidoMp4Service.reescreverComMoovNoInicio(rapido, destino, 1024 * 1024));
+		Assertions.assertFalse(InicioRapidoMp4Service.reescreverComMoovNoInicio(invalido, destino, 1024 * 1024));
+		Assertions.assertEquals(0, Files.size(destino));
+	}
+
+	@Test
+	@DisplayName("Deslocamento que passa de 4 GiB com o moov na frente deve converter a tabela stco em co64")
+	void moovReposicionado_DeslocamentoAlemDe4GiB_DeveConverterParaCo64() {
+		//ARRANGE
+		long tamanhoMdat = 5L << 30;
+		long ultimaAmostra = 0xFFFFFFF0L;
+		byte[] moov = moovComStco(40, ultimaAmostra);
+		Caixa ftyp = new Caixa("ftyp", 0, 32);
+		Caixa mdat = new Caixa("mdat", 32, tamanhoMdat);
+		Caixa caixaMoov = new Caixa("moov", 32 + tamanhoMdat, moov.length);
+
+		//ACT
+		byte[] moovNovo = InicioRapidoMp4Service.moovReposicionado(moov, List.of(ftyp, caixaMoov, mdat), caixaMoov);
+
+		//ASSERT
+		Assertions.assertNotNull(moovNovo);
+		Assertions.assertEquals(-1, indice(moovNovo, "stco"));
+		Assertions.assertEquals(moov.length + 8, moovNovo.length);
+		ByteBuffer tabela = ByteBuffer.wrap(moovNovo, indice(moovNovo, "co64") + 8, 20);
+		Assertions.assertEquals(2, tabela.getInt());
+		Assertions.assertEquals(40 + moovNovo.length, tabela.getLong());
+		Assertions.assertEquals(ultimaAmostra + moovNovo.length, tabela.getLong());
+	}
+
+	@Test
+	@DisplayName("Processar um MP4 pequeno com moov no fim deve reorganizá-lo no armazenamento com uma modificação nova, para o ETag mudar")
+	void processar_Mp4ComMoovNoFim_DeveReorganizarNoArmazenamento() throws IOException {
+		//ARRANGE
+		InicioRapidoMp4Service inicioRapido = novoServico();
+		byte[] ftyp = caixa("ftyp", "isom\0\0\2\0isomiso2mp41".getBytes(StandardCharsets.ISO_8859_1));
+		byte[] mdat = caixa("mdat", "AMOSTRA1AMOSTRA2".getBytes(StandardCharsets.ISO_8859_1));
+		long primeiraAmostra = ftyp.length + 8;
+		byte[] moov = moovComStco(primeiraAmostra, primeiraAmostra + 8);
+		Path original = Files.write(raiz.resolve("video.mp4"), concatenar(ftyp, mdat, moov));
+		long modificadoEm = Files.getLastModifiedTime(original).toMillis();
+
+		//ACT
+		boolean processado = inicioRapido.processar(raiz, "video.mp4");
+
+		//ASSERT
+		Assertions.assertTrue(processado);
+		byte[] resultado = Files.readAllBytes(original);
+		Assertions.assertEquals("moov", new String(resultado, ftyp.length + 4, 4, StandardCharsets.ISO_8859_1));
+		Assertions.assertTrue(Files.getLastModifiedTime(original).toMillis() / 1000 > modificadoEm / 1000);
+		try (Stream<Path> arquivos = Files.list(raiz)) {
+			Assertions.assertEquals(List.of(original), arquivos.filter(Files::isRegularFile).toList());
+		}
+		Assertions.assertFalse(inicioRapido.reorganizar(raiz, "video.mp4"));
+		inicioRapido.encerrar();
+	}
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private InicioRapidoMp4Service novoServico() {
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService", new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raiz.toString(), raiz.toString()));
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, raiz.resolve("blobs").toString()));
+		MetadadosMidiaService metadadosMidiaService = new MetadadosMidiaService();
+		ReflectionTestUtils.setField(metadadosMidiaService, "armazenamentoBackend", armazenamentoLocal);
+
+		FileStorageService fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		CacheArquivosService cacheArquivosService = new CacheArquivosService(0, 0, 0, 0);
+		ReflectionTestUtils.setField(cacheArquivosService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(fileStorageService, "cacheArquivosService", cacheArquivosService);
+		ReflectionTestUtils.setField(fileStorageService, "catalogoArquivosService", new CatalogoArquivosService(false, raiz.toString(), 16, false));
+		ReflectionTestUtils.setField(fileStorageService, "listagemArquivosService", new ListagemArquivosService());
+		ReflectionTestUtils.setField(fileStorageService, "metadadosMidiaService", metadadosMidiaService);
+
+		InicioRapidoMp4Service inicioRapido = new InicioRapidoMp4Service(true, 16 * 1024 * 1024, 1024 * 1024, 1);
+		ReflectionTestUtils.setField(inicioRapido, "fileStorageService", fileStorageService);
+		return inicioRapido;
+	}
+
+	private static byte[] moovComStco(long... deslocamentos) {
+		ByteBuffer stco = ByteBuffer.allocate(8 + 4 * deslocamentos.length);
+		stco.putInt(0).putInt(deslocamentos.length);
+		for (long deslocamento : deslocamentos)
+			stco.putInt((int) deslocamento);
+		byte[] stbl = caixa("stbl", concatenar(caixa("stsd", new byte[8]), caixa("stco", stco.array())));
+		byte[] trak = caixa("trak", caixa("mdia", caixa("minf", stbl)));
+		return caixa("moov", concatenar(caixa("mvhd", new byte[100]), trak));
+	}
+
+	private static byte[] caixa(String tipo, byte[] corpo) {
+		return ByteBuffer.allocate(8 + corpo.length).putInt(8 + corpo.length)
+				.put(tipo.getBytes(StandardCharsets.ISO_8859_1)).put(corpo).array();
+	}
+
+	private static byte[] concatenar(byte[]... partes) {
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		for (byte[] parte : partes)
+			saida.writeBytes(parte);
+		return saida.toByteArray();
+	}
+
+	private static int indice(byte[] bytes, String tipo) {
+		byte[] procurado = tipo.getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i + procurado.length <= bytes.length; i++)
+			if (bytes[i] == procurado[0] && bytes[i + 1] == procurado[1] && bytes[i + 2] == procurado[2] && bytes[i + 3] == procurado[3])
+				return i;
+		return -1;
+	}
+
+}
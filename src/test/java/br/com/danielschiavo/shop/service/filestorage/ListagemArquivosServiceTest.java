@@ -0,0 +1,155 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.model.ValidacaoException;
+
+class ListagemArquivosServiceTest {
+
+	@TempDir
+	Path diretorio;
+
+	private Path raiz;
+
+	private ArmazenamentoLocalService armazenamentoLocal;
+
+	private ListagemArquivosService listagemArquivosService;
+
+	@BeforeEach
+	void configurar() throws IOException {
+		raiz = diretorio.resolve("produto");
+		armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, diretorio.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService",
+				new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, diretorio.toString(), diretorio.toString()));
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, diretorio.resolve("blobs").toString()));
+
+		listagemArquivosService = new ListagemArquivosService();
+		ReflectionTestUtils.setField(listagemArquivosService, "raizes", Map.of("produto", raiz));
+		ReflectionTestUtils.setField(listagemArquivosService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(listagemArquivosService, "catalogoArquivosService", new CatalogoArquivosService(false, diretorio.toString(), 16, false));
+
+		for (int i = 0; i < 25; i++)
+			gravar(String.format("a%02d.png", i));
+		gravar("a03.png@256.jpg");
+		gravar("a03.png" + MetadadosMidiaService.SUFIXO_METADADOS);
+	}
+
+	@Test
+	@DisplayName("Percorrer as páginas pelo cursor deve devolver todos os originais em ordem, uma vez cada, sem derivadas nem arquivos auxiliares")
+	void listar_PercorrendoCursor_DeveDevolverTodosEmOrdem() {
+		//ARRANGE
+		List<String> nomes = new ArrayList<>();
+		List<Integer> tamanhosPaginas = new ArrayList<>();
+		String cursor = null;
+
+		//ACT
+		do {
+			PaginaArquivosDTO pagina = listar(cursor, 10);
+			pagina.arquivos().forEach(arquivo -> nomes.add(arquivo.nomeArquivo()));
+			tamanhosPaginas.add(pagina.arquivos().size());
+			cursor = pagina.proximoCursor();
+		} while (cursor != null);
+
+		//ASSERT
+		Assertions.assertEquals(List.of(10, 10, 5), tamanhosPaginas);
+		Assertions.assertEquals(25, nomes.size());
+		for (int i = 0; i < 25; i++)
+			Assertions.assertEquals(String.format("a%02d.png", i), nomes.get(i));
+	}
+
+	@Test
+	@DisplayName("Prefixo, data e gravações e exclusões feitas depois da primeira listagem devem ser respeitados")
+	void listar_FiltrosEAlteracoes_DeveRefletirNoIndice() throws IOException {
+		//ARRANGE
+		listar(null, 1);
+		gravar("b01.png");
+		listagemArquivosService.registrar(raiz, "b01.png");
+		listagemArquivosService.remover(raiz, "a10.png");
+
+		//ACT
+		PaginaArquivosDTO comPrefixo = listagemArquivosService.listar("produto", null, 100, "a1", null, null);
+		PaginaArquivosDTO primeira = listagemArquivosService.listar("produto", null, 23, null, null, null);
+		PaginaArquivosDTO segunda = listagemArquivosService.listar("produto", primeira.proximoCursor(), 23, null, null, null);
+		PaginaArquivosDTO noFuturo = listagemArquivosService.listar("produto", null, 100, null, Instant.now().plusSeconds(3600), null);
+
+		//ASSERT
+		Assertions.assertEquals(List.of("a11.png", "a12.png", "a13.png", "a14.png", "a15.png", "a16.png", "a17.png", "a18.png", "a19.png"),
+				comPrefixo.arquivos().stream().map(ArquivoListadoDTO::nomeArquivo).toList());
+		Assertions.assertEquals("a23.png", primeira.arquivos().get(22).nomeArquivo());
+		Assertions.assertEquals(List.of("a24.png", "b01.png"), segunda.arquivos().stream().map(ArquivoListadoDTO::nomeArquivo).toList());
+		Assertions.assertNull(segunda.proximoCursor());
+		Assertions.assertTrue(noFuturo.arquivos().isEmpty());
+		Assertions.assertNull(noFuturo.proximoCursor());
+		Assertions.assertThrows(ValidacaoException.class, () -> listagemArquivosService.listar("blobs", null, 10, null, null, null));
+		Assertions.assertThrows(ValidacaoException.class, () -> listagemArquivosService.listar("produto", "%%%", 10, null, null, null));
+	}
+
+	@Test
+	@DisplayName("A listagem deve recusar enquanto o índice é montado em segundo plano e uma carga que falhou deve ser agendada de novo")
+	void listar_IndiceEmConstrucao_DeveRecusarAteFicarPronto() throws Exception {
+		//ARRANGE
+		CountDownLatch liberarCarga = new CountDownLatch(1);
+		ArmazenamentoBackend backend = Mockito.mock(ArmazenamentoBackend.class);
+		Mockito.when(backend.listar(raiz)).thenThrow(new IOException("indisponível")).thenAnswer(invocacao -> {
+			liberarCarga.await();
+			return List.of("a00.png");
+		});
+		Mockito.when(backend.metadados(raiz, "a00.png")).thenReturn(new MetadadosArquivo(3, 0));
+		ReflectionTestUtils.setField(listagemArquivosService, "armazenamentoBackend", backend);
+		ExecutorService carregamento = (ExecutorService) ReflectionTestUtils.getField(listagemArquivosService, "carregamento");
+
+		//ACT + ASSERT
+		Assertions.assertThrows(ListagemArquivosService.IndiceEmConstrucaoException.class, () -> listagemArquivosService.listar("produto", null, 10, null, null, null));
+		carregamento.submit(() -> {}).get();
+		Assertions.assertThrows(ListagemArquivosService.IndiceEmConstrucaoException.class, () -> listagemArquivosService.listar("produto", null, 10, null, null, null));
+		liberarCarga.countDown();
+		PaginaArquivosDTO pagina = listar(null, 10);
+
+		Mockito.verify(backend, Mockito.times(2)).listar(raiz);
+		Assertions.assertEquals(List.of("a00.png"), pagina.arquivos().stream().map(ArquivoListadoDTO::nomeArquivo).toList());
+		listagemArquivosService.encerrar();
+	}
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	/**
+	 * Repete a listagem enquanto o índice é montado, como faria o cliente ao receber 503.
+	 */
+	private PaginaArquivosDTO listar(String cursor, int limite) {
+		long limiteEspera = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				return listagemArquivosService.listar("produto", cursor, limite, null, null, null);
+			} catch (ListagemArquivosService.IndiceEmConstrucaoException e) {
+				if (System.currentTimeMillis() > limiteEspera)
+					throw e;
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	private void gravar(String nome) throws IOException {
+		armazenamentoLocal.gravar(raiz, nome, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+	}
+
+}
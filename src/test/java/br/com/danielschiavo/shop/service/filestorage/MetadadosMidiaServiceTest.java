@@ -0,0 +1,131 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class MetadadosMidiaServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private ArmazenamentoLocalService armazenamentoLocal;
+
+	private FileStorageService fileStorageService;
+
+	@BeforeEach
+	void configurar() {
+		DurabilidadeArquivosService durabilidade = new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, raiz.toString(), raiz.toString());
+		armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService", durabilidade);
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, raiz.resolve("blobs").toString()));
+
+		MetadadosMidiaService metadadosMidiaService = new MetadadosMidiaService();
+		ReflectionTestUtils.setField(metadadosMidiaService, "armazenamentoBackend", armazenamentoLocal);
+
+		fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(fileStorageService, "cacheArquivosService", new CacheArquivosService(0, 0, 0, 0));
+		DerivadaImagemService derivadaImagemService = new DerivadaImagemService(0.8f, 50_000_000, 2);
+		ReflectionTestUtils.setField(derivadaImagemService, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(fileStorageService, "derivadaImagemService", derivadaImagemService);
+		ReflectionTestUtils.setField(fileStorageService, "metadadosMidiaService", metadadosMidiaService);
+		ReflectionTestUtils.setField(fileStorageService, "catalogoArquivosService", new CatalogoArquivosService(false, raiz.toString(), 16, false));
+		ReflectionTestUtils.setField(fileStorageService, "listagemArquivosService", new ListagemArquivosService());
+	}
+
+	@Test
+	@DisplayName("Fotos salvas devem ter largura e altura lidas do cabeçalho e gravadas no arquivo auxiliar, que some junto com a foto")
+	void salvarNoDisco_JpegEPng_DeveGravarDimensoesNoArquivoAuxiliar() throws IOException {
+		//ARRANGE
+		byte[] jpeg = imagem(50, 20, "jpg");
+		byte[] png = imagem(40, 30, "png");
+
+		//ACT
+		fileStorageService.salvarNoDisco(raiz, "foto.jpeg", jpeg);
+		fileStorageService.salvarNoDisco(raiz, "foto.png", png);
+		MetadadosMidiaDTO metadadosJpeg = fileStorageService.metadadosMidia(raiz, "foto.jpeg");
+		MetadadosMidiaDTO metadadosPng = fileStorageService.metadadosMidia(raiz, "foto.png");
+
+		//ASSERT
+		Assertions.assertTrue(armazenamentoLocal.existe(raiz, "foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS));
+		Assertions.assertEquals(new MetadadosMidiaDTO("foto.jpeg", FormatoArquivo.JPEG, jpeg.length, 50, 20, null), metadadosJpeg);
+		Assertions.assertEquals(new MetadadosMidiaDTO("foto.png", FormatoArquivo.PNG, png.length, 40, 30, null), metadadosPng);
+
+		fileStorageService.deletarNoDisco(raiz, "foto.jpeg");
+		Assertions.assertFalse(armazenamentoLocal.existe(raiz, "foto.jpeg" + MetadadosMidiaService.SUFIXO_METADADOS));
+	}
+
+	@Test
+	@DisplayName("MP4 gravado antes dos metadados existirem, com moov no fim e faixa girada, deve ter duração e dimensões extraídas na consulta")
+	void metadadosMidia_Mp4SemArquivoAuxiliar_DeveExtrairDuracaoEDimensoes() throws IOException {
+		//ARRANGE
+		byte[] ftyp = caixa("ftyp", "isom\0\0\2\0".getBytes(StandardCharsets.ISO_8859_1));
+		byte[] mdat = caixa("mdat", new byte[200_000]);
+		byte[] audio = caixa("trak", tkhd(0, 0, false));
+		byte[] video = caixa("trak", tkhd(1280, 720, true));
+		byte[] moov = caixa("moov", concatenar(mvhd(600, 3000), audio, video));
+		byte[] mp4 = concatenar(ftyp, mdat, moov);
+		armazenamentoLocal.gravar(raiz, "video.mp4", new ByteArrayInputStream(mp4));
+
+		//ACT
+		MetadadosMidiaDTO metadados = fileStorageService.metadadosMidia(raiz, "video.mp4");
+
+		//ASSERT
+		Assertions.assertEquals(new MetadadosMidiaDTO("video.mp4", FormatoArquivo.MP4, mp4.length, 720, 1280, 5000L), metadados);
+		Assertions.assertTrue(armazenamentoLocal.existe(raiz, "video.mp4" + MetadadosMidiaService.SUFIXO_METADADOS));
+	}
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private static byte[] imagem(int largura, int altura, String formato) throws IOException {
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(largura, altura, BufferedImage.TYPE_INT_RGB), formato, saida);
+		return saida.toByteArray();
+	}
+
+	private static byte[] mvhd(int escala, int duracao) {
+		return caixa("mvhd", ByteBuffer.allocate(100).putInt(0).putInt(0).putInt(0).putInt(escala).putInt(duracao).array());
+	}
+
+	private static byte[] tkhd(int largura, int altura, boolean girada) {
+		ByteBuffer corpo = ByteBuffer.allocate(84).putInt(0).putInt(0).putInt(0).putInt(1).putInt(0).putInt(0);
+		corpo.position(40);
+		// matriz de rotação de 90 graus: a = 0, b = 1.0
+		corpo.putInt(girada ? 0 : 0x00010000).putInt(girada ? 0x00010000 : 0);
+		corpo.position(76);
+		corpo.putInt(largura << 16).putInt(altura << 16);
+		return caixa("tkhd", corpo.array());
+	}
+
+	private static byte[] caixa(String tipo, byte[] corpo) {
+		return ByteBuffer.allocate(8 + corpo.length).putInt(8 + corpo.length)
+				.put(tipo.getBytes(StandardCharsets.ISO_8859_1)).put(corpo).array();
+	}
+
+	private static byte[] concatenar(byte[]... partes) {
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		for (byte[] parte : partes)
+			saida.writeBytes(parte);
+		return saida.toByteArray();
+	}
+
+}
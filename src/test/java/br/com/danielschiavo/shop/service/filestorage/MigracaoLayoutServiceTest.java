@@ -0,0 +1,55 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class MigracaoLayoutServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private LayoutArmazenamentoService layout = new LayoutArmazenamentoService(true);
+
+	@Test
+	@DisplayName("Migrar deve mover os arquivos planos para o fragmento, com a miniatura no mesmo diretório do original, e manter a imagem padrão na raiz")
+	void migrar_ArquivosNoLayoutPlano_DeveMoverParaFragmentos() throws IOException, InterruptedException {
+		//ARRANGE
+		MigracaoLayoutService migracao = new MigracaoLayoutService();
+		ReflectionTestUtils.setField(migracao, "layoutArmazenamentoService", layout);
+		Files.write(raiz.resolve("abc123.jpeg"), new byte[] {1});
+		Files.write(raiz.resolve("abc123.jpeg@256.jpg"), new byte[] {2});
+		Files.write(raiz.resolve(FileStorageService.NOME_IMAGEM_PADRAO), new byte[] {3});
+		Assertions.assertEquals(raiz.resolve("abc123.jpeg"), layout.localizar(raiz, "abc123.jpeg"));
+
+		//ACT
+		migracao.migrar(raiz);
+
+		//ASSERT
+		Path migrado = layout.localizar(raiz, "abc123.jpeg");
+		Assertions.assertEquals(layout.caminhoFragmentado(raiz, "abc123.jpeg"), migrado);
+		Assertions.assertEquals(3, raiz.relativize(migrado).getNameCount());
+		Assertions.assertEquals(migrado.getParent(), layout.localizar(raiz, "abc123.jpeg@256.jpg").getParent());
+		Assertions.assertEquals(raiz.resolve(FileStorageService.NOME_IMAGEM_PADRAO), layout.localizar(raiz, FileStorageService.NOME_IMAGEM_PADRAO));
+		Assertions.assertEquals(2, migracao.estatisticas().movidos());
+	}
+
+	@Test
+	@DisplayName("Localizar deve recusar nomes que tentam sair da raiz")
+	void localizar_NomeComSeparador_DeveRetornarNull() throws IOException {
+		//ARRANGE
+		Files.write(raiz.resolve("segredo.txt"), new byte[] {1});
+		Path subdiretorio = Files.createDirectories(raiz.resolve("produto"));
+
+		//ACT + ASSERT
+		Assertions.assertNull(layout.localizar(subdiretorio, "../segredo.txt"));
+		Assertions.assertNull(layout.localizar(subdiretorio, ".."));
+	}
+
+}
@@ -0,0 +1,168 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class OtimizacaoImagemServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	@Test
+	@DisplayName("Otimizar deve substituir o JPEG quando a versão recodificada fica menor e contabilizar os bytes economizados")
+	void otimizar_RecodificacaoMenor_DeveSubstituirOriginal() throws IOException {
+		//ARRANGE
+		FileStorageService fileStorageService = Mockito.mock(FileStorageService.class);
+		OtimizacaoImagemService otimizacao = novoServico(fileStorageService, 0.5f);
+		Path original = raiz.resolve("foto.jpeg");
+		DerivadaImagemService.escreverJpeg(gradiente(400, 300), original, 1.0f, false);
+		Mockito.when(fileStorageService.localizarArquivos(raiz, "foto.jpeg")).thenReturn(List.of(original));
+		Mockito.when(fileStorageService.isArquivoLocal(original)).thenReturn(true);
+		Mockito.when(fileStorageService.substituirNoDisco(eq(raiz), eq("foto.jpeg"), any(Path.class), any(MetadadosArquivo.class))).thenReturn(true);
+
+		//ACT
+		otimizacao.otimizar(raiz, "foto.jpeg", FormatoArquivo.JPEG);
+
+		//ASSERT
+		Mockito.verify(fileStorageService).substituirNoDisco(eq(raiz), eq("foto.jpeg"), any(Path.class),
+				eq(new MetadadosArquivo(Files.size(original), Files.getLastModifiedTime(original).toMillis())));
+		EstatisticasOtimizacaoDTO estatisticas = otimizacao.estatisticas();
+		Assertions.assertEquals(1, estatisticas.otimizadas());
+		Assertions.assertTrue(estatisticas.bytesEconomizados() > 0);
+	}
+
+	@Test
+	@DisplayName("Otimizar não deve mexer no JPEG que tem orientação EXIF diferente da normal")
+	void otimizar_JpegRotacionadoPorExif_DeveManterOriginal() throws IOException {
+		//ARRANGE
+		FileStorageService fileStorageService = Mockito.mock(FileStorageService.class);
+		OtimizacaoImagemService otimizacao = novoServico(fileStorageService, 0.5f);
+		Path original = raiz.resolve("foto.jpeg");
+		Files.write(original, comOrientacaoExif(6));
+		Mockito.when(fileStorageService.localizarArquivos(raiz, "foto.jpeg")).thenReturn(List.of(original));
+		Mockito.when(fileStorageService.isArquivoLocal(original)).thenReturn(true);
+
+		//ACT
+		otimizacao.otimizar(raiz, "foto.jpeg", FormatoArquivo.JPEG);
+
+		//ASSERT
+		Assertions.assertEquals(6, OtimizacaoImagemService.lerOrientacaoExif(original));
+		Mockito.verify(fileStorageService, Mockito.never()).substituirNoDisco(any(), any(), any(), any());
+		Assertions.assertEquals(1, otimizacao.estatisticas().semGanho());
+	}
+
+	@Test
+	@DisplayName("Enfileirar deve recusar arquivos que não são imagem")
+	void enfileirar_Video_DeveRecusar() {
+		//ARRANGE
+		OtimizacaoImagemService otimizacao = novoServico(Mockito.mock(FileStorageService.class), 0.5f);
+
+		//ACT + ASSERT
+		Assertions.assertFalse(otimizacao.enfileirar(raiz, "video.mp4"));
+		otimizacao.encerrar();
+	}
+
+	@Test
+	@DisplayName("Otimizar não deve regravar PNG com chunk de gama, que o ImageIO descartaria")
+	void otimizar_PngComGama_DeveManterOriginal() throws IOException {
+		//ARRANGE
+		FileStorageService fileStorageService = Mockito.mock(FileStorageService.class);
+		OtimizacaoImagemService otimizacao = novoServico(fileStorageService, 0.5f);
+		Path original = Files.write(raiz.resolve("foto.png"), comChunkGama(gradiente(200, 100)));
+		Mockito.when(fileStorageService.localizarArquivos(raiz, "foto.png")).thenReturn(List.of(original));
+		Mockito.when(fileStorageService.isArquivoLocal(original)).thenReturn(true);
+
+		//ACT
+		otimizacao.otimizar(raiz, "foto.png", FormatoArquivo.PNG);
+
+		//ASSERT
+		Assertions.assertTrue(OtimizacaoImagemService.temChunkDeCor(original));
+		Mockito.verify(fileStorageService, Mockito.never()).substituirNoDisco(any(), any(), any(), any());
+		Assertions.assertEquals(1, otimizacao.estatisticas().semGanho());
+		otimizacao.encerrar();
+	}
+
+	@Test
+	@DisplayName("Enfileirar depois do encerramento deve recusar a imagem em vez de deixá-la esquecida na fila")
+	void enfileirar_ServicoEncerrado_DeveRecusar() {
+		//ARRANGE
+		FileStorageService fileStorageService = Mockito.mock(FileStorageService.class);
+		Mockito.when(fileStorageService.isArmazenamentoLocal()).thenReturn(true);
+		OtimizacaoImagemService otimizacao = novoServico(fileStorageService, 0.5f);
+		otimizacao.encerrar();
+
+		//ACT
+		boolean enfileirada = otimizacao.enfileirar(raiz, "foto.jpeg");
+
+		//ASSERT
+		Assertions.assertFalse(enfileirada);
+		Assertions.assertEquals(1, otimizacao.estatisticas().rejeitadas());
+		Assertions.assertEquals(0, otimizacao.estatisticas().naFila());
+	}
+
+	private OtimizacaoImagemService novoServico(FileStorageService fileStorageService, float qualidade) {
+		OtimizacaoImagemService otimizacao = new OtimizacaoImagemService(true, qualidade, 1, 4, 0);
+		ReflectionTestUtils.setField(otimizacao, "fileStorageService", fileStorageService);
+		return otimizacao;
+	}
+
+	private BufferedImage gradiente(int largura, int altura) {
+		BufferedImage imagem = new BufferedImage(largura, altura, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < largura; x++)
+			for (int y = 0; y < altura; y++)
+				imagem.setRGB(x, y, (x * 255 / largura) << 16 | (y * 255 / altura) << 8 | ((x + y) % 256));
+		return imagem;
+	}
+
+	/**
+	 * PNG gerado pelo ImageIO com um chunk gAMA inserido logo depois do IHDR.
+	 */
+	private byte[] comChunkGama(BufferedImage imagem) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(imagem, "png", png);
+		byte[] bytes = png.toByteArray();
+		int fimIhdr = 8 + 4 + 4 + 13 + 4;
+		byte[] tipoEDados = {'g', 'A', 'M', 'A', 0, 0, (byte) 0xB1, (byte) 0x8F};
+		CRC32 crc = new CRC32();
+		crc.update(tipoEDados);
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		saida.write(bytes, 0, fimIhdr);
+		saida.write(new byte[] {0, 0, 0, 4});
+		saida.write(tipoEDados);
+		long valorCrc = crc.getValue();
+		saida.write(new byte[] {(byte) (valorCrc >> 24), (byte) (valorCrc >> 16), (byte) (valorCrc >> 8), (byte) valorCrc});
+		saida.write(Arrays.copyOfRange(bytes, fimIhdr, bytes.length));
+		return saida.toByteArray();
+	}
+
+	private byte[] comOrientacaoExif(int orientacao) throws IOException {
+		ByteArrayOutputStream saida = new ByteArrayOutputStream();
+		saida.write(new byte[] {(byte) 0xFF, (byte) 0xD8});
+		// APP1: "Exif\0\0" + cabeçalho TIFF big-endian + IFD0 com uma entrada (Orientation, SHORT, 1)
+		saida.write(new byte[] {(byte) 0xFF, (byte) 0xE1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+				'M', 'M', 0, 42, 0, 0, 0, 8,
+				0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientacao, 0, 0,
+				0, 0, 0, 0});
+		saida.write(new byte[] {(byte) 0xFF, (byte) 0xD9});
+		return saida.toByteArray();
+	}
+
+}
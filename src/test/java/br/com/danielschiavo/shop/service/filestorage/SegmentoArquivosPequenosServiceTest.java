@@ -0,0 +1,197 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class SegmentoArquivosPequenosServiceTest {
+
+	@TempDir
+	Path diretorio;
+
+	private final Path raiz = FileStorageProdutoService.raizProduto;
+
+	private SegmentoArquivosPequenosService segmentos;
+
+	@AfterEach
+	void encerrar() throws IOException {
+		segmentos.encerrar();
+	}
+
+	@Test
+	@DisplayName("Arquivos gravados e excluídos devem continuar assim depois de reabrir os segmentos pelo log de índice")
+	void carregar_DepoisDeGravarEDeletar_DeveReconstruirIndice() throws IOException {
+		//ARRANGE
+		segmentos = abrir(1024 * 1024);
+		segmentos.gravar(raiz, "a.jpeg", new byte[] {1, 2, 3});
+		segmentos.gravar(raiz, "b.jpeg", new byte[] {4, 5});
+		segmentos.deletar(raiz, "b.jpeg");
+		segmentos.encerrar();
+
+		//ACT
+		segmentos = abrir(1024 * 1024);
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {1, 2, 3}, bytes(segmentos.ler(raiz, "a.jpeg")));
+		Assertions.assertNull(segmentos.ler(raiz, "b.jpeg"));
+		Assertions.assertEquals(List.of("a.jpeg"), segmentos.listar(raiz));
+		Assertions.assertEquals(3, segmentos.metadados(raiz, "a.jpeg").tamanho());
+	}
+
+	@Test
+	@DisplayName("Append que não chegou ao log de índice deve ser recuperado da cauda do segmento e o registro incompleto descartado")
+	void carregar_LogSemAUltimaEntrada_DeveRecuperarDoSegmento() throws IOException {
+		//ARRANGE
+		segmentos = abrir(1024 * 1024);
+		segmentos.gravar(raiz, "a.jpeg", new byte[] {7, 8, 9});
+		segmentos.encerrar();
+		try (FileChannel indice = FileChannel.open(diretorio.resolve("indice.log"), StandardOpenOption.WRITE)) {
+			indice.truncate(0);
+		}
+		Path segmento = diretorio.resolve("segmento-000001.dat");
+		long tamanhoValido = Files.size(segmento);
+		Files.write(segmento, new byte[] {0x53, 0x48, 0x4F}, StandardOpenOption.APPEND);
+
+		//ACT
+		segmentos = abrir(1024 * 1024);
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {7, 8, 9}, bytes(segmentos.ler(raiz, "a.jpeg")));
+		Assertions.assertEquals(tamanhoValido, Files.size(segmento));
+	}
+
+	@Test
+	@DisplayName("Compactar deve mover os arquivos vivos dos segmentos com pouco espaço útil e apagar o segmento antigo")
+	void compactar_SegmentoComArquivosExcluidos_DeveRecuperarEspaco() throws IOException {
+		//ARRANGE
+		segmentos = abrir(200);
+		segmentos.gravar(raiz, "a.jpeg", new byte[120]);
+		segmentos.gravar(raiz, "b.jpeg", new byte[] {1});
+		segmentos.gravar(raiz, "c.jpeg", new byte[120]);
+		segmentos.deletar(raiz, "a.jpeg");
+
+		//ACT
+		int compactados = segmentos.compactar();
+
+		//ASSERT
+		Assertions.assertEquals(1, compactados);
+		Assertions.assertFalse(Files.exists(diretorio.resolve("segmento-000001.dat")));
+		Assertions.assertArrayEquals(new byte[] {1}, bytes(segmentos.ler(raiz, "b.jpeg")));
+		segmentos.encerrar();
+		segmentos = abrir(200);
+		Assertions.assertArrayEquals(new byte[] {1}, bytes(segmentos.ler(raiz, "b.jpeg")));
+		Assertions.assertNull(segmentos.ler(raiz, "a.jpeg"));
+	}
+
+	@Test
+	@DisplayName("Gravar nome que já está no segmento deve lançar FileAlreadyExistsException sem acrescentar outro registro")
+	void gravar_NomeRepetido_DeveLancarExcecaoSemAcrescentar() throws IOException {
+		//ARRANGE
+		segmentos = abrir(1024 * 1024);
+		segmentos.gravar(raiz, "a.jpeg", new byte[] {1, 2, 3});
+		long tamanho = Files.size(diretorio.resolve("segmento-000001.dat"));
+
+		//ACT + ASSERT
+		Assertions.assertThrows(FileAlreadyExistsException.class, () -> segmentos.gravar(raiz, "a.jpeg", new byte[] {4}));
+		Assertions.assertEquals(tamanho, Files.size(diretorio.resolve("segmento-000001.dat")));
+		Assertions.assertArrayEquals(new byte[] {1, 2, 3}, bytes(segmentos.ler(raiz, "a.jpeg")));
+	}
+
+	@Test
+	@DisplayName("Ler arquivo gravado depois do mapeamento do segmento ativo deve devolver o conteúdo certo sem remapear")
+	void ler_ArquivoGravadoDepoisDoMapeamento_DeveLerDoCanal() throws IOException {
+		//ARRANGE
+		segmentos = abrir(1024 * 1024);
+		segmentos.gravar(raiz, "a.jpeg", new byte[] {1, 2, 3});
+		segmentos.ler(raiz, "a.jpeg");
+		@SuppressWarnings("unchecked")
+		Map<Integer, MappedByteBuffer> mapeados = (Map<Integer, MappedByteBuffer>) ReflectionTestUtils.getField(segmentos, "mapeados");
+		MappedByteBuffer mapeamento = mapeados.get(1);
+
+		//ACT
+		segmentos.gravar(raiz, "b.jpeg", new byte[] {4, 5});
+
+		//ASSERT
+		Assertions.assertArrayEquals(new byte[] {4, 5}, bytes(segmentos.ler(raiz, "b.jpeg")));
+		Assertions.assertSame(mapeamento, mapeados.get(1));
+	}
+
+	@Test
+	@DisplayName("Backend local deve guardar arquivo pequeno em segmento e arquivo grande no disco")
+	void gravarNoBackendLocal_PequenoEGrande_DeveEscolherArmazenamento() throws IOException {
+		//ARRANGE
+		segmentos = abrir(1024 * 1024);
+		Path raizDisco = diretorio.resolve("imagens/produto");
+		SegmentoArquivosPequenosService segmentosDisco = new SegmentoArquivosPequenosService(true, diretorio.resolve("seg").toString(), 16, 1024, 0.5, 0) {
+			@Override
+			public boolean aceita(Path raizArquivo) {
+				return raizArquivo.equals(raizDisco);
+			}
+		};
+		ReflectionTestUtils.setField(segmentosDisco, "durabilidadeArquivosService", durabilidade());
+		segmentosDisco.carregar();
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", segmentosDisco);
+		ReflectionTestUtils.setField(armazenamentoLocal, "durabilidadeArquivosService", durabilidade());
+		ReflectionTestUtils.setField(armazenamentoLocal, "armazenamentoDeduplicadoService", new ArmazenamentoDeduplicadoService(false, diretorio.resolve("blobs").toString()));
+		byte[] grande = new byte[17];
+		grande[16] = 42;
+
+		//ACT
+		armazenamentoLocal.gravar(raizDisco, "pequeno.png", new ByteArrayInputStream(new byte[] {5, 6}));
+		armazenamentoLocal.gravar(raizDisco, "grande.png", new ByteArrayInputStream(grande));
+
+		//ASSERT
+		Assertions.assertTrue(armazenamentoLocal.caminhoLocal(raizDisco, "pequeno.png").isEmpty());
+		Assertions.assertTrue(armazenamentoLocal.caminhoLocal(raizDisco, "grande.png").isPresent());
+		try (InputStream intervalo = armazenamentoLocal.abrirIntervalo(raizDisco, "pequeno.png", 1, 5)) {
+			Assertions.assertArrayEquals(new byte[] {6}, intervalo.readAllBytes());
+		}
+		try (InputStream conteudo = armazenamentoLocal.abrir(raizDisco, "grande.png")) {
+			Assertions.assertArrayEquals(grande, conteudo.readAllBytes());
+		}
+		Assertions.assertTrue(armazenamentoLocal.deletar(raizDisco, "pequeno.png"));
+		Assertions.assertFalse(armazenamentoLocal.existe(raizDisco, "pequeno.png"));
+		segmentosDisco.encerrar();
+	}
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private SegmentoArquivosPequenosService abrir(long tamanhoMaximoSegmento) throws IOException {
+		SegmentoArquivosPequenosService servico = new SegmentoArquivosPequenosService(true, diretorio.toString(), 65536, tamanhoMaximoSegmento, 0.5, 0);
+		ReflectionTestUtils.setField(servico, "durabilidadeArquivosService", durabilidade());
+		servico.carregar();
+		return servico;
+	}
+
+	private DurabilidadeArquivosService durabilidade() {
+		return new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, diretorio.toString(), diretorio.toString());
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+}
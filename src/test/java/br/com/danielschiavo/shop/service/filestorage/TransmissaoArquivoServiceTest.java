@@ -0,0 +1,276 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class TransmissaoArquivoServiceTest {
+
+	private TransmissaoArquivoService transmissaoArquivoService = new TransmissaoArquivoService();
+
+	@TempDir
+	Path raiz;
+
+	@BeforeEach
+	void configurar() {
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		FileStorageService fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(transmissaoArquivoService, "fileStorageService", fileStorageService);
+		InicioRapidoMp4Service inicioRapidoMp4Service = new InicioRapidoMp4Service(true, 0, 0, 1);
+		ReflectionTestUtils.setField(inicioRapidoMp4Service, "fileStorageService", fileStorageService);
+		ReflectionTestUtils.setField(transmissaoArquivoService, "inicioRapidoMp4Service", inicioRapidoMp4Service);
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo deve escrever os bytes crus com Content-Type e Content-Length quando sendfile não é suportado")
+	void transmitir_SendfileNaoSuportado_DeveEscreverBytesCrus() throws IOException {
+		//ARRANGE
+		byte[] bytes = {1, 2, 3, 4, 5};
+		Path arquivo = Files.write(raiz.resolve("imagem.png"), bytes);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/imagem.png");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertEquals("image/png", response.getContentType());
+		Assertions.assertEquals(5, response.getContentLengthLong());
+		Assertions.assertArrayEquals(bytes, response.getContentAsByteArray());
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo deve delegar ao sendfile do Tomcat sem escrever o corpo quando o conector suporta")
+	void transmitir_SendfileSuportado_DeveConfigurarAtributosSemEscreverCorpo() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("imagem.jpeg"), new byte[] {1, 2, 3});
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/imagem.jpeg");
+		request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(arquivo.toAbsolutePath().toString(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+		Assertions.assertEquals(3L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+		Assertions.assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo com Range de um intervalo deve devolver 206 com Content-Range e somente os bytes pedidos")
+	void transmitir_RangeUmIntervalo_DeveRetornarPartialContent() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("video.mp4"), new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/video.mp4");
+		request.addHeader("Range", "bytes=2-4");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(206, response.getStatus());
+		Assertions.assertEquals("bytes 2-4/10", response.getHeader("Content-Range"));
+		Assertions.assertEquals("bytes", response.getHeader("Accept-Ranges"));
+		Assertions.assertArrayEquals(new byte[] {2, 3, 4}, response.getContentAsByteArray());
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo com Range de vários intervalos deve devolver 206 multipart/byteranges")
+	void transmitir_RangeVariosIntervalos_DeveRetornarMultipartByteranges() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("video.mp4"), new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/video.mp4");
+		request.addHeader("Range", "bytes=0-1,-2");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(206, response.getStatus());
+		Assertions.assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+		String corpo = response.getContentAsString();
+		Assertions.assertTrue(corpo.contains("Content-Range: bytes 0-1/10"));
+		Assertions.assertTrue(corpo.contains("Content-Range: bytes 8-9/10"));
+		Assertions.assertEquals(response.getContentAsByteArray().length, response.getContentLengthLong());
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo com If-Range diferente do ETag atual deve ignorar o Range e devolver o arquivo inteiro")
+	void transmitir_IfRangeDesatualizado_DeveRetornarArquivoInteiro() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("video.mp4"), new byte[] {0, 1, 2, 3});
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/video.mp4");
+		request.addHeader("Range", "bytes=1-2");
+		request.addHeader("If-Range", "\"etag-antigo\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertArrayEquals(new byte[] {0, 1, 2, 3}, response.getContentAsByteArray());
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo com Range fora do arquivo deve devolver 416")
+	void transmitir_RangeForaDoArquivo_DeveRetornarRangeNotSatisfiable() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("video.mp4"), new byte[] {0, 1, 2, 3});
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/video.mp4");
+		request.addHeader("Range", "bytes=10-20");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertEquals(416, response.getStatus());
+		Assertions.assertEquals("bytes */4", response.getHeader("Content-Range"));
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo com If-None-Match igual ao ETag atual deve devolver 304 sem corpo e com Cache-Control imutável")
+	void transmitir_IfNoneMatchAtual_DeveRetornarNotModified() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("imagem.jpeg"), new byte[] {1, 2, 3});
+		MockHttpServletRequest primeiroRequest = new MockHttpServletRequest("GET", "/publico/produto/binario/imagem.jpeg");
+		MockHttpServletResponse primeiraResponse = new MockHttpServletResponse();
+		transmissaoArquivoService.transmitir(arquivo, primeiroRequest, primeiraResponse);
+		String etag = primeiraResponse.getHeader("ETag");
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/publico/produto/binario/imagem.jpeg");
+		request.addHeader("If-None-Match", etag);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, request, response);
+
+		//ASSERT
+		Assertions.assertNotNull(etag);
+		Assertions.assertEquals(304, response.getStatus());
+		Assertions.assertEquals(0, response.getContentAsByteArray().length);
+		Assertions.assertTrue(response.getHeader("Cache-Control").contains("immutable"));
+	}
+
+	@Test
+	@DisplayName("MP4 que ainda pode ser reorganizado no lugar não deve ser servido como imutável")
+	void transmitir_Mp4Reorganizavel_NaoDeveSerImutavel() throws IOException {
+		//ARRANGE
+		Path arquivo = Files.write(raiz.resolve("video.mp4"), new byte[] {1, 2, 3});
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitir(arquivo, new MockHttpServletRequest("GET", "/publico/produto/binario/video.mp4"), response);
+
+		//ASSERT
+		Assertions.assertEquals(200, response.getStatus());
+		Assertions.assertFalse(response.getHeader("Cache-Control").contains("immutable"));
+		Assertions.assertTrue(response.getHeader("Cache-Control").contains("no-cache"));
+	}
+
+	@Test
+	@DisplayName("Transmitir zip deve escrever uma entrada sem compressão por arquivo e listar os nomes inexistentes em erros.json")
+	void transmitirZip_ArquivoExistenteEInexistente_DeveGerarZipComErros() throws IOException {
+		//ARRANGE
+		ReflectionTestUtils.setField(transmissaoArquivoService, "objectMapper", new ObjectMapper());
+		Files.write(raiz.resolve("imagem.png"), new byte[] {1, 2, 3});
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitirZip(raiz, new String[] {"imagem.png", "nao-existe.png"}, response);
+
+		//ASSERT
+		Assertions.assertEquals("application/zip", response.getContentType());
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+			ZipEntry entrada = zip.getNextEntry();
+			Assertions.assertEquals("imagem.png", entrada.getName());
+			Assertions.assertEquals(ZipEntry.STORED, entrada.getMethod());
+			Assertions.assertArrayEquals(new byte[] {1, 2, 3}, zip.readAllBytes());
+			Assertions.assertEquals("erros.json", zip.getNextEntry().getName());
+			Assertions.assertTrue(new String(zip.readAllBytes()).contains("nao-existe.png"));
+		}
+	}
+
+	@Test
+	@DisplayName("Transmitir zip de arquivo maior que o buffer deve gravar o CRC e o conteúdo lidos do mesmo arquivo")
+	void transmitirZip_ArquivoGrande_DeveGerarEntradaValida() throws IOException {
+		//ARRANGE
+		ReflectionTestUtils.setField(transmissaoArquivoService, "objectMapper", new ObjectMapper());
+		byte[] bytes = new byte[200_001];
+		new Random(11).nextBytes(bytes);
+		Files.write(raiz.resolve("video.mp4"), bytes);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitirZip(raiz, new String[] {"video.mp4"}, response);
+
+		//ASSERT
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+			Assertions.assertEquals("video.mp4", zip.getNextEntry().getName());
+			Assertions.assertArrayEquals(bytes, zip.readAllBytes());
+			Assertions.assertNull(zip.getNextEntry());
+		}
+	}
+
+	@Test
+	@DisplayName("Transmitir multipart/mixed deve escrever uma parte por nome, na ordem pedida, com parte JSON de erro para o inexistente")
+	void transmitirMultipartMixed_ArquivoExistenteEInexistente_DeveGerarUmaPartePorNome() throws IOException {
+		//ARRANGE
+		ReflectionTestUtils.setField(transmissaoArquivoService, "objectMapper", new ObjectMapper());
+		Files.write(raiz.resolve("imagem.png"), new byte[] {'P', 'N', 'G'});
+		Files.write(raiz.resolve("foto.jpeg"), new byte[] {'J', 'P', 'G', '!'});
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		//ACT
+		transmissaoArquivoService.transmitirMultipartMixed(raiz, new String[] {"imagem.png", "nao-existe.png", "foto.jpeg"}, response);
+
+		//ASSERT
+		MediaType tipo = MediaType.parseMediaType(response.getContentType());
+		Assertions.assertEquals("multipart/mixed", tipo.getType() + "/" + tipo.getSubtype());
+		String fronteira = tipo.getParameter("boundary");
+		String corpo = response.getContentAsString(StandardCharsets.UTF_8);
+		String[] partes = corpo.split("\r\n--" + fronteira);
+		Assertions.assertEquals("", partes[0]);
+		Assertions.assertEquals("--\r\n", partes[4]);
+		Assertions.assertEquals(5, partes.length);
+
+		Assertions.assertTrue(partes[1].contains("Content-Type: image/png\r\n"));
+		Assertions.assertTrue(partes[1].contains("filename=\"imagem.png\""));
+		Assertions.assertTrue(partes[1].endsWith("Content-Length: 3\r\n\r\nPNG"));
+
+		Assertions.assertTrue(partes[2].contains("Content-Type: application/json\r\n"));
+		String erro = partes[2].substring(partes[2].indexOf("\r\n\r\n") + 4);
+		Assertions.assertEquals("nao-existe.png", new ObjectMapper().readTree(erro).get("nomeArquivo").asText());
+		Assertions.assertEquals("O arquivo nao-existe.png não existe", new ObjectMapper().readTree(erro).get("erro").asText());
+
+		Assertions.assertTrue(partes[3].contains("Content-Type: image/jpeg\r\n"));
+		Assertions.assertTrue(partes[3].endsWith("Content-Length: 4\r\n\r\nJPG!"));
+		Assertions.assertEquals(3, Arrays.stream(partes).filter(parte -> parte.contains("Content-Disposition: attachment")).count());
+	}
+
+}
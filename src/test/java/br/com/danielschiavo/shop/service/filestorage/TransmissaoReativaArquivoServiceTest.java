@@ -0,0 +1,135 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class TransmissaoReativaArquivoServiceTest {
+
+	@TempDir
+	Path raiz;
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private FileStorageService fileStorageService;
+
+	private EscritaJsonArquivoService escritaJsonArquivoService = new EscritaJsonArquivoService();
+
+	private WebTestClient cliente;
+
+	@BeforeEach
+	void configurar() {
+		ArmazenamentoLocalService armazenamentoLocal = new ArmazenamentoLocalService();
+		ReflectionTestUtils.setField(armazenamentoLocal, "layoutArmazenamentoService", new LayoutArmazenamentoService(true));
+		ReflectionTestUtils.setField(armazenamentoLocal, "segmentoArquivosPequenosService", new SegmentoArquivosPequenosService(false, raiz.toString(), 0, 0, 0, 0));
+		fileStorageService = new FileStorageService();
+		ReflectionTestUtils.setField(fileStorageService, "armazenamentoBackend", armazenamentoLocal);
+		ReflectionTestUtils.setField(fileStorageService, "catalogoArquivosService", new CatalogoArquivosService(false, raiz.toString(), 16, false));
+		CacheArquivosService cacheArquivosService = new CacheArquivosService(0, 0, 0, 0);
+
+		TransmissaoArquivoService transmissaoArquivoService = new TransmissaoArquivoService();
+		ReflectionTestUtils.setField(transmissaoArquivoService, "fileStorageService", fileStorageService);
+		ReflectionTestUtils.setField(transmissaoArquivoService, "inicioRapidoMp4Service", new InicioRapidoMp4Service(false, 0, 0, 1));
+
+		TransmissaoReativaArquivoService transmissaoReativa = new TransmissaoReativaArquivoService();
+		ReflectionTestUtils.setField(transmissaoReativa, "fileStorageService", fileStorageService);
+		ReflectionTestUtils.setField(transmissaoReativa, "transmissaoArquivoService", transmissaoArquivoService);
+		ReflectionTestUtils.setField(transmissaoReativa, "cacheArquivosService", cacheArquivosService);
+		ReflectionTestUtils.setField(transmissaoReativa, "objectMapper", objectMapper);
+		// menor que os arquivos e fora de múltiplo de 9, para o base64 atravessar os buffers
+		ReflectionTestUtils.setField(transmissaoReativa, "tamanhoBuffer", 4000);
+
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "fileStorageService", fileStorageService);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "cacheArquivosService", cacheArquivosService);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "objectMapper", objectMapper);
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "executorArquivosService", new ExecutorArquivosService(2));
+		ReflectionTestUtils.setField(escritaJsonArquivoService, "paralelismoLeituraPorRequisicao", 2);
+
+		cliente = WebTestClient.bindToRouterFunction(RouterFunctions
+				.route(RequestPredicates.GET("/binario/{nome}").or(RequestPredicates.HEAD("/binario/{nome}")),
+						request -> transmissaoReativa.transmitir(request, () -> fileStorageService.localizarArquivo(raiz, request.pathVariable("nome"))))
+				.andRoute(RequestPredicates.GET("/json/{nomes}"), request -> {
+					String[] nomes = request.pathVariable("nomes").split(",");
+					return transmissaoReativa.escreverJson(request, raiz, nomes, () -> fileStorageService.localizarArquivos(raiz, nomes));
+				})).build();
+	}
+
+	@Test
+	@DisplayName("Transmitir arquivo local deve entregar o conteúdo inteiro, um intervalo com 206 e 304 para o ETag já conhecido")
+	void transmitir_ArquivoLocal_DeveAtenderRangeE304() throws IOException {
+		//ARRANGE
+		byte[] conteudo = new byte[50_000];
+		new Random(3).nextBytes(conteudo);
+		Files.write(raiz.resolve("video.mp4"), conteudo);
+
+		//ACT
+		byte[] inteiro = cliente.get().uri("/binario/video.mp4").exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentLength(conteudo.length)
+				.expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+				.expectBody().returnResult().getResponseBodyContent();
+		String etag = cliente.head().uri("/binario/video.mp4").exchange()
+				.expectStatus().isOk()
+				.returnResult(byte[].class).getResponseHeaders().getETag();
+		byte[] trecho = cliente.get().uri("/binario/video.mp4").header(HttpHeaders.RANGE, "bytes=10000-20999").exchange()
+				.expectStatus().isEqualTo(206)
+				.expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 10000-20999/50000")
+				.expectBody().returnResult().getResponseBodyContent();
+
+		//ASSERT
+		Assertions.assertArrayEquals(conteudo, inteiro);
+		Assertions.assertArrayEquals(Arrays.copyOfRange(conteudo, 10_000, 21_000), trecho);
+		cliente.get().uri("/binario/video.mp4").header(HttpHeaders.IF_NONE_MATCH, etag).exchange()
+				.expectStatus().isNotModified();
+		cliente.get().uri("/binario/video.mp4").header(HttpHeaders.RANGE, "bytes=60000-").exchange()
+				.expectStatus().isEqualTo(416);
+	}
+
+	@Test
+	@DisplayName("Escrever JSON deve gerar exatamente o mesmo corpo da escrita em streaming da pilha MVC, inclusive para nomes inexistentes")
+	void escreverJson_VariosArquivos_DeveGerarMesmoJsonDaPilhaMvc() throws IOException {
+		//ARRANGE
+		byte[] grande = new byte[30_001];
+		new Random(5).nextBytes(grande);
+		Files.write(raiz.resolve("grande.jpeg"), grande);
+		Files.write(raiz.resolve("pequeno.png"), new byte[] {1, 2, 3, 4});
+		String[] nomes = {"grande.jpeg", "inexistente.png", "pequeno.png"};
+		MockHttpServletResponse esperado = new MockHttpServletResponse();
+		escritaJsonArquivoService.escrever(raiz, nomes, esperado);
+
+		//ACT
+		byte[] lista = cliente.get().uri("/json/" + String.join(",", nomes)).exchange()
+				.expectStatus().isOk()
+				.expectBody().returnResult().getResponseBodyContent();
+		byte[] objeto = cliente.get().uri("/json/grande.jpeg").exchange()
+				.expectStatus().isOk()
+				.expectHeader().exists(HttpHeaders.ETAG)
+				.expectBody().returnResult().getResponseBodyContent();
+
+		//ASSERT
+		Assertions.assertArrayEquals(esperado.getContentAsByteArray(), lista);
+		MockHttpServletResponse esperadoObjeto = new MockHttpServletResponse();
+		escritaJsonArquivoService.escrever(raiz, new String[] {"grande.jpeg"}, esperadoObjeto);
+		Assertions.assertArrayEquals(esperadoObjeto.getContentAsByteArray(), objeto);
+		Assertions.assertEquals(List.of("grande.jpeg", "inexistente.png", "pequeno.png"),
+				objectMapper.readTree(lista).findValuesAsText("nomeArquivo"));
+	}
+
+}
@@ -0,0 +1,175 @@
+package br.com.danielschiavo.shop.service.filestorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.com.danielschiavo.shop.model.FileStorageException;
+import br.com.danielschiavo.shop.model.ValidacaoException;
+import br.com.danielschiavo.shop.service.filestorage.UploadRetomavelService.UploadEmConflitoException;
+
+class UploadRetomavelServiceTest {
+
+	@TempDir
+	Path diretorio;
+
+	private UploadRetomavelService uploadRetomavelService;
+
+	private final byte[] video = new byte[300_000];
+
+	@BeforeEach
+	void configurar() {
+		uploadRetomavelService = novoServico();
+		new Random(7).nextBytes(video);
+	}
+
+	@Test
+	@DisplayName("Partes enviadas fora de ordem e em paralelo devem montar o arquivo inteiro, e o recebido só deve avançar sem lacunas")
+	void receberParte_PartesForaDeOrdemEmParalelo_DeveMontarArquivo() throws IOException {
+		//ARRANGE
+		SessaoUploadDTO sessao = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", video.length));
+
+		//ACT
+		SessaoUploadDTO depoisDoFim = uploadRetomavelService.receberParte(sessao.id(), 200_000, parte(200_000, 300_000));
+		CompletableFuture.allOf(
+				CompletableFuture.runAsync(() -> uploadRetomavelService.receberParte(sessao.id(), 100_000, parte(100_000, 200_000))),
+				CompletableFuture.runAsync(() -> uploadRetomavelService.receberParte(sessao.id(), 0, parte(0, 100_000)))).join();
+
+		//ASSERT
+		Assertions.assertEquals(0, depoisDoFim.recebido());
+		Assertions.assertEquals(List.of("200000-299999"), depoisDoFim.intervalosRecebidos());
+		SessaoUploadDTO concluida = uploadRetomavelService.consultar(sessao.id());
+		Assertions.assertEquals(video.length, concluida.recebido());
+		Assertions.assertEquals(List.of("0-299999"), concluida.intervalosRecebidos());
+		try (InputStream conteudo = uploadRetomavelService.abrirConcluido(sessao.id())) {
+			Assertions.assertArrayEquals(video, conteudo.readAllBytes());
+		}
+	}
+
+	@Test
+	@DisplayName("Parte interrompida deve manter os bytes que chegaram e a sessão deve ser retomada depois de um restart")
+	void receberParte_ConexaoCaiNoMeio_DeveRetomarDoOffsetRecebido() throws IOException {
+		//ARRANGE
+		SessaoUploadDTO sessao = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", video.length));
+		InputStream conexaoQueCai = new InputStream() {
+			private final InputStream dados = parte(0, 150_000);
+
+			@Override
+			public int read() throws IOException {
+				throw new IOException("conexão perdida");
+			}
+
+			@Override
+			public int read(byte[] destino, int deslocamento, int tamanho) throws IOException {
+				int lidos = dados.read(destino, deslocamento, tamanho);
+				if (lidos < 0)
+					throw new IOException("conexão perdida");
+				return lidos;
+			}
+		};
+
+		//ACT
+		Assertions.assertThrows(FileStorageException.class, () -> uploadRetomavelService.receberParte(sessao.id(), 0, conexaoQueCai));
+		uploadRetomavelService = novoServico();
+		long recebido = uploadRetomavelService.consultar(sessao.id()).recebido();
+		uploadRetomavelService.receberParte(sessao.id(), recebido, parte((int) recebido, video.length));
+
+		//ASSERT
+		Assertions.assertEquals(150_000, recebido);
+		try (InputStream conteudo = uploadRetomavelService.abrirConcluido(sessao.id())) {
+			Assertions.assertArrayEquals(video, conteudo.readAllBytes());
+		}
+	}
+
+	@Test
+	@DisplayName("Concluir sessão incompleta, parte maior que o tamanho declarado e id inválido devem ser recusados")
+	void receberParte_EntradasInvalidas_DeveRecusar() {
+		//ARRANGE
+		SessaoUploadDTO sessao = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", 10));
+
+		//ACT + ASSERT
+		Assertions.assertThrows(UploadEmConflitoException.class, () -> uploadRetomavelService.abrirConcluido(sessao.id()));
+		Assertions.assertThrows(ValidacaoException.class,
+				() -> uploadRetomavelService.receberParte(sessao.id(), 5, new ByteArrayInputStream(new byte[6])));
+		Assertions.assertThrows(ValidacaoException.class, () -> uploadRetomavelService.consultar("../../etc"));
+		Assertions.assertThrows(ValidacaoException.class,
+				() -> uploadRetomavelService.criar(new CriarSessaoUploadDTO("planilha.xls", "application/vnd.ms-excel", 10)));
+	}
+
+	@Test
+	@DisplayName("Concluir a mesma sessão duas vezes ao mesmo tempo deve recusar a segunda até a primeira liberar ou remover a sessão")
+	void abrirConcluido_ConclusoesSimultaneas_DeveRecusarASegunda() throws IOException {
+		//ARRANGE
+		SessaoUploadDTO sessao = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", video.length));
+		uploadRetomavelService.receberParte(sessao.id(), 0, parte(0, video.length));
+
+		//ACT + ASSERT
+		try (InputStream primeira = uploadRetomavelService.abrirConcluido(sessao.id())) {
+			Assertions.assertThrows(UploadEmConflitoException.class, () -> uploadRetomavelService.abrirConcluido(sessao.id()));
+			Assertions.assertThrows(UploadEmConflitoException.class,
+					() -> uploadRetomavelService.receberParte(sessao.id(), 0, parte(0, 10)));
+			Assertions.assertThrows(UploadEmConflitoException.class, () -> uploadRetomavelService.descartar(sessao.id()));
+		}
+		uploadRetomavelService.liberarConclusao(sessao.id());
+		try (InputStream segunda = uploadRetomavelService.abrirConcluido(sessao.id())) {
+			Assertions.assertArrayEquals(video, segunda.readAllBytes());
+		}
+		uploadRetomavelService.removerConcluida(sessao.id());
+		Assertions.assertThrows(ValidacaoException.class, () -> uploadRetomavelService.consultar(sessao.id()));
+	}
+
+	@Test
+	@DisplayName("A limpeza deve apagar as sessões paradas há mais que a validade, menos as que estão sendo concluídas")
+	void removerExpiradas_SessoesAntigas_DeveApagarSoAsQueNaoEstaoSendoConcluidas() throws IOException {
+		//ARRANGE
+		SessaoUploadDTO abandonada = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", 10));
+		SessaoUploadDTO concluindo = uploadRetomavelService.criar(new CriarSessaoUploadDTO("video.mp4", "video/mp4", 10));
+		uploadRetomavelService.receberParte(concluindo.id(), 0, parte(0, 10));
+		InputStream emConclusao = uploadRetomavelService.abrirConcluido(concluindo.id());
+		FileTime antigo = FileTime.from(Instant.now().minus(Duration.ofHours(25)));
+		Files.setLastModifiedTime(diretorio.resolve(abandonada.id()).resolve("dados"), antigo);
+		Files.setLastModifiedTime(diretorio.resolve(concluindo.id()).resolve("dados"), antigo);
+
+		//ACT
+		uploadRetomavelService.removerExpiradas();
+
+		//ASSERT
+		Assertions.assertThrows(ValidacaoException.class, () -> uploadRetomavelService.consultar(abandonada.id()));
+		Assertions.assertEquals(10, uploadRetomavelService.consultar(concluindo.id()).recebido());
+		emConclusao.close();
+	}
+
+
+
+//
+// METODOS UTILITARIOS DE TESTE
+//
+
+	private UploadRetomavelService novoServico() {
+		UploadRetomavelService servico = new UploadRetomavelService(diretorio.toString(), 1024 * 1024, 24);
+		ReflectionTestUtils.setField(servico, "durabilidadeArquivosService",
+				new DurabilidadeArquivosService(ModoDurabilidade.NENHUMA, 0, 1, diretorio.toString(), diretorio.toString()));
+		return servico;
+	}
+
+	private InputStream parte(int inicio, int fim) {
+		return new ByteArrayInputStream(Arrays.copyOfRange(video, inicio, fim));
+	}
+
+}